@@ -0,0 +1,159 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.media.ImageReader;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Starts and pauses a prepared engine from several threads at once. The messages of the callers
+ * reach the player thread in any order, the player must still end in the target state.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 21)
+public class EngineCommandStressTest {
+
+  private static final int DURATION_MS = 5000;
+  private static final long TIMEOUT_MS = 15000;
+  private static final int ROUNDS = 20;
+  private static final int CALLERS = 3;
+  // few enough for the player thread to catch up within the timeout of flush().
+  private static final int REQUESTS = 200;
+
+  private Context mContext;
+  private Handler mSinkHandler;
+  private ImageReader mSink;
+  private PlayerEngine mEngine;
+  private final PlayerEngine.Callback mTarget = new PlayerEngine.Callback() {
+    @Override
+    public void onStateChanged(int state) {
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+    }
+
+    @Override
+    public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+    }
+
+    @Override
+    public void onError(MediaPlayer mp, int what, int extra) {
+    }
+
+    @Override
+    public void onInfo(MediaPlayer mp, int what, int extra) {
+    }
+
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+    }
+  };
+
+  @Before
+  public void setUp() throws Exception {
+    mContext = InstrumentationRegistry.getTargetContext();
+    mSinkHandler = TestVideos.newHandler("FrameSink");
+    mSink = TestVideos.newFrameSink(mSinkHandler);
+    final Uri uri = Uri.fromFile(TestVideos.create(mContext, "commands.mp4", DURATION_MS));
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mEngine = new PlayerEngine(mContext);
+        mEngine.setShouldRequestAudioFocus(false);
+        mEngine.setLooping(true);
+        mEngine.attach(mTarget);
+        mEngine.setSurface(mTarget, mSink.getSurface());
+        mEngine.open(uri, null);
+        mEngine.start();
+      }
+    });
+    long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+    while (mEngine.getCurrentState() != PlayerEngine.STATE_PLAYING
+        && SystemClock.uptimeMillis() < deadline) {
+      SystemClock.sleep(10);
+    }
+    assertEquals(PlayerEngine.STATE_PLAYING, mEngine.getCurrentState());
+  }
+
+  @After
+  public void tearDown() {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mEngine.detach(mTarget);
+        mEngine.releaseSync(true);
+      }
+    });
+    mSink.close();
+    mSinkHandler.getLooper().quit();
+  }
+
+  @Test
+  public void endsInTheTargetStateOfTheLastRequest() throws Throwable {
+    for (int round = 0; round < ROUNDS; round++) {
+      final CountDownLatch go = new CountDownLatch(1);
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < CALLERS; i++) {
+        final Random random = new Random(round * CALLERS + i);
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              go.await();
+              for (int j = 0; j < REQUESTS; j++) {
+                if (random.nextBoolean()) {
+                  mEngine.start();
+                } else {
+                  mEngine.pause();
+                }
+              }
+            } catch (Throwable e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        });
+        thread.start();
+        threads.add(thread);
+      }
+      go.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      if (failure.get() != null) {
+        throw failure.get();
+      }
+      mEngine.flush();
+
+      int target = mEngine.getTargetState();
+      assertEquals("round " + round, target, mEngine.getCurrentState());
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Hands the engine of a view to another one, the previous view must not drive it any more.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EngineHandoffTest {
+
+  private Context mContext;
+  private Uri mUri;
+
+  @Before
+  public void setUp() {
+    mContext = InstrumentationRegistry.getTargetContext();
+    // never prepared, the views have no surface.
+    mUri = Uri.fromFile(new File(mContext.getCacheDir(), "handoff.mp4"));
+  }
+
+  @Test
+  public void textureViewLetsGoOfTheHandedOverEngine() {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        TextureVideoView inline = new TextureVideoView(mContext);
+        TextureVideoView fullscreen = new TextureVideoView(mContext);
+        PlayerEngine shared = inline.getPlayerEngine();
+        fullscreen.setPlayerEngine(shared);
+        fullscreen.start();
+
+        // the inline cell is rebound while the fullscreen view plays.
+        inline.pause();
+        inline.seekTo(1000);
+        inline.seekTo(2000, true);
+        inline.setLooping(true);
+        assertEquals(PlayerEngine.STATE_PLAYING, shared.getTargetState());
+        assertEquals(0, shared.getSeekStats().requested);
+        assertEquals(false, shared.isLooping());
+
+        inline.setVideoURI(mUri);
+        assertNotSame(shared, inline.getPlayerEngine());
+        assertSame(shared, fullscreen.getPlayerEngine());
+        assertNull(shared.getUri());
+        // the settings of the view go with it.
+        assertEquals(true, inline.getPlayerEngine().isLooping());
+
+        inline.start();
+        fullscreen.pause();
+        assertEquals(PlayerEngine.STATE_PLAYING, inline.getPlayerEngine().getTargetState());
+        assertEquals(PlayerEngine.STATE_PAUSED, shared.getTargetState());
+
+        inline.stopPlayback();
+        fullscreen.stopPlayback();
+      }
+    });
+  }
+
+  @Test
+  public void surfaceViewLetsGoOfTheHandedOverEngine() {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        SurfaceVideoView inline = new SurfaceVideoView(mContext);
+        SurfaceVideoView fullscreen = new SurfaceVideoView(mContext);
+        PlayerEngine shared = inline.getPlayerEngine();
+        fullscreen.setPlayerEngine(shared);
+        fullscreen.start();
+
+        inline.pause();
+        inline.seekTo(1000);
+        assertEquals(PlayerEngine.STATE_PLAYING, shared.getTargetState());
+        assertEquals(0, shared.getSeekStats().requested);
+
+        inline.setVideoURI(mUri);
+        assertNotSame(shared, inline.getPlayerEngine());
+        assertSame(shared, fullscreen.getPlayerEngine());
+        assertNull(shared.getUri());
+
+        inline.stopPlayback();
+        fullscreen.stopPlayback();
+      }
+    });
+  }
+}
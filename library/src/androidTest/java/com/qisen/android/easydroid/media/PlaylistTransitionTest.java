@@ -0,0 +1,169 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.media.ImageReader;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the gap between the items of a playlist rendered to a surface.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 21)
+public class PlaylistTransitionTest {
+
+  private static final int DURATION_MS = 2000;
+  // the next item is prepared ahead, only the surface handover and the first frame are left.
+  private static final long MAX_GAP_MS = 500;
+  private static final long TIMEOUT_MS = 15000;
+
+  private Context mContext;
+  private Handler mSinkHandler;
+  private ImageReader mSink;
+  private PlayerEngine mEngine;
+  private final Target mTarget = new Target();
+  private final List<PlaybackMetrics> mMetrics = new ArrayList<>();
+  private final CountDownLatch mSessions = new CountDownLatch(2);
+  private final CountDownLatch mItemChanged = new CountDownLatch(1);
+
+  @Before
+  public void setUp() {
+    mContext = InstrumentationRegistry.getTargetContext();
+    mSinkHandler = TestVideos.newHandler("FrameSink");
+    mSink = TestVideos.newFrameSink(mSinkHandler);
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mEngine = new PlayerEngine(mContext);
+        mEngine.setShouldRequestAudioFocus(false);
+        mEngine.setPlaybackMetricsListener(new PlaybackMetrics.Listener() {
+          @Override
+          public void onPlaybackMetrics(PlaybackMetrics metrics) {
+            mMetrics.add(metrics.copy());
+            mSessions.countDown();
+          }
+        });
+        mEngine.setPlaylistListener(new PlayerEngine.PlaylistListener() {
+          @Override
+          public void onPlaylistItemChanged(int index) {
+            mItemChanged.countDown();
+          }
+        });
+        mEngine.attach(mTarget);
+        mEngine.setSurface(mTarget, mSink.getSurface());
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mEngine.detach(mTarget);
+        mEngine.releaseSync(true);
+      }
+    });
+    mSink.close();
+    mSinkHandler.getLooper().quit();
+  }
+
+  @Test
+  public void handsTheSurfaceOverWithinTheGap() throws Exception {
+    final List<Uri> uris = Arrays.asList(
+        Uri.fromFile(TestVideos.create(mContext, "first.mp4", DURATION_MS)),
+        Uri.fromFile(TestVideos.create(mContext, "second.mp4", DURATION_MS)));
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mEngine.openPlaylist(uris, null);
+        mEngine.start();
+      }
+    });
+
+    assertTrue(mItemChanged.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(1, mEngine.getPlaylistIndex());
+    long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+    while (mEngine.getLastTransitionGapMs() < 0 && SystemClock.uptimeMillis() < deadline) {
+      SystemClock.sleep(10);
+    }
+    long gap = mEngine.getLastTransitionGapMs();
+    assertTrue("gap " + gap, gap >= 0 && gap <= MAX_GAP_MS);
+
+    assertTrue(mTarget.mCompleted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mEngine.releaseSync(true);
+      }
+    });
+    assertTrue(mSessions.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+    // the second item keeps the times of its preparation, before it became the current one.
+    PlaybackMetrics second = mMetrics.get(1);
+    assertTrue(second.preloaded);
+    assertNotEquals(PlaybackMetrics.NO_TIME, second.preparedTime);
+    assertTrue(second.playerCreatedTime <= second.dataSourceSetTime);
+    assertTrue(second.dataSourceSetTime <= second.preparedTime);
+    assertTrue(second.preparedTime <= second.uriSetTime);
+    assertTrue(second.firstFrameTime >= second.uriSetTime);
+  }
+
+  private static class Target implements PlayerEngine.Callback {
+    final CountDownLatch mCompleted = new CountDownLatch(1);
+
+    @Override
+    public void onStateChanged(int state) {
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+    }
+
+    @Override
+    public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+      mCompleted.countDown();
+    }
+
+    @Override
+    public void onError(MediaPlayer mp, int what, int extra) {
+    }
+
+    @Override
+    public void onInfo(MediaPlayer mp, int what, int extra) {
+    }
+
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.qisen.android.easydroid.media;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes short videos on the device, so the tests need no media in the repository.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class TestVideos {
+
+  static final int WIDTH = 320;
+  static final int HEIGHT = 240;
+
+  private static final String MIME = MediaFormat.MIMETYPE_VIDEO_AVC;
+  private static final int FRAME_RATE = 30;
+  private static final int BIT_RATE = 1000 * 1000;
+  private static final long TIMEOUT_US = 10 * 1000;
+
+  private TestVideos() {
+  }
+
+  /**
+   * Encodes a video of {@link #WIDTH} x {@link #HEIGHT} without audio, each frame a different
+   * gray.
+   *
+   * @param name the file name in the cache directory.
+   * @param durationMs the duration of the video.
+   */
+  static File create(Context context, String name, int durationMs) throws IOException {
+    return create(context, name, durationMs, WIDTH, HEIGHT);
+  }
+
+  /**
+   * Encodes a video of the size, multiples of 16 for the encoders.
+   */
+  static File create(Context context, String name, int durationMs, int width, int height)
+      throws IOException {
+    File file = new File(context.getCacheDir(), name);
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Unable to delete " + file);
+    }
+    MediaFormat format = MediaFormat.createVideoFormat(MIME, width, height);
+    format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+        MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+    format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+    format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+    format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+    MediaCodec encoder = MediaCodec.createEncoderByType(MIME);
+    encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    encoder.start();
+    MediaMuxer muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    int track = -1;
+    try {
+      int frames = durationMs * FRAME_RATE / 1000;
+      int frame = 0;
+      boolean inputDone = false;
+      boolean outputDone = false;
+      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      while (!outputDone) {
+        if (!inputDone) {
+          int index = encoder.dequeueInputBuffer(TIMEOUT_US);
+          if (index >= 0) {
+            long timeUs = frame * 1000000L / FRAME_RATE;
+            if (frame == frames) {
+              encoder.queueInputBuffer(index, 0, 0, timeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+              inputDone = true;
+            } else {
+              fill(encoder.getInputImage(index), width, height, 16 + frame * 7 % 220);
+              encoder.queueInputBuffer(index, 0, width * height * 3 / 2, timeUs, 0);
+              frame++;
+            }
+          }
+        }
+        int index = encoder.dequeueOutputBuffer(info, TIMEOUT_US);
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+          track = muxer.addTrack(encoder.getOutputFormat());
+          muxer.start();
+        } else if (index >= 0) {
+          ByteBuffer data = encoder.getOutputBuffer(index);
+          // the codec config is already in the output format.
+          if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+            data.position(info.offset);
+            data.limit(info.offset + info.size);
+            muxer.writeSampleData(track, data, info);
+          }
+          encoder.releaseOutputBuffer(index, false);
+          outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        }
+      }
+    } finally {
+      encoder.stop();
+      encoder.release();
+      if (track >= 0) {
+        muxer.stop();
+      }
+      muxer.release();
+    }
+    return file;
+  }
+
+  /**
+   * Creates a surface which consumes and drops the rendered frames, as a view on the screen
+   * would. Release the reader and quit the thread of the handler when done.
+   */
+  static ImageReader newFrameSink(Handler handler) {
+    ImageReader reader = ImageReader.newInstance(WIDTH, HEIGHT, ImageFormat.YUV_420_888, 3);
+    reader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+      @Override
+      public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image != null) {
+          image.close();
+        }
+      }
+    }, handler);
+    return reader;
+  }
+
+  static Handler newHandler(String name) {
+    HandlerThread thread = new HandlerThread(name);
+    thread.start();
+    return new Handler(thread.getLooper());
+  }
+
+  private static void fill(Image image, int imageWidth, int imageHeight, int luma) {
+    Image.Plane[] planes = image.getPlanes();
+    for (int i = 0; i < planes.length; i++) {
+      int width = i == 0 ? imageWidth : imageWidth / 2;
+      int height = i == 0 ? imageHeight : imageHeight / 2;
+      byte value = (byte) (i == 0 ? luma : 128);
+      ByteBuffer buffer = planes[i].getBuffer();
+      int rowStride = planes[i].getRowStride();
+      int pixelStride = planes[i].getPixelStride();
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          buffer.put(y * rowStride + x * pixelStride, value);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.media.ImageReader;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that start, pause and seek allocate nothing on the calling thread with tracing on.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 21)
+public class TracingAllocationTest {
+
+  private static final int DURATION_MS = 5000;
+  private static final long TIMEOUT_MS = 15000;
+  private static final int BATCHES = 50;
+  // the messages of a batch fit in the pool of Message, obtain() does not allocate.
+  private static final int BATCH_SIZE = 5;
+
+  private Context mContext;
+  private Handler mSinkHandler;
+  private ImageReader mSink;
+  private PlayerEngine mEngine;
+  private int mLevel;
+  private final PlayerEngine.Callback mTarget = new PlayerEngine.Callback() {
+    @Override
+    public void onStateChanged(int state) {
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+    }
+
+    @Override
+    public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+    }
+
+    @Override
+    public void onError(MediaPlayer mp, int what, int extra) {
+    }
+
+    @Override
+    public void onInfo(MediaPlayer mp, int what, int extra) {
+    }
+
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+    }
+  };
+
+  @Before
+  public void setUp() throws Exception {
+    mLevel = PlaybackTracer.getLevel();
+    PlaybackTracer.setLevel(PlaybackTracer.LEVEL_VERBOSE);
+    mContext = InstrumentationRegistry.getTargetContext();
+    mSinkHandler = TestVideos.newHandler("FrameSink");
+    mSink = TestVideos.newFrameSink(mSinkHandler);
+    final Uri uri = Uri.fromFile(TestVideos.create(mContext, "allocation.mp4", DURATION_MS));
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mEngine = new PlayerEngine(mContext);
+        mEngine.setShouldRequestAudioFocus(false);
+        mEngine.setLooping(true);
+        mEngine.attach(mTarget);
+        mEngine.setSurface(mTarget, mSink.getSurface());
+        mEngine.open(uri, null);
+        mEngine.start();
+      }
+    });
+    long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+    while (mEngine.getCurrentState() != PlayerEngine.STATE_PLAYING
+        && SystemClock.uptimeMillis() < deadline) {
+      SystemClock.sleep(10);
+    }
+    assertEquals(PlayerEngine.STATE_PLAYING, mEngine.getCurrentState());
+  }
+
+  @After
+  public void tearDown() {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mEngine.detach(mTarget);
+        mEngine.releaseSync(true);
+      }
+    });
+    mSink.close();
+    mSinkHandler.getLooper().quit();
+    PlaybackTracer.setLevel(mLevel);
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void controlsWithoutAllocation() {
+    // the ring buffer, the lazily created state and the message pool are set up here.
+    runBatch(0);
+    mEngine.flush();
+
+    Debug.resetThreadAllocCount();
+    for (int batch = 0; batch < BATCHES; batch++) {
+      Debug.startAllocCounting();
+      runBatch(batch);
+      Debug.stopAllocCounting();
+      // the player thread recycles the messages, not counted.
+      mEngine.flush();
+    }
+    assertEquals(0, Debug.getThreadAllocCount());
+  }
+
+  private void runBatch(int batch) {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      mEngine.start();
+      mEngine.pause();
+      mEngine.seekTo((batch * BATCH_SIZE + i) * 97 % DURATION_MS, i % 2 == 0);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View.MeasureSpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the layout passes of a {@link TextureVideoView} while the size of the video changes.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 21)
+public class VideoSizeLayoutTest {
+
+  private static final int DURATION_MS = 1000;
+  private static final int VIEW_WIDTH = 640;
+  private static final int VIEW_HEIGHT = 360;
+  private static final long TIMEOUT_MS = 15000;
+
+  private Context mContext;
+  private Uri mLandscape;
+  private Uri mPortrait;
+  private CountingVideoView mView;
+  private SurfaceTexture mSurfaceTexture;
+
+  @Before
+  public void setUp() throws IOException {
+    mContext = InstrumentationRegistry.getTargetContext();
+    mLandscape = Uri.fromFile(TestVideos.create(mContext, "landscape.mp4", DURATION_MS,
+        TestVideos.WIDTH, TestVideos.HEIGHT));
+    mPortrait = Uri.fromFile(TestVideos.create(mContext, "portrait.mp4", DURATION_MS,
+        TestVideos.HEIGHT, TestVideos.WIDTH));
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mView = new CountingVideoView(mContext);
+        mView.getPlayerEngine().setShouldRequestAudioFocus(false);
+        // 不挂到窗口上，手动交给它一个 SurfaceTexture.
+        mSurfaceTexture = new SurfaceTexture(0);
+        mView.getSurfaceTextureListener().onSurfaceTextureAvailable(mSurfaceTexture, VIEW_WIDTH,
+            VIEW_HEIGHT);
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mView.stopPlayback();
+        mSurfaceTexture.release();
+      }
+    });
+  }
+
+  @Test
+  public void exactSizeIsNotLaidOutAgain() {
+    int widthSpec = MeasureSpec.makeMeasureSpec(VIEW_WIDTH, MeasureSpec.EXACTLY);
+    int heightSpec = MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, MeasureSpec.EXACTLY);
+    layout(widthSpec, heightSpec);
+    mView.resetCounts();
+
+    play(mLandscape, TestVideos.WIDTH);
+    layout(widthSpec, heightSpec);
+    play(mPortrait, TestVideos.HEIGHT);
+    layout(widthSpec, heightSpec);
+
+    // only the transform follows the video, the measured size stays.
+    assertEquals(0, mView.requestLayoutCount);
+    assertEquals(0, mView.measureCount);
+    assertEquals(VIEW_WIDTH, mView.getMeasuredWidth());
+    assertEquals(VIEW_HEIGHT, mView.getMeasuredHeight());
+  }
+
+  @Test
+  public void wrappedSizeFollowsTheVideo() {
+    int widthSpec = MeasureSpec.makeMeasureSpec(VIEW_WIDTH, MeasureSpec.AT_MOST);
+    int heightSpec = MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, MeasureSpec.AT_MOST);
+    layout(widthSpec, heightSpec);
+    mView.resetCounts();
+
+    play(mLandscape, TestVideos.WIDTH);
+    layout(widthSpec, heightSpec);
+    assertTrue(mView.requestLayoutCount > 0);
+    assertEquals(1, mView.measureCount);
+    assertAspect(TestVideos.WIDTH, TestVideos.HEIGHT);
+
+    mView.resetCounts();
+    play(mPortrait, TestVideos.HEIGHT);
+    layout(widthSpec, heightSpec);
+    assertTrue(mView.requestLayoutCount > 0);
+    assertEquals(1, mView.measureCount);
+    assertAspect(TestVideos.HEIGHT, TestVideos.WIDTH);
+  }
+
+  /*
+   * 像父 View 一样测量和布局，只有请求过布局或者约束变化的时候才会执行 onMeasure.
+   */
+  private void layout(final int widthSpec, final int heightSpec) {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mView.measure(widthSpec, heightSpec);
+        mView.layout(0, 0, mView.getMeasuredWidth(), mView.getMeasuredHeight());
+      }
+    });
+  }
+
+  /*
+   * 打开视频并等到主线程收到它的尺寸.
+   */
+  private void play(final Uri uri, int videoWidth) {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        mView.setVideoURI(uri);
+      }
+    });
+    long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+    while (mView.getPlayerEngine().getVideoWidth() != videoWidth) {
+      assertTrue("Not prepared " + uri, SystemClock.uptimeMillis() < deadline);
+      SystemClock.sleep(10);
+    }
+    InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+  }
+
+  private void assertAspect(int videoWidth, int videoHeight) {
+    float expected = (float) videoWidth / videoHeight;
+    float actual = (float) mView.getMeasuredWidth() / mView.getMeasuredHeight();
+    assertEquals(expected, actual, 0.02);
+  }
+
+  private static class CountingVideoView extends TextureVideoView {
+    int measureCount;
+    int requestLayoutCount;
+
+    CountingVideoView(Context context) {
+      super(context);
+    }
+
+    void resetCounts() {
+      measureCount = 0;
+      requestLayoutCount = 0;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+      measureCount++;
+      super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+    }
+
+    @Override
+    public void requestLayout() {
+      requestLayoutCount++;
+      super.requestLayout();
+    }
+  }
+}
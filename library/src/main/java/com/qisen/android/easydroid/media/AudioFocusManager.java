@@ -0,0 +1,228 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * 进程内所有播放器共用的音频焦点。
+ *
+ * ### 计数
+ * 开始播放的 {@link PlayerEngine} 通过 {@link #acquire(Client)} 登记，第一个登记的播放器才会向系统
+ * 申请焦点；最后一个播放器 {@link #release(Client)} 之后，等待 {@link #ABANDON_DELAY_MS} 仍然没有
+ * 新的播放器，才把焦点还给系统。快速切换视频时不会反复申请和放弃焦点。
+ *
+ * ### 焦点变化
+ * 系统的焦点变化转发到播放线程，由各个播放器处理：永久失去焦点时暂停；短暂失去焦点时暂停，重新
+ * 获得焦点后继续播放；可以降低音量（duck）时把音量降到 {@link #setDuckVolume(float)}，重新获得
+ * 焦点后恢复。短暂失去焦点期间开始播放会重新申请焦点，系统拒绝时不播放。
+ *
+ * ### 线程
+ * 除了 {@link #getStats()} 以及设置方法，其他方法只能在播放线程调用。
+ */
+public class AudioFocusManager {
+
+  private static final String TAG = "AudioFocusManager";
+
+  static final long ABANDON_DELAY_MS = 1000;
+  private static final float DEFAULT_DUCK_VOLUME = 0.2F;
+
+  private static final int FOCUS_NONE = 0;
+  private static final int FOCUS_GAINED = 1;
+  private static final int FOCUS_LOST_TRANSIENT = 2;
+  private static final int FOCUS_DUCKED = 3;
+
+  private static AudioFocusManager sInstance;
+
+  private final AudioManager mAudioManager;
+  // only accessed on the player thread.
+  private final ArrayList<Client> mClients = new ArrayList<>();
+  private int mFocus = FOCUS_NONE;
+  private volatile float mDuckVolume = DEFAULT_DUCK_VOLUME;
+  private final Stats mStats = new Stats();
+
+  private AudioFocusManager(Context context) {
+    mAudioManager = (AudioManager) context.getApplicationContext()
+        .getSystemService(Context.AUDIO_SERVICE);
+  }
+
+  public static synchronized AudioFocusManager getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new AudioFocusManager(context);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Sets the volume of the players while ducking, from 0 to 1.
+   */
+  public void setDuckVolume(float volume) {
+    mDuckVolume = Math.max(0, Math.min(1, volume));
+  }
+
+  /**
+   * Returns the volume the players should use under the current focus.
+   */
+  float getVolume() {
+    return mFocus == FOCUS_DUCKED ? mDuckVolume : 1;
+  }
+
+  /**
+   * Registers the playing client, the focus is requested if not held yet or lost transiently.
+   *
+   * @return false if the system refused the focus and the client should not play, it is told by
+   * {@link Client#onAudioFocusChange(int)} when a transiently lost focus comes back.
+   */
+  boolean acquire(Client client) {
+    if (!mClients.contains(client)) {
+      mClients.add(client);
+    }
+    PlayerThread.getHandler().removeCallbacks(mAbandonRunnable);
+    if (mFocus == FOCUS_GAINED || mFocus == FOCUS_DUCKED) {
+      synchronized (mStats) {
+        mStats.reused++;
+      }
+      return true;
+    }
+    int result = mAudioManager.requestAudioFocus(mFocusChangeListener,
+        AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
+    synchronized (mStats) {
+      mStats.requests++;
+    }
+    if (result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+      mFocus = FOCUS_GAINED;
+      return true;
+    }
+    // 短暂失去的焦点保持不变，系统归还焦点时仍然会回调.
+    Log.w(TAG, "Audio focus request failed");
+    return false;
+  }
+
+  /**
+   * Unregisters the client, the focus is abandoned later if no client is left.
+   */
+  void release(Client client) {
+    if (mClients.remove(client) && mClients.isEmpty() && mFocus != FOCUS_NONE) {
+      PlayerThread.getHandler().removeCallbacks(mAbandonRunnable);
+      PlayerThread.getHandler().postDelayed(mAbandonRunnable, ABANDON_DELAY_MS);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the statistics.
+   */
+  public Stats getStats() {
+    synchronized (mStats) {
+      return mStats.copy();
+    }
+  }
+
+  private void onFocusChange(int focusChange) {
+    switch (focusChange) {
+      case AudioManager.AUDIOFOCUS_GAIN:
+        if (mFocus == FOCUS_NONE) {
+          // 已经放弃的焦点，忽略延迟到达的回调.
+          return;
+        }
+        mFocus = FOCUS_GAINED;
+        break;
+      case AudioManager.AUDIOFOCUS_LOSS:
+        // 系统已经收回焦点，之后重新播放时需要再次申请.
+        mFocus = FOCUS_NONE;
+        break;
+      case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+        mFocus = FOCUS_LOST_TRANSIENT;
+        break;
+      case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+        mFocus = FOCUS_DUCKED;
+        break;
+      default:
+        return;
+    }
+    synchronized (mStats) {
+      if (focusChange == AudioManager.AUDIOFOCUS_LOSS
+          || focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT) {
+        mStats.losses++;
+      } else if (focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK) {
+        mStats.ducks++;
+      }
+    }
+    // 回调中播放器可能会释放自己，使用倒序遍历.
+    for (int i = mClients.size() - 1; i >= 0; i--) {
+      if (i < mClients.size()) {
+        mClients.get(i).onAudioFocusChange(focusChange);
+      }
+    }
+  }
+
+  private final AudioManager.OnAudioFocusChangeListener mFocusChangeListener =
+      new AudioManager.OnAudioFocusChangeListener() {
+        @Override
+        public void onAudioFocusChange(final int focusChange) {
+          // 系统在主线程回调，转到播放线程处理.
+          PlayerThread.post(new Runnable() {
+            @Override
+            public void run() {
+              onFocusChange(focusChange);
+            }
+          });
+        }
+      };
+
+  private final Runnable mAbandonRunnable = new Runnable() {
+    @Override
+    public void run() {
+      if (!mClients.isEmpty() || mFocus == FOCUS_NONE) {
+        return;
+      }
+      mAudioManager.abandonAudioFocus(mFocusChangeListener);
+      mFocus = FOCUS_NONE;
+      synchronized (mStats) {
+        mStats.abandons++;
+      }
+    }
+  };
+
+  /**
+   * A player holding the focus, called on the player thread.
+   */
+  interface Client {
+
+    /**
+     * @param focusChange one of the AUDIOFOCUS_* constants of {@link AudioManager}.
+     */
+    void onAudioFocusChange(int focusChange);
+  }
+
+  /**
+   * Statistics of the focus.
+   */
+  public static class Stats {
+    // requests sent to the system.
+    public int requests;
+    // acquisitions satisfied by the focus already held.
+    public int reused;
+    public int abandons;
+    // permanent and transient losses.
+    public int losses;
+    public int ducks;
+
+    Stats copy() {
+      Stats stats = new Stats();
+      stats.requests = requests;
+      stats.reused = reused;
+      stats.abandons = abandons;
+      stats.losses = losses;
+      stats.ducks = ducks;
+      return stats;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{requests=" + requests + ", reused=" + reused + ", abandons=" + abandons
+          + ", losses=" + losses + ", ducks=" + ducks + "}";
+    }
+  }
+}
@@ -0,0 +1,344 @@
+package com.qisen.android.easydroid.media;
+
+import android.graphics.Rect;
+import android.net.Uri;
+import android.view.Choreographer;
+
+import com.qisen.android.easydroid.media.cache.VideoCacheProxy;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * 根据可见比例决定列表中哪些视频自动播放。
+ *
+ * ### 选举
+ * 列表中的视频通过 {@link #register(Item)} 注册，每次更新时读取它们的可见比例，可见比例不低于
+ * {@link #setMinVisibleFraction(float)} 的视频中，最可见的 {@link #setMaxActive(int)} 个开始播放，
+ * 其余正在播放的视频停止。可见比例相同时保留已经在播放的视频，避免来回切换。
+ *
+ * ### 预加载
+ * 没有当选的视频中最可见的一个会收到 {@link Item#onPreload()}，滑动到它的时候可以直接使用准备好的
+ * 播放器。
+ *
+ * ### 滑动
+ * 滑动回调中调用 {@link #onScrolled()}，同一帧内的多次调用合并为一次更新，更新只在选举结果变化时
+ * 才通知 {@link Item}，不会分配对象。
+ *
+ * ### 测试
+ * 选举只依赖 {@link Item} 接口，{@link #update()} 同步执行，可以用假的 Item 测试；帧回调通过
+ * {@link FrameScheduler} 发出，测试中可以替换成手动执行的。视频 View 使用 {@link VideoItem} 适配。
+ *
+ * 这个类只能在主线程使用。
+ */
+public class AutoplayCoordinator {
+
+  private static final float DEFAULT_MIN_VISIBLE_FRACTION = 0.5F;
+
+  private static final FrameScheduler CHOREOGRAPHER = new FrameScheduler() {
+    @Override
+    public void postFrameCallback(Choreographer.FrameCallback callback) {
+      Choreographer.getInstance().postFrameCallback(callback);
+    }
+
+    @Override
+    public void removeFrameCallback(Choreographer.FrameCallback callback) {
+      Choreographer.getInstance().removeFrameCallback(callback);
+    }
+  };
+
+  private final FrameScheduler mFrameScheduler;
+  private final ArrayList<Entry> mEntries = new ArrayList<>();
+  private int mMaxActive = 1;
+  private float mMinVisibleFraction = DEFAULT_MIN_VISIBLE_FRACTION;
+  private Item mPreloading;
+  private boolean mFrameScheduled;
+
+  public AutoplayCoordinator() {
+    this(CHOREOGRAPHER);
+  }
+
+  /**
+   * Creates a coordinator which schedules the updates of {@link #onScrolled()} by the scheduler
+   * instead of the {@link Choreographer}.
+   */
+  AutoplayCoordinator(FrameScheduler frameScheduler) {
+    mFrameScheduler = frameScheduler;
+  }
+
+  public void setMaxActive(int maxActive) {
+    mMaxActive = Math.max(0, maxActive);
+    update();
+  }
+
+  /**
+   * Sets the min visible fraction for a video to play, 0.5 by default.
+   */
+  public void setMinVisibleFraction(float fraction) {
+    mMinVisibleFraction = Math.max(0, Math.min(1, fraction));
+    update();
+  }
+
+  public void register(Item item) {
+    if (indexOf(item) < 0) {
+      mEntries.add(new Entry(item));
+      onScrolled();
+    }
+  }
+
+  /**
+   * Removes the item, it is deactivated if playing.
+   */
+  public void unregister(Item item) {
+    int index = indexOf(item);
+    if (index < 0) {
+      return;
+    }
+    Entry entry = mEntries.remove(index);
+    if (entry.active) {
+      entry.active = false;
+      item.onDeactivate(item.getVisibleFraction());
+    }
+    if (mPreloading == item) {
+      mPreloading = null;
+    }
+    onScrolled();
+  }
+
+  /**
+   * Schedules an update on the next frame, call it in the scroll callback. Calls within the
+   * same frame are merged.
+   */
+  public void onScrolled() {
+    if (!mFrameScheduled) {
+      mFrameScheduled = true;
+      mFrameScheduler.postFrameCallback(mFrameCallback);
+    }
+  }
+
+  /**
+   * Elects the active items immediately.
+   */
+  public void update() {
+    if (mFrameScheduled) {
+      mFrameScheduled = false;
+      mFrameScheduler.removeFrameCallback(mFrameCallback);
+    }
+    int size = mEntries.size();
+    for (int i = 0; i < size; i++) {
+      Entry entry = mEntries.get(i);
+      entry.fraction = entry.item.getVisibleFraction();
+      entry.elected = false;
+    }
+
+    // 候选数量很少，每次选出一个最可见的即可.
+    for (int n = 0; n < mMaxActive; n++) {
+      Entry best = findBest(true);
+      if (best == null) {
+        break;
+      }
+      best.elected = true;
+    }
+
+    // 先停止落选的，再开始当选的，同一时刻正在播放的数量不会超过限制.
+    for (int i = 0; i < size; i++) {
+      Entry entry = mEntries.get(i);
+      if (entry.active && !entry.elected) {
+        entry.active = false;
+        entry.item.onDeactivate(entry.fraction);
+      }
+    }
+    for (int i = 0; i < size; i++) {
+      Entry entry = mEntries.get(i);
+      if (!entry.active && entry.elected) {
+        entry.active = true;
+        if (mPreloading == entry.item) {
+          mPreloading = null;
+        }
+        entry.item.onActivate();
+      }
+    }
+
+    Entry next = findBest(false);
+    Item preloading = next == null ? null : next.item;
+    if (preloading != mPreloading) {
+      mPreloading = preloading;
+      if (preloading != null) {
+        preloading.onPreload();
+      }
+    }
+  }
+
+  /**
+   * Deactivates all the items and removes them.
+   */
+  public void release() {
+    if (mFrameScheduled) {
+      mFrameScheduled = false;
+      mFrameScheduler.removeFrameCallback(mFrameCallback);
+    }
+    for (Entry entry : mEntries) {
+      if (entry.active) {
+        entry.active = false;
+        entry.item.onDeactivate(entry.item.getVisibleFraction());
+      }
+    }
+    mEntries.clear();
+    mPreloading = null;
+  }
+
+  /**
+   * Returns whether the item is elected to play.
+   */
+  public boolean isActive(Item item) {
+    int index = indexOf(item);
+    return index >= 0 && mEntries.get(index).active;
+  }
+
+  /*
+   * 找出没有当选的条目中最可见的一个，eligible 为 true 时只考虑可以播放的.
+   */
+  private Entry findBest(boolean eligible) {
+    Entry best = null;
+    for (int i = 0, size = mEntries.size(); i < size; i++) {
+      Entry entry = mEntries.get(i);
+      if (entry.elected || entry.fraction <= 0
+          || (eligible && entry.fraction < mMinVisibleFraction)) {
+        continue;
+      }
+      if (best == null || entry.fraction > best.fraction
+          || (entry.fraction == best.fraction && entry.active && !best.active)) {
+        best = entry;
+      }
+    }
+    return best;
+  }
+
+  private int indexOf(Item item) {
+    for (int i = 0, size = mEntries.size(); i < size; i++) {
+      if (mEntries.get(i).item == item) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      mFrameScheduled = false;
+      update();
+    }
+  };
+
+  private static class Entry {
+    final Item item;
+    float fraction;
+    boolean elected;
+    boolean active;
+
+    Entry(Item item) {
+      this.item = item;
+    }
+  }
+
+  /**
+   * Schedules the frame callbacks, the {@link Choreographer} of the main thread by default.
+   */
+  interface FrameScheduler {
+
+    void postFrameCallback(Choreographer.FrameCallback callback);
+
+    void removeFrameCallback(Choreographer.FrameCallback callback);
+  }
+
+  /**
+   * A video in the list.
+   */
+  public interface Item {
+
+    /**
+     * Returns the visible fraction of the video, from 0 to 1.
+     */
+    float getVisibleFraction();
+
+    /**
+     * Called when the video is elected to play.
+     */
+    void onActivate();
+
+    /**
+     * Called when the video stops being elected.
+     *
+     * @param visibleFraction the current visible fraction, 0 if scrolled out.
+     */
+    void onDeactivate(float visibleFraction);
+
+    /**
+     * Called when the video is the most visible one of the candidates not elected.
+     */
+    void onPreload();
+  }
+
+  /**
+   * Adapts a {@link TextureVideoView} showing the uri. The video is paused when deactivated
+   * while still visible, and stopped when scrolled out.
+   */
+  public static class VideoItem implements Item {
+
+    private final TextureVideoView mView;
+    private final Uri mUri;
+    private final Map<String, String> mHeaders;
+    private final Rect mRect = new Rect();
+
+    public VideoItem(TextureVideoView view, Uri uri, Map<String, String> headers) {
+      mView = view;
+      mUri = uri;
+      mHeaders = headers;
+    }
+
+    public TextureVideoView getView() {
+      return mView;
+    }
+
+    @Override
+    public float getVisibleFraction() {
+      int area = mView.getWidth() * mView.getHeight();
+      if (area == 0 || mView.getWindowToken() == null || !mView.isShown()
+          || !mView.getLocalVisibleRect(mRect)) {
+        return 0;
+      }
+      return (float) (mRect.width() * mRect.height()) / area;
+    }
+
+    @Override
+    public void onActivate() {
+      if (!isOpened()) {
+        mView.setVideoURI(mUri, mHeaders);
+      }
+      mView.start();
+    }
+
+    @Override
+    public void onDeactivate(float visibleFraction) {
+      if (visibleFraction > 0) {
+        mView.pause();
+      } else {
+        mView.stopPlayback();
+      }
+    }
+
+    @Override
+    public void onPreload() {
+      if (!isOpened()) {
+        mView.preload(mUri, mHeaders);
+      }
+    }
+
+    private boolean isOpened() {
+      Uri opened = VideoCacheProxy.unproxy(mView.getPlayerEngine().getUri());
+      return mUri.equals(opened) && mView.getPlayerEngine().getCurrentState()
+          != PlayerEngine.STATE_IDLE;
+    }
+  }
+}
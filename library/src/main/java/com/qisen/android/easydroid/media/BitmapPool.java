@@ -0,0 +1,170 @@
+package com.qisen.android.easydroid.media;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * 按照尺寸分桶复用的 Bitmap 池，用于视频截帧。
+ *
+ * ### 分桶
+ * 相同宽高以及 {@link Bitmap.Config} 的 Bitmap 放在同一个桶中，{@link #get(int, int)} 直接取出
+ * 对应桶中的 Bitmap，取不到才会新建。截帧的尺寸一般只有少数几种，分桶可以避免尺寸不匹配带来的浪费。
+ *
+ * ### 限制
+ * 池中所有 Bitmap 的字节数不会超过 {@link #setMaxBytes(long)}，超过时从最久没有用到的桶开始回收。
+ *
+ * ### 统计
+ * {@link #getStats()} 记录命中次数以及新分配的字节数。
+ */
+public class BitmapPool {
+
+  private static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+  private static BitmapPool sInstance;
+
+  // access ordered, the least recently used bucket first.
+  private final LinkedHashMap<Long, ArrayDeque<Bitmap>> mBuckets =
+      new LinkedHashMap<>(8, 0.75F, true);
+  private long mMaxBytes = DEFAULT_MAX_BYTES;
+  private long mPooledBytes;
+  private final Stats mStats = new Stats();
+
+  private BitmapPool() {
+  }
+
+  public static synchronized BitmapPool getInstance() {
+    if (sInstance == null) {
+      sInstance = new BitmapPool();
+    }
+    return sInstance;
+  }
+
+  public synchronized void setMaxBytes(long maxBytes) {
+    mMaxBytes = Math.max(0, maxBytes);
+    trimToSize(mMaxBytes);
+  }
+
+  /**
+   * Returns a mutable ARGB_8888 bitmap of the size, reused from the pool if possible. The
+   * content of a reused bitmap is undefined.
+   */
+  public Bitmap get(int width, int height) {
+    return get(width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  public Bitmap get(int width, int height, Bitmap.Config config) {
+    synchronized (this) {
+      ArrayDeque<Bitmap> bucket = mBuckets.get(keyOf(width, height, config));
+      Bitmap bitmap = bucket == null ? null : bucket.poll();
+      if (bitmap != null) {
+        mPooledBytes -= bitmap.getByteCount();
+        mStats.hits++;
+        return bitmap;
+      }
+      mStats.misses++;
+    }
+    Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+    synchronized (this) {
+      mStats.bytesAllocated += bitmap.getByteCount();
+    }
+    return bitmap;
+  }
+
+  /**
+   * Returns the bitmap to the pool. The bitmap should not be used by the caller any more.
+   */
+  public void put(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+        || bitmap.getConfig() == null) {
+      return;
+    }
+    int bytes = bitmap.getByteCount();
+    synchronized (this) {
+      if (bytes > mMaxBytes) {
+        mStats.evictions++;
+        bitmap.recycle();
+        return;
+      }
+      long key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+      ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+      if (bucket == null) {
+        bucket = new ArrayDeque<>(2);
+        mBuckets.put(key, bucket);
+      }
+      bucket.offer(bitmap);
+      mPooledBytes += bytes;
+      trimToSize(mMaxBytes);
+    }
+  }
+
+  /**
+   * Recycles all the pooled bitmaps.
+   */
+  public synchronized void clear() {
+    trimToSize(0);
+  }
+
+  public synchronized long getPooledBytes() {
+    return mPooledBytes;
+  }
+
+  /**
+   * Returns a snapshot of the statistics.
+   */
+  public synchronized Stats getStats() {
+    Stats stats = new Stats();
+    stats.hits = mStats.hits;
+    stats.misses = mStats.misses;
+    stats.bytesAllocated = mStats.bytesAllocated;
+    stats.evictions = mStats.evictions;
+    return stats;
+  }
+
+  private void trimToSize(long maxBytes) {
+    Iterator<ArrayDeque<Bitmap>> iterator = mBuckets.values().iterator();
+    while (mPooledBytes > maxBytes && iterator.hasNext()) {
+      ArrayDeque<Bitmap> bucket = iterator.next();
+      while (mPooledBytes > maxBytes && !bucket.isEmpty()) {
+        Bitmap bitmap = bucket.poll();
+        mPooledBytes -= bitmap.getByteCount();
+        mStats.evictions++;
+        bitmap.recycle();
+      }
+      if (bucket.isEmpty()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private static long keyOf(int width, int height, Bitmap.Config config) {
+    return ((long) width << 36) | ((long) height << 8) | config.ordinal();
+  }
+
+  /**
+   * Statistics of the pool.
+   */
+  public static class Stats {
+    // bitmaps reused from the pool.
+    public int hits;
+    // bitmaps created because the pool has none of the size.
+    public int misses;
+    // bytes of all the bitmaps created.
+    public long bytesAllocated;
+    // bitmaps recycled because the pool is full.
+    public int evictions;
+
+    public float getHitRatio() {
+      int total = hits + misses;
+      return total == 0 ? 0 : (float) hits / total;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{hits=" + hits + ", misses=" + misses + ", bytesAllocated=" + bytesAllocated
+          + ", evictions=" + evictions + "}";
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package com.qisen.android.easydroid.media;
+
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * 在独立的 GL 线程上把 surface 清成黑色。
+ *
+ * ### 复用
+ * EGL 的 display、config 以及 context 在第一次使用时初始化，之后一直保留，每次清除只创建和销毁
+ * 轻量的 window surface，省去 eglInitialize、eglChooseConfig、eglCreateContext 以及 eglTerminate
+ * 的开销。
+ *
+ * ### 生命周期
+ * 使用方通过 {@link #acquire()} 和 {@link #release()} 计数，最后一个使用方释放之后，经过
+ * {@link #IDLE_TEARDOWN_MS} 仍然没有新的使用方，才销毁 EGL 环境并退出 GL 线程，避免快速切换时
+ * 反复初始化。
+ *
+ * ### 统计
+ * {@link #getStats()} 记录初始化以及每次清除的耗时，用于对比复用前后的开销。
+ */
+public class EglSurfaceClearer {
+
+  private static final String TAG = "EglSurfaceClearer";
+
+  private static final long IDLE_TEARDOWN_MS = 5000;
+  private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+  private static EglSurfaceClearer sInstance;
+
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private int mRefCount;
+
+  // only accessed on the GL thread.
+  private EGL10 mEgl;
+  private EGLDisplay mDisplay = EGL10.EGL_NO_DISPLAY;
+  private EGLConfig mConfig;
+  private EGLContext mContext = EGL10.EGL_NO_CONTEXT;
+
+  private final Stats mStats = new Stats();
+
+  private EglSurfaceClearer() {
+  }
+
+  public static synchronized EglSurfaceClearer getInstance() {
+    if (sInstance == null) {
+      sInstance = new EglSurfaceClearer();
+    }
+    return sInstance;
+  }
+
+  /**
+   * Declares a user of the clearer, the GL thread is started if needed.
+   */
+  public synchronized void acquire() {
+    mRefCount++;
+    if (mThread == null) {
+      mThread = new HandlerThread("EasyDroid-GL");
+      mThread.start();
+      mHandler = new Handler(mThread.getLooper());
+    }
+    mHandler.removeCallbacks(mTeardownRunnable);
+  }
+
+  /**
+   * Releases a user of the clearer. The EGL environment is torn down when there is no user
+   * for a while.
+   */
+  public synchronized void release() {
+    if (mRefCount == 0) {
+      return;
+    }
+    mRefCount--;
+    if (mRefCount == 0) {
+      mHandler.postDelayed(mTeardownRunnable, IDLE_TEARDOWN_MS);
+    }
+  }
+
+  /**
+   * Clears the surface to black on the GL thread and waits until it is done. The surface must
+   * not be connected to any producer, e.g. a media player, at the same time.
+   *
+   * @return whether the surface was cleared in time.
+   */
+  public boolean clear(final Surface surface, long timeoutMs) {
+    final Handler handler;
+    synchronized (this) {
+      if (mHandler == null || surface == null) {
+        return false;
+      }
+      handler = mHandler;
+    }
+    final boolean[] result = new boolean[1];
+    final CountDownLatch latch = new CountDownLatch(1);
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          result[0] = clearInternal(surface);
+        } finally {
+          latch.countDown();
+        }
+      }
+    });
+    try {
+      if (latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+        return result[0];
+      }
+      Log.w(TAG, "Timeout waiting for clearing the surface");
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * Returns a snapshot of the statistics.
+   */
+  public Stats getStats() {
+    synchronized (mStats) {
+      return mStats.copy();
+    }
+  }
+
+  private boolean clearInternal(Surface surface) {
+    if (!surface.isValid() || !ensureEgl()) {
+      return false;
+    }
+    long start = System.nanoTime();
+    EGLSurface eglSurface = mEgl.eglCreateWindowSurface(mDisplay, mConfig, surface, new int[] {
+        EGL10.EGL_NONE
+    });
+    if (eglSurface == null || eglSurface == EGL10.EGL_NO_SURFACE) {
+      Log.w(TAG, "eglCreateWindowSurface failed: " + mEgl.eglGetError());
+      return false;
+    }
+    boolean cleared = false;
+    if (mEgl.eglMakeCurrent(mDisplay, eglSurface, eglSurface, mContext)) {
+      GLES20.glClearColor(0, 0, 0, 1);
+      GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+      cleared = mEgl.eglSwapBuffers(mDisplay, eglSurface);
+      mEgl.eglMakeCurrent(mDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+          EGL10.EGL_NO_CONTEXT);
+    }
+    mEgl.eglDestroySurface(mDisplay, eglSurface);
+    long cost = System.nanoTime() - start;
+    synchronized (mStats) {
+      mStats.clears++;
+      mStats.clearNanos += cost;
+    }
+    return cleared;
+  }
+
+  private boolean ensureEgl() {
+    if (mContext != EGL10.EGL_NO_CONTEXT) {
+      return true;
+    }
+    long start = System.nanoTime();
+    mEgl = (EGL10) EGLContext.getEGL();
+    mDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+    if (mDisplay == EGL10.EGL_NO_DISPLAY || !mEgl.eglInitialize(mDisplay, null)) {
+      Log.w(TAG, "Unable to initialize EGL: " + mEgl.eglGetError());
+      mDisplay = EGL10.EGL_NO_DISPLAY;
+      return false;
+    }
+
+    int[] attribList = {
+        EGL10.EGL_RED_SIZE, 8,
+        EGL10.EGL_GREEN_SIZE, 8,
+        EGL10.EGL_BLUE_SIZE, 8,
+        EGL10.EGL_ALPHA_SIZE, 8,
+        EGL10.EGL_RENDERABLE_TYPE, EGL10.EGL_WINDOW_BIT,
+        EGL10.EGL_NONE, 0, // placeholder for recordable [@-3]
+        EGL10.EGL_NONE
+    };
+    EGLConfig[] configs = new EGLConfig[1];
+    int[] numConfigs = new int[1];
+    if (!mEgl.eglChooseConfig(mDisplay, attribList, configs, configs.length, numConfigs)
+        || numConfigs[0] == 0) {
+      Log.w(TAG, "Unable to choose EGL config: " + mEgl.eglGetError());
+      teardownInternal();
+      return false;
+    }
+    mConfig = configs[0];
+    mContext = mEgl.eglCreateContext(mDisplay, mConfig, EGL10.EGL_NO_CONTEXT, new int[] {
+        EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE
+    });
+    if (mContext == null || mContext == EGL10.EGL_NO_CONTEXT) {
+      Log.w(TAG, "Unable to create EGL context: " + mEgl.eglGetError());
+      mContext = EGL10.EGL_NO_CONTEXT;
+      teardownInternal();
+      return false;
+    }
+    long cost = System.nanoTime() - start;
+    synchronized (mStats) {
+      mStats.inits++;
+      mStats.initNanos += cost;
+    }
+    return true;
+  }
+
+  private void teardownInternal() {
+    if (mDisplay == EGL10.EGL_NO_DISPLAY) {
+      return;
+    }
+    if (mContext != EGL10.EGL_NO_CONTEXT) {
+      mEgl.eglDestroyContext(mDisplay, mContext);
+      mContext = EGL10.EGL_NO_CONTEXT;
+    }
+    mEgl.eglTerminate(mDisplay);
+    mDisplay = EGL10.EGL_NO_DISPLAY;
+    mConfig = null;
+  }
+
+  private final Runnable mTeardownRunnable = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (EglSurfaceClearer.this) {
+        if (mRefCount > 0 || mThread == null) {
+          return;
+        }
+        teardownInternal();
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+      }
+    }
+  };
+
+  /**
+   * Statistics of the clearer.
+   */
+  public static class Stats {
+    // times the EGL environment is initialized.
+    public int inits;
+    // total time spent on initializing.
+    public long initNanos;
+    // surfaces cleared.
+    public int clears;
+    // total time spent on clearing, excluding initializing.
+    public long clearNanos;
+
+    public long getAverageClearNanos() {
+      return clears == 0 ? 0 : clearNanos / clears;
+    }
+
+    Stats copy() {
+      Stats stats = new Stats();
+      stats.inits = inits;
+      stats.initNanos = initNanos;
+      stats.clears = clears;
+      stats.clearNanos = clearNanos;
+      return stats;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{inits=" + inits + ", initNanos=" + initNanos + ", clears=" + clears
+          + ", averageClearNanos=" + getAverageClearNanos() + "}";
+    }
+  }
+}
@@ -0,0 +1,357 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.PlaybackParameters;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SeekParameters;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.source.ExtractorMediaSource;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.video.VideoListener;
+
+import java.util.Map;
+
+/**
+ * 基于 ExoPlayer 的播放核。
+ *
+ * ### 依赖
+ * 库只在编译时依赖 ExoPlayer（compileOnly），使用这个播放核的应用需要自己添加
+ * `com.google.android.exoplayer:exoplayer-core` 依赖，没有选择它的应用不会加载这个类。
+ *
+ * ### 缓冲
+ * {@link Factory#setBufferDurationsMs(int, int, int, int)} 调整 {@link DefaultLoadControl}：
+ * 最少、最多缓冲多长时间，起播以及卡顿之后需要缓冲多长时间才开始播放。起播缓冲越短首帧越快，
+ * 但是更容易卡顿。
+ *
+ * ### 事件
+ * ExoPlayer 的状态变化转换成 MediaPlayer 的回调：第一次 READY 为准备完成，之后的 BUFFERING 和 READY
+ * 为缓冲开始和结束，seek 之后到 READY 之前的缓冲不算卡顿；每个 seek 的 onSeekProcessed 为 seek
+ * 完成，和 MediaPlayer 一样一次 seek 对应一次完成，不依赖之后是否进入 READY。数据源的错误使用
+ * {@link MediaPlayer#MEDIA_ERROR_IO} 作为 extra，由引擎重试。缓冲进度没有回调，准备完成之后每
+ * {@link #BUFFERING_POLL_INTERVAL_MS} 查询一次。
+ *
+ * 默认只支持普通的媒体文件，HLS、DASH 等需要添加对应的模块，并且覆盖
+ * {@link Factory#createMediaSource(Uri, DataSource.Factory)}。
+ */
+public class ExoPlayerCore implements PlayerCore {
+
+  private static final String TAG = "ExoPlayerCore";
+
+  static final long BUFFERING_POLL_INTERVAL_MS = 1000;
+
+  private final Factory mFactory;
+  private final SimpleExoPlayer mPlayer;
+  // the player thread, where the player is created and the events are delivered.
+  private final Handler mHandler = new Handler(Looper.myLooper());
+  private Listener mListener;
+  private MediaSource mMediaSource;
+
+  private boolean mPrepared;
+  private boolean mBuffering;
+  // between a seek and the next READY or ENDED, the buffering is not a stall.
+  private boolean mSeeking;
+  // seeks issued and not processed yet.
+  private int mPendingSeeks;
+  private boolean mEnded;
+  private int mVideoWidth;
+  private int mVideoHeight;
+  private int mBufferPercentage = -1;
+
+  ExoPlayerCore(Context context, Factory factory) {
+    mFactory = factory;
+    mPlayer = ExoPlayerFactory.newSimpleInstance(new DefaultRenderersFactory(context),
+        new DefaultTrackSelector(), factory.createLoadControl());
+    mPlayer.addListener(mEventListener);
+    mPlayer.addVideoListener(mVideoListener);
+  }
+
+  @Override
+  public void setListener(Listener listener) {
+    mListener = listener;
+  }
+
+  @Override
+  public void setAudioSessionId(int sessionId) {
+    // ExoPlayer 在启用音频渲染时自己分配 session.
+  }
+
+  @Override
+  public int getAudioSessionId() {
+    return mPlayer.getAudioSessionId();
+  }
+
+  @Override
+  public void setDataSource(Context context, Uri uri, Map<String, String> headers) {
+    DefaultHttpDataSourceFactory httpFactory =
+        new DefaultHttpDataSourceFactory(mFactory.getUserAgent(context));
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        httpFactory.getDefaultRequestProperties().set(header.getKey(), header.getValue());
+      }
+    }
+    mMediaSource = mFactory.createMediaSource(uri,
+        new DefaultDataSourceFactory(context, null, httpFactory));
+  }
+
+  @Override
+  public boolean isPreloaded() {
+    return false;
+  }
+
+  @Override
+  public void setSurface(Surface surface) {
+    mPlayer.setVideoSurface(surface);
+  }
+
+  @Override
+  public void setDisplay(SurfaceHolder holder) {
+    mPlayer.setVideoSurfaceHolder(holder);
+  }
+
+  @Override
+  public void prepareAsync() {
+    mPlayer.prepare(mMediaSource);
+  }
+
+  @Override
+  public void start() {
+    mPlayer.setPlayWhenReady(true);
+  }
+
+  @Override
+  public void pause() {
+    mPlayer.setPlayWhenReady(false);
+  }
+
+  @Override
+  public void seekTo(int msec, boolean exact) {
+    mSeeking = true;
+    mPendingSeeks++;
+    mEnded = false;
+    mPlayer.setSeekParameters(exact ? SeekParameters.EXACT : SeekParameters.CLOSEST_SYNC);
+    mPlayer.seekTo(msec);
+  }
+
+  @Override
+  public boolean isPlaying() {
+    int state = mPlayer.getPlaybackState();
+    return mPlayer.getPlayWhenReady()
+        && (state == Player.STATE_READY || state == Player.STATE_BUFFERING);
+  }
+
+  @Override
+  public int getCurrentPosition() {
+    return (int) mPlayer.getCurrentPosition();
+  }
+
+  @Override
+  public int getDuration() {
+    long duration = mPlayer.getDuration();
+    return duration == C.TIME_UNSET ? -1 : (int) duration;
+  }
+
+  @Override
+  public int getVideoWidth() {
+    return mVideoWidth;
+  }
+
+  @Override
+  public int getVideoHeight() {
+    return mVideoHeight;
+  }
+
+  @Override
+  public void setVolume(float volume) {
+    mPlayer.setVolume(volume);
+  }
+
+  @Override
+  public void setLooping(boolean looping) {
+    mPlayer.setRepeatMode(looping ? Player.REPEAT_MODE_ONE : Player.REPEAT_MODE_OFF);
+  }
+
+  @Override
+  public boolean setNextCore(PlayerCore next) {
+    // 不同的播放器实例之间无法串联，由引擎在完成时切换.
+    return next == null;
+  }
+
+  @Override
+  public boolean setSpeed(float speed) {
+    mPlayer.setPlaybackParameters(new PlaybackParameters(speed, 1F));
+    return true;
+  }
+
+  @Override
+  public void release() {
+    mHandler.removeCallbacks(mPollBuffering);
+    mPlayer.removeListener(mEventListener);
+    mPlayer.release();
+  }
+
+  private final Runnable mPollBuffering = new Runnable() {
+    @Override
+    public void run() {
+      int percent = mPlayer.getBufferedPercentage();
+      if (percent != mBufferPercentage) {
+        mBufferPercentage = percent;
+        mListener.onBufferingUpdate(percent);
+      }
+      if (percent < 100) {
+        mHandler.postDelayed(this, BUFFERING_POLL_INTERVAL_MS);
+      }
+    }
+  };
+
+  private final Player.EventListener mEventListener = new Player.DefaultEventListener() {
+    @Override
+    public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+      switch (playbackState) {
+        case Player.STATE_READY:
+          if (!mPrepared) {
+            mPrepared = true;
+            mListener.onPrepared();
+            mHandler.post(mPollBuffering);
+          } else if (mBuffering) {
+            mBuffering = false;
+            mListener.onInfo(MediaPlayer.MEDIA_INFO_BUFFERING_END, 0);
+          }
+          mSeeking = false;
+          break;
+        case Player.STATE_BUFFERING:
+          // seek 引起的缓冲不算作卡顿.
+          if (mPrepared && !mSeeking && !mBuffering) {
+            mBuffering = true;
+            mListener.onInfo(MediaPlayer.MEDIA_INFO_BUFFERING_START, 0);
+          }
+          break;
+        case Player.STATE_ENDED:
+          mSeeking = false;
+          if (!mEnded) {
+            mEnded = true;
+            mListener.onCompletion();
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    @Override
+    public void onSeekProcessed() {
+      // 每个 seek 都会回调一次，即使之后一直缓冲或者出错，引擎也不会一直等待 seek 完成.
+      if (mPendingSeeks > 0) {
+        mPendingSeeks--;
+        mListener.onSeekComplete();
+      }
+    }
+
+    @Override
+    public void onPlayerError(ExoPlaybackException error) {
+      Log.w(TAG, "Playback error", error);
+      mListener.onError(MediaPlayer.MEDIA_ERROR_UNKNOWN,
+          error.type == ExoPlaybackException.TYPE_SOURCE ? MediaPlayer.MEDIA_ERROR_IO : 0);
+    }
+  };
+
+  private final VideoListener mVideoListener = new VideoListener() {
+    @Override
+    public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees,
+        float pixelWidthHeightRatio) {
+      // 非正方形的像素按照显示的宽度计算.
+      mVideoWidth = (int) (width * pixelWidthHeightRatio);
+      mVideoHeight = height;
+      mListener.onVideoSizeChanged(mVideoWidth, mVideoHeight);
+    }
+
+    @Override
+    public void onRenderedFirstFrame() {
+      mListener.onInfo(MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START, 0);
+    }
+  };
+
+  /**
+   * Creates the cores with the buffer settings, shared by the engines which select it.
+   * <pre>
+   *   PlayerEngine.setDefaultCoreFactory(new ExoPlayerCore.Factory()
+   *       .setBufferDurationsMs(5000, 30000, 1000, 2000));
+   * </pre>
+   */
+  public static class Factory implements PlayerCore.Factory {
+
+    private int mMinBufferMs = DefaultLoadControl.DEFAULT_MIN_BUFFER_MS;
+    private int mMaxBufferMs = DefaultLoadControl.DEFAULT_MAX_BUFFER_MS;
+    private int mBufferForPlaybackMs = DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS;
+    private int mBufferForPlaybackAfterRebufferMs =
+        DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS;
+    private String mUserAgent;
+
+    /**
+     * Sets the buffer durations, applied to the cores created afterwards.
+     *
+     * @param minBufferMs the player keeps loading until at least this duration is buffered.
+     * @param maxBufferMs the player stops loading once this duration is buffered.
+     * @param bufferForPlaybackMs the duration to buffer before starting the playback.
+     * @param bufferForPlaybackAfterRebufferMs the duration to buffer before resuming the
+     *     playback after a stall.
+     */
+    public synchronized Factory setBufferDurationsMs(int minBufferMs, int maxBufferMs,
+        int bufferForPlaybackMs, int bufferForPlaybackAfterRebufferMs) {
+      mMinBufferMs = minBufferMs;
+      mMaxBufferMs = maxBufferMs;
+      mBufferForPlaybackMs = bufferForPlaybackMs;
+      mBufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+      return this;
+    }
+
+    /**
+     * Sets the user agent of the http requests, defaults to the one built by ExoPlayer.
+     */
+    public synchronized Factory setUserAgent(String userAgent) {
+      mUserAgent = userAgent;
+      return this;
+    }
+
+    @Override
+    public PlayerCore create(Context context) {
+      return new ExoPlayerCore(context, this);
+    }
+
+    protected synchronized LoadControl createLoadControl() {
+      return new DefaultLoadControl.Builder()
+          .setBufferDurationsMs(mMinBufferMs, mMaxBufferMs, mBufferForPlaybackMs,
+              mBufferForPlaybackAfterRebufferMs)
+          .createDefaultLoadControl();
+    }
+
+    /**
+     * Creates the media source of the uri, override it to support adaptive streams.
+     */
+    protected MediaSource createMediaSource(Uri uri, DataSource.Factory dataSourceFactory) {
+      return new ExtractorMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+    }
+
+    synchronized String getUserAgent(Context context) {
+      return mUserAgent != null ? mUserAgent : Util.getUserAgent(context, "EasyDroid");
+    }
+  }
+}
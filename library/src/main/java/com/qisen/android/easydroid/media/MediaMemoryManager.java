@@ -0,0 +1,289 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * 媒体相关内存的统一回收入口。
+ *
+ * ### 回收的对象
+ * 所有 {@link PlayerEngine} 在创建时登记到这里，第一次登记时注册 {@link ComponentCallbacks2}。
+ * 收到 onTrimMemory 时按照级别依次回收：
+ * - 任何级别：{@link BitmapPool} 中的 Bitmap、{@link ThumbnailExtractor} 的内存缓存、
+ *   {@link MediaPlayerPool} 中空闲的播放器，以及没有渲染目标或者 surface 的引擎（屏幕外）持有的
+ *   播放器；
+ * - {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW} 及以上（包括进入后台）以及 onLowMemory：
+ *   另外释放 {@link SurfaceRetainer} 保留的 surface、预加载的播放器、暂停中的引擎持有的播放器，以及
+ *   播放列表提前准备的下一项。
+ *
+ * 正在播放或者即将播放的引擎不会被回收。
+ *
+ * ### 恢复
+ * 被回收的引擎记住当时的进度，回到准备中的状态，之后调用 start() 或者重新设置 surface 时重新准备
+ * 并且 seek 回原来的位置，调用方不需要做任何处理。直到重新准备完成，
+ * {@link PlayerEngine#getCurrentPosition()} 和 {@link PlayerEngine#getDuration()} 仍然返回回收之前
+ * 的值。
+ *
+ * ### 预算
+ * {@link #setMemoryBudget(long)} 限制估算的播放器、保留的 surface 以及 Bitmap 的内存总量，
+ * 引擎准备好新的播放器之后超出预算时，按照 TRIM_MEMORY_RUNNING_LOW 回收。播放器的内存按照视频
+ * 尺寸估算，只用于比较。
+ *
+ * ### 报告
+ * 每次回收完成之后在主线程把 {@link Report} 分发给 {@link #setOnTrimListener(OnTrimListener)}，
+ * 最近一次的报告也可以通过 {@link #getLastReport()} 读取。
+ *
+ * 对外的方法需要在主线程调用。
+ */
+public class MediaMemoryManager {
+
+  private static final String TAG = "MediaMemoryManager";
+
+  // frames held by the decoder and the output queue of a player, in YUV420.
+  private static final int PLAYER_FRAME_COUNT = 8;
+
+  private static MediaMemoryManager sInstance;
+
+  // the engines alive, guarded by itself.
+  private final WeakHashMap<PlayerEngine, Boolean> mEngines = new WeakHashMap<>();
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private volatile long mMemoryBudget = Long.MAX_VALUE;
+  private OnTrimListener mOnTrimListener;
+  private Report mLastReport;
+  private boolean mRegistered;
+  // whether a trim is running on the player thread.
+  private boolean mTrimming;
+  // the highest level received while trimming, -1 if none.
+  private int mPendingLevel = -1;
+
+  private MediaMemoryManager() {
+  }
+
+  public static synchronized MediaMemoryManager getInstance() {
+    if (sInstance == null) {
+      sInstance = new MediaMemoryManager();
+    }
+    return sInstance;
+  }
+
+  /**
+   * Sets the max estimated bytes of the players, the retained surfaces and the pooled
+   * bitmaps, {@link Long#MAX_VALUE} to disable. Idle ones are released when exceeded.
+   */
+  public void setMemoryBudget(long maxBytes) {
+    mMemoryBudget = Math.max(0, maxBytes);
+    checkBudget();
+  }
+
+  public long getMemoryBudget() {
+    return mMemoryBudget;
+  }
+
+  /**
+   * Returns the estimated bytes held by the players, the retained surfaces and the pooled
+   * bitmaps.
+   */
+  public long getEstimatedBytes() {
+    long bytes = SurfaceRetainer.getInstance().getRetainedBytes()
+        + BitmapPool.getInstance().getPooledBytes();
+    for (PlayerEngine engine : getEngines()) {
+      bytes += engine.getHeldBytes();
+    }
+    return bytes;
+  }
+
+  public void setOnTrimListener(OnTrimListener l) {
+    mOnTrimListener = l;
+  }
+
+  /**
+   * Returns the report of the last trim, or null if never trimmed.
+   */
+  public Report getLastReport() {
+    return mLastReport;
+  }
+
+  /**
+   * Releases the idle players, surfaces and caches as if the level was received by
+   * {@link ComponentCallbacks2#onTrimMemory(int)}.
+   */
+  public void trimMemory(int level) {
+    if (mTrimming) {
+      // 等正在进行的回收结束之后，再按照期间收到的最高级别回收一次.
+      mPendingLevel = Math.max(mPendingLevel, level);
+      return;
+    }
+    mTrimming = true;
+    final boolean aggressive = level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+    final Report report = new Report();
+    report.level = level;
+
+    BitmapPool bitmapPool = BitmapPool.getInstance();
+    report.bitmapBytes = bitmapPool.getPooledBytes();
+    bitmapPool.clear();
+    ThumbnailExtractor extractor = ThumbnailExtractor.peekInstance();
+    if (extractor != null) {
+      report.thumbnailBytes = extractor.getMemoryBytes();
+      extractor.clearMemory();
+    }
+    if (aggressive) {
+      // 保留的 View 在这里释放播放器，释放操作先于下面的回收进入播放线程.
+      SurfaceRetainer retainer = SurfaceRetainer.getInstance();
+      report.retainedSurfaces = retainer.getRetainedCount();
+      report.retainedSurfaceBytes = retainer.getRetainedBytes();
+      retainer.releaseAll();
+    }
+
+    final List<PlayerEngine> engines = getEngines();
+    PlayerThread.post(new Runnable() {
+      @Override
+      public void run() {
+        MediaPlayerPool.getInstance().trimMemory(aggressive, report);
+        for (PlayerEngine engine : engines) {
+          engine.trimMemory(aggressive, report);
+        }
+        mMainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            mTrimming = false;
+            Log.i(TAG, "Trimmed " + report);
+            mLastReport = report;
+            if (mOnTrimListener != null) {
+              mOnTrimListener.onTrimmed(report);
+            }
+            if (mPendingLevel >= 0) {
+              int pendingLevel = mPendingLevel;
+              mPendingLevel = -1;
+              trimMemory(pendingLevel);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Estimates the memory held by a player decoding the video of the size.
+   */
+  static long estimatePlayerBytes(int width, int height) {
+    return (long) Math.max(width, 1) * Math.max(height, 1) * 3 / 2 * PLAYER_FRAME_COUNT;
+  }
+
+  /*
+   * 登记新的引擎，第一次登记时注册 ComponentCallbacks2，可以在任意线程调用.
+   */
+  void register(Context context, PlayerEngine engine) {
+    synchronized (mEngines) {
+      mEngines.put(engine, Boolean.TRUE);
+      if (mRegistered) {
+        return;
+      }
+      mRegistered = true;
+    }
+    context.getApplicationContext().registerComponentCallbacks(mComponentCallbacks);
+  }
+
+  /*
+   * 引擎持有了新的播放器，在主线程检查预算，可以在任意线程调用.
+   */
+  void onPlayerAllocated() {
+    if (mMemoryBudget != Long.MAX_VALUE) {
+      mMainHandler.post(mCheckBudgetRunnable);
+    }
+  }
+
+  private void checkBudget() {
+    long budget = mMemoryBudget;
+    if (budget == Long.MAX_VALUE) {
+      return;
+    }
+    long bytes = getEstimatedBytes();
+    if (bytes > budget) {
+      Log.w(TAG, "Estimated " + bytes + " bytes over the budget " + budget);
+      trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+    }
+  }
+
+  private List<PlayerEngine> getEngines() {
+    synchronized (mEngines) {
+      return new ArrayList<>(mEngines.keySet());
+    }
+  }
+
+  private final Runnable mCheckBudgetRunnable = new Runnable() {
+    @Override
+    public void run() {
+      checkBudget();
+    }
+  };
+
+  private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+    @Override
+    public void onTrimMemory(int level) {
+      trimMemory(level);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+      // do nothing.
+    }
+
+    @Override
+    public void onLowMemory() {
+      trimMemory(TRIM_MEMORY_COMPLETE);
+    }
+  };
+
+  /**
+   * What was released by a trim, the bytes are estimated.
+   */
+  public static class Report {
+    // the trim level, see ComponentCallbacks2.
+    public int level;
+    public long bitmapBytes;
+    public long thumbnailBytes;
+    public int retainedSurfaces;
+    public long retainedSurfaceBytes;
+    // idle and preloaded players released from MediaPlayerPool.
+    public int pooledPlayers;
+    public long pooledPlayerBytes;
+    // players of the engines released, restored on demand.
+    public int enginePlayers;
+    public long enginePlayerBytes;
+    // next items of the playlists released.
+    public int nextPlayers;
+    public long nextPlayerBytes;
+
+    public long getTotalBytes() {
+      return bitmapBytes + thumbnailBytes + retainedSurfaceBytes + pooledPlayerBytes
+          + enginePlayerBytes + nextPlayerBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "Report{level=" + level + ", bitmapBytes=" + bitmapBytes + ", thumbnailBytes="
+          + thumbnailBytes + ", retainedSurfaces=" + retainedSurfaces
+          + ", retainedSurfaceBytes=" + retainedSurfaceBytes + ", pooledPlayers="
+          + pooledPlayers + ", pooledPlayerBytes=" + pooledPlayerBytes + ", enginePlayers="
+          + enginePlayers + ", enginePlayerBytes=" + enginePlayerBytes + ", nextPlayers="
+          + nextPlayers + ", nextPlayerBytes=" + nextPlayerBytes + ", totalBytes="
+          + getTotalBytes() + "}";
+    }
+  }
+
+  /**
+   * Listener of the trims, invoked on the main thread.
+   */
+  public interface OnTrimListener {
+
+    void onTrimmed(Report report);
+  }
+}
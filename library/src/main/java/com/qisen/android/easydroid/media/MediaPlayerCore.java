@@ -0,0 +1,255 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * 基于系统 MediaPlayer 的播放核，也是默认的播放核。
+ *
+ * MediaPlayer 从 {@link MediaPlayerPool} 中获取，优先使用相同 uri 预加载的播放器，释放时放回池中。
+ */
+public class MediaPlayerCore implements PlayerCore {
+
+  private static final String TAG = "MediaPlayerCore";
+
+  public static final Factory FACTORY = new Factory() {
+    @Override
+    public PlayerCore create(Context context) {
+      return new MediaPlayerCore();
+    }
+  };
+
+  private MediaPlayer mMediaPlayer;
+  private Listener mListener;
+  private int mAudioSession;
+  private MediaPlayerPool.PreloadedPlayer mPreloaded;
+
+  @Override
+  public void setListener(Listener listener) {
+    mListener = listener;
+  }
+
+  @Override
+  public void setAudioSessionId(int sessionId) {
+    mAudioSession = sessionId;
+  }
+
+  @Override
+  public int getAudioSessionId() {
+    return mMediaPlayer != null ? mMediaPlayer.getAudioSessionId() : mAudioSession;
+  }
+
+  @Override
+  public void setDataSource(Context context, Uri uri, Map<String, String> headers)
+      throws IOException {
+    MediaPlayerPool pool = MediaPlayerPool.getInstance();
+    mPreloaded = pool.takePreloaded(uri, headers);
+    if (mPreloaded != null) {
+      // 预加载的播放器已经设置过数据源，音频 session 以它为准.
+      mMediaPlayer = mPreloaded.player;
+    } else {
+      mMediaPlayer = pool.obtainPlayer();
+      if (mAudioSession != 0) {
+        mMediaPlayer.setAudioSessionId(mAudioSession);
+      }
+    }
+    mMediaPlayer.setOnPreparedListener(mPreparedListener);
+    mMediaPlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
+    mMediaPlayer.setOnCompletionListener(mCompletionListener);
+    mMediaPlayer.setOnErrorListener(mErrorListener);
+    mMediaPlayer.setOnInfoListener(mInfoListener);
+    mMediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
+    mMediaPlayer.setOnSeekCompleteListener(mSeekCompleteListener);
+    if (mPreloaded == null) {
+      mMediaPlayer.setDataSource(context, uri, headers);
+    }
+  }
+
+  @Override
+  public boolean isPreloaded() {
+    return mPreloaded != null;
+  }
+
+  @Override
+  public void setSurface(Surface surface) {
+    mMediaPlayer.setSurface(surface);
+    mMediaPlayer.setScreenOnWhilePlaying(true);
+  }
+
+  @Override
+  public void setDisplay(SurfaceHolder holder) {
+    mMediaPlayer.setDisplay(holder);
+    mMediaPlayer.setScreenOnWhilePlaying(true);
+  }
+
+  @Override
+  public void prepareAsync() {
+    if (mPreloaded == null) {
+      mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+      mMediaPlayer.prepareAsync();
+    } else if (mPreloaded.prepared) {
+      // 已经准备好了，不会再收到 onPrepared 回调，直接走准备完成的流程.
+      mListener.onPrepared();
+    }
+  }
+
+  @Override
+  public void start() {
+    mMediaPlayer.start();
+  }
+
+  @Override
+  public void pause() {
+    mMediaPlayer.pause();
+  }
+
+  @Override
+  public void seekTo(int msec, boolean exact) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      mMediaPlayer.seekTo(msec,
+          exact ? MediaPlayer.SEEK_CLOSEST : MediaPlayer.SEEK_CLOSEST_SYNC);
+    } else {
+      // 之前的版本只能 seek 到前一个同步帧.
+      mMediaPlayer.seekTo(msec);
+    }
+  }
+
+  @Override
+  public boolean isPlaying() {
+    return mMediaPlayer.isPlaying();
+  }
+
+  @Override
+  public int getCurrentPosition() {
+    return mMediaPlayer.getCurrentPosition();
+  }
+
+  @Override
+  public int getDuration() {
+    return mMediaPlayer.getDuration();
+  }
+
+  @Override
+  public int getVideoWidth() {
+    return mMediaPlayer.getVideoWidth();
+  }
+
+  @Override
+  public int getVideoHeight() {
+    return mMediaPlayer.getVideoHeight();
+  }
+
+  @Override
+  public void setVolume(float volume) {
+    mMediaPlayer.setVolume(volume, volume);
+  }
+
+  @Override
+  public void setLooping(boolean looping) {
+    mMediaPlayer.setLooping(looping);
+  }
+
+  @Override
+  public boolean setNextCore(PlayerCore next) {
+    if (next != null && !(next instanceof MediaPlayerCore)) {
+      return false;
+    }
+    try {
+      mMediaPlayer.setNextMediaPlayer(next != null ? ((MediaPlayerCore) next).mMediaPlayer : null);
+      return true;
+    } catch (IllegalArgumentException | IllegalStateException ex) {
+      Log.w(TAG, "Unable to chain the next player", ex);
+      return false;
+    }
+  }
+
+  @Override
+  public boolean setSpeed(float speed) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      return false;
+    }
+    try {
+      mMediaPlayer.setPlaybackParams(mMediaPlayer.getPlaybackParams().setSpeed(speed));
+      return true;
+    } catch (IllegalStateException | IllegalArgumentException ex) {
+      Log.w(TAG, "Unable to set the speed " + speed, ex);
+      return false;
+    }
+  }
+
+  @Override
+  public void release() {
+    if (mMediaPlayer != null) {
+      MediaPlayerPool.getInstance().recycle(mMediaPlayer);
+      mMediaPlayer = null;
+    }
+  }
+
+  /**
+   * Returns the media player, passed to the listeners of {@link PlayerEngine} for identifying.
+   */
+  MediaPlayer getMediaPlayer() {
+    return mMediaPlayer;
+  }
+
+  private final MediaPlayer.OnVideoSizeChangedListener mSizeChangedListener =
+      new MediaPlayer.OnVideoSizeChangedListener() {
+        public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+          mListener.onVideoSizeChanged(mp.getVideoWidth(), mp.getVideoHeight());
+        }
+      };
+
+  private final MediaPlayer.OnPreparedListener mPreparedListener =
+      new MediaPlayer.OnPreparedListener() {
+        public void onPrepared(MediaPlayer mp) {
+          mListener.onPrepared();
+        }
+      };
+
+  private final MediaPlayer.OnCompletionListener mCompletionListener =
+      new MediaPlayer.OnCompletionListener() {
+        public void onCompletion(MediaPlayer mp) {
+          mListener.onCompletion();
+        }
+      };
+
+  private final MediaPlayer.OnInfoListener mInfoListener =
+      new MediaPlayer.OnInfoListener() {
+        public boolean onInfo(MediaPlayer mp, int what, int extra) {
+          mListener.onInfo(what, extra);
+          return true;
+        }
+      };
+
+  private final MediaPlayer.OnErrorListener mErrorListener =
+      new MediaPlayer.OnErrorListener() {
+        public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
+          mListener.onError(framework_err, impl_err);
+          return true;
+        }
+      };
+
+  private final MediaPlayer.OnBufferingUpdateListener mBufferingUpdateListener =
+      new MediaPlayer.OnBufferingUpdateListener() {
+        public void onBufferingUpdate(MediaPlayer mp, int percent) {
+          mListener.onBufferingUpdate(percent);
+        }
+      };
+
+  private final MediaPlayer.OnSeekCompleteListener mSeekCompleteListener =
+      new MediaPlayer.OnSeekCompleteListener() {
+        @Override
+        public void onSeekComplete(MediaPlayer mp) {
+          mListener.onSeekComplete();
+        }
+      };
+}
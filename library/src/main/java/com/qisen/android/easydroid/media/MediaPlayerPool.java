@@ -0,0 +1,426 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * MediaPlayer 复用池。
+ *
+ * ### 复用
+ * 播放结束的 MediaPlayer 不再直接 {@link MediaPlayer#release()}，而是通过
+ * {@link MediaPlayer#reset()} 回到 Idle 状态后放回池中，下次播放时直接取出使用，
+ * 省去 native 播放器的构造开销。
+ *
+ * ### 预加载
+ * 通过 {@link #preload(Context, Uri, Map)} 可以在屏幕外提前 prepare 下一个视频，
+ * 当 {@link TextureVideoView#setVideoURI(Uri, Map)} 传入相同的 Uri 时，直接使用已经准备好的播放器，
+ * 不需要再等待 prepareAsync。预加载槽位按照 LRU 进行淘汰。
+ *
+ * ### 统计
+ * {@link Stats} 记录预加载命中、未命中、复用次数以及节省下来的 prepare 耗时。
+ *
+ * ### 线程
+ * 池中的播放器都在 {@link PlayerThread} 上创建和使用，回调也发生在播放线程。对外的方法可以在
+ * 任意线程调用，内部会切换到播放线程执行；{@link OnStatsChangedListener} 在播放线程回调。
+ */
+public class MediaPlayerPool {
+
+  private static final String TAG = "MediaPlayerPool";
+
+  private static final int DEFAULT_MAX_IDLE_PLAYERS = 2;
+  private static final int DEFAULT_MAX_PRELOADED_PLAYERS = 1;
+
+  private static MediaPlayerPool sInstance;
+
+  // players which have been reset and are waiting to be reused.
+  private final LinkedList<MediaPlayer> mIdlePlayers = new LinkedList<>();
+  // preloaded players in access order, the eldest one will be evicted first.
+  private final LinkedHashMap<Uri, PreloadedPlayer> mPreloadedPlayers =
+      new LinkedHashMap<>(4, 0.75F, true);
+
+  private volatile int mMaxIdlePlayers = DEFAULT_MAX_IDLE_PLAYERS;
+  private volatile int mMaxPreloadedPlayers = DEFAULT_MAX_PRELOADED_PLAYERS;
+
+  private final Stats mStats = new Stats();
+  private OnStatsChangedListener mOnStatsChangedListener;
+
+  public static synchronized MediaPlayerPool getInstance() {
+    if (sInstance == null) {
+      sInstance = new MediaPlayerPool();
+    }
+    return sInstance;
+  }
+
+  /**
+   * Sets the max count of idle players kept for reuse. Extra players will be released.
+   *
+   * @param maxIdlePlayers the max count of idle players, 0 to disable reusing.
+   */
+  public void setMaxIdlePlayers(final int maxIdlePlayers) {
+    PlayerThread.post(new Runnable() {
+      @Override
+      public void run() {
+        mMaxIdlePlayers = Math.max(0, maxIdlePlayers);
+        while (mIdlePlayers.size() > mMaxIdlePlayers) {
+          mIdlePlayers.removeFirst().release();
+        }
+      }
+    });
+  }
+
+  public int getMaxIdlePlayers() {
+    return mMaxIdlePlayers;
+  }
+
+  /**
+   * Sets the max count of preloaded slots. The least recently used slot will be evicted
+   * when the pool is full.
+   *
+   * @param maxPreloadedPlayers the max count of preloaded players, 0 to disable preloading.
+   */
+  public void setMaxPreloadedPlayers(final int maxPreloadedPlayers) {
+    PlayerThread.post(new Runnable() {
+      @Override
+      public void run() {
+        mMaxPreloadedPlayers = Math.max(0, maxPreloadedPlayers);
+        trimPreloadedPlayers(mMaxPreloadedPlayers);
+      }
+    });
+  }
+
+  public int getMaxPreloadedPlayers() {
+    return mMaxPreloadedPlayers;
+  }
+
+  public void setOnStatsChangedListener(OnStatsChangedListener l) {
+    mOnStatsChangedListener = l;
+  }
+
+  /**
+   * Returns a snapshot of the current statistics.
+   */
+  public Stats getStats() {
+    synchronized (mStats) {
+      return mStats.copy();
+    }
+  }
+
+  public void resetStats() {
+    synchronized (mStats) {
+      mStats.reset();
+    }
+  }
+
+  /**
+   * Prepares the video in advance, so that the next {@link TextureVideoView#setVideoURI(Uri, Map)}
+   * with the same uri could start rendering immediately.
+   *
+   * @param context the context to resolve the uri.
+   * @param uri the URI of the video.
+   * @param headers the headers for the URI request.
+   */
+  public void preload(final Context context, final Uri uri, final Map<String, String> headers) {
+    PlayerThread.post(new Runnable() {
+      @Override
+      public void run() {
+        preloadInternal(context, uri, headers);
+      }
+    });
+  }
+
+  /**
+   * Cancels the preloading of the uri, and releases the player.
+   */
+  public void cancelPreload(final Uri uri) {
+    PlayerThread.post(new Runnable() {
+      @Override
+      public void run() {
+        if (uri != null && removePreloadedPlayer(uri)) {
+          notifyStatsChanged();
+        }
+      }
+    });
+  }
+
+  /**
+   * Releases all the idle and preloaded players.
+   */
+  public void clear() {
+    PlayerThread.post(new Runnable() {
+      @Override
+      public void run() {
+        trimPreloadedPlayers(0);
+        while (!mIdlePlayers.isEmpty()) {
+          mIdlePlayers.removeFirst().release();
+        }
+      }
+    });
+  }
+
+  /*
+   * 内存不足时释放空闲的播放器，aggressive 时预加载的播放器也一起释放，只能在播放线程调用.
+   */
+  void trimMemory(boolean aggressive, MediaMemoryManager.Report report) {
+    while (!mIdlePlayers.isEmpty()) {
+      mIdlePlayers.removeFirst().release();
+      report.pooledPlayers++;
+    }
+    if (!aggressive || mPreloadedPlayers.isEmpty()) {
+      return;
+    }
+    for (PreloadedPlayer preloaded : mPreloadedPlayers.values()) {
+      if (preloaded.prepared) {
+        report.pooledPlayerBytes += MediaMemoryManager.estimatePlayerBytes(
+            preloaded.player.getVideoWidth(), preloaded.player.getVideoHeight());
+      }
+      clearListeners(preloaded.player);
+      preloaded.player.release();
+      report.pooledPlayers++;
+      synchronized (mStats) {
+        mStats.evictions++;
+      }
+    }
+    mPreloadedPlayers.clear();
+    notifyStatsChanged();
+  }
+
+  private void preloadInternal(Context context, Uri uri, Map<String, String> headers) {
+    if (uri == null || mMaxPreloadedPlayers == 0) {
+      return;
+    }
+    PreloadedPlayer exist = mPreloadedPlayers.get(uri);
+    if (exist != null) {
+      if (equalsHeaders(exist.headers, headers)) {
+        return;
+      }
+      removePreloadedPlayer(uri);
+    }
+    trimPreloadedPlayers(mMaxPreloadedPlayers - 1);
+
+    MediaPlayer player = obtainPlayer();
+    final PreloadedPlayer preloaded = new PreloadedPlayer(player, uri, headers);
+    player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+      @Override
+      public void onPrepared(MediaPlayer mp) {
+        preloaded.prepared = true;
+        preloaded.prepareCostMs = SystemClock.uptimeMillis() - preloaded.prepareStartTime;
+      }
+    });
+    player.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+      @Override
+      public boolean onError(MediaPlayer mp, int what, int extra) {
+        Log.w(TAG, "Unable to preload " + preloaded.uri + ", error: " + what + "," + extra);
+        if (mPreloadedPlayers.get(preloaded.uri) == preloaded) {
+          mPreloadedPlayers.remove(preloaded.uri);
+          mp.release();
+        }
+        return true;
+      }
+    });
+    try {
+      player.setDataSource(context.getApplicationContext(), uri, headers);
+      player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+      player.prepareAsync();
+    } catch (IllegalArgumentException | IllegalStateException | IOException ex) {
+      Log.w(TAG, "Unable to preload " + uri, ex);
+      recycle(player);
+      return;
+    }
+    mPreloadedPlayers.put(uri, preloaded);
+    synchronized (mStats) {
+      mStats.preloads++;
+    }
+    notifyStatsChanged();
+  }
+
+  /*
+   * 取出已经预加载的播放器，没有命中时返回 null，只能在播放线程调用。
+   * 调用方需要重新设置所有的监听，并根据 prepared 判断是否还需要等待 onPrepared。
+   */
+  PreloadedPlayer takePreloaded(Uri uri, Map<String, String> headers) {
+    PreloadedPlayer preloaded = uri == null ? null : mPreloadedPlayers.get(uri);
+    if (preloaded == null || !equalsHeaders(preloaded.headers, headers)) {
+      synchronized (mStats) {
+        mStats.misses++;
+      }
+      notifyStatsChanged();
+      return null;
+    }
+    mPreloadedPlayers.remove(uri);
+    synchronized (mStats) {
+      mStats.hits++;
+      // 还在准备中的播放器，已经过去的时间同样是节省下来的.
+      mStats.savedPrepareTimeMs += preloaded.prepared
+          ? preloaded.prepareCostMs
+          : SystemClock.uptimeMillis() - preloaded.prepareStartTime;
+    }
+    notifyStatsChanged();
+    return preloaded;
+  }
+
+  /*
+   * 取出一个处于 Idle 状态的播放器，池中没有可复用的时候新建一个，只能在播放线程调用。
+   */
+  MediaPlayer obtainPlayer() {
+    MediaPlayer player = mIdlePlayers.poll();
+    synchronized (mStats) {
+      if (player != null) {
+        mStats.reused++;
+      } else {
+        mStats.created++;
+      }
+    }
+    return player != null ? player : new MediaPlayer();
+  }
+
+  /*
+   * 回收播放器，池满的时候直接释放，只能在播放线程调用.
+   */
+  void recycle(MediaPlayer player) {
+    if (player == null) {
+      return;
+    }
+    clearListeners(player);
+    if (mIdlePlayers.size() >= mMaxIdlePlayers) {
+      player.release();
+      return;
+    }
+    try {
+      // 断开和 surface 的连接，之后 surface 可以交给其他生产者，例如清除画面.
+      player.setSurface(null);
+      player.reset();
+    } catch (IllegalStateException ex) {
+      player.release();
+      return;
+    }
+    mIdlePlayers.add(player);
+  }
+
+  private boolean removePreloadedPlayer(Uri uri) {
+    PreloadedPlayer preloaded = mPreloadedPlayers.remove(uri);
+    if (preloaded == null) {
+      return false;
+    }
+    recycle(preloaded.player);
+    return true;
+  }
+
+  private void trimPreloadedPlayers(int maxSize) {
+    boolean evicted = false;
+    Iterator<Map.Entry<Uri, PreloadedPlayer>> iterator = mPreloadedPlayers.entrySet().iterator();
+    while (mPreloadedPlayers.size() > Math.max(0, maxSize) && iterator.hasNext()) {
+      PreloadedPlayer eldest = iterator.next().getValue();
+      iterator.remove();
+      recycle(eldest.player);
+      synchronized (mStats) {
+        mStats.evictions++;
+      }
+      evicted = true;
+    }
+    if (evicted) {
+      notifyStatsChanged();
+    }
+  }
+
+  private void notifyStatsChanged() {
+    if (mOnStatsChangedListener != null) {
+      mOnStatsChangedListener.onStatsChanged(getStats());
+    }
+  }
+
+  private static void clearListeners(MediaPlayer player) {
+    player.setOnPreparedListener(null);
+    player.setOnVideoSizeChangedListener(null);
+    player.setOnCompletionListener(null);
+    player.setOnErrorListener(null);
+    player.setOnInfoListener(null);
+    player.setOnBufferingUpdateListener(null);
+    player.setOnSeekCompleteListener(null);
+  }
+
+  private static boolean equalsHeaders(Map<String, String> a, Map<String, String> b) {
+    boolean emptyA = a == null || a.isEmpty();
+    boolean emptyB = b == null || b.isEmpty();
+    if (emptyA || emptyB) {
+      return emptyA == emptyB;
+    }
+    return a.equals(b);
+  }
+
+  /*
+   * 预加载槽位.
+   */
+  static class PreloadedPlayer {
+    final MediaPlayer player;
+    final Uri uri;
+    final Map<String, String> headers;
+    final long prepareStartTime;
+    boolean prepared;
+    long prepareCostMs;
+
+    PreloadedPlayer(MediaPlayer player, Uri uri, Map<String, String> headers) {
+      this.player = player;
+      this.uri = uri;
+      this.headers = headers;
+      this.prepareStartTime = SystemClock.uptimeMillis();
+    }
+  }
+
+  /**
+   * Statistics of the pool.
+   */
+  public static class Stats {
+    // setVideoURI hit a preloaded player.
+    public int hits;
+    // setVideoURI missed, the video had to be prepared from scratch.
+    public int misses;
+    // count of preload requests which started preparing.
+    public int preloads;
+    // preloaded players evicted before being used.
+    public int evictions;
+    // players taken from the idle list instead of being created.
+    public int reused;
+    // players created because the idle list was empty.
+    public int created;
+    // total prepare time saved by the preloaded players, in milliseconds.
+    public long savedPrepareTimeMs;
+
+    Stats copy() {
+      Stats stats = new Stats();
+      stats.hits = hits;
+      stats.misses = misses;
+      stats.preloads = preloads;
+      stats.evictions = evictions;
+      stats.reused = reused;
+      stats.created = created;
+      stats.savedPrepareTimeMs = savedPrepareTimeMs;
+      return stats;
+    }
+
+    void reset() {
+      hits = misses = preloads = evictions = reused = created = 0;
+      savedPrepareTimeMs = 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{hits=" + hits + ", misses=" + misses + ", preloads=" + preloads
+          + ", evictions=" + evictions + ", reused=" + reused + ", created=" + created
+          + ", savedPrepareTimeMs=" + savedPrepareTimeMs + "}";
+    }
+  }
+
+  public interface OnStatsChangedListener {
+    void onStatsChanged(Stats stats);
+  }
+}
@@ -0,0 +1,134 @@
+package com.qisen.android.easydroid.media;
+
+import android.net.Uri;
+
+/**
+ * 一次播放启动过程中各个阶段的时间点。
+ *
+ * ### 阶段
+ * 所有时间点都是 {@link android.os.SystemClock#elapsedRealtime()} 的毫秒数，没有经历的阶段为
+ * {@link #NO_TIME}。各个阶段依次为：设置 uri、surface 可用、播放器创建、数据源设置、准备完成、
+ * 首帧渲染以及第一次缓冲。播放列表中提前准备的下一项，播放器创建、数据源设置和准备完成都发生在
+ * 它成为当前项之前，因而早于设置 uri 的时间。
+ *
+ * ### 会话
+ * 从 {@link PlayerEngine#open(Uri, java.util.Map)} 开始，到播放器被释放为止是一次会话，会话结束时
+ * 通过 {@link Listener} 在主线程分发一次。记录对象会被引擎复用，回调返回之后不应该再持有它，
+ * 需要保存的话使用 {@link #copy()}。
+ */
+public class PlaybackMetrics {
+
+  public static final long NO_TIME = -1;
+
+  public Uri uri;
+  // whether the player was taken from the preloaded ones of MediaPlayerPool, or prepared ahead
+  // as the next item of the playlist.
+  public boolean preloaded;
+
+  public long uriSetTime = NO_TIME;
+  // the time both the uri and the surface are ready.
+  public long surfaceReadyTime = NO_TIME;
+  public long playerCreatedTime = NO_TIME;
+  public long dataSourceSetTime = NO_TIME;
+  public long preparedTime = NO_TIME;
+  public long firstFrameTime = NO_TIME;
+  public long firstBufferingTime = NO_TIME;
+  public long releasedTime = NO_TIME;
+
+  // buffering after started, excluding the startup.
+  public int bufferingCount;
+  public long bufferingDurationMs;
+  // the first error, 0 if none.
+  public int errorWhat;
+  public int errorExtra;
+
+  // start of the ongoing buffering, NO_TIME if not buffering.
+  long bufferingStartTime = NO_TIME;
+
+  /**
+   * Returns the milliseconds from setting the uri to the first rendered frame, or
+   * {@link #NO_TIME} if no frame was rendered.
+   */
+  public long getTimeToFirstFrame() {
+    return between(uriSetTime, firstFrameTime);
+  }
+
+  /**
+   * Returns the milliseconds spent on preparing, or {@link #NO_TIME} if not prepared.
+   */
+  public long getPrepareDuration() {
+    return between(dataSourceSetTime, preparedTime);
+  }
+
+  /**
+   * Returns the milliseconds waiting for the surface after setting the uri.
+   */
+  public long getSurfaceWaitDuration() {
+    return between(uriSetTime, surfaceReadyTime);
+  }
+
+  public PlaybackMetrics copy() {
+    PlaybackMetrics metrics = new PlaybackMetrics();
+    metrics.copyFrom(this);
+    return metrics;
+  }
+
+  void copyFrom(PlaybackMetrics other) {
+    uri = other.uri;
+    preloaded = other.preloaded;
+    uriSetTime = other.uriSetTime;
+    surfaceReadyTime = other.surfaceReadyTime;
+    playerCreatedTime = other.playerCreatedTime;
+    dataSourceSetTime = other.dataSourceSetTime;
+    preparedTime = other.preparedTime;
+    firstFrameTime = other.firstFrameTime;
+    firstBufferingTime = other.firstBufferingTime;
+    releasedTime = other.releasedTime;
+    bufferingCount = other.bufferingCount;
+    bufferingDurationMs = other.bufferingDurationMs;
+    errorWhat = other.errorWhat;
+    errorExtra = other.errorExtra;
+    bufferingStartTime = other.bufferingStartTime;
+  }
+
+  void reset() {
+    uri = null;
+    preloaded = false;
+    uriSetTime = NO_TIME;
+    surfaceReadyTime = NO_TIME;
+    playerCreatedTime = NO_TIME;
+    dataSourceSetTime = NO_TIME;
+    preparedTime = NO_TIME;
+    firstFrameTime = NO_TIME;
+    firstBufferingTime = NO_TIME;
+    releasedTime = NO_TIME;
+    bufferingCount = 0;
+    bufferingDurationMs = 0;
+    errorWhat = 0;
+    errorExtra = 0;
+    bufferingStartTime = NO_TIME;
+  }
+
+  private static long between(long start, long end) {
+    return start == NO_TIME || end == NO_TIME ? NO_TIME : end - start;
+  }
+
+  @Override
+  public String toString() {
+    return "PlaybackMetrics{uri=" + uri + ", preloaded=" + preloaded
+        + ", surfaceWait=" + getSurfaceWaitDuration()
+        + ", prepare=" + getPrepareDuration()
+        + ", timeToFirstFrame=" + getTimeToFirstFrame()
+        + ", bufferingCount=" + bufferingCount
+        + ", bufferingDurationMs=" + bufferingDurationMs
+        + ", errorWhat=" + errorWhat + "}";
+  }
+
+  /**
+   * Receives the record of each session on the main thread.
+   */
+  public interface Listener {
+
+    void onPlaybackMetrics(PlaybackMetrics metrics);
+  }
+}
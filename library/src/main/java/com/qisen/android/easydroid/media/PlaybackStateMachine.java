@@ -0,0 +1,182 @@
+package com.qisen.android.easydroid.media;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_ERROR;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_IDLE;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PAUSED;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PLAYBACK_COMPLETED;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PLAYING;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PREPARED;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PREPARING;
+
+/**
+ * {@link PlayerEngine} 的播放状态以及目标状态。
+ *
+ * ### 状态转换
+ * 当前状态只能按照 {@link #TRANSITIONS} 中定义的转换改变，不允许的转换会被拒绝并打印日志，
+ * 不会把引擎带入和 MediaPlayer 不一致的状态。当前状态只由播放线程修改，其他线程随时可以读取。
+ *
+ * ### 目标状态
+ * 目标状态由调用方在任意线程修改（start、pause、release），每次修改都会增加版本号，并把版本号
+ * 随消息交给播放线程。播放线程记住已经处理过的最新版本，只有目标状态仍然是这个版本时才能通过
+ * {@link #compareAndSetTarget(int, int)} 写入完成、出错或者暂停；调用方在此之后的修改，即使写入的
+ * 是同一个状态，也会让写入失败，调用方的意图总是优先。
+ *
+ * 两个状态都保存在原子变量中，读写不需要加锁。
+ */
+final class PlaybackStateMachine {
+
+  private static final String TAG = "PlaybackStateMachine";
+
+  // STATE_ERROR is -1, so the states are indexed by state + 1.
+  private static final int STATE_OFFSET = 1;
+
+  /*
+   * 每个状态允许转换到的状态，按位表示，任何状态都可以转换到自身、IDLE 以及 ERROR.
+   * PREPARING 也可以从播放中的状态进入，用于断网之后的重新准备.
+   */
+  private static final int[] TRANSITIONS = new int[STATE_PLAYBACK_COMPLETED + STATE_OFFSET + 1];
+
+  static {
+    allow(STATE_IDLE, STATE_PREPARING);
+    allow(STATE_PREPARING, STATE_PREPARED);
+    allow(STATE_PREPARED, STATE_PLAYING, STATE_PREPARING);
+    allow(STATE_PLAYING, STATE_PAUSED, STATE_PLAYBACK_COMPLETED, STATE_PREPARING);
+    allow(STATE_PAUSED, STATE_PLAYING, STATE_PLAYBACK_COMPLETED, STATE_PREPARING);
+    allow(STATE_PLAYBACK_COMPLETED, STATE_PLAYING, STATE_PREPARING);
+    allow(STATE_ERROR, STATE_PREPARING);
+    for (int state = STATE_ERROR; state <= STATE_PLAYBACK_COMPLETED; state++) {
+      allow(state, state, STATE_IDLE, STATE_ERROR);
+    }
+  }
+
+  private final AtomicInteger mCurrent = new AtomicInteger(STATE_IDLE);
+  // the version in the high 32 bits and the state in the low 32 bits.
+  private final AtomicLong mTarget = new AtomicLong(pack(0, STATE_IDLE));
+
+  private static void allow(int from, int... targets) {
+    for (int to : targets) {
+      TRANSITIONS[from + STATE_OFFSET] |= 1 << (to + STATE_OFFSET);
+    }
+  }
+
+  static boolean isAllowed(int from, int to) {
+    if (from < STATE_ERROR || from > STATE_PLAYBACK_COMPLETED
+        || to < STATE_ERROR || to > STATE_PLAYBACK_COMPLETED) {
+      return false;
+    }
+    return (TRANSITIONS[from + STATE_OFFSET] & (1 << (to + STATE_OFFSET))) != 0;
+  }
+
+  int getCurrent() {
+    return mCurrent.get();
+  }
+
+  int getTarget() {
+    return stateOf(mTarget.get());
+  }
+
+  /**
+   * Returns the version of the target state, increased by every {@link #setTarget(int)}.
+   */
+  int getTargetVersion() {
+    return versionOf(mTarget.get());
+  }
+
+  /**
+   * Moves the current state if the transition is allowed.
+   *
+   * @return whether the state is moved.
+   */
+  boolean moveTo(int state) {
+    while (true) {
+      int current = mCurrent.get();
+      if (!isAllowed(current, state)) {
+        Log.w(TAG, "Illegal transition from " + nameOf(current) + " to " + nameOf(state));
+        return false;
+      }
+      if (mCurrent.compareAndSet(current, state)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Sets the target state on behalf of the caller.
+   *
+   * @return the new version, to be handed to the player thread with the command.
+   */
+  int setTarget(int state) {
+    while (true) {
+      long target = mTarget.get();
+      int version = versionOf(target) + 1;
+      if (mTarget.compareAndSet(target, pack(version, state))) {
+        return version;
+      }
+    }
+  }
+
+  /**
+   * Sets the target state only if the caller has not set it since the version, used by the
+   * player thread so that it never overrides a newer intent of the caller. The version is
+   * kept, the player thread may update the state again with the same version.
+   *
+   * @param expectVersion the latest version the player thread has handled.
+   * @return whether the state is set.
+   */
+  boolean compareAndSetTarget(int expectVersion, int state) {
+    while (true) {
+      long target = mTarget.get();
+      if (versionOf(target) != expectVersion) {
+        return false;
+      }
+      if (mTarget.compareAndSet(target, pack(expectVersion, state))) {
+        return true;
+      }
+    }
+  }
+
+  private static long pack(int version, int state) {
+    return ((long) version << 32) | (state & 0xFFFFFFFFL);
+  }
+
+  private static int versionOf(long target) {
+    return (int) (target >>> 32);
+  }
+
+  private static int stateOf(long target) {
+    return (int) target;
+  }
+
+  static String nameOf(int state) {
+    switch (state) {
+      case STATE_ERROR:
+        return "ERROR";
+      case STATE_IDLE:
+        return "IDLE";
+      case STATE_PREPARING:
+        return "PREPARING";
+      case STATE_PREPARED:
+        return "PREPARED";
+      case STATE_PLAYING:
+        return "PLAYING";
+      case STATE_PAUSED:
+        return "PAUSED";
+      case STATE_PLAYBACK_COMPLETED:
+        return "PLAYBACK_COMPLETED";
+      default:
+        return String.valueOf(state);
+    }
+  }
+
+  @Override
+  public String toString() {
+    long target = mTarget.get();
+    return "PlaybackStateMachine{current=" + nameOf(mCurrent.get())
+        + ", target=" + nameOf(stateOf(target)) + ", version=" + versionOf(target) + "}";
+  }
+}
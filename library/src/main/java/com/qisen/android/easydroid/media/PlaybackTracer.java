@@ -0,0 +1,205 @@
+package com.qisen.android.easydroid.media;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 播放事件的结构化记录。
+ *
+ * ### 记录
+ * 每个事件只包含基本类型：事件 id、{@link SystemClock#elapsedRealtime()} 时间戳、会话 id
+ * （见 {@link PlayerEngine#getSessionId()}）以及两个 int 参数，写入固定大小的环形缓冲区，
+ * 满了之后覆盖最早的事件。记录的过程不创建任何对象，也不输出到 logcat，可以放在 start、pause、
+ * seek 这样频繁调用的路径上。
+ *
+ * ### 级别
+ * {@link #setLevel(int)} 控制记录哪些事件，级别不够的事件在 {@link #trace} 的第一行就返回，只有
+ * 一次 volatile 读。默认记录 {@link #LEVEL_INFO} 及以下的事件。
+ *
+ * ### 导出
+ * {@link #dump(int)} 把最近的事件格式化成文本，{@link #dumpToLog(int)} 逐行输出到 logcat；
+ * {@link #dumpOnCrash(int)} 在未捕获的异常导致崩溃之前输出一次。格式化只在导出时发生。
+ */
+public final class PlaybackTracer {
+
+  private static final String TAG = "PlaybackTracer";
+
+  public static final int LEVEL_OFF = 0;
+  public static final int LEVEL_ERROR = 1;
+  public static final int LEVEL_INFO = 2;
+  public static final int LEVEL_VERBOSE = 3;
+
+  // events, the meaning of the args follows the name.
+  public static final int EVENT_OPEN = 1;
+  public static final int EVENT_PREPARED = 2;
+  public static final int EVENT_START = 3;
+  public static final int EVENT_PAUSE = 4;
+  public static final int EVENT_SEEK = 5;
+  public static final int EVENT_SEEK_COMPLETE = 6;
+  public static final int EVENT_COMPLETION = 7;
+  public static final int EVENT_ERROR = 8;
+  public static final int EVENT_RETRY = 9;
+  public static final int EVENT_RELEASE = 10;
+  public static final int EVENT_PLAYLIST_ITEM = 11;
+  public static final int EVENT_TRIMMED = 12;
+  public static final int EVENT_SURFACE_AVAILABLE = 13;
+  public static final int EVENT_SURFACE_DESTROYED = 14;
+
+  private static final String[] EVENT_NAMES = {
+      null,
+      "OPEN(resumeMs, items)",
+      "PREPARED(durationMs, preloaded)",
+      "START(positionMs)",
+      "PAUSE(positionMs)",
+      "SEEK(targetMs, scrubbing)",
+      "SEEK_COMPLETE(positionMs, latencyMs)",
+      "COMPLETION(positionMs)",
+      "ERROR(what, extra)",
+      "RETRY(count, positionMs)",
+      "RELEASE(positionMs)",
+      "PLAYLIST_ITEM(index, chained)",
+      "TRIMMED(positionMs)",
+      "SURFACE_AVAILABLE(width, height)",
+      "SURFACE_DESTROYED",
+  };
+
+  private static final int DEFAULT_CAPACITY = 256;
+
+  private static volatile int sLevel = LEVEL_INFO;
+
+  // the ring buffer, guarded by sLock.
+  private static final Object sLock = new Object();
+  private static int[] sEvents;
+  private static long[] sTimes;
+  private static int[] sSessions;
+  private static int[] sArgs1;
+  private static int[] sArgs2;
+  // events ever written, the next one goes to sWritten % capacity.
+  private static long sWritten;
+  private static boolean sCrashHandlerInstalled;
+
+  static {
+    allocate(DEFAULT_CAPACITY);
+  }
+
+  private PlaybackTracer() {
+  }
+
+  /**
+   * Sets the max level of the events recorded, {@link #LEVEL_OFF} to disable.
+   */
+  public static void setLevel(int level) {
+    sLevel = level;
+  }
+
+  public static int getLevel() {
+    return sLevel;
+  }
+
+  public static boolean isEnabled(int level) {
+    return level <= sLevel;
+  }
+
+  /**
+   * Sets the count of the events kept, the recorded ones are dropped.
+   */
+  public static void setCapacity(int capacity) {
+    synchronized (sLock) {
+      allocate(Math.max(1, capacity));
+    }
+  }
+
+  /**
+   * Records the event if the level is enabled, without any allocation.
+   */
+  public static void trace(int level, int event, int session, int arg1, int arg2) {
+    if (level > sLevel) {
+      return;
+    }
+    long now = SystemClock.elapsedRealtime();
+    synchronized (sLock) {
+      int index = (int) (sWritten++ % sEvents.length);
+      sEvents[index] = event;
+      sTimes[index] = now;
+      sSessions[index] = session;
+      sArgs1[index] = arg1;
+      sArgs2[index] = arg2;
+    }
+  }
+
+  public static void clear() {
+    synchronized (sLock) {
+      sWritten = 0;
+    }
+  }
+
+  /**
+   * Formats the last events, the eldest first, one event per line.
+   */
+  public static String dump(int maxEvents) {
+    StringBuilder builder = new StringBuilder();
+    synchronized (sLock) {
+      int capacity = sEvents.length;
+      long count = Math.min(Math.min(sWritten, capacity), Math.max(0, maxEvents));
+      for (long i = sWritten - count; i < sWritten; i++) {
+        int index = (int) (i % capacity);
+        builder.append(sTimes[index]).append(" #").append(sSessions[index]).append(' ')
+            .append(getEventName(sEvents[index])).append(' ').append(sArgs1[index])
+            .append(' ').append(sArgs2[index]).append('\n');
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Prints the last events to logcat line by line, long dumps are not truncated.
+   */
+  public static void dumpToLog(int maxEvents) {
+    String dump = dump(maxEvents);
+    int start = 0;
+    int end;
+    while ((end = dump.indexOf('\n', start)) >= 0) {
+      Log.i(TAG, dump.substring(start, end));
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Prints the last events to logcat when an uncaught exception is about to crash the app,
+   * before the default handler runs. Installed once.
+   */
+  public static synchronized void dumpOnCrash(final int maxEvents) {
+    if (sCrashHandlerInstalled) {
+      return;
+    }
+    sCrashHandlerInstalled = true;
+    final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+    Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override
+      public void uncaughtException(Thread thread, Throwable ex) {
+        try {
+          Log.e(TAG, "Last playback events before the crash:");
+          dumpToLog(maxEvents);
+        } finally {
+          if (previous != null) {
+            previous.uncaughtException(thread, ex);
+          }
+        }
+      }
+    });
+  }
+
+  private static String getEventName(int event) {
+    return event > 0 && event < EVENT_NAMES.length
+        ? EVENT_NAMES[event] : "EVENT_" + event;
+  }
+
+  private static void allocate(int capacity) {
+    sEvents = new int[capacity];
+    sTimes = new long[capacity];
+    sSessions = new int[capacity];
+    sArgs1 = new int[capacity];
+    sArgs2 = new int[capacity];
+    sWritten = 0;
+  }
+}
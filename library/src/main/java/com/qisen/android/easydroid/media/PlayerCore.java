@@ -0,0 +1,130 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * 播放核，{@link PlayerEngine} 通过它操作具体的播放器。
+ *
+ * ### 实现
+ * 默认使用基于 MediaPlayer 的 {@link MediaPlayerCore}，{@link ExoPlayerCore} 基于 ExoPlayer，
+ * 可以调整缓冲策略。通过 {@link PlayerEngine#setDefaultCoreFactory(Factory)} 全局选择，或者通过
+ * {@link PlayerEngine#setCoreFactory(Factory)} 为单个引擎（也就是单个 View）选择，下一次打开视频时
+ * 生效。
+ *
+ * ### 约定
+ * 一个播放核只播放一个视频，引擎在打开时创建，释放时调用 {@link #release()}。所有方法都在
+ * {@link PlayerThread} 上调用，{@link Listener} 也必须在播放线程回调。信息和错误码沿用
+ * {@link MediaPlayer} 的常量，例如 {@link MediaPlayer#MEDIA_INFO_BUFFERING_START}，网络相关的
+ * 错误使用 {@link MediaPlayer#MEDIA_ERROR_IO} 作为 extra，引擎据此决定是否重试。
+ */
+public interface PlayerCore {
+
+  void setListener(Listener listener);
+
+  /**
+   * Sets the audio session to play on, called before {@link #setDataSource}. Cores without
+   * the support of audio sessions could ignore it.
+   */
+  void setAudioSessionId(int sessionId);
+
+  int getAudioSessionId();
+
+  void setDataSource(Context context, Uri uri, Map<String, String> headers) throws IOException;
+
+  /**
+   * Returns whether the data source was prepared in advance, e.g. by {@link MediaPlayerPool}.
+   */
+  boolean isPreloaded();
+
+  void setSurface(Surface surface);
+
+  void setDisplay(SurfaceHolder holder);
+
+  /**
+   * Prepares the data source asynchronously. {@link Listener#onPrepared()} may be called
+   * before returning if it has been prepared in advance.
+   */
+  void prepareAsync();
+
+  void start();
+
+  void pause();
+
+  /**
+   * Seeks to the position, {@link Listener#onSeekComplete()} is called once done.
+   *
+   * @param exact whether to seek to the exact frame, otherwise to the closest sync frame,
+   *     which is faster. Cores without the support of seek modes could ignore it.
+   */
+  void seekTo(int msec, boolean exact);
+
+  boolean isPlaying();
+
+  int getCurrentPosition();
+
+  /**
+   * Returns the duration in milliseconds, or -1 if unknown.
+   */
+  int getDuration();
+
+  int getVideoWidth();
+
+  int getVideoHeight();
+
+  void setVolume(float volume);
+
+  /**
+   * Loops the video seamlessly, {@link Listener#onCompletion()} is not called while looping.
+   */
+  void setLooping(boolean looping);
+
+  /**
+   * Chains the next core to start as soon as this one completes, null to unchain. Both cores
+   * are prepared and created by the same factory. Returns false if not supported, the engine
+   * starts the next core itself on {@link Listener#onCompletion()} then. The engine only chains
+   * the items without video, the next core has no surface until it becomes the current one.
+   */
+  boolean setNextCore(PlayerCore next);
+
+  /**
+   * Sets the playback speed, returns false if not supported.
+   */
+  boolean setSpeed(float speed);
+
+  void release();
+
+  /**
+   * Callbacks of the core, all invoked on the player thread.
+   */
+  interface Listener {
+
+    void onPrepared();
+
+    void onVideoSizeChanged(int width, int height);
+
+    void onCompletion();
+
+    void onError(int what, int extra);
+
+    void onInfo(int what, int extra);
+
+    void onBufferingUpdate(int percent);
+
+    void onSeekComplete();
+  }
+
+  /**
+   * Creates a core for each video, called on the player thread.
+   */
+  interface Factory {
+
+    PlayerCore create(Context context);
+  }
+}
@@ -0,0 +1,2094 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import com.qisen.android.easydroid.media.cache.BandwidthEstimator;
+import com.qisen.android.easydroid.media.cache.VideoCacheProxy;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 播放引擎，在独立的播放线程 {@link PlayerThread} 上持有并操作播放核 {@link PlayerCore}。
+ *
+ * ### 播放核
+ * 默认使用基于 MediaPlayer 的 {@link MediaPlayerCore}，可以通过 {@link #setCoreFactory} 或者
+ * {@link #setDefaultCoreFactory} 换成 {@link ExoPlayerCore} 等其他实现。引擎的状态、重试、统计都和
+ * 具体的播放核无关；listener 收到的 MediaPlayer 只用于区分，其他播放核传入的是 null。
+ *
+ * ### 线程模型
+ * 对外的方法都可以在任意线程调用。控制类的方法（open、start、pause、seekTo、release）只是把命令
+ * 投递到播放线程按顺序执行；查询类的方法（getCurrentPosition、getDuration、isPlaying 等）读取播放线程
+ * 维护的状态快照，不会跨线程调用 MediaPlayer，因而不会阻塞调用方。播放状态由
+ * {@link PlaybackStateMachine} 按照固定的转换表维护，播放线程是命令队列唯一的消费者。
+ *
+ * ### 回调
+ * MediaPlayer 的回调都发生在播放线程，引擎只把需要的状态变化转发到主线程，先通知当前的渲染目标
+ * {@link Callback}，再通知外部设置的 listener。其中状态变化、缓冲进度以及视频尺寸会被合并，
+ * 主线程处理时只会拿到最新的值。
+ *
+ * ### 启动耗时
+ * 每次播放从打开视频到释放播放器为一次会话，各个启动阶段的时间点记录在 {@link PlaybackMetrics}
+ * 中，会话结束时分发给 {@link #setPlaybackMetricsListener(PlaybackMetrics.Listener)}。记录对象
+ * 是复用的，播放过程中不会产生新的对象。卡顿、seek 耗时、错误以及观看时长由 {@link QoeAggregator}
+ * 统计，会话结束时把汇总分发给 {@link #setQoeListener(QoeAggregator.Listener)}。
+ *
+ * ### 自动恢复
+ * 系统核在网络断开时，播放完已经缓冲的部分就会回调完成，或者回调 IO 相关的错误。引擎会在
+ * 提前完成（数据没有读到结尾）或者可恢复的错误时，按照指数退避的间隔重新准备同一个 uri，
+ * 并且 seek 回之前的位置。重试次数由 {@link #setMaxRetries(int)} 控制，用完之后才把错误分发出去，恢复成功和
+ * 失败的会话数量记录在 {@link #getRecoveryStats()} 中。
+ *
+ * ### Seek
+ * 同一时间只有一个 seek 在执行，期间的请求只保留最新的目标，拖动进度条时播放器不会被过时的 seek
+ * 拖慢；拖动过程中 seek 到最近的同步帧，松手时精确 seek。耗时见 {@link #getSeekStats()}。重试或者
+ * 内存回收之后引擎自己 seek 回之前的进度，这些 seek 单独计数，不计入耗时，也不通知 listener。
+ *
+ * ### 播放列表
+ * {@link #openPlaylist(List, Map)} 依次播放多个视频。当前项准备好之后，下一项在另一个播放核中不设置
+ * surface 提前准备。有画面的视频由引擎在完成时把 surface 交给下一项并开始播放，没有 surface 的
+ * 播放器通过 {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)} 串联之后仍然要等 surface 才能
+ * 出画面；只有声音的视频由系统核串联，当前项播放完成时下一项已经开始播放。两种情况都不需要
+ * 重新 prepare，从完成到下一项首帧的间隔见 {@link #getLastTransitionGapMs()}。每一项都是单独的
+ * 会话。{@link #setLooping(boolean)} 让单个视频无缝循环，或者让播放列表在最后一项之后回到第一项。
+ *
+ * ### 内存
+ * 引擎登记到 {@link MediaMemoryManager}，内存不足时屏幕外或者暂停中的引擎释放播放器，记住当时的
+ * 进度并回到准备中的状态，之后 start() 或者重新设置 surface 时重新准备，再 seek 回去。
+ *
+ * ### 事件记录
+ * 打开、开始、暂停、seek、完成、错误、重试、释放等事件以基本类型写入 {@link PlaybackTracer}，
+ * 每次打开视频（包括播放列表中的每一项）分配新的会话 id，记录的过程不创建对象。
+ *
+ * ### 音频焦点
+ * 开始播放时向 {@link AudioFocusManager} 登记，所有引擎共用一个焦点，失去焦点时暂停或者降低音量，
+ * 短暂失去的焦点恢复之后继续播放。
+ *
+ * ### 渲染目标
+ * 引擎不依赖于具体的 View，播放状态和 listener 都保存在引擎中。View 通过 {@link #attach(Callback)}
+ * 成为当前的渲染目标，再通过 {@link #setSurface(Callback, Surface)} 或
+ * {@link #setDisplay(Callback, SurfaceHolder)} 提供输出的 surface。同一时间只有一个渲染目标，
+ * 新的目标 attach 之后，之前的目标对 surface 的操作都会被忽略。
+ *
+ * 从列表切换到全屏时，只需要让全屏的 View 使用同一个引擎，MediaPlayer 只是切换输出的 surface，
+ * 不需要重新 prepare，也不会重新缓冲：
+ * <pre>
+ *   fullscreenView.setPlayerEngine(inlineView.getPlayerEngine());
+ * </pre>
+ */
+public class PlayerEngine {
+
+  private static final String TAG = "PlayerEngine";
+
+  // all possible internal states
+  static final int STATE_ERROR = -1;
+  static final int STATE_IDLE = 0;
+  static final int STATE_PREPARING = 1;
+  static final int STATE_PREPARED = 2;
+  static final int STATE_PLAYING = 3;
+  static final int STATE_PAUSED = 4;
+  static final int STATE_PLAYBACK_COMPLETED = 5;
+
+  // commands executed on the player thread.
+  private static final int MSG_OPEN = 1;
+  private static final int MSG_SET_SURFACE = 2;
+  private static final int MSG_SET_DISPLAY = 3;
+  private static final int MSG_START = 4;
+  private static final int MSG_PAUSE = 5;
+  private static final int MSG_SEEK = 6;
+  private static final int MSG_RELEASE = 7;
+  private static final int MSG_SAMPLE_POSITION = 8;
+  private static final int MSG_RETRY = 9;
+  private static final int MSG_SET_SPEED = 10;
+  private static final int MSG_SET_LOOPING = 11;
+
+  // notifications delivered on the main thread.
+  private static final int MSG_NOTIFY_STATE = 101;
+  private static final int MSG_NOTIFY_PREPARED = 102;
+  private static final int MSG_NOTIFY_VIDEO_SIZE = 103;
+  private static final int MSG_NOTIFY_COMPLETION = 104;
+  private static final int MSG_NOTIFY_ERROR = 105;
+  private static final int MSG_NOTIFY_INFO = 106;
+  private static final int MSG_NOTIFY_BUFFERING = 107;
+  private static final int MSG_NOTIFY_SEEK_COMPLETE = 108;
+  private static final int MSG_NOTIFY_METRICS = 109;
+  private static final int MSG_NOTIFY_QOE = 110;
+  private static final int MSG_NOTIFY_PLAYLIST_ITEM = 111;
+
+  private static final long POSITION_SAMPLE_INTERVAL_MS = 1000;
+  private static final long RELEASE_TIMEOUT_MS = 1000;
+
+  private static final int DEFAULT_MAX_RETRIES = 3;
+  private static final long DEFAULT_RETRY_BACKOFF_MS = 1000;
+  private static final long DEFAULT_RETRY_MAX_BACKOFF_MS = 8000;
+  // completion before this ratio of the duration is treated as a network failure, only when
+  // neither the proxy nor the buffering percentage tells whether the data was all received.
+  private static final float PREMATURE_COMPLETION_RATIO = 0.95F;
+  // with the buffering percentage below 100, completion within this distance of the end is still
+  // a genuine one, some devices never report more than 99.
+  private static final int PREMATURE_COMPLETION_TOLERANCE_MS = 1000;
+
+  private static final RecoveryStats sRecoveryStats = new RecoveryStats();
+  private static final AtomicInteger sSessionIds = new AtomicInteger();
+  private static volatile PlayerCore.Factory sDefaultCoreFactory = MediaPlayerCore.FACTORY;
+
+  private final Context mContext;
+  private final Handler mPlayerHandler;
+  private final Handler mMainHandler;
+
+  // the render target, only changed on the main thread.
+  private volatile Callback mTarget;
+  // listeners set by the client, only accessed on the main thread.
+  private MediaPlayer.OnPreparedListener mOnPreparedListener;
+  private MediaPlayer.OnCompletionListener mOnCompletionListener;
+  private MediaPlayer.OnErrorListener mOnErrorListener;
+  private MediaPlayer.OnInfoListener mOnInfoListener;
+  private MediaPlayer.OnSeekCompleteListener mOnSeekCompleteListener;
+  private MediaPlayer.OnBufferingUpdateListener mOnBufferingUpdateListener;
+  private MediaPlayer.OnVideoSizeChangedListener mOnVideoSizeChangedListener;
+  private PlaybackMetrics.Listener mPlaybackMetricsListener;
+  private QoeAggregator.Listener mQoeListener;
+  private PlaylistListener mPlaylistListener;
+
+  // only accessed on the player thread.
+  private PlayerCore mCore;
+  private Surface mSurface;
+  private SurfaceHolder mSurfaceHolder;
+  private Uri mUri;
+  private Map<String, String> mHeaders;
+  // the variants of the current video, null if opened by a single uri.
+  private List<VideoVariant> mVariants;
+  // the playlist being played, null if opened by a single uri or variants.
+  private List<Uri> mPlaylist;
+  // the core of the next item, prepared without a surface while the current one plays.
+  private PlayerCore mNextCore;
+  private int mNextIndex;
+  private boolean mNextPrepared;
+  // whether the next core is chained to start as soon as the current one completes, only for
+  // the items without video.
+  private boolean mNextChained;
+  // the startup of the next core, taken into the metrics once it becomes the current one.
+  private long mNextCreatedTime;
+  private long mNextDataSourceSetTime;
+  private long mNextPreparedTime;
+  // whether the next core rendered its first frame before it became the current one.
+  private boolean mNextRendered;
+  // the completion of the previous item, 0 once the first frame of the next one is rendered.
+  private long mTransitionTime;
+  // whether the video should be opened once the surface is ready.
+  private boolean mOpenPending;
+  // the record of the current session.
+  private final PlaybackMetrics mMetrics = new PlaybackMetrics();
+  // records waiting to be delivered are taken from here, and returned after delivered.
+  private final ArrayDeque<PlaybackMetrics> mMetricsPool = new ArrayDeque<>(2);
+  private final QoeAggregator mQoe = new QoeAggregator();
+  private final ArrayDeque<QoeAggregator.Summary> mSummaryPool = new ArrayDeque<>(2);
+  // recovery of the current session.
+  private int mRetryCount;
+  private int mResumePosition;
+  // at most one seek is in flight, the latest one requested meanwhile waits here.
+  private boolean mSeekInFlight;
+  // between MEDIA_INFO_BUFFERING_START and MEDIA_INFO_BUFFERING_END.
+  private boolean mBuffering;
+  private int mPendingSeekMs = -1;
+  private boolean mPendingSeekExact;
+  private long mSeekRequestTime;
+  // whether the seek in flight resumes the position for the engine, not reported as a user seek.
+  private boolean mInternalSeek;
+  // whether mSeekWhenPrepared was requested by seekTo() before the player was prepared.
+  private boolean mSeekWhenPreparedRequested;
+  private boolean mRecoveryFailed;
+  // whether the player was released by MediaMemoryManager, restored on demand.
+  private boolean mTrimmed;
+  // whether to resume when the audio focus lost transiently comes back.
+  private boolean mResumeOnFocusGain;
+  // the latest target version set by the caller and handled here, see PlaybackStateMachine.
+  private int mHandledTargetVersion;
+
+  // the factory of the cores, null to use the default one.
+  private volatile PlayerCore.Factory mCoreFactory;
+
+  // snapshots written on the player thread, and could be read from any thread.
+  // the media player of the core for the listeners, null if the core is not MediaPlayerCore.
+  private volatile MediaPlayer mPublishedPlayer;
+  private volatile Uri mRequestedUri;
+  private volatile Map<String, String> mRequestedHeaders;
+  private volatile VideoVariant mSelectedVariant;
+  // the current state and the state that a method caller intends to reach.
+  private final PlaybackStateMachine mState = new PlaybackStateMachine();
+  private volatile int mSeekWhenPrepared;
+  private volatile int mDuration = -1;
+  // whether the position and the duration before the trim are served until prepared again.
+  private volatile boolean mTrimmedSnapshot;
+  private volatile int mVideoWidth;
+  private volatile int mVideoHeight;
+  private volatile int mBufferPercentage;
+  private volatile int mAudioSession;
+  // the count of the cores held, including the next one of the playlist.
+  private volatile int mHeldCores;
+  private volatile boolean mShouldRequestAudioFocus = true;
+  private volatile float mPlaybackSpeed = 1;
+  private volatile ResumePositionStore mResumePositionStore;
+  // the speed set on the current player, written on the player thread.
+  private volatile float mAppliedSpeed = 1;
+  private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+  private volatile long mRetryBackoffMs = DEFAULT_RETRY_BACKOFF_MS;
+  private volatile long mRetryMaxBackoffMs = DEFAULT_RETRY_MAX_BACKOFF_MS;
+  private volatile long mLastSeekLatencyMs = -1;
+  // the id of the current session in PlaybackTracer.
+  private volatile int mSessionId;
+  private volatile boolean mLooping;
+  // the index of the current item in the playlist, -1 if not playing a playlist.
+  private volatile int mPlaylistIndex = -1;
+  private volatile long mLastTransitionGapMs = -1;
+  private final SeekStats mSeekStats = new SeekStats();
+
+  // position sampled on the player thread, interpolated by the elapsed time while playing.
+  private final Object mPositionLock = new Object();
+  private int mPositionMs;
+  private long mPositionSampleTime;
+  private float mPositionSpeed = 1;
+  // whether the position stays at the sample, while buffering or a seek is in flight.
+  private boolean mPositionFrozen;
+
+  public PlayerEngine(Context context) {
+    mContext = context.getApplicationContext();
+    mPlayerHandler = new Handler(PlayerThread.getLooper(), mPlayerHandlerCallback);
+    mMainHandler = new Handler(Looper.getMainLooper(), mMainHandlerCallback);
+    mMetricsPool.add(new PlaybackMetrics());
+    mMetricsPool.add(new PlaybackMetrics());
+    mSummaryPool.add(new QoeAggregator.Summary());
+    mSummaryPool.add(new QoeAggregator.Summary());
+    MediaMemoryManager.getInstance().register(mContext, this);
+  }
+
+  /**
+   * Opens the video, the previous one will be released. The video is prepared as soon as
+   * a surface is set.
+   */
+  public void open(Uri uri, Map<String, String> headers) {
+    mSelectedVariant = null;
+    openRequest(uri, headers, null, null);
+  }
+
+  /**
+   * Opens one of the variants of the video, selected by the bandwidth estimated by
+   * {@link BandwidthEstimator}. The variant is selected again when the video is reopened or
+   * retried after a network failure, and the playback goes on from the same position.
+   *
+   * @param variants the variants of the video, in any order.
+   * @param headers the headers for the uri request.
+   */
+  public void open(List<VideoVariant> variants, Map<String, String> headers) {
+    List<VideoVariant> copy = new ArrayList<>(variants);
+    VideoVariant variant =
+        VideoVariant.select(copy, BandwidthEstimator.getInstance().getEstimateKbps());
+    mSelectedVariant = variant;
+    openRequest(variant == null ? null : VideoCacheProxy.proxy(variant.uri), headers,
+        copy.isEmpty() ? null : copy, null);
+  }
+
+  /**
+   * Opens the videos to play one after another. While a video plays, the next one is prepared
+   * in another core, and starts without preparing once the current one completes.
+   * {@link PlaylistListener} is notified when the playback moves on, and each video is a
+   * session of its own.
+   *
+   * @param uris the videos in order.
+   * @param headers the headers for all the uri requests.
+   */
+  public void openPlaylist(List<Uri> uris, Map<String, String> headers) {
+    List<Uri> copy = new ArrayList<>(uris);
+    mSelectedVariant = null;
+    openRequest(copy.isEmpty() ? null : copy.get(0), headers, null, copy.isEmpty() ? null : copy);
+  }
+
+  private void openRequest(Uri uri, Map<String, String> headers, List<VideoVariant> variants,
+      List<Uri> playlist) {
+    mSessionId = sSessionIds.incrementAndGet();
+    mRequestedUri = uri;
+    mPlaylistIndex = playlist != null ? 0 : -1;
+    mRequestedHeaders = headers;
+    mSeekWhenPrepared = 0;
+    mDuration = -1;
+    mTrimmedSnapshot = false;
+    mBufferPercentage = 0;
+    updatePosition(0);
+    mPlayerHandler.obtainMessage(MSG_OPEN, new OpenRequest(uri, headers, variants, playlist,
+        SystemClock.elapsedRealtime())).sendToTarget();
+  }
+
+  /**
+   * Opens the last video again, e.g. after {@link #release(boolean)}.
+   */
+  public void reopen() {
+    mSessionId = sSessionIds.incrementAndGet();
+    mPlayerHandler.sendEmptyMessage(MSG_OPEN);
+  }
+
+  /**
+   * Makes the target the current render target, must be called on the main thread. The output
+   * of the previous target is cleared, and the playback goes on without any surface until the
+   * new target sets one. The latest state and video size are delivered to the new target
+   * immediately.
+   */
+  public void attach(Callback target) {
+    if (mTarget == target) {
+      return;
+    }
+    if (mTarget != null) {
+      mPlayerHandler.obtainMessage(MSG_SET_SURFACE, null).sendToTarget();
+    }
+    mTarget = target;
+    if (target != null) {
+      target.onStateChanged(mState.getCurrent());
+      target.onVideoSizeChanged(mPublishedPlayer, mVideoWidth, mVideoHeight);
+    }
+  }
+
+  /**
+   * Detaches the target if it is the current one, must be called on the main thread. Returns
+   * after the media player has stopped using the surface of the target.
+   */
+  public void detach(Callback target) {
+    if (mTarget != target) {
+      // 之前 attach 时投递的清除操作可能还没有执行，等待它执行完.
+      flush();
+      return;
+    }
+    mTarget = null;
+    mPlayerHandler.obtainMessage(MSG_SET_SURFACE, null).sendToTarget();
+    flush();
+  }
+
+  public boolean isAttached(Callback target) {
+    return target != null && mTarget == target;
+  }
+
+  /**
+   * Sets the surface of the target as the output, ignored if the target is not attached.
+   * A pending video is prepared as soon as there is a surface.
+   */
+  public void setSurface(Callback target, Surface surface) {
+    if (isAttached(target)) {
+      mPlayerHandler.obtainMessage(MSG_SET_SURFACE, surface).sendToTarget();
+    }
+  }
+
+  /**
+   * Sets the surface holder of the target as the output, ignored if the target is not attached.
+   */
+  public void setDisplay(Callback target, SurfaceHolder holder) {
+    if (isAttached(target)) {
+      mPlayerHandler.obtainMessage(MSG_SET_DISPLAY, holder).sendToTarget();
+    }
+  }
+
+  public void start() {
+    if (PlaybackTracer.isEnabled(PlaybackTracer.LEVEL_INFO)) {
+      trace(PlaybackTracer.EVENT_START, getCurrentPosition(), 0);
+    }
+    int version = mState.setTarget(STATE_PLAYING);
+    mPlayerHandler.obtainMessage(MSG_START, version, 1).sendToTarget();
+  }
+
+  public void pause() {
+    if (PlaybackTracer.isEnabled(PlaybackTracer.LEVEL_INFO)) {
+      trace(PlaybackTracer.EVENT_PAUSE, getCurrentPosition(), 0);
+    }
+    int version = mState.setTarget(STATE_PAUSED);
+    mPlayerHandler.obtainMessage(MSG_PAUSE, version, 1).sendToTarget();
+  }
+
+  /**
+   * Seeks to the exact position, e.g. when the user releases the seek bar.
+   */
+  public void seekTo(int msec) {
+    seekTo(msec, false);
+  }
+
+  /**
+   * Seeks to the position. At most one seek is in flight, seeks requested meanwhile replace
+   * each other and only the latest one is issued once the previous completes, so the player
+   * keeps up with a dragged seek bar. The listeners are notified when the latest target is
+   * reached, see {@link #getLastSeekLatencyMs()}.
+   *
+   * @param scrubbing true while the user is dragging, which seeks to the closest sync frame on
+   *     8.0 and above; false to seek to the exact frame.
+   */
+  public void seekTo(int msec, boolean scrubbing) {
+    trace(PlaybackTracer.EVENT_SEEK, msec, scrubbing ? 1 : 0);
+    updatePosition(msec);
+    synchronized (mSeekStats) {
+      mSeekStats.requested++;
+      // 还没有执行的 seek 已经过时，只保留最新的.
+      if (mPlayerHandler.hasMessages(MSG_SEEK)) {
+        mPlayerHandler.removeMessages(MSG_SEEK);
+        mSeekStats.coalesced++;
+      }
+    }
+    mPlayerHandler.obtainMessage(MSG_SEEK, msec, scrubbing ? 0 : 1).sendToTarget();
+  }
+
+  /**
+   * Returns the time from the latest seek request to the seek complete, in milliseconds, or -1
+   * if no seek has completed. Could be read in {@link MediaPlayer.OnSeekCompleteListener}.
+   */
+  public long getLastSeekLatencyMs() {
+    return mLastSeekLatencyMs;
+  }
+
+  /**
+   * Returns a snapshot of the seek statistics of this engine.
+   */
+  public SeekStats getSeekStats() {
+    synchronized (mSeekStats) {
+      return mSeekStats.copy();
+    }
+  }
+
+  /**
+   * Releases the media player asynchronously.
+   *
+   * @param clearTargetState whether to clear the target state.
+   */
+  public void release(boolean clearTargetState) {
+    // 目标状态在调用方线程同步修改，避免覆盖之后调用的 start().
+    if (clearTargetState) {
+      int version = mState.setTarget(STATE_IDLE);
+      mPlayerHandler.obtainMessage(MSG_RELEASE, version, 1).sendToTarget();
+    } else {
+      mPlayerHandler.sendEmptyMessage(MSG_RELEASE);
+    }
+  }
+
+  /**
+   * Releases the media player and waits until it is done, used when the surface is going
+   * to be destroyed.
+   */
+  public void releaseSync(boolean clearTargetState) {
+    // 下面移除的 MSG_RELEASE 可能带着版本号，这里直接处理到当前的版本.
+    final int version = clearTargetState
+        ? mState.setTarget(STATE_IDLE) : mState.getTargetVersion();
+    PlayerThread.runSync(new Runnable() {
+      @Override
+      public void run() {
+        mPlayerHandler.removeMessages(MSG_RELEASE);
+        handleTargetVersion(version);
+        releaseInternal();
+      }
+    }, RELEASE_TIMEOUT_MS);
+  }
+
+  /**
+   * Runs the runnable on the player thread after all the commands issued before.
+   */
+  public void post(Runnable runnable) {
+    mPlayerHandler.post(runnable);
+  }
+
+  /**
+   * Waits until all the commands issued before are executed.
+   */
+  void flush() {
+    PlayerThread.runSync(new Runnable() {
+      @Override
+      public void run() {
+        // nothing, commands before are executed in order.
+      }
+    }, RELEASE_TIMEOUT_MS);
+  }
+
+  public Uri getUri() {
+    return mRequestedUri;
+  }
+
+  public Map<String, String> getHeaders() {
+    return mRequestedHeaders;
+  }
+
+  /**
+   * Returns the variant being played, or null if the video is opened by a single uri.
+   */
+  public VideoVariant getSelectedVariant() {
+    return mSelectedVariant;
+  }
+
+  /**
+   * Sets the listener to be invoked on the main thread when the video is prepared. The
+   * MediaPlayer passed to this and the other MediaPlayer listeners is the player of
+   * {@link MediaPlayerCore}, for other cores such as {@link ExoPlayerCore} it is null, use the
+   * getters of the engine instead.
+   */
+  public void setOnPreparedListener(MediaPlayer.OnPreparedListener l) {
+    mOnPreparedListener = l;
+  }
+
+  /**
+   * Sets the listener to be invoked when the playback completes. The MediaPlayer is null unless
+   * the core is {@link MediaPlayerCore}.
+   */
+  public void setOnCompletionListener(MediaPlayer.OnCompletionListener l) {
+    mOnCompletionListener = l;
+  }
+
+  /**
+   * Sets the listener to be invoked when the retries are used up. The MediaPlayer is null unless
+   * the core is {@link MediaPlayerCore}.
+   */
+  public void setOnErrorListener(MediaPlayer.OnErrorListener l) {
+    mOnErrorListener = l;
+  }
+
+  /**
+   * Sets the listener of the info events. The MediaPlayer is null unless the core is
+   * {@link MediaPlayerCore}.
+   */
+  public void setOnInfoListener(MediaPlayer.OnInfoListener l) {
+    mOnInfoListener = l;
+  }
+
+  /**
+   * Sets the listener to be invoked when a seek requested by {@link #seekTo(int)} completes. The
+   * MediaPlayer is null unless the core is {@link MediaPlayerCore}.
+   */
+  public void setOnSeekCompleteListener(MediaPlayer.OnSeekCompleteListener l) {
+    mOnSeekCompleteListener = l;
+  }
+
+  /**
+   * Sets the listener of the buffering percentage. The MediaPlayer is null unless the core is
+   * {@link MediaPlayerCore}.
+   */
+  public void setOnBufferingUpdateListener(MediaPlayer.OnBufferingUpdateListener l) {
+    mOnBufferingUpdateListener = l;
+  }
+
+  /**
+   * Sets the listener of the video size. The MediaPlayer is null unless the core is
+   * {@link MediaPlayerCore}.
+   */
+  public void setOnVideoSizeChangedListener(MediaPlayer.OnVideoSizeChangedListener l) {
+    mOnVideoSizeChangedListener = l;
+  }
+
+  /**
+   * Sets the listener to receive the startup metrics of each session on the main thread.
+   */
+  public void setPlaybackMetricsListener(PlaybackMetrics.Listener l) {
+    mPlaybackMetricsListener = l;
+  }
+
+  /**
+   * Sets the listener to receive the QoE summary of each session on the main thread, e.g.
+   * after {@link #release(boolean)}.
+   */
+  public void setQoeListener(QoeAggregator.Listener l) {
+    mQoeListener = l;
+  }
+
+  /**
+   * Sets the listener to be notified on the main thread when the playlist moves on.
+   */
+  public void setPlaylistListener(PlaylistListener l) {
+    mPlaylistListener = l;
+  }
+
+  /**
+   * Returns the index of the current video in the playlist, or -1 if not playing a playlist.
+   */
+  public int getPlaylistIndex() {
+    return mPlaylistIndex;
+  }
+
+  /**
+   * Returns the milliseconds from the completion of the previous video in the playlist to the
+   * first frame of the current one, or -1 if not measured yet.
+   */
+  public long getLastTransitionGapMs() {
+    return mLastTransitionGapMs;
+  }
+
+  /**
+   * Sets the max count of retries in a session when the playback stops because of the network,
+   * 0 to disable the recovery.
+   */
+  public void setMaxRetries(int maxRetries) {
+    mMaxRetries = Math.max(0, maxRetries);
+  }
+
+  /**
+   * Sets the backoff between retries, the delay doubles after each retry.
+   *
+   * @param initialMs the delay before the first retry.
+   * @param maxMs the max delay.
+   */
+  public void setRetryBackoff(long initialMs, long maxMs) {
+    mRetryBackoffMs = Math.max(0, initialMs);
+    mRetryMaxBackoffMs = Math.max(mRetryBackoffMs, maxMs);
+  }
+
+  /**
+   * Returns a snapshot of the recovery statistics of all the engines.
+   */
+  public static RecoveryStats getRecoveryStats() {
+    synchronized (sRecoveryStats) {
+      return sRecoveryStats.copy();
+    }
+  }
+
+  /**
+   * Sets the factory of the cores used by all the engines without their own factory, e.g.
+   * {@link ExoPlayerCore.Factory}. Defaults to {@link MediaPlayerCore#FACTORY}.
+   */
+  public static void setDefaultCoreFactory(PlayerCore.Factory factory) {
+    sDefaultCoreFactory = factory != null ? factory : MediaPlayerCore.FACTORY;
+  }
+
+  /**
+   * Sets the factory of the cores used by this engine, null to use the default one. Takes
+   * effect when the next video is opened.
+   */
+  public void setCoreFactory(PlayerCore.Factory factory) {
+    mCoreFactory = factory;
+  }
+
+  /**
+   * Creates an engine with the listeners and the settings of this one, for the view which gave
+   * this engine to another view and opens a video of its own.
+   */
+  PlayerEngine newEngineLike(Context context) {
+    PlayerEngine engine = new PlayerEngine(context);
+    engine.mOnPreparedListener = mOnPreparedListener;
+    engine.mOnCompletionListener = mOnCompletionListener;
+    engine.mOnErrorListener = mOnErrorListener;
+    engine.mOnInfoListener = mOnInfoListener;
+    engine.mOnSeekCompleteListener = mOnSeekCompleteListener;
+    engine.mOnBufferingUpdateListener = mOnBufferingUpdateListener;
+    engine.mOnVideoSizeChangedListener = mOnVideoSizeChangedListener;
+    engine.mPlaybackMetricsListener = mPlaybackMetricsListener;
+    engine.mQoeListener = mQoeListener;
+    engine.mPlaylistListener = mPlaylistListener;
+    engine.mCoreFactory = mCoreFactory;
+    engine.mShouldRequestAudioFocus = mShouldRequestAudioFocus;
+    engine.mPlaybackSpeed = mPlaybackSpeed;
+    engine.mResumePositionStore = mResumePositionStore;
+    engine.mMaxRetries = mMaxRetries;
+    engine.mRetryBackoffMs = mRetryBackoffMs;
+    engine.mRetryMaxBackoffMs = mRetryMaxBackoffMs;
+    engine.mLooping = mLooping;
+    return engine;
+  }
+
+  public PlayerCore.Factory getCoreFactory() {
+    PlayerCore.Factory factory = mCoreFactory;
+    return factory != null ? factory : sDefaultCoreFactory;
+  }
+
+  public void setShouldRequestAudioFocus(boolean shouldRequestAudioFocus) {
+    mShouldRequestAudioFocus = shouldRequestAudioFocus;
+  }
+
+  public boolean shouldRequestAudioFocus() {
+    return mShouldRequestAudioFocus;
+  }
+
+  /**
+   * Sets the playback speed, kept for the following videos. {@link MediaPlayerCore} only
+   * supports it on 6.0 and above, the video plays at the normal speed otherwise.
+   */
+  public void setPlaybackSpeed(float speed) {
+    if (speed <= 0) {
+      return;
+    }
+    mPlaybackSpeed = speed;
+    mPlayerHandler.sendEmptyMessage(MSG_SET_SPEED);
+  }
+
+  public float getPlaybackSpeed() {
+    return mPlaybackSpeed;
+  }
+
+  /**
+   * Sets whether to loop, kept for the following videos. A single video loops seamlessly
+   * without notifying the completion, and a playlist goes back to the first video after the
+   * last one.
+   */
+  public void setLooping(boolean looping) {
+    mLooping = looping;
+    mPlayerHandler.sendEmptyMessage(MSG_SET_LOOPING);
+  }
+
+  public boolean isLooping() {
+    return mLooping;
+  }
+
+  /**
+   * Sets the store to resume the videos from, null to disable. Opened videos start from the
+   * saved position unless {@link #seekTo(int)} is called before prepared, and the position
+   * is saved periodically while playing, on pause and on release.
+   */
+  public void setResumePositionStore(ResumePositionStore store) {
+    mResumePositionStore = store;
+  }
+
+  public int getCurrentPosition() {
+    return getPositionAt(SystemClock.uptimeMillis());
+  }
+
+  /**
+   * Returns the position at the time in {@link SystemClock#uptimeMillis()}, interpolated from
+   * the last sample by the playback speed without calling into the media player. The position
+   * stays at the sample while buffering or while a seek is in flight.
+   */
+  int getPositionAt(long uptimeMs) {
+    if (!isInPlaybackState() && !mTrimmedSnapshot) {
+      return 0;
+    }
+    int position;
+    synchronized (mPositionLock) {
+      position = mPositionMs;
+      if (mState.getCurrent() == STATE_PLAYING && !mPositionFrozen
+          && uptimeMs > mPositionSampleTime) {
+        position += (int) ((uptimeMs - mPositionSampleTime) * mPositionSpeed);
+      }
+    }
+    int duration = mDuration;
+    return duration > 0 ? Math.min(position, duration) : position;
+  }
+
+  public int getDuration() {
+    return isInPlaybackState() || mTrimmedSnapshot ? mDuration : -1;
+  }
+
+  public boolean isPlaying() {
+    return mState.getCurrent() == STATE_PLAYING;
+  }
+
+  public int getBufferPercentage() {
+    return mBufferPercentage;
+  }
+
+  public int getVideoWidth() {
+    return mVideoWidth;
+  }
+
+  public int getVideoHeight() {
+    return mVideoHeight;
+  }
+
+  public int getAudioSessionId() {
+    if (mAudioSession == 0) {
+      MediaPlayer foo = new MediaPlayer();
+      mAudioSession = foo.getAudioSessionId();
+      foo.release();
+    }
+    return mAudioSession;
+  }
+
+  int getCurrentState() {
+    return mState.getCurrent();
+  }
+
+  /**
+   * Returns the id of the current session, recorded with the events in {@link PlaybackTracer}.
+   */
+  public int getSessionId() {
+    return mSessionId;
+  }
+
+  /**
+   * Returns the estimated bytes held by the players of this engine.
+   */
+  long getHeldBytes() {
+    return mHeldCores * MediaMemoryManager.estimatePlayerBytes(mVideoWidth, mVideoHeight);
+  }
+
+  /*
+   * 释放屏幕外的引擎，aggressive 时也释放暂停中的引擎，正在播放以及即将播放的不释放，只能在播放线程
+   * 调用。进度保存在 mSeekWhenPrepared 中，之后 start() 或者重新设置 surface 时恢复；重新准备完成
+   * 之前仍然返回回收之前的进度和时长，MediaController 的进度条不会归零.
+   */
+  void trimMemory(boolean aggressive, MediaMemoryManager.Report report) {
+    long bytes = MediaMemoryManager.estimatePlayerBytes(mVideoWidth, mVideoHeight);
+    int state = mState.getCurrent();
+    boolean playing = state == STATE_PLAYING || mState.getTarget() == STATE_PLAYING;
+    if (mNextCore != null && (aggressive || !playing)) {
+      releaseNextCore();
+      report.nextPlayers++;
+      report.nextPlayerBytes += bytes;
+    }
+    boolean offScreen = mTarget == null || (mSurface == null && mSurfaceHolder == null);
+    if (mCore == null || playing || !isInPlaybackState() || !(aggressive || offScreen)) {
+      return;
+    }
+    saveResumePosition();
+    // 播放完成的视频再次 start() 时从头开始.
+    int position = state == STATE_PLAYBACK_COMPLETED ? 0 : mCore.getCurrentPosition();
+    releasePlayer();
+    mTrimmed = true;
+    mTrimmedSnapshot = true;
+    mSeekWhenPrepared = position;
+    mSeekWhenPreparedRequested = false;
+    updatePosition(position);
+    setCurrentState(STATE_PREPARING);
+    report.enginePlayers++;
+    report.enginePlayerBytes += bytes;
+    trace(PlaybackTracer.EVENT_TRIMMED, position, 0);
+  }
+
+  int getTargetState() {
+    return mState.getTarget();
+  }
+
+  boolean isInPlaybackState() {
+    int state = mState.getCurrent();
+    return state != STATE_ERROR && state != STATE_IDLE && state != STATE_PREPARING;
+  }
+
+  private final Handler.Callback mPlayerHandlerCallback = new Handler.Callback() {
+    @Override
+    public boolean handleMessage(Message msg) {
+      switch (msg.what) {
+        case MSG_OPEN:
+          long openTime = SystemClock.elapsedRealtime();
+          // 先结束之前的会话，再切换到新的 uri.
+          releaseInternal();
+          if (msg.obj != null) {
+            OpenRequest request = (OpenRequest) msg.obj;
+            mUri = request.uri;
+            mHeaders = request.headers;
+            mVariants = request.variants;
+            mPlaylist = request.playlist;
+            openTime = request.time;
+          } else {
+            selectVariant();
+          }
+          ResumePositionStore store = mResumePositionStore;
+          mSeekWhenPreparedRequested = false;
+          if (store != null && mSeekWhenPrepared == 0 && mUri != null) {
+            mSeekWhenPrepared = store.get(getResumeKey());
+          }
+          mRetryCount = 0;
+          mRecoveryFailed = false;
+          mMetrics.uri = mUri;
+          mMetrics.uriSetTime = openTime;
+          mQoe.start(mUri, openTime);
+          int items = mPlaylist != null ? mPlaylist.size()
+              : mVariants != null ? mVariants.size() : 1;
+          trace(PlaybackTracer.EVENT_OPEN, mSeekWhenPrepared, items);
+          mOpenPending = true;
+          openInternal();
+          return true;
+        case MSG_SET_SURFACE:
+          mSurface = (Surface) msg.obj;
+          mSurfaceHolder = null;
+          if (mCore != null) {
+            mCore.setSurface(mSurface);
+          } else if (mSurface != null) {
+            restoreTrimmed();
+          }
+          return true;
+        case MSG_SET_DISPLAY:
+          mSurfaceHolder = (SurfaceHolder) msg.obj;
+          mSurface = null;
+          if (mCore != null) {
+            mCore.setDisplay(mSurfaceHolder);
+          } else if (mSurfaceHolder != null) {
+            restoreTrimmed();
+          }
+          return true;
+        case MSG_START:
+          if (!handleTargetVersion(msg)) {
+            return true;
+          }
+          if (mTrimmed) {
+            // 准备完成之后按照目标状态开始播放.
+            restoreTrimmed();
+          } else {
+            startInternal();
+          }
+          return true;
+        case MSG_PAUSE:
+          if (!handleTargetVersion(msg)) {
+            return true;
+          }
+          if (isInPlaybackState() && mCore.isPlaying()) {
+            mCore.pause();
+            samplePosition();
+            setCurrentState(STATE_PAUSED);
+            saveResumePosition();
+          }
+          return true;
+        case MSG_SEEK:
+          if (isInPlaybackState()) {
+            mQoe.onSeekStart(SystemClock.elapsedRealtime(), msg.arg1);
+            mSeekWhenPrepared = 0;
+            requestSeek(msg.arg1, msg.arg2 != 0);
+          } else {
+            mSeekWhenPrepared = msg.arg1;
+            mSeekWhenPreparedRequested = true;
+          }
+          return true;
+        case MSG_RELEASE:
+          handleTargetVersion(msg);
+          releaseInternal();
+          return true;
+        case MSG_RETRY:
+          // 网络变化之后可能需要换一个码率.
+          selectVariant();
+          mSeekWhenPrepared = mResumePosition;
+          mSeekWhenPreparedRequested = false;
+          mOpenPending = true;
+          openInternal();
+          return true;
+        case MSG_SET_SPEED:
+          if (mState.getCurrent() == STATE_PLAYING) {
+            // 在旧的速度下采样，之后按照新的速度插值.
+            samplePosition();
+            applySpeed();
+            samplePosition();
+          }
+          return true;
+        case MSG_SET_LOOPING:
+          if (isInPlaybackState()) {
+            applyLooping();
+            // 最后一项之后的下一项随着循环改变.
+            if (mNextCore != null && mNextIndex != getNextIndex()) {
+              releaseNextCore();
+            }
+            prepareNextItem();
+          }
+          return true;
+        case MSG_SAMPLE_POSITION:
+          if (mState.getCurrent() == STATE_PLAYING) {
+            // seek 的过程中拿到的是之前的进度，保留请求的位置.
+            if (!mSeekInFlight) {
+              samplePosition();
+            }
+            saveResumePosition();
+            mPlayerHandler.sendEmptyMessageDelayed(MSG_SAMPLE_POSITION,
+                POSITION_SAMPLE_INTERVAL_MS);
+          }
+          return true;
+        default:
+          return false;
+      }
+    }
+  };
+
+  private void openInternal() {
+    if (!mOpenPending || mUri == null || (mSurface == null && mSurfaceHolder == null)) {
+      // not ready for playback just yet, will try again later
+      return;
+    }
+    mOpenPending = false;
+    // 重试时保留第一次启动的时间点.
+    if (mMetrics.surfaceReadyTime == PlaybackMetrics.NO_TIME) {
+      mMetrics.surfaceReadyTime = SystemClock.elapsedRealtime();
+    }
+
+    mCore = getCoreFactory().create(mContext);
+    updateHeldCores();
+    MediaMemoryManager.getInstance().onPlayerAllocated();
+    boolean firstOpen = mMetrics.playerCreatedTime == PlaybackMetrics.NO_TIME;
+    if (firstOpen) {
+      mMetrics.playerCreatedTime = SystemClock.elapsedRealtime();
+    }
+    try {
+      mCore.setListener(mCoreListener);
+      mCore.setAudioSessionId(mAudioSession);
+      // MediaPlayerCore 在这里取出预加载的播放器，音频 session 以它为准.
+      mCore.setDataSource(mContext, mUri, mHeaders);
+      mAudioSession = mCore.getAudioSessionId();
+      mPublishedPlayer = mCore instanceof MediaPlayerCore
+          ? ((MediaPlayerCore) mCore).getMediaPlayer() : null;
+      if (firstOpen) {
+        mMetrics.preloaded = mCore.isPreloaded();
+      }
+      if (mMetrics.dataSourceSetTime == PlaybackMetrics.NO_TIME) {
+        mMetrics.dataSourceSetTime = SystemClock.elapsedRealtime();
+      }
+      if (mSurfaceHolder != null) {
+        mCore.setDisplay(mSurfaceHolder);
+      } else {
+        mCore.setSurface(mSurface);
+      }
+
+      // we don't set the target state here either, but preserve the
+      // target state that was there before.
+      setCurrentState(STATE_PREPARING);
+      mCore.prepareAsync();
+    } catch (IllegalArgumentException | IllegalStateException | IOException ex) {
+      Log.w(TAG, "Unable to open content: " + mUri, ex);
+      recordError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+      setCurrentState(STATE_ERROR);
+      updateTarget(STATE_ERROR);
+      notifyMain(MSG_NOTIFY_ERROR, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+    }
+  }
+
+  /*
+   * 调用方修改目标状态的消息带着版本号（arg2 为 1），处理之后播放线程才能再修改目标状态.
+   * 不同线程的调用方拿到版本号和消息入队不是原子的，版本比已经处理的旧时返回 false，不再执行.
+   */
+  private boolean handleTargetVersion(Message msg) {
+    if (msg.arg2 == 0) {
+      return true;
+    }
+    if (msg.arg1 - mHandledTargetVersion < 0) {
+      Log.i(TAG, "Stale request " + msg.what + " of version " + msg.arg1 + " dropped, " + mState);
+      return false;
+    }
+    handleTargetVersion(msg.arg1);
+    return true;
+  }
+
+  private void handleTargetVersion(int version) {
+    // 版本号只增不减，按照差值比较以容忍溢出.
+    if (version - mHandledTargetVersion > 0) {
+      mHandledTargetVersion = version;
+    }
+  }
+
+  /*
+   * 播放线程写入完成、出错或者暂停，调用方还有没处理的修改时放弃，等待调用方的命令.
+   */
+  private void updateTarget(int state) {
+    if (!mState.compareAndSetTarget(mHandledTargetVersion, state)) {
+      Log.i(TAG, "Target " + PlaybackStateMachine.nameOf(state)
+          + " dropped for a newer request, " + mState);
+    }
+  }
+
+  /*
+   * 重新准备被 MediaMemoryManager 释放的播放器，没有 surface 的时候等到设置 surface 之后.
+   */
+  private void restoreTrimmed() {
+    if (mTrimmed) {
+      mTrimmed = false;
+      mOpenPending = true;
+    }
+    openInternal();
+  }
+
+  private void startInternal() {
+    if (isInPlaybackState()) {
+      mResumeOnFocusGain = false;
+      if (mShouldRequestAudioFocus) {
+        AudioFocusManager focusManager = AudioFocusManager.getInstance(mContext);
+        if (!focusManager.acquire(mAudioFocusClient)) {
+          // 例如通话中系统拒绝了焦点，不播放；之前短暂失去的焦点回来时按照目标状态继续.
+          mResumeOnFocusGain = true;
+          return;
+        }
+        mCore.setVolume(focusManager.getVolume());
+      }
+      // 暂停时设置速度会开始播放，所以在这里才应用.
+      applySpeed();
+      mCore.start();
+      samplePosition();
+      setCurrentState(STATE_PLAYING);
+      mPlayerHandler.removeMessages(MSG_SAMPLE_POSITION);
+      mPlayerHandler.sendEmptyMessageDelayed(MSG_SAMPLE_POSITION, POSITION_SAMPLE_INTERVAL_MS);
+    }
+  }
+
+  /*
+   * 释放当前任务相关的资源，这是一个播放任务生命周期的结束。
+   * release the media player in any state
+   */
+  private void releaseInternal() {
+    mOpenPending = false;
+    mTransitionTime = 0;
+    releaseNextCore();
+    boolean retrying = mPlayerHandler.hasMessages(MSG_RETRY);
+    mPlayerHandler.removeMessages(MSG_RETRY);
+    finishMetrics();
+    finishQoe();
+    saveResumePosition();
+    finishRecovery();
+    mResumeOnFocusGain = false;
+    // 焦点由 AudioFocusManager 延迟放弃，紧接着打开下一个视频时不会重新申请.
+    AudioFocusManager.getInstance(mContext).release(mAudioFocusClient);
+    boolean trimmed = mTrimmed;
+    mTrimmed = false;
+    mTrimmedSnapshot = false;
+    if (mCore == null && !retrying && !trimmed) {
+      return;
+    }
+    trace(PlaybackTracer.EVENT_RELEASE, getCurrentPosition(), 0);
+    releasePlayer();
+    setCurrentState(STATE_IDLE);
+  }
+
+  private final AudioFocusManager.Client mAudioFocusClient = new AudioFocusManager.Client() {
+    @Override
+    public void onAudioFocusChange(int focusChange) {
+      switch (focusChange) {
+        case AudioManager.AUDIOFOCUS_GAIN:
+          if (mCore != null) {
+            mCore.setVolume(1);
+          }
+          if (mResumeOnFocusGain && mState.getTarget() == STATE_PLAYING) {
+            startInternal();
+          }
+          mResumeOnFocusGain = false;
+          break;
+        case AudioManager.AUDIOFOCUS_LOSS:
+        case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+          if (isInPlaybackState() && mCore.isPlaying()) {
+            mCore.pause();
+            samplePosition();
+            setCurrentState(STATE_PAUSED);
+            if (focusChange == AudioManager.AUDIOFOCUS_LOSS) {
+              // 永久失去焦点，等待用户重新开始.
+              updateTarget(STATE_PAUSED);
+            } else {
+              mResumeOnFocusGain = true;
+            }
+          }
+          break;
+        case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+          if (mCore != null) {
+            mCore.setVolume(AudioFocusManager.getInstance(mContext).getVolume());
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  };
+
+  /*
+   * 把当前的进度写入 ResumePositionStore，重试等待中使用断开时的位置.
+   */
+  private void saveResumePosition() {
+    ResumePositionStore store = mResumePositionStore;
+    if (store == null || mUri == null) {
+      return;
+    }
+    int state = mState.getCurrent();
+    if (mCore != null && isInPlaybackState() && state != STATE_PLAYBACK_COMPLETED) {
+      store.put(getResumeKey(), mCore.getCurrentPosition(), mDuration);
+    } else if (mCore == null && mPlayerHandler.hasMessages(MSG_RETRY)) {
+      store.put(getResumeKey(), mResumePosition, mDuration);
+    } else if (mCore == null && mTrimmed) {
+      store.put(getResumeKey(), mSeekWhenPrepared, mDuration);
+    }
+  }
+
+  // 所有码率共用一个进度.
+  private Uri getResumeKey() {
+    return mVariants != null ? mVariants.get(0).uri : mUri;
+  }
+
+  /*
+   * 按照当前估计的带宽重新选择码率，只在重新准备之前调用.
+   */
+  private void selectVariant() {
+    if (mVariants == null) {
+      return;
+    }
+    long bandwidth = BandwidthEstimator.getInstance().getEstimateKbps();
+    VideoVariant variant = VideoVariant.select(mVariants, bandwidth);
+    if (variant != mSelectedVariant) {
+      Log.i(TAG, "Switch to " + variant + " at " + bandwidth + "kbps");
+      mSelectedVariant = variant;
+      mUri = VideoCacheProxy.proxy(variant.uri);
+      mRequestedUri = mUri;
+    }
+  }
+
+  private void applySpeed() {
+    float speed = mPlaybackSpeed;
+    if (mCore == null || speed == mAppliedSpeed) {
+      return;
+    }
+    if (mCore.setSpeed(speed)) {
+      mAppliedSpeed = speed;
+    }
+  }
+
+  private void applyLooping() {
+    if (mCore != null) {
+      // 播放列表在完成时切换到下一项，不循环单个视频.
+      mCore.setLooping(mLooping && (mPlaylist == null || mPlaylist.size() < 2));
+    }
+  }
+
+  // the index of the item after the current one, -1 if none.
+  private int getNextIndex() {
+    if (mPlaylist == null || mPlaylist.size() < 2) {
+      return -1;
+    }
+    int index = mPlaylistIndex + 1;
+    if (index < mPlaylist.size()) {
+      return index;
+    }
+    return mLooping ? 0 : -1;
+  }
+
+  /*
+   * 在另一个播放核中准备下一项，不设置 surface，准备好之后和当前项串联.
+   */
+  private void prepareNextItem() {
+    int index = getNextIndex();
+    if (index < 0 || mCore == null) {
+      return;
+    }
+    if (mNextCore != null) {
+      chainNextCore();
+      return;
+    }
+    Uri uri = mPlaylist.get(index);
+    mNextIndex = index;
+    mNextCreatedTime = SystemClock.elapsedRealtime();
+    mNextCore = getCoreFactory().create(mContext);
+    updateHeldCores();
+    MediaMemoryManager.getInstance().onPlayerAllocated();
+    try {
+      mNextCore.setListener(mNextCoreListener);
+      mNextCore.setAudioSessionId(mAudioSession);
+      mNextCore.setDataSource(mContext, uri, mHeaders);
+      mNextDataSourceSetTime = SystemClock.elapsedRealtime();
+      // 预加载过的播放器可能在这里直接回调准备完成.
+      mNextCore.prepareAsync();
+    } catch (IllegalArgumentException | IllegalStateException | IOException ex) {
+      // 切换时再按照普通的方式打开.
+      Log.w(TAG, "Unable to prepare the next item: " + uri, ex);
+      releaseNextCore();
+    }
+  }
+
+  /*
+   * 只串联没有画面的视频，有画面的在完成时交接 surface.
+   */
+  private void chainNextCore() {
+    if (mNextPrepared && !mNextChained && isInPlaybackState()
+        && mVideoWidth == 0 && mVideoHeight == 0) {
+      mNextChained = mCore.setNextCore(mNextCore);
+    }
+  }
+
+  private void releaseNextCore() {
+    if (mNextCore == null) {
+      return;
+    }
+    if (mNextChained && mCore != null) {
+      mCore.setNextCore(null);
+    }
+    mNextCore.release();
+    mNextCore = null;
+    mNextPrepared = false;
+    mNextChained = false;
+    mNextRendered = false;
+    updateHeldCores();
+  }
+
+  private void updateHeldCores() {
+    mHeldCores = (mCore != null ? 1 : 0) + (mNextCore != null ? 1 : 0);
+  }
+
+  /*
+   * 当前项播放完成，切换到下一项：准备好的下一项只需要交接 surface，没有准备好的重新打开.
+   */
+  private void advancePlaylist() {
+    long now = SystemClock.elapsedRealtime();
+    mTransitionTime = SystemClock.uptimeMillis();
+    int index = getNextIndex();
+    mQoe.onComplete(now);
+    ResumePositionStore store = mResumePositionStore;
+    if (store != null) {
+      store.remove(getResumeKey());
+    }
+    finishMetrics();
+    finishQoe();
+    finishRecovery();
+
+    PlayerCore next = null;
+    boolean chained = mNextChained;
+    boolean rendered = false;
+    if (mNextPrepared && mNextIndex == index) {
+      next = mNextCore;
+      rendered = mNextRendered;
+      mNextCore = null;
+      mNextPrepared = false;
+      mNextChained = false;
+      mNextRendered = false;
+    } else {
+      releaseNextCore();
+    }
+    // 同一个 surface 同时只能连接一个播放器，先从当前项断开.
+    if (mSurfaceHolder != null) {
+      mCore.setDisplay(null);
+    } else {
+      mCore.setSurface(null);
+    }
+    releasePlayer();
+
+    mSessionId = sSessionIds.incrementAndGet();
+    trace(PlaybackTracer.EVENT_PLAYLIST_ITEM, index, next != null ? 1 : 0);
+    mUri = mPlaylist.get(index);
+    mRequestedUri = mUri;
+    mPlaylistIndex = index;
+    mSeekWhenPrepared = 0;
+    mSeekWhenPreparedRequested = false;
+    mDuration = -1;
+    mTrimmedSnapshot = false;
+    mBufferPercentage = 0;
+    updatePosition(0);
+    mMetrics.uri = mUri;
+    mMetrics.uriSetTime = now;
+    mQoe.start(mUri, now);
+    setCurrentState(STATE_PREPARING);
+    notifyMain(MSG_NOTIFY_PLAYLIST_ITEM, index, 0);
+    if (next == null) {
+      mOpenPending = true;
+      openInternal();
+      return;
+    }
+
+    mCore = next;
+    updateHeldCores();
+    mCore.setListener(mCoreListener);
+    if (mSurfaceHolder != null) {
+      mCore.setDisplay(mSurfaceHolder);
+    } else {
+      mCore.setSurface(mSurface);
+    }
+    mPublishedPlayer = mCore instanceof MediaPlayerCore
+        ? ((MediaPlayerCore) mCore).getMediaPlayer() : null;
+    // 准备的过程发生在成为当前项之前，记录的是当时的时间.
+    mMetrics.preloaded = true;
+    mMetrics.surfaceReadyTime = now;
+    mMetrics.playerCreatedTime = mNextCreatedTime;
+    mMetrics.dataSourceSetTime = mNextDataSourceSetTime;
+    mMetrics.preparedTime = mNextPreparedTime;
+    handlePrepared();
+    if (rendered) {
+      // 首帧在交接之前已经渲染，交接完成就是间隔的结束.
+      mCoreListener.onInfo(MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START, 0);
+    }
+    if (chained && mState.getTarget() != STATE_PLAYING && mCore.isPlaying()) {
+      // 串联的播放器已经自动开始.
+      mCore.pause();
+      samplePosition();
+    }
+  }
+
+  /*
+   * 已经有 seek 在执行时只记录最新的目标，等它完成之后再执行.
+   */
+  private void requestSeek(int msec, boolean exact) {
+    mSeekRequestTime = SystemClock.uptimeMillis();
+    if (mSeekInFlight) {
+      if (mPendingSeekMs >= 0) {
+        synchronized (mSeekStats) {
+          mSeekStats.coalesced++;
+        }
+      }
+      mPendingSeekMs = msec;
+      mPendingSeekExact = exact;
+      return;
+    }
+    issueSeek(msec, exact, false);
+  }
+
+  /*
+   * internal 的 seek 由引擎发起，恢复重试或者释放之前的进度，不计入统计也不通知 listener.
+   */
+  private void issueSeek(int msec, boolean exact, boolean internal) {
+    mSeekInFlight = true;
+    mInternalSeek = internal;
+    updatePosition(msec);
+    updatePositionFrozen();
+    synchronized (mSeekStats) {
+      if (internal) {
+        mSeekStats.internal++;
+      } else {
+        mSeekStats.issued++;
+      }
+    }
+    mCore.seekTo(msec, exact);
+  }
+
+  private void releasePlayer() {
+    mSeekInFlight = false;
+    mBuffering = false;
+    synchronized (mPositionLock) {
+      mPositionFrozen = false;
+    }
+    mInternalSeek = false;
+    mPendingSeekMs = -1;
+    mPlayerHandler.removeMessages(MSG_SAMPLE_POSITION);
+    if (mCore == null) {
+      return;
+    }
+    if (mNextChained) {
+      // 准备好的下一项保留下来，重新准备之后再串联.
+      mCore.setNextCore(null);
+      mNextChained = false;
+    }
+    mCore.release();
+    mCore = null;
+    updateHeldCores();
+    mAppliedSpeed = 1;
+    mPublishedPlayer = null;
+    // 之前的播放器还没有分发的回调不再需要.
+    removeMainNotifications();
+  }
+
+  /*
+   * 释放当前的播放器，退避一段时间之后重新准备同一个 uri，并且 seek 回之前的位置.
+   * 重试次数用完的时候返回 false.
+   */
+  private boolean scheduleRetry(int resumePosition) {
+    if (mRetryCount >= mMaxRetries || mUri == null) {
+      return false;
+    }
+    long delay = Math.min(mRetryBackoffMs << Math.min(mRetryCount, 16), mRetryMaxBackoffMs);
+    mRetryCount++;
+    synchronized (sRecoveryStats) {
+      sRecoveryStats.retries++;
+    }
+    trace(PlaybackTracer.EVENT_RETRY, mRetryCount, resumePosition);
+    Log.w(TAG, "Retry " + mRetryCount + " in " + delay + "ms from " + resumePosition);
+    mResumePosition = resumePosition;
+    updatePosition(resumePosition);
+    releasePlayer();
+    mQoe.onRetry(SystemClock.elapsedRealtime());
+    // 目标状态保持不变，重新准备完成之后继续播放.
+    setCurrentState(STATE_PREPARING);
+    mPlayerHandler.sendEmptyMessageDelayed(MSG_RETRY, delay);
+    return true;
+  }
+
+  private void finishRecovery() {
+    if (mRetryCount > 0) {
+      synchronized (sRecoveryStats) {
+        if (mRecoveryFailed) {
+          sRecoveryStats.failedSessions++;
+        } else {
+          sRecoveryStats.recoveredSessions++;
+        }
+      }
+    }
+    mRetryCount = 0;
+    mRecoveryFailed = false;
+  }
+
+  private static boolean isRecoverable(int what, int extra) {
+    return what == MediaPlayer.MEDIA_ERROR_SERVER_DIED
+        || extra == MediaPlayer.MEDIA_ERROR_IO
+        || extra == MediaPlayer.MEDIA_ERROR_TIMED_OUT;
+  }
+
+  private void finishMetrics() {
+    PlaybackMetrics metrics = mMetrics;
+    if (metrics.uriSetTime == PlaybackMetrics.NO_TIME) {
+      return;
+    }
+    long now = SystemClock.elapsedRealtime();
+    if (metrics.bufferingStartTime != PlaybackMetrics.NO_TIME) {
+      metrics.bufferingDurationMs += now - metrics.bufferingStartTime;
+      metrics.bufferingStartTime = PlaybackMetrics.NO_TIME;
+    }
+    metrics.releasedTime = now;
+    PlaybackMetrics record;
+    synchronized (mMetricsPool) {
+      record = mMetricsPool.poll();
+    }
+    if (record == null) {
+      // 主线程还没有处理完之前的记录，才会走到这里.
+      record = new PlaybackMetrics();
+    }
+    record.copyFrom(metrics);
+    metrics.reset();
+    mMainHandler.obtainMessage(MSG_NOTIFY_METRICS, record).sendToTarget();
+  }
+
+  private void finishQoe() {
+    if (!mQoe.isActive()) {
+      return;
+    }
+    QoeAggregator.Summary summary;
+    synchronized (mSummaryPool) {
+      summary = mSummaryPool.poll();
+    }
+    if (summary == null) {
+      summary = new QoeAggregator.Summary();
+    }
+    VideoCacheProxy proxy = VideoCacheProxy.getInstance();
+    long contentLength = proxy == null ? -1 : proxy.getContentLength(mUri);
+    mQoe.finish(SystemClock.elapsedRealtime(), contentLength, mDuration, summary);
+    mMainHandler.obtainMessage(MSG_NOTIFY_QOE, summary).sendToTarget();
+  }
+
+  /*
+   * 优先根据数据是否读到了结尾判断：经过代理的视频看缓存中是否有最后的字节，其他的网络视频看缓冲
+   * 进度是否到了 100%，没有到时再看播放进度离结尾是否还有一段距离；两者都不知道时才按照播放进度的
+   * 比例判断.
+   */
+  private boolean isPrematureCompletion(int position, int duration) {
+    VideoCacheProxy proxy = VideoCacheProxy.getInstance();
+    long contentLength = proxy == null ? -1 : proxy.getContentLength(mUri);
+    if (contentLength > 0) {
+      return proxy.getCachedLength(mUri, contentLength - 1) == 0;
+    }
+    int percent = mBufferPercentage;
+    if (duration <= 0 || percent >= 100) {
+      return false;
+    }
+    if (percent > 0) {
+      return position < duration - PREMATURE_COMPLETION_TOLERANCE_MS;
+    }
+    return position < duration * PREMATURE_COMPLETION_RATIO;
+  }
+
+  /*
+   * 当前的播放核准备完成，打开的和提前准备的下一项共用.
+   */
+  private void handlePrepared() {
+    if (mRetryCount > 0) {
+      mQoe.onStallEnd(SystemClock.elapsedRealtime());
+    }
+    mDuration = mCore.getDuration();
+    mVideoWidth = mCore.getVideoWidth();
+    mVideoHeight = mCore.getVideoHeight();
+    // 要恢复的位置在下面 seek 时写入，进度不先回到 0.
+    if (mSeekWhenPrepared == 0) {
+      samplePosition();
+    }
+    setCurrentState(STATE_PREPARED);
+    mTrimmedSnapshot = false;
+    trace(PlaybackTracer.EVENT_PREPARED, mDuration, mCore.isPreloaded() ? 1 : 0);
+    notifyMain(MSG_NOTIFY_PREPARED, 0, 0);
+
+    int seekToPosition = mSeekWhenPrepared;
+    if (seekToPosition != 0) {
+      if (mSeekWhenPreparedRequested) {
+        mQoe.onSeekStart(SystemClock.elapsedRealtime(), seekToPosition);
+        requestSeek(seekToPosition, true);
+      } else {
+        issueSeek(seekToPosition, true, true);
+      }
+      mSeekWhenPrepared = 0;
+      updatePosition(seekToPosition);
+    }
+    mSeekWhenPreparedRequested = false;
+    applyLooping();
+    if (mState.getTarget() == STATE_PLAYING) {
+      startInternal();
+    }
+    prepareNextItem();
+  }
+
+  private void recordInfo(int what) {
+    PlaybackMetrics metrics = mMetrics;
+    long now = SystemClock.elapsedRealtime();
+    switch (what) {
+      case MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START:
+        if (metrics.firstFrameTime == PlaybackMetrics.NO_TIME) {
+          metrics.firstFrameTime = now;
+        }
+        mQoe.onFirstFrame(now);
+        if (mTransitionTime != 0) {
+          mLastTransitionGapMs = SystemClock.uptimeMillis() - mTransitionTime;
+          mTransitionTime = 0;
+        }
+        break;
+      case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+        if (metrics.firstBufferingTime == PlaybackMetrics.NO_TIME) {
+          metrics.firstBufferingTime = now;
+        }
+        // 首帧之前的缓冲属于启动过程，不计入卡顿.
+        if (metrics.firstFrameTime != PlaybackMetrics.NO_TIME
+            && metrics.bufferingStartTime == PlaybackMetrics.NO_TIME) {
+          metrics.bufferingStartTime = now;
+          metrics.bufferingCount++;
+          BandwidthEstimator.getInstance().onStall();
+        }
+        mQoe.onStallStart(now);
+        mBuffering = true;
+        updatePositionFrozen();
+        break;
+      case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+        if (metrics.bufferingStartTime != PlaybackMetrics.NO_TIME) {
+          metrics.bufferingDurationMs += now - metrics.bufferingStartTime;
+          metrics.bufferingStartTime = PlaybackMetrics.NO_TIME;
+        }
+        mQoe.onStallEnd(now);
+        mBuffering = false;
+        updatePositionFrozen();
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void trace(int event, int arg1, int arg2) {
+    PlaybackTracer.trace(PlaybackTracer.LEVEL_INFO, event, mSessionId, arg1, arg2);
+  }
+
+  private void recordError(int what, int extra) {
+    PlaybackTracer.trace(PlaybackTracer.LEVEL_ERROR, PlaybackTracer.EVENT_ERROR, mSessionId,
+        what, extra);
+    mQoe.onError(SystemClock.elapsedRealtime(), what, extra);
+    if (mMetrics.errorWhat == 0) {
+      mMetrics.errorWhat = what;
+      mMetrics.errorExtra = extra;
+    }
+  }
+
+  private void setCurrentState(int state) {
+    if (!mState.moveTo(state)) {
+      return;
+    }
+    mQoe.onPlayingChanged(state == STATE_PLAYING, SystemClock.elapsedRealtime());
+    notifyMainCoalesced(MSG_NOTIFY_STATE);
+  }
+
+  private void samplePosition() {
+    // seek 还没有完成时保持 seek 的目标位置.
+    if (mCore != null && !mSeekInFlight) {
+      updatePosition(mCore.getCurrentPosition());
+    }
+  }
+
+  /*
+   * 卡顿或者 seek 还没有完成时播放器的进度不会前进，停在最后的采样上不再插值；两者都结束之后重新
+   * 采样，从采样的时间开始插值.
+   */
+  private void updatePositionFrozen() {
+    samplePosition();
+    synchronized (mPositionLock) {
+      mPositionFrozen = mBuffering || mSeekInFlight;
+    }
+  }
+
+  private void updatePosition(int positionMs) {
+    synchronized (mPositionLock) {
+      mPositionMs = positionMs;
+      mPositionSampleTime = SystemClock.uptimeMillis();
+      mPositionSpeed = mAppliedSpeed;
+    }
+  }
+
+  private void notifyMain(int what, int arg1, int arg2) {
+    mMainHandler.obtainMessage(what, arg1, arg2).sendToTarget();
+  }
+
+  // the latest value is read when the message is handled, so pending ones are merged.
+  private void notifyMainCoalesced(int what) {
+    if (!mMainHandler.hasMessages(what)) {
+      mMainHandler.sendEmptyMessage(what);
+    }
+  }
+
+  private void removeMainNotifications() {
+    mMainHandler.removeMessages(MSG_NOTIFY_PREPARED);
+    mMainHandler.removeMessages(MSG_NOTIFY_VIDEO_SIZE);
+    mMainHandler.removeMessages(MSG_NOTIFY_COMPLETION);
+    mMainHandler.removeMessages(MSG_NOTIFY_ERROR);
+    mMainHandler.removeMessages(MSG_NOTIFY_INFO);
+    mMainHandler.removeMessages(MSG_NOTIFY_BUFFERING);
+    mMainHandler.removeMessages(MSG_NOTIFY_SEEK_COMPLETE);
+  }
+
+  private final Handler.Callback mMainHandlerCallback = new Handler.Callback() {
+    @Override
+    public boolean handleMessage(Message msg) {
+      Callback target = mTarget;
+      MediaPlayer mp = mPublishedPlayer;
+      switch (msg.what) {
+        case MSG_NOTIFY_STATE:
+          if (target != null) {
+            target.onStateChanged(mState.getCurrent());
+          }
+          return true;
+        case MSG_NOTIFY_PREPARED:
+          if (target != null) {
+            target.onPrepared(mp);
+          }
+          if (mOnPreparedListener != null) {
+            mOnPreparedListener.onPrepared(mp);
+          }
+          return true;
+        case MSG_NOTIFY_VIDEO_SIZE:
+          if (target != null) {
+            target.onVideoSizeChanged(mp, mVideoWidth, mVideoHeight);
+          }
+          if (mOnVideoSizeChangedListener != null) {
+            mOnVideoSizeChangedListener.onVideoSizeChanged(mp, mVideoWidth, mVideoHeight);
+          }
+          return true;
+        case MSG_NOTIFY_COMPLETION:
+          if (target != null) {
+            target.onCompletion(mp);
+          }
+          if (mOnCompletionListener != null) {
+            mOnCompletionListener.onCompletion(mp);
+          }
+          return true;
+        case MSG_NOTIFY_ERROR:
+          if (target != null) {
+            target.onError(mp, msg.arg1, msg.arg2);
+          }
+          if (mOnErrorListener != null) {
+            mOnErrorListener.onError(mp, msg.arg1, msg.arg2);
+          }
+          return true;
+        case MSG_NOTIFY_INFO:
+          if (target != null) {
+            target.onInfo(mp, msg.arg1, msg.arg2);
+          }
+          if (mOnInfoListener != null) {
+            mOnInfoListener.onInfo(mp, msg.arg1, msg.arg2);
+          }
+          return true;
+        case MSG_NOTIFY_BUFFERING:
+          if (target != null) {
+            target.onBufferingUpdate(mp, mBufferPercentage);
+          }
+          if (mOnBufferingUpdateListener != null) {
+            mOnBufferingUpdateListener.onBufferingUpdate(mp, mBufferPercentage);
+          }
+          return true;
+        case MSG_NOTIFY_SEEK_COMPLETE:
+          if (target != null) {
+            target.onSeekComplete(mp);
+          }
+          if (mOnSeekCompleteListener != null) {
+            mOnSeekCompleteListener.onSeekComplete(mp);
+          }
+          return true;
+        case MSG_NOTIFY_METRICS:
+          PlaybackMetrics metrics = (PlaybackMetrics) msg.obj;
+          if (mPlaybackMetricsListener != null) {
+            mPlaybackMetricsListener.onPlaybackMetrics(metrics);
+          }
+          synchronized (mMetricsPool) {
+            mMetricsPool.offer(metrics);
+          }
+          return true;
+        case MSG_NOTIFY_PLAYLIST_ITEM:
+          if (mPlaylistListener != null) {
+            mPlaylistListener.onPlaylistItemChanged(msg.arg1);
+          }
+          return true;
+        case MSG_NOTIFY_QOE:
+          QoeAggregator.Summary summary = (QoeAggregator.Summary) msg.obj;
+          if (mQoeListener != null) {
+            mQoeListener.onQoeSummary(summary);
+          }
+          synchronized (mSummaryPool) {
+            mSummaryPool.offer(summary);
+          }
+          return true;
+        default:
+          return false;
+      }
+    }
+  };
+
+
+  // callbacks of the core, all invoked on the player thread.
+  private final PlayerCore.Listener mCoreListener = new PlayerCore.Listener() {
+    @Override
+    public void onVideoSizeChanged(int width, int height) {
+      mVideoWidth = width;
+      mVideoHeight = height;
+      if (mNextChained && (width != 0 || height != 0)) {
+        // 准备完成时还不知道有画面，改为完成时交接 surface.
+        mCore.setNextCore(null);
+        mNextChained = false;
+      }
+      notifyMainCoalesced(MSG_NOTIFY_VIDEO_SIZE);
+    }
+
+    @Override
+    public void onPrepared() {
+      if (mMetrics.preparedTime == PlaybackMetrics.NO_TIME) {
+        mMetrics.preparedTime = SystemClock.elapsedRealtime();
+      }
+      handlePrepared();
+    }
+
+    @Override
+    public void onCompletion() {
+      mPlayerHandler.removeMessages(MSG_SAMPLE_POSITION);
+      int duration = mDuration;
+      int position = mCore.getCurrentPosition();
+      if (isPrematureCompletion(position, duration)) {
+        // 系统核在网络断开时，播放完已经缓冲的部分就会回调完成，尝试从断开的位置恢复.
+        if (scheduleRetry(position)) {
+          return;
+        }
+        mRecoveryFailed = true;
+        recordError(MediaPlayer.MEDIA_ERROR_SERVER_DIED, MediaPlayer.MEDIA_ERROR_IO);
+        setCurrentState(STATE_ERROR);
+        updateTarget(STATE_ERROR);
+        notifyMain(MSG_NOTIFY_ERROR, MediaPlayer.MEDIA_ERROR_SERVER_DIED,
+            MediaPlayer.MEDIA_ERROR_IO);
+        return;
+      }
+      if (getNextIndex() >= 0) {
+        advancePlaylist();
+        return;
+      }
+      mQoe.onComplete(SystemClock.elapsedRealtime());
+      samplePosition();
+      trace(PlaybackTracer.EVENT_COMPLETION, position, 0);
+      setCurrentState(STATE_PLAYBACK_COMPLETED);
+      ResumePositionStore store = mResumePositionStore;
+      if (store != null) {
+        store.remove(getResumeKey());
+      }
+      updateTarget(STATE_PLAYBACK_COMPLETED);
+      notifyMain(MSG_NOTIFY_COMPLETION, 0, 0);
+    }
+
+    @Override
+    public void onInfo(int what, int extra) {
+      recordInfo(what);
+      notifyMain(MSG_NOTIFY_INFO, what, extra);
+    }
+
+    @Override
+    public void onError(int what, int extra) {
+      mPlayerHandler.removeMessages(MSG_SAMPLE_POSITION);
+      recordError(what, extra);
+      if (isRecoverable(what, extra)) {
+        // 状态还没有改变，拿到的是出错之前的进度；还在准备时没有进度，沿用准备好之后要恢复的
+        // 位置，连续出错也不会回到开头.
+        int position = isInPlaybackState() ? getCurrentPosition() : mSeekWhenPrepared;
+        if (scheduleRetry(position)) {
+          return;
+        }
+        mRecoveryFailed = true;
+      }
+      setCurrentState(STATE_ERROR);
+      updateTarget(STATE_ERROR);
+      notifyMain(MSG_NOTIFY_ERROR, what, extra);
+    }
+
+    @Override
+    public void onBufferingUpdate(int percent) {
+      mBufferPercentage = percent;
+      notifyMainCoalesced(MSG_NOTIFY_BUFFERING);
+    }
+
+    @Override
+    public void onSeekComplete() {
+      mSeekInFlight = false;
+      if (mPendingSeekMs >= 0) {
+        // 中间的目标已经过时，不通知.
+        int target = mPendingSeekMs;
+        mPendingSeekMs = -1;
+        issueSeek(target, mPendingSeekExact, false);
+        return;
+      }
+      if (mInternalSeek) {
+        mInternalSeek = false;
+        updatePositionFrozen();
+        return;
+      }
+      long latency = SystemClock.uptimeMillis() - mSeekRequestTime;
+      mLastSeekLatencyMs = latency;
+      synchronized (mSeekStats) {
+        mSeekStats.completed++;
+        mSeekStats.latencyMs += latency;
+        mSeekStats.maxLatencyMs = Math.max(mSeekStats.maxLatencyMs, latency);
+      }
+      mQoe.onSeekComplete(SystemClock.elapsedRealtime());
+      updatePositionFrozen();
+      trace(PlaybackTracer.EVENT_SEEK_COMPLETE, getCurrentPosition(), (int) latency);
+      notifyMain(MSG_NOTIFY_SEEK_COMPLETE, 0, 0);
+    }
+  };
+
+  // callbacks of the next core before it becomes the current one, only the preparation matters.
+  private final PlayerCore.Listener mNextCoreListener = new PlayerCore.Listener() {
+    @Override
+    public void onPrepared() {
+      mNextPrepared = true;
+      mNextPreparedTime = SystemClock.elapsedRealtime();
+      if (mCore != null) {
+        chainNextCore();
+      }
+    }
+
+    @Override
+    public void onVideoSizeChanged(int width, int height) {
+      // read once it becomes the current one.
+    }
+
+    @Override
+    public void onCompletion() {
+      // never completes before the current one.
+    }
+
+    @Override
+    public void onError(int what, int extra) {
+      Log.w(TAG, "Unable to prepare the next item: " + what + "," + extra);
+      releaseNextCore();
+    }
+
+    @Override
+    public void onInfo(int what, int extra) {
+      if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) {
+        mNextRendered = true;
+      }
+    }
+
+    @Override
+    public void onBufferingUpdate(int percent) {
+      // read once it becomes the current one.
+    }
+
+    @Override
+    public void onSeekComplete() {
+      // never seeks.
+    }
+  };
+
+  /**
+   * Statistics of the recovery of all the engines.
+   */
+  public static class RecoveryStats {
+    // retries scheduled.
+    public int retries;
+    // sessions with retries which did not fail finally.
+    public int recoveredSessions;
+    // sessions which failed after all the retries.
+    public int failedSessions;
+
+    RecoveryStats copy() {
+      RecoveryStats stats = new RecoveryStats();
+      stats.retries = retries;
+      stats.recoveredSessions = recoveredSessions;
+      stats.failedSessions = failedSessions;
+      return stats;
+    }
+
+    @Override
+    public String toString() {
+      return "RecoveryStats{retries=" + retries + ", recoveredSessions=" + recoveredSessions
+          + ", failedSessions=" + failedSessions + "}";
+    }
+  }
+
+  /**
+   * Statistics of the seeks of an engine.
+   */
+  public static class SeekStats {
+    // seekTo calls.
+    public int requested;
+    // requests replaced by a later one before issued to the player.
+    public int coalesced;
+    // seeks issued to the player for the requests.
+    public int issued;
+    // seeks issued by the engine itself to resume the position after a retry or a trim, not
+    // counted in the others nor reported to the listeners.
+    public int internal;
+    // latest targets reached, each reported to the listeners.
+    public int completed;
+    // total latency from the request of the latest target to the completion.
+    public long latencyMs;
+    public long maxLatencyMs;
+
+    SeekStats copy() {
+      SeekStats stats = new SeekStats();
+      stats.requested = requested;
+      stats.coalesced = coalesced;
+      stats.issued = issued;
+      stats.internal = internal;
+      stats.completed = completed;
+      stats.latencyMs = latencyMs;
+      stats.maxLatencyMs = maxLatencyMs;
+      return stats;
+    }
+
+    public long getAverageLatencyMs() {
+      return completed == 0 ? 0 : latencyMs / completed;
+    }
+
+    @Override
+    public String toString() {
+      return "SeekStats{requested=" + requested + ", coalesced=" + coalesced + ", issued="
+          + issued + ", internal=" + internal + ", completed=" + completed + ", latencyMs="
+          + latencyMs + ", maxLatencyMs=" + maxLatencyMs + "}";
+    }
+  }
+
+  private static class OpenRequest {
+    final Uri uri;
+    final Map<String, String> headers;
+    final List<VideoVariant> variants;
+    final List<Uri> playlist;
+    final long time;
+
+    OpenRequest(Uri uri, Map<String, String> headers, List<VideoVariant> variants,
+        List<Uri> playlist, long time) {
+      this.uri = uri;
+      this.headers = headers;
+      this.variants = variants;
+      this.playlist = playlist;
+      this.time = time;
+    }
+  }
+
+  /**
+   * Listener of the playlist opened by {@link #openPlaylist(List, Map)}.
+   */
+  public interface PlaylistListener {
+
+    /**
+     * Called when the previous video completes and the one at the index starts.
+     */
+    void onPlaylistItemChanged(int index);
+  }
+
+  /**
+   * Callbacks of the engine to the render target, all invoked on the main thread before the
+   * listeners set by the client. The {@link MediaPlayer} passed in is only for identifying,
+   * it should not be operated outside the player thread, and is null if the core is not
+   * {@link MediaPlayerCore}.
+   */
+  public interface Callback {
+
+    /**
+     * Called with the latest state, intermediate states may be skipped.
+     */
+    void onStateChanged(int state);
+
+    void onPrepared(MediaPlayer mp);
+
+    void onVideoSizeChanged(MediaPlayer mp, int width, int height);
+
+    void onCompletion(MediaPlayer mp);
+
+    void onError(MediaPlayer mp, int what, int extra);
+
+    void onInfo(MediaPlayer mp, int what, int extra);
+
+    void onBufferingUpdate(MediaPlayer mp, int percent);
+
+    void onSeekComplete(MediaPlayer mp);
+  }
+}
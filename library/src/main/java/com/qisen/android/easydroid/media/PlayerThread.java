@@ -0,0 +1,80 @@
+package com.qisen.android.easydroid.media;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 所有 MediaPlayer 共用的播放线程。
+ *
+ * MediaPlayer 的回调发生在创建它的线程的 Looper 上，因而播放器的创建、数据源的设置以及所有的回调
+ * 都集中在这个线程中执行，主线程只负责渲染以及界面状态的更新。
+ */
+final class PlayerThread {
+
+  private static final String TAG = "PlayerThread";
+
+  private static HandlerThread sThread;
+  private static Handler sHandler;
+
+  private PlayerThread() {
+  }
+
+  static synchronized Handler getHandler() {
+    if (sHandler == null) {
+      sThread = new HandlerThread("EasyDroid-Player", Process.THREAD_PRIORITY_DEFAULT);
+      sThread.start();
+      sHandler = new Handler(sThread.getLooper());
+    }
+    return sHandler;
+  }
+
+  static Looper getLooper() {
+    return getHandler().getLooper();
+  }
+
+  static boolean isCurrentThread() {
+    return Looper.myLooper() == getLooper();
+  }
+
+  static void post(Runnable runnable) {
+    getHandler().post(runnable);
+  }
+
+  /**
+   * Runs the runnable on the player thread and waits for it to finish.
+   *
+   * @return false if the runnable did not finish in time.
+   */
+  static boolean runSync(final Runnable runnable, long timeoutMs) {
+    if (isCurrentThread()) {
+      runnable.run();
+      return true;
+    }
+    final CountDownLatch latch = new CountDownLatch(1);
+    getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runnable.run();
+        } finally {
+          latch.countDown();
+        }
+      }
+    });
+    try {
+      if (latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+      Log.w(TAG, "Timeout waiting for the player thread");
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+}
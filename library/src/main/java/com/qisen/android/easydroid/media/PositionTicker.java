@@ -0,0 +1,170 @@
+package com.qisen.android.easydroid.media;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * 跟随屏幕刷新分发播放进度，代替每个进度条各自定时调用 getCurrentPosition。
+ *
+ * ### 采样
+ * 所有订阅者共用一个 {@link Choreographer} 帧回调，每一帧以帧时间为准，从 {@link PlayerEngine}
+ * 的进度快照按照播放速度插值，不会调用 MediaPlayer；缓冲卡顿或者 seek 还没有完成时停在快照上。
+ * 进度没有变化的订阅者不会收到回调。
+ *
+ * ### 空闲
+ * 所有订阅的引擎都没有在播放时，改为每 {@link #IDLE_INTERVAL_MS} 检查一次，用于分发暂停时 seek
+ * 之类的变化；没有订阅者时停止。
+ *
+ * ### 分配
+ * 订阅时创建的条目会一直复用，每一帧的分发不会分配对象。这个类只能在主线程使用。
+ */
+public class PositionTicker {
+
+  static final long IDLE_INTERVAL_MS = 250;
+
+  private static PositionTicker sInstance;
+
+  private final ArrayList<Entry> mEntries = new ArrayList<>();
+  private boolean mScheduled;
+  private final Stats mStats = new Stats();
+
+  private PositionTicker() {
+  }
+
+  public static synchronized PositionTicker getInstance() {
+    if (sInstance == null) {
+      sInstance = new PositionTicker();
+    }
+    return sInstance;
+  }
+
+  /**
+   * Delivers the position of the engine to the listener on every frame while playing. A
+   * listener is bound to one engine at a time, registering it again replaces the engine.
+   */
+  public void register(PlayerEngine engine, Listener listener) {
+    int index = indexOf(listener);
+    if (index >= 0) {
+      Entry entry = mEntries.get(index);
+      entry.engine = engine;
+      entry.lastPosition = -1;
+    } else {
+      mEntries.add(new Entry(engine, listener));
+    }
+    schedule(0);
+  }
+
+  public void unregister(Listener listener) {
+    int index = indexOf(listener);
+    if (index >= 0) {
+      mEntries.remove(index);
+    }
+    if (mEntries.isEmpty() && mScheduled) {
+      mScheduled = false;
+      Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+    }
+  }
+
+  public Stats getStats() {
+    Stats stats = new Stats();
+    stats.frames = mStats.frames;
+    stats.deliveries = mStats.deliveries;
+    return stats;
+  }
+
+  private void schedule(long delayMs) {
+    if (mScheduled) {
+      if (delayMs > 0) {
+        return;
+      }
+      // 从空闲切换回每帧分发.
+      Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+    }
+    mScheduled = true;
+    if (delayMs > 0) {
+      Choreographer.getInstance().postFrameCallbackDelayed(mFrameCallback, delayMs);
+    } else {
+      Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+  }
+
+  private void tick(long frameTimeNanos) {
+    mStats.frames++;
+    // Choreographer 的帧时间和 uptimeMillis 使用同一个时钟.
+    long frameTimeMs = frameTimeNanos / 1000000;
+    boolean playing = false;
+    for (int i = 0; i < mEntries.size(); i++) {
+      Entry entry = mEntries.get(i);
+      PlayerEngine engine = entry.engine;
+      playing |= engine.isPlaying();
+      int position = engine.getPositionAt(frameTimeMs);
+      int duration = engine.getDuration();
+      if (position != entry.lastPosition || duration != entry.lastDuration) {
+        entry.lastPosition = position;
+        entry.lastDuration = duration;
+        mStats.deliveries++;
+        entry.listener.onPositionChanged(position, duration);
+      }
+    }
+    if (!mEntries.isEmpty()) {
+      schedule(playing ? 0 : IDLE_INTERVAL_MS);
+    }
+  }
+
+  private int indexOf(Listener listener) {
+    for (int i = 0, size = mEntries.size(); i < size; i++) {
+      if (mEntries.get(i).listener == listener) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      mScheduled = false;
+      tick(frameTimeNanos);
+    }
+  };
+
+  private static class Entry {
+    PlayerEngine engine;
+    final Listener listener;
+    int lastPosition = -1;
+    int lastDuration = -1;
+
+    Entry(PlayerEngine engine, Listener listener) {
+      this.engine = engine;
+      this.listener = listener;
+    }
+  }
+
+  /**
+   * Statistics of the ticker.
+   */
+  public static class Stats {
+    // frames ticked, each reads the position snapshot of all the engines once.
+    public int frames;
+    // callbacks delivered to the listeners.
+    public int deliveries;
+
+    @Override
+    public String toString() {
+      return "Stats{frames=" + frames + ", deliveries=" + deliveries + "}";
+    }
+  }
+
+  /**
+   * Receives the position on the main thread.
+   */
+  public interface Listener {
+
+    /**
+     * @param positionMs the current position.
+     * @param durationMs the duration, -1 if unknown.
+     */
+    void onPositionChanged(int positionMs, int durationMs);
+  }
+}
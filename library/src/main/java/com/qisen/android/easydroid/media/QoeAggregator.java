@@ -0,0 +1,371 @@
+package com.qisen.android.easydroid.media;
+
+import android.net.Uri;
+
+/**
+ * 统计一次播放会话的体验指标：卡顿、seek 耗时、错误以及观看时长。
+ *
+ * ### 事件
+ * 每个事件写入固定大小的环形缓冲区，缓冲区由几个基本类型数组组成，写满之后覆盖最早的事件。
+ * 卡顿次数、卡顿时长等汇总数据在事件发生时累加，不受缓冲区覆盖的影响。记录事件的过程不会分配
+ * 任何对象，可以在线上一直开启。
+ *
+ * ### 汇总
+ * 会话结束时（例如 stopPlayback）把汇总数据以及缓冲区中的事件按时间顺序写入 {@link Summary}，
+ * 由 {@link PlayerEngine} 在主线程分发给 {@link Listener}。
+ *
+ * 这个类不是线程安全的，{@link PlayerEngine} 只在播放线程上使用它。
+ */
+public class QoeAggregator {
+
+  public static final int EVENT_PLAY = 1;
+  public static final int EVENT_PAUSE = 2;
+  public static final int EVENT_STALL_START = 3;
+  public static final int EVENT_STALL_END = 4;
+  // arg1 is the target position.
+  public static final int EVENT_SEEK_START = 5;
+  // arg1 is the latency in milliseconds.
+  public static final int EVENT_SEEK_END = 6;
+  // arg1 and arg2 are the error codes.
+  public static final int EVENT_ERROR = 7;
+  public static final int EVENT_FIRST_FRAME = 8;
+  public static final int EVENT_COMPLETE = 9;
+  // the player is prepared again after a network failure.
+  public static final int EVENT_RETRY = 10;
+
+  static final int DEFAULT_CAPACITY = 128;
+
+  private static final long NO_TIME = -1;
+
+  private final int mCapacity;
+  private final long[] mTimes;
+  private final int[] mTypes;
+  private final int[] mArg1;
+  private final int[] mArg2;
+  // index of the next event to write.
+  private int mHead;
+  private int mTotalEvents;
+
+  private Uri mUri;
+  private long mStartTime = NO_TIME;
+  private boolean mPlaying;
+  private boolean mStalled;
+  private boolean mFirstFrameRendered;
+  // start of the ongoing interval which is playing and not stalled.
+  private long mWatchStartTime = NO_TIME;
+  private long mWatchedMs;
+  private long mStallStartTime = NO_TIME;
+  private int mStallCount;
+  private long mStallMs;
+  private long mSeekStartTime = NO_TIME;
+  private int mSeekCount;
+  private long mSeekLatencyMs;
+  private long mMaxSeekLatencyMs;
+  private int mErrorCount;
+  private int mRetryCount;
+  private int mLastErrorWhat;
+  private int mLastErrorExtra;
+
+  public QoeAggregator() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public QoeAggregator(int capacity) {
+    mCapacity = Math.max(1, capacity);
+    mTimes = new long[mCapacity];
+    mTypes = new int[mCapacity];
+    mArg1 = new int[mCapacity];
+    mArg2 = new int[mCapacity];
+  }
+
+  public int getCapacity() {
+    return mCapacity;
+  }
+
+  /**
+   * Starts a new session, the previous one is discarded.
+   */
+  public void start(Uri uri, long now) {
+    mHead = 0;
+    mTotalEvents = 0;
+    mUri = uri;
+    mStartTime = now;
+    mPlaying = false;
+    mStalled = false;
+    mFirstFrameRendered = false;
+    mWatchStartTime = NO_TIME;
+    mWatchedMs = 0;
+    mStallStartTime = NO_TIME;
+    mStallCount = 0;
+    mStallMs = 0;
+    mSeekStartTime = NO_TIME;
+    mSeekCount = 0;
+    mSeekLatencyMs = 0;
+    mMaxSeekLatencyMs = 0;
+    mErrorCount = 0;
+    mRetryCount = 0;
+    mLastErrorWhat = 0;
+    mLastErrorExtra = 0;
+  }
+
+  public boolean isActive() {
+    return mStartTime != NO_TIME;
+  }
+
+  public void onPlayingChanged(boolean playing, long now) {
+    if (!isActive() || playing == mPlaying) {
+      return;
+    }
+    record(playing ? EVENT_PLAY : EVENT_PAUSE, now, 0, 0);
+    updateWatch(now, playing, mStalled);
+  }
+
+  public void onFirstFrame(long now) {
+    if (!isActive() || mFirstFrameRendered) {
+      return;
+    }
+    mFirstFrameRendered = true;
+    record(EVENT_FIRST_FRAME, now, 0, 0);
+  }
+
+  /**
+   * Called when the player starts buffering. Buffering before the first frame is a part of
+   * the startup, and not counted as a stall.
+   */
+  public void onStallStart(long now) {
+    if (!isActive() || !mFirstFrameRendered || mStalled) {
+      return;
+    }
+    record(EVENT_STALL_START, now, 0, 0);
+    mStallStartTime = now;
+    mStallCount++;
+    updateWatch(now, mPlaying, true);
+  }
+
+  public void onStallEnd(long now) {
+    if (!isActive() || !mStalled) {
+      return;
+    }
+    record(EVENT_STALL_END, now, 0, 0);
+    mStallMs += now - mStallStartTime;
+    mStallStartTime = NO_TIME;
+    updateWatch(now, mPlaying, false);
+  }
+
+  public void onSeekStart(long now, int targetMs) {
+    if (!isActive()) {
+      return;
+    }
+    record(EVENT_SEEK_START, now, targetMs, 0);
+    // 连续 seek 的时候，从第一次开始计算耗时.
+    if (mSeekStartTime == NO_TIME) {
+      mSeekStartTime = now;
+    }
+  }
+
+  public void onSeekComplete(long now) {
+    if (!isActive() || mSeekStartTime == NO_TIME) {
+      return;
+    }
+    long latency = now - mSeekStartTime;
+    record(EVENT_SEEK_END, now, (int) latency, 0);
+    mSeekStartTime = NO_TIME;
+    mSeekCount++;
+    mSeekLatencyMs += latency;
+    mMaxSeekLatencyMs = Math.max(mMaxSeekLatencyMs, latency);
+  }
+
+  public void onError(long now, int what, int extra) {
+    if (!isActive()) {
+      return;
+    }
+    record(EVENT_ERROR, now, what, extra);
+    mErrorCount++;
+    mLastErrorWhat = what;
+    mLastErrorExtra = extra;
+  }
+
+  /**
+   * Called when the player is prepared again after a network failure, the time until prepared
+   * is counted as a stall.
+   */
+  public void onRetry(long now) {
+    if (!isActive()) {
+      return;
+    }
+    record(EVENT_RETRY, now, 0, 0);
+    mRetryCount++;
+    onStallStart(now);
+  }
+
+  public void onComplete(long now) {
+    if (!isActive()) {
+      return;
+    }
+    record(EVENT_COMPLETE, now, 0, 0);
+    updateWatch(now, false, mStalled);
+  }
+
+  /**
+   * Finishes the session and writes the summary into {@code out}.
+   *
+   * @param contentLength the bytes of the video, -1 if unknown.
+   * @param durationMs the duration of the video, -1 if unknown.
+   */
+  public void finish(long now, long contentLength, int durationMs, Summary out) {
+    if (mStalled) {
+      mStallMs += now - mStallStartTime;
+    }
+    updateWatch(now, false, false);
+
+    out.uri = mUri;
+    out.sessionDurationMs = now - mStartTime;
+    out.watchedDurationMs = mWatchedMs;
+    out.stallCount = mStallCount;
+    out.stallDurationMs = mStallMs;
+    out.seekCount = mSeekCount;
+    out.seekLatencyMs = mSeekLatencyMs;
+    out.maxSeekLatencyMs = mMaxSeekLatencyMs;
+    out.errorCount = mErrorCount;
+    out.retryCount = mRetryCount;
+    out.lastErrorWhat = mLastErrorWhat;
+    out.lastErrorExtra = mLastErrorExtra;
+    out.averageBitrateKbps = contentLength > 0 && durationMs > 0
+        ? (int) (contentLength * 8 / durationMs) : -1;
+    out.totalEvents = mTotalEvents;
+    copyEvents(out);
+    mStartTime = NO_TIME;
+  }
+
+  private void copyEvents(Summary out) {
+    out.ensureCapacity(mCapacity);
+    int count = Math.min(mTotalEvents, mCapacity);
+    // 缓冲区写满之后，mHead 指向的就是最早的事件.
+    int oldest = mTotalEvents > mCapacity ? mHead : 0;
+    for (int i = 0; i < count; i++) {
+      int index = (oldest + i) % mCapacity;
+      out.eventTimes[i] = mTimes[index];
+      out.eventTypes[i] = mTypes[index];
+      out.eventArg1[i] = mArg1[index];
+      out.eventArg2[i] = mArg2[index];
+    }
+    out.eventCount = count;
+  }
+
+  private void record(int type, long time, int arg1, int arg2) {
+    mTimes[mHead] = time;
+    mTypes[mHead] = type;
+    mArg1[mHead] = arg1;
+    mArg2[mHead] = arg2;
+    mHead = (mHead + 1) % mCapacity;
+    mTotalEvents++;
+  }
+
+  private void updateWatch(long now, boolean playing, boolean stalled) {
+    if (mWatchStartTime != NO_TIME) {
+      mWatchedMs += now - mWatchStartTime;
+      mWatchStartTime = NO_TIME;
+    }
+    mPlaying = playing;
+    mStalled = stalled;
+    if (playing && !stalled) {
+      mWatchStartTime = now;
+    }
+  }
+
+  /**
+   * Summary of a session. The object is reused by the engine, use {@link #copy()} to keep it.
+   */
+  public static class Summary {
+    public Uri uri;
+    // from opening the video to the end of the session.
+    public long sessionDurationMs;
+    // time spent playing, excluding stalls.
+    public long watchedDurationMs;
+    public int stallCount;
+    public long stallDurationMs;
+    public int seekCount;
+    // total latency of all the seeks.
+    public long seekLatencyMs;
+    public long maxSeekLatencyMs;
+    public int errorCount;
+    public int retryCount;
+    public int lastErrorWhat;
+    public int lastErrorExtra;
+    // estimated by the content length and the duration, -1 if unknown.
+    public int averageBitrateKbps = -1;
+    // events happened in the session, including the ones overwritten in the ring buffer.
+    public int totalEvents;
+
+    // the latest events in chronological order, only the first eventCount ones are valid.
+    public int eventCount;
+    public long[] eventTimes = new long[0];
+    public int[] eventTypes = new int[0];
+    public int[] eventArg1 = new int[0];
+    public int[] eventArg2 = new int[0];
+
+    /**
+     * Returns the ratio of the stall time to the time spent playing and stalling.
+     */
+    public float getStallRatio() {
+      long total = watchedDurationMs + stallDurationMs;
+      return total == 0 ? 0 : (float) stallDurationMs / total;
+    }
+
+    public long getAverageSeekLatencyMs() {
+      return seekCount == 0 ? 0 : seekLatencyMs / seekCount;
+    }
+
+    public Summary copy() {
+      Summary summary = new Summary();
+      summary.uri = uri;
+      summary.sessionDurationMs = sessionDurationMs;
+      summary.watchedDurationMs = watchedDurationMs;
+      summary.stallCount = stallCount;
+      summary.stallDurationMs = stallDurationMs;
+      summary.seekCount = seekCount;
+      summary.seekLatencyMs = seekLatencyMs;
+      summary.maxSeekLatencyMs = maxSeekLatencyMs;
+      summary.errorCount = errorCount;
+      summary.retryCount = retryCount;
+      summary.lastErrorWhat = lastErrorWhat;
+      summary.lastErrorExtra = lastErrorExtra;
+      summary.averageBitrateKbps = averageBitrateKbps;
+      summary.totalEvents = totalEvents;
+      summary.eventCount = eventCount;
+      summary.eventTimes = eventTimes.clone();
+      summary.eventTypes = eventTypes.clone();
+      summary.eventArg1 = eventArg1.clone();
+      summary.eventArg2 = eventArg2.clone();
+      return summary;
+    }
+
+    void ensureCapacity(int capacity) {
+      if (eventTimes.length < capacity) {
+        eventTimes = new long[capacity];
+        eventTypes = new int[capacity];
+        eventArg1 = new int[capacity];
+        eventArg2 = new int[capacity];
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Summary{uri=" + uri + ", watchedDurationMs=" + watchedDurationMs
+          + ", stallCount=" + stallCount + ", stallDurationMs=" + stallDurationMs
+          + ", stallRatio=" + getStallRatio() + ", seekCount=" + seekCount
+          + ", averageSeekLatencyMs=" + getAverageSeekLatencyMs()
+          + ", errorCount=" + errorCount + ", retryCount=" + retryCount
+          + ", lastErrorWhat=" + lastErrorWhat
+          + ", averageBitrateKbps=" + averageBitrateKbps + "}";
+    }
+  }
+
+  /**
+   * Receives the summary of each session on the main thread.
+   */
+  public interface Listener {
+
+    void onQoeSummary(Summary summary);
+  }
+}
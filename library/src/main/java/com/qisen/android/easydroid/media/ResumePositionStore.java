@@ -0,0 +1,228 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.qisen.android.easydroid.media.cache.VideoCacheProxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 按照 uri 持久化视频的播放进度，再次打开时从上次的位置继续播放。
+ *
+ * ### 格式
+ * 数据保存在内存映射的文件中，文件由头部和固定数量的槽组成，每个槽依次保存 uri 的 64 位哈希、
+ * 播放进度、时长以及最近访问的序号。读写只是访问映射的内存，不需要系统调用，可以在主线程执行，
+ * 进程被杀之后由系统把脏页写回文件。
+ *
+ * ### 查找
+ * 哈希决定起始槽，向后最多查找 {@link #PROBE_LENGTH} 个槽。写入时优先使用相同 key 或者空的槽，
+ * 都没有时淘汰其中最久没有访问的一个，文件大小固定，不会无限增长。
+ *
+ * ### 清除
+ * 播放到接近结尾的视频会被删除，下次从头开始播放；刚开始播放的进度不会保存。
+ */
+public class ResumePositionStore {
+
+  private static final String TAG = "ResumePositionStore";
+
+  private static final String FILE_NAME = "video-resume-positions";
+  private static final int MAGIC = 0x52504f53;
+  private static final int VERSION = 1;
+  private static final int DEFAULT_SLOT_COUNT = 1024;
+  static final int PROBE_LENGTH = 8;
+
+  // magic, version, slot count, access clock.
+  private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+  private static final int HEADER_CLOCK = 12;
+  // key hash, position, duration, last access.
+  private static final int SLOT_SIZE = 8 + 4 + 4 + 8;
+  private static final int SLOT_POSITION = 8;
+  private static final int SLOT_DURATION = 12;
+  private static final int SLOT_ACCESS = 16;
+
+  // positions within this distance to the end are treated as finished.
+  private static final int END_THRESHOLD_MS = 3000;
+  private static final float END_THRESHOLD_RATIO = 0.95F;
+  // positions shorter than this are not worth resuming.
+  private static final int MIN_POSITION_MS = 3000;
+
+  private static ResumePositionStore sInstance;
+
+  private final int mSlotCount;
+  // a heap buffer if the file could not be mapped, the store works in memory then.
+  private final ByteBuffer mBuffer;
+  private long mClock;
+
+  public static synchronized ResumePositionStore getInstance(Context context) {
+    if (sInstance == null) {
+      File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+      sInstance = new ResumePositionStore(file, DEFAULT_SLOT_COUNT);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Opens the store backed by the file, which is created or reset if it does not match.
+   */
+  public ResumePositionStore(File file, int slotCount) {
+    mSlotCount = Math.max(PROBE_LENGTH, slotCount);
+    mBuffer = map(file, HEADER_SIZE + (long) mSlotCount * SLOT_SIZE);
+    if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION
+        || mBuffer.getInt(8) != mSlotCount) {
+      clear();
+    }
+    mClock = mBuffer.getLong(HEADER_CLOCK);
+  }
+
+  private ByteBuffer map(File file, long size) {
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "rw");
+      if (raf.length() != size) {
+        raf.setLength(size);
+      }
+      // 映射建立之后关闭文件不会影响映射.
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException ex) {
+      Log.w(TAG, "Unable to map " + file + ", positions are kept in memory", ex);
+      return ByteBuffer.allocate((int) size);
+    } finally {
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException ignore) {
+          // ignore.
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the saved position of the video, or 0 if none.
+   *
+   * @param uri the uri of the video, could be a uri proxied by {@link VideoCacheProxy}.
+   */
+  public synchronized int get(Uri uri) {
+    int slot = find(hashOf(uri));
+    if (slot < 0) {
+      return 0;
+    }
+    mBuffer.putLong(offsetOf(slot) + SLOT_ACCESS, tick());
+    return mBuffer.getInt(offsetOf(slot) + SLOT_POSITION);
+  }
+
+  /**
+   * Saves the position of the video. A position near the end removes the video, so it plays
+   * from the beginning next time.
+   *
+   * @param durationMs the duration of the video, -1 if unknown.
+   */
+  public synchronized void put(Uri uri, int positionMs, int durationMs) {
+    if (!isWorthResuming(positionMs, durationMs)) {
+      remove(uri);
+      return;
+    }
+    long hash = hashOf(uri);
+    int slot = find(hash);
+    if (slot < 0) {
+      slot = findVictim(hash);
+    }
+    int offset = offsetOf(slot);
+    mBuffer.putLong(offset, hash);
+    mBuffer.putInt(offset + SLOT_POSITION, positionMs);
+    mBuffer.putInt(offset + SLOT_DURATION, durationMs);
+    mBuffer.putLong(offset + SLOT_ACCESS, tick());
+  }
+
+  public synchronized void remove(Uri uri) {
+    int slot = find(hashOf(uri));
+    if (slot >= 0) {
+      // 查找时会遍历整个探测范围，直接清空不会影响其他 key.
+      mBuffer.putLong(offsetOf(slot), 0);
+    }
+  }
+
+  public synchronized void clear() {
+    for (int i = 0, size = HEADER_SIZE + mSlotCount * SLOT_SIZE; i < size; i += 4) {
+      mBuffer.putInt(i, 0);
+    }
+    mBuffer.putInt(0, MAGIC);
+    mBuffer.putInt(4, VERSION);
+    mBuffer.putInt(8, mSlotCount);
+    mClock = 0;
+  }
+
+  private static boolean isWorthResuming(int positionMs, int durationMs) {
+    if (positionMs < MIN_POSITION_MS) {
+      return false;
+    }
+    return durationMs <= 0 || (positionMs < durationMs * END_THRESHOLD_RATIO
+        && durationMs - positionMs >= END_THRESHOLD_MS);
+  }
+
+  private int find(long hash) {
+    int start = indexOf(hash);
+    for (int i = 0; i < PROBE_LENGTH; i++) {
+      int slot = (start + i) % mSlotCount;
+      if (mBuffer.getLong(offsetOf(slot)) == hash) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * 在探测范围内找一个空槽，没有的话选择最久没有访问的槽.
+   */
+  private int findVictim(long hash) {
+    int start = indexOf(hash);
+    int victim = start;
+    long oldest = Long.MAX_VALUE;
+    for (int i = 0; i < PROBE_LENGTH; i++) {
+      int slot = (start + i) % mSlotCount;
+      int offset = offsetOf(slot);
+      if (mBuffer.getLong(offset) == 0) {
+        return slot;
+      }
+      long access = mBuffer.getLong(offset + SLOT_ACCESS);
+      if (access < oldest) {
+        oldest = access;
+        victim = slot;
+      }
+    }
+    return victim;
+  }
+
+  private int indexOf(long hash) {
+    return (int) ((hash >>> 1) % mSlotCount);
+  }
+
+  private long tick() {
+    mClock++;
+    mBuffer.putLong(HEADER_CLOCK, mClock);
+    return mClock;
+  }
+
+  private static int offsetOf(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  /*
+   * 64 位 FNV-1a，使用原始 uri，代理的端口每次启动都不同. 0 表示空槽，不会作为哈希.
+   */
+  private static long hashOf(Uri uri) {
+    String key = String.valueOf(VideoCacheProxy.unproxy(uri));
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0, length = key.length(); i < length; i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash == 0 ? 1 : hash;
+  }
+}
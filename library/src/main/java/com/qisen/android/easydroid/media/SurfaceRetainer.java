@@ -0,0 +1,191 @@
+package com.qisen.android.easydroid.media;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 管理从窗口上移除之后仍然保留 SurfaceTexture 和播放器的 {@link TextureVideoView}。
+ *
+ * ### 限制
+ * 被保留的 View 在超过 {@link #setRetentionTimeout(long)} 之后会被释放；所有被保留的 surface
+ * 估算的内存总量不会超过 {@link #setMaxRetainedBytes(long)}，超过时最早被保留的 View 先被释放。
+ *
+ * ### 内存压力
+ * 由 {@link MediaMemoryManager} 统一处理，收到 TRIM_MEMORY_RUNNING_LOW 及以上级别的
+ * onTrimMemory，或者 onLowMemory 的时候，释放所有被保留的 View。
+ *
+ * 所有方法都需要在主线程调用。
+ */
+public class SurfaceRetainer {
+
+  private static final String TAG = "SurfaceRetainer";
+
+  private static final long DEFAULT_RETENTION_TIMEOUT_MS = 30 * 1000;
+  private static final long DEFAULT_MAX_RETAINED_BYTES = 32 * 1024 * 1024;
+  // BufferQueue 中一般有三块缓冲区.
+  private static final int BUFFER_COUNT = 3;
+  private static final int BYTES_PER_PIXEL = 4;
+
+  private static SurfaceRetainer sInstance;
+
+  // ordered by the time retained, the eldest first.
+  private final LinkedHashMap<TextureVideoView, Retained> mRetained = new LinkedHashMap<>();
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private long mRetentionTimeoutMs = DEFAULT_RETENTION_TIMEOUT_MS;
+  private long mMaxRetainedBytes = DEFAULT_MAX_RETAINED_BYTES;
+  private long mRetainedBytes;
+
+  private SurfaceRetainer() {
+  }
+
+  public static synchronized SurfaceRetainer getInstance() {
+    if (sInstance == null) {
+      sInstance = new SurfaceRetainer();
+    }
+    return sInstance;
+  }
+
+  /**
+   * Sets how long a detached view keeps its surface and player.
+   */
+  public void setRetentionTimeout(long timeoutMs) {
+    mRetentionTimeoutMs = Math.max(0, timeoutMs);
+    scheduleExpiration();
+  }
+
+  /**
+   * Sets the max estimated bytes of all the retained surfaces.
+   */
+  public void setMaxRetainedBytes(long maxBytes) {
+    mMaxRetainedBytes = Math.max(0, maxBytes);
+    trimToSize(mMaxRetainedBytes);
+  }
+
+  public int getRetainedCount() {
+    return mRetained.size();
+  }
+
+  public long getRetainedBytes() {
+    return mRetainedBytes;
+  }
+
+  /**
+   * Releases all the retained views.
+   */
+  public void releaseAll() {
+    trimToSize(-1);
+  }
+
+  /**
+   * Estimates the memory held by a surface of the size.
+   */
+  static long estimateBytes(int width, int height) {
+    return (long) Math.max(width, 1) * Math.max(height, 1) * BYTES_PER_PIXEL * BUFFER_COUNT;
+  }
+
+  /**
+   * Retains the detached view. Returns false if the view could not fit in the budget, the
+   * caller should release it immediately.
+   */
+  boolean retain(TextureVideoView view, long bytes) {
+    remove(view);
+    if (bytes > mMaxRetainedBytes || mRetentionTimeoutMs == 0) {
+      return false;
+    }
+    trimToSize(mMaxRetainedBytes - bytes);
+    mRetained.put(view, new Retained(bytes, SystemClock.uptimeMillis() + mRetentionTimeoutMs));
+    mRetainedBytes += bytes;
+    scheduleExpiration();
+    return true;
+  }
+
+  /**
+   * Stops tracking the view, e.g. when it is attached again.
+   *
+   * @return whether the view was retained.
+   */
+  boolean remove(TextureVideoView view) {
+    Retained retained = mRetained.remove(view);
+    if (retained == null) {
+      return false;
+    }
+    mRetainedBytes -= retained.bytes;
+    scheduleExpiration();
+    return true;
+  }
+
+  private void trimToSize(long maxBytes) {
+    List<TextureVideoView> evicted = new ArrayList<>();
+    Iterator<Map.Entry<TextureVideoView, Retained>> iterator =
+        mRetained.entrySet().iterator();
+    while (mRetainedBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<TextureVideoView, Retained> eldest = iterator.next();
+      iterator.remove();
+      mRetainedBytes -= eldest.getValue().bytes;
+      evicted.add(eldest.getKey());
+    }
+    releaseViews(evicted);
+    scheduleExpiration();
+  }
+
+  private void expire() {
+    long now = SystemClock.uptimeMillis();
+    List<TextureVideoView> expired = new ArrayList<>();
+    Iterator<Map.Entry<TextureVideoView, Retained>> iterator =
+        mRetained.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<TextureVideoView, Retained> entry = iterator.next();
+      if (entry.getValue().expireAt <= now) {
+        iterator.remove();
+        mRetainedBytes -= entry.getValue().bytes;
+        expired.add(entry.getKey());
+      }
+    }
+    releaseViews(expired);
+    scheduleExpiration();
+  }
+
+  // views are released after removed from the map, so they could not be touched twice.
+  private void releaseViews(List<TextureVideoView> views) {
+    for (TextureVideoView view : views) {
+      Log.d(TAG, "release retained surface of " + view);
+      view.releaseRetained();
+    }
+  }
+
+  private void scheduleExpiration() {
+    mHandler.removeCallbacks(mExpireRunnable);
+    long next = Long.MAX_VALUE;
+    for (Retained retained : mRetained.values()) {
+      next = Math.min(next, retained.expireAt);
+    }
+    if (next != Long.MAX_VALUE) {
+      mHandler.postAtTime(mExpireRunnable, next);
+    }
+  }
+
+  private final Runnable mExpireRunnable = new Runnable() {
+    @Override
+    public void run() {
+      expire();
+    }
+  };
+
+  private static class Retained {
+    final long bytes;
+    final long expireAt;
+
+    Retained(long bytes, long expireAt) {
+      this.bytes = bytes;
+      this.expireAt = expireAt;
+    }
+  }
+}
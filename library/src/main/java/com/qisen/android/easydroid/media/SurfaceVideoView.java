@@ -5,7 +5,6 @@ package com.qisen.android.easydroid.media;
  */
 
 import android.content.Context;
-import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
@@ -22,58 +21,26 @@ import android.widget.MediaController;
 import android.widget.MediaController.MediaPlayerControl;
 import android.widget.VideoView;
 
-import java.io.IOException;
+import com.qisen.android.easydroid.media.cache.VideoCacheProxy;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl {
 
   private static final String TAG = "SurfaceVideoView";
 
-  // all possible internal states
-  private static final int STATE_ERROR = -1;
-  private static final int STATE_IDLE = 0;
-  private static final int STATE_PREPARING = 1;
-  private static final int STATE_PREPARED = 2;
-  private static final int STATE_PLAYING = 3;
-  private static final int STATE_PAUSED = 4;
-  private static final int STATE_PLAYBACK_COMPLETED = 5;
-
-  private Context mContext;
-
-  // settable by the client
-  private Uri mUri;
-  private Map<String, String> mHeaders;
-
-  // mCurrentState is a VideoView object's current state.
-  // mTargetState is the state that a method caller intends to reach.
-  // For instance, regardless the VideoView object's current state,
-  // calling pause() intends to bring the object to a target state
-  // of STATE_PAUSED.
-  private int mCurrentState = STATE_IDLE;
-  private int mTargetState = STATE_IDLE;
-
   // All the stuff we need for playing and showing a video
   private SurfaceHolder mSurfaceHolder = null;
-  private MediaPlayer mMediaPlayer = null;
-  private int mAudioSession;
+  // real media player to execute, running on the player thread.
+  private PlayerEngine mEngine;
   private int mVideoWidth;
   private int mVideoHeight;
   private int mSurfaceWidth;
   private int mSurfaceHeight;
   private MediaController mMediaController;
-  private int mCurrentBufferPercentage;
-
-  private OnCompletionListener mOnCompletionListener;
-  private MediaPlayer.OnPreparedListener mOnPreparedListener;
-  private OnErrorListener mOnErrorListener;
-  private OnInfoListener mOnInfoListener;
-  /* add by me */
-  private MediaPlayer.OnSeekCompleteListener mOnSeekCompleteListener;
-  private MediaPlayer.OnBufferingUpdateListener mOnBufferingUpdateListener;
-  private MediaPlayer.OnVideoSizeChangedListener mOnVideoSizeChangedListener;
-  /* add by me */
-
-  private int mSeekWhenPrepared; // recording the seek position while preparing
+  private PositionTicker.Listener mPositionListener;
 
   public SurfaceVideoView(Context context) {
     this(context, null);
@@ -86,7 +53,8 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
   public SurfaceVideoView(Context context, AttributeSet attrs, int defStyleAttr) {
     super(context, attrs, defStyleAttr);
 
-    mContext = context;
+    mEngine = new PlayerEngine(context);
+    mEngine.attach(mEngineCallback);
     mVideoWidth = 0;
     mVideoHeight = 0;
 
@@ -96,9 +64,6 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
     setFocusable(true);
     setFocusableInTouchMode(true);
     requestFocus();
-
-    mCurrentState = STATE_IDLE;
-    mTargetState = STATE_IDLE;
   }
 
   @Override
@@ -203,83 +168,177 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
    *          to disallow or allow cross domain redirection.
    */
   public void setVideoURI(Uri uri, Map<String, String> headers) {
-    mUri = uri;
-    mHeaders = headers;
-    mSeekWhenPrepared = 0;
-    openVideo();
+    // 开启了缓存代理的时候，远程视频经由本地代理播放.
+    // 播放线程会在 surface 准备好之后再打开视频.
+    ownEngine().open(VideoCacheProxy.proxy(uri), headers);
+    attachMediaController();
+    requestLayout();
+    invalidate();
+  }
+
+  /**
+   * Sets the variants of the video at different bitrates. The variant is selected by the
+   * bandwidth measured by {@link com.qisen.android.easydroid.media.cache.BandwidthEstimator},
+   * and selected again when the playback is retried after a network failure.
+   *
+   * @param variants the variants of the video, in any order.
+   * @param headers the headers for the URI request.
+   */
+  public void setVideoVariants(List<VideoVariant> variants, Map<String, String> headers) {
+    ownEngine().open(variants, headers);
+    attachMediaController();
+    requestLayout();
+    invalidate();
+  }
+
+  /**
+   * Sets the videos to play one after another without a gap. The next video is prepared while
+   * the current one plays, see {@link PlayerEngine#openPlaylist(List, Map)}.
+   *
+   * @param uris the URIs of the videos in order.
+   * @param headers the headers for all the URI requests.
+   */
+  public void setVideoPlaylist(List<Uri> uris, Map<String, String> headers) {
+    List<Uri> playUris = new ArrayList<>(uris.size());
+    for (Uri uri : uris) {
+      playUris.add(VideoCacheProxy.proxy(uri));
+    }
+    ownEngine().openPlaylist(playUris, headers);
+    attachMediaController();
     requestLayout();
     invalidate();
   }
 
   public void stopPlayback() {
-    logD("call stop play back method.");
-    if (mMediaPlayer != null) {
-      mMediaPlayer.stop();
-      mMediaPlayer.release();
-      mMediaPlayer = null;
-      mCurrentState = STATE_IDLE;
-      mTargetState = STATE_IDLE;
-      AudioManager am = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
-      am.abandonAudioFocus(null);
+    // 引擎已经交给了其他 View 时，不能释放对方正在进行的播放.
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.release(true);
     }
   }
 
-  private void openVideo() {
-    if (mUri == null || mSurfaceHolder == null) {
-      // not ready for playback just yet, will try again later
-      return;
+  /**
+   * Returns the engine rendered by this view, which could be passed to another view by
+   * {@link #setPlayerEngine(PlayerEngine)}.
+   */
+  public PlayerEngine getPlayerEngine() {
+    return mEngine;
+  }
+
+  /**
+   * Renders the engine in this view. If the engine is playing in another view, the playback
+   * continues on the surface of this view without preparing again. The listeners travel with
+   * the engine, and the controls of this view affect the playback of the engine afterwards.
+   * The controls of the previous view are ignored from then on. Once it opens a video or sets
+   * a listener again, it plays with a new engine of the same listeners and settings.
+   *
+   * @param engine the engine to render.
+   */
+  public void setPlayerEngine(PlayerEngine engine) {
+    if (engine != mEngine) {
+      mEngine.detach(mEngineCallback);
+      mEngine = engine;
+    }
+    mEngine.attach(mEngineCallback);
+    if (mSurfaceHolder != null) {
+      mEngine.setDisplay(mEngineCallback, mSurfaceHolder);
+    }
+    if (mPositionListener != null && getWindowToken() != null) {
+      PositionTicker.getInstance().register(mEngine, mPositionListener);
+    }
+    attachMediaController();
+  }
+  /*
+   * 引擎交给其他 View 之后，这个 View 的控制都被忽略；再次设置视频或者 listener 时换一个新的引擎，
+   * 沿用之前的 listener 和设置，不影响对方的播放.
+   */
+  private PlayerEngine ownEngine() {
+    if (mEngine.isAttached(mEngineCallback)) {
+      return mEngine;
+    }
+    mEngine = mEngine.newEngineLike(getContext());
+    mEngine.attach(mEngineCallback);
+    if (mSurfaceHolder != null) {
+      mEngine.setDisplay(mEngineCallback, mSurfaceHolder);
+    }
+    if (mPositionListener != null && getWindowToken() != null) {
+      PositionTicker.getInstance().register(mEngine, mPositionListener);
     }
-    // we shouldn't clear the target state, because somebody might have
-    // called start() previously
-    release(false);
+    return mEngine;
+  }
 
-    AudioManager am = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
-    am.requestAudioFocus(null, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
 
-    try {
-      mMediaPlayer = new MediaPlayer();
-      // TODO: create SubtitleController in MediaPlayer, but we need
-      // a context for the subtitle renderers
+  /**
+   * Selects the core to play the videos of this view, e.g. {@link ExoPlayerCore.Factory}, null
+   * to use {@link PlayerEngine#setDefaultCoreFactory(PlayerCore.Factory)}. Takes effect when the
+   * next video is opened.
+   */
+  public void setPlayerCoreFactory(PlayerCore.Factory factory) {
+    ownEngine().setCoreFactory(factory);
+  }
 
-      if (mAudioSession != 0) {
-        mMediaPlayer.setAudioSessionId(mAudioSession);
-      } else {
-        mAudioSession = mMediaPlayer.getAudioSessionId();
-      }
-      mMediaPlayer.setOnPreparedListener(ownPreparedListener);
-      mMediaPlayer.setOnVideoSizeChangedListener(ownSizeChangedListener);
-      mMediaPlayer.setOnCompletionListener(ownCompletionListener);
-      mMediaPlayer.setOnErrorListener(ownErrorListener);
-      mMediaPlayer.setOnInfoListener(ownInfoListener);
-      mMediaPlayer.setOnBufferingUpdateListener(ownBufferingUpdateListener);
-      mCurrentBufferPercentage = 0;
-      mMediaPlayer.setDataSource(mContext, mUri, mHeaders);
-      mMediaPlayer.setDisplay(mSurfaceHolder);
-      mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-      mMediaPlayer.setScreenOnWhilePlaying(true);
-
-      mMediaPlayer.setOnSeekCompleteListener(ownSeekCompleteListener);
-
-      mMediaPlayer.prepareAsync();
-
-      // we don't set the target state here either, but preserve the
-      // target state that was there before.
-      mCurrentState = STATE_PREPARING;
-      attachMediaController();
-    } catch (IOException ex) {
-      Log.w(TAG, "Unable to open content: " + mUri, ex);
-      mCurrentState = STATE_ERROR;
-      mTargetState = STATE_ERROR;
-      ownErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
-      return;
-    } catch (IllegalArgumentException ex) {
-      Log.w(TAG, "Unable to open content: " + mUri, ex);
-      mCurrentState = STATE_ERROR;
-      mTargetState = STATE_ERROR;
-      ownErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+  /**
+   * Sets whether to resume the videos from the positions saved by
+   * {@link ResumePositionStore}, e.g. after the process is killed. The position is saved
+   * periodically while playing, on pause and on {@link #stopPlayback()}.
+   *
+   * @param enabled whether to resume.
+   */
+  public void setResumePositionEnabled(boolean enabled) {
+    ownEngine().setResumePositionStore(
+        enabled ? ResumePositionStore.getInstance(getContext()) : null);
+  }
+
+  /**
+   * Receives the playback position on every frame while playing and attached to the window,
+   * instead of polling {@link #getCurrentPosition()}. The positions of all the views are
+   * sampled together by {@link PositionTicker}.
+   *
+   * @param listener the listener, or null to stop.
+   */
+  public void setOnPositionChangedListener(PositionTicker.Listener listener) {
+    if (mPositionListener != null) {
+      PositionTicker.getInstance().unregister(mPositionListener);
+    }
+    mPositionListener = listener;
+    if (listener != null && getWindowToken() != null) {
+      PositionTicker.getInstance().register(mEngine, listener);
+    }
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    if (mPositionListener != null) {
+      PositionTicker.getInstance().register(mEngine, mPositionListener);
+    }
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    if (mPositionListener != null) {
+      PositionTicker.getInstance().unregister(mPositionListener);
     }
   }
 
+  /**
+   * Loads the thumbnail of the current video at the position for a seek preview, e.g. while
+   * dragging the seek bar. The thumbnail is extracted in the background by
+   * {@link ThumbnailExtractor}, the playback is not affected. The pending load of the same
+   * callback is cancelled, so only the latest position is extracted while dragging fast.
+   *
+   * @param positionMs the position to preview.
+   * @param width the max width of the thumbnail.
+   * @param height the max height of the thumbnail.
+   * @param callback receives the thumbnail on the main thread.
+   */
+  public void loadSeekPreview(long positionMs, int width, int height,
+                              ThumbnailExtractor.Callback callback) {
+    ThumbnailExtractor extractor = ThumbnailExtractor.getInstance(getContext());
+    extractor.cancel(callback);
+    extractor.load(mEngine.getUri(), mEngine.getHeaders(), positionMs, width, height, callback);
+  }
+
   public void setMediaController(MediaController controller) {
     if (mMediaController != null) {
       mMediaController.hide();
@@ -289,7 +348,7 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
   }
 
   private void attachMediaController() {
-    if (mMediaPlayer != null && mMediaController != null) {
+    if (mEngine.getUri() != null && mMediaController != null) {
       mMediaController.setMediaPlayer(this);
       View anchorView = this.getParent() instanceof View ? (View) this.getParent() : this;
       mMediaController.setAnchorView(anchorView);
@@ -297,142 +356,92 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
     }
   }
 
-  MediaPlayer.OnVideoSizeChangedListener ownSizeChangedListener =
-      new MediaPlayer.OnVideoSizeChangedListener() {
-        public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
-          mVideoWidth = mp.getVideoWidth();
-          mVideoHeight = mp.getVideoHeight();
-          // TODO 判断上层是否可以自行处理.
-          // if (mVideoWidth != 0 && mVideoHeight != 0) {
-          // getHolder().setFixedSize(mVideoWidth, mVideoHeight);
-          // requestLayout();
-          // }
-          if (mOnVideoSizeChangedListener != null) {
-            mOnVideoSizeChangedListener.onVideoSizeChanged(mp, width, height);
-          }
-        }
-      };
+  private final PlayerEngine.Callback mEngineCallback = new PlayerEngine.Callback() {
+    @Override
+    public void onStateChanged(int state) {
+      if (mMediaController != null) {
+        mMediaController.setEnabled(isInPlaybackState());
+      }
+    }
 
-  MediaPlayer.OnPreparedListener ownPreparedListener = new MediaPlayer.OnPreparedListener() {
-    public void onPrepared(MediaPlayer mp) {
-      logD("receive on Prepared method.");
-      mCurrentState = STATE_PREPARED;
+    @Override
+    public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+      mVideoWidth = width;
+      mVideoHeight = height;
+      // TODO 判断上层是否可以自行处理.
+      // if (mVideoWidth != 0 && mVideoHeight != 0) {
+      // getHolder().setFixedSize(mVideoWidth, mVideoHeight);
+      // requestLayout();
+      // }
+    }
 
-      if (mOnPreparedListener != null) {
-        mOnPreparedListener.onPrepared(mMediaPlayer);
-      }
+    @Override
+    public void onPrepared(MediaPlayer mp) {
       if (mMediaController != null) {
         mMediaController.setEnabled(true);
       }
-      mVideoWidth = mp.getVideoWidth();
-      mVideoHeight = mp.getVideoHeight();
+      mVideoWidth = mEngine.getVideoWidth();
+      mVideoHeight = mEngine.getVideoHeight();
 
-      int seekToPosition = mSeekWhenPrepared; // mSeekWhenPrepared may be changed after seekTo()
-                                              // call
-      if (seekToPosition != 0) {
-        seekTo(seekToPosition);
-      }
+      // seek 以及是否开始播放由播放线程处理，这里只处理尺寸和控制条.
       if (mVideoWidth != 0 && mVideoHeight != 0) {
         getHolder().setFixedSize(mVideoWidth, mVideoHeight);
         if (mSurfaceWidth == mVideoWidth && mSurfaceHeight == mVideoHeight) {
-          // We didn't actually change the size (it was already at the size
-          // we need), so we won't get a "surface changed" callback, so
-          // start the video here instead of in the callback.
-          if (mTargetState == STATE_PLAYING) {
+          if (mEngine.getTargetState() == PlayerEngine.STATE_PLAYING) {
             if (mMediaController != null) {
               mMediaController.show();
             }
-          } else if (!isPlaying() &&
-              (seekToPosition != 0 || getCurrentPosition() > 0)) {
+          } else if (!isPlaying() && getCurrentPosition() > 0) {
             if (mMediaController != null) {
               // Show the media controls when we're paused into a video and make 'em stick.
               mMediaController.show(0);
             }
           }
         }
-      } else {
-        // We don't know the video size yet, but should start anyway.
-        // The video size might be reported to us later.
-        if (mTargetState == STATE_PLAYING) {
-          start();
-        }
       }
     }
-  };
 
-  private MediaPlayer.OnCompletionListener ownCompletionListener =
-      new MediaPlayer.OnCompletionListener() {
-        public void onCompletion(MediaPlayer mp) {
-          mCurrentState = STATE_PLAYBACK_COMPLETED;
-          mTargetState = STATE_PLAYBACK_COMPLETED;
-          if (mMediaController != null) {
-            mMediaController.hide();
-          }
-          if (mOnCompletionListener != null) {
-            mOnCompletionListener.onCompletion(mMediaPlayer);
-          }
-        }
-      };
-
-  private MediaPlayer.OnSeekCompleteListener ownSeekCompleteListener =
-      new MediaPlayer.OnSeekCompleteListener() {
-        @Override
-        public void onSeekComplete(MediaPlayer mp) {
-          if (mOnSeekCompleteListener != null) {
-            mOnSeekCompleteListener.onSeekComplete(mp);
-          }
-        }
-      };
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+      if (mMediaController != null) {
+        mMediaController.hide();
+      }
+    }
 
-  private MediaPlayer.OnInfoListener ownInfoListener =
-      new MediaPlayer.OnInfoListener() {
-        public boolean onInfo(MediaPlayer mp, int arg1, int arg2) {
-          if (mOnInfoListener != null) {
-            mOnInfoListener.onInfo(mp, arg1, arg2);
-          }
-          return true;
-        }
-      };
-
-  private MediaPlayer.OnErrorListener ownErrorListener =
-      new MediaPlayer.OnErrorListener() {
-        public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
-          Log.d(TAG, "Error: " + framework_err + "," + impl_err);
-          mCurrentState = STATE_ERROR;
-          mTargetState = STATE_ERROR;
-          if (mMediaController != null) {
-            mMediaController.hide();
-          }
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+      // do nothing.
+    }
 
-          /* If an error handler has been supplied, use it and finish. */
-          if (mOnErrorListener != null) {
-            if (mOnErrorListener.onError(mMediaPlayer, framework_err, impl_err)) {
-              return true;
-            }
-          }
+    @Override
+    public void onInfo(MediaPlayer mp, int what, int extra) {
+      // do nothing.
+    }
 
-          return true;
-        }
-      };
-
-  private MediaPlayer.OnBufferingUpdateListener ownBufferingUpdateListener =
-      new MediaPlayer.OnBufferingUpdateListener() {
-        public void onBufferingUpdate(MediaPlayer mp, int percent) {
-          mCurrentBufferPercentage = percent;
-          if (mOnBufferingUpdateListener != null) {
-            mOnBufferingUpdateListener.onBufferingUpdate(mp, percent);
-          }
-        }
-      };
+    @Override
+    public void onError(MediaPlayer mp, int framework_err, int impl_err) {
+      Log.d(TAG, "Error: " + framework_err + "," + impl_err);
+      if (mMediaController != null) {
+        mMediaController.hide();
+      }
+    }
+
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+      // do nothing.
+    }
+  };
 
   /**
    * Register a callback to be invoked when the media file
-   * is loaded and ready to go.
+   * is loaded and ready to go. The MediaPlayer passed to this and the
+   * other MediaPlayer listeners is null unless the engine plays with
+   * {@link MediaPlayerCore}, see {@link PlayerEngine#setOnPreparedListener}.
    *
    * @param l The callback that will be run
    */
   public void setOnPreparedListener(MediaPlayer.OnPreparedListener l) {
-    mOnPreparedListener = l;
+    ownEngine().setOnPreparedListener(l);
   }
 
   /**
@@ -442,7 +451,7 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
    * @param l The callback that will be run
    */
   public void setOnCompletionListener(OnCompletionListener l) {
-    mOnCompletionListener = l;
+    ownEngine().setOnCompletionListener(l);
   }
 
   /**
@@ -454,7 +463,7 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
    * @param l The callback that will be run
    */
   public void setOnErrorListener(OnErrorListener l) {
-    mOnErrorListener = l;
+    ownEngine().setOnErrorListener(l);
   }
 
   /**
@@ -464,19 +473,61 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
    * @param l The callback that will be run
    */
   public void setOnInfoListener(OnInfoListener l) {
-    mOnInfoListener = l;
+    ownEngine().setOnInfoListener(l);
   }
 
   public void setOnSeekCompleteListener(MediaPlayer.OnSeekCompleteListener listener) {
-    mOnSeekCompleteListener = listener;
+    ownEngine().setOnSeekCompleteListener(listener);
   }
 
   public void setOnBufferingUpdateListener(MediaPlayer.OnBufferingUpdateListener listener) {
-    mOnBufferingUpdateListener = listener;
+    ownEngine().setOnBufferingUpdateListener(listener);
   }
 
   public void setOnVideoSizeChangedListener(MediaPlayer.OnVideoSizeChangedListener listener) {
-    mOnVideoSizeChangedListener = listener;
+    ownEngine().setOnVideoSizeChangedListener(listener);
+  }
+
+  /**
+   * Register a callback to receive the startup metrics of each playback session, e.g. the
+   * time from setting the uri to the first rendered frame.
+   *
+   * @param l The callback that will be run
+   */
+  public void setPlaybackMetricsListener(PlaybackMetrics.Listener l) {
+    ownEngine().setPlaybackMetricsListener(l);
+  }
+
+  /**
+   * Register a callback to receive the QoE summary of each playback session, e.g. the stalls
+   * and the watched duration, delivered after {@link #stopPlayback()}.
+   *
+   * @param l The callback that will be run
+   */
+  public void setQoeListener(QoeAggregator.Listener l) {
+    ownEngine().setQoeListener(l);
+  }
+
+  /**
+   * Register a callback to be invoked when the playlist set by
+   * {@link #setVideoPlaylist(List, Map)} moves on to the next video.
+   *
+   * @param l The callback that will be run
+   */
+  public void setPlaylistListener(PlayerEngine.PlaylistListener l) {
+    ownEngine().setPlaylistListener(l);
+  }
+
+  /**
+   * Sets whether to loop the video seamlessly, or to go back to the first video after the last
+   * one of the playlist.
+   */
+  public void setLooping(boolean looping) {
+    ownEngine().setLooping(looping);
+  }
+
+  public boolean isLooping() {
+    return mEngine.isLooping();
   }
 
   SurfaceHolder.Callback mSHCallback = new SurfaceHolder.Callback() {
@@ -484,45 +535,31 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
                                int w, int h) {
       mSurfaceWidth = w;
       mSurfaceHeight = h;
-      boolean isValidState = (mTargetState == STATE_PLAYING);
+      boolean isValidState = (mEngine.getTargetState() == PlayerEngine.STATE_PLAYING);
       boolean hasValidSize = (mVideoWidth == w && mVideoHeight == h);
-      if (mMediaPlayer != null && isValidState && hasValidSize) {
-        if (mSeekWhenPrepared != 0) {
-          seekTo(mSeekWhenPrepared);
-        }
+      if (isInPlaybackState() && isValidState && hasValidSize) {
         start();
       }
     }
 
     public void surfaceCreated(SurfaceHolder holder) {
       mSurfaceHolder = holder;
-      openVideo();
+      mEngine.setDisplay(mEngineCallback, holder);
     }
 
     public void surfaceDestroyed(SurfaceHolder holder) {
       // after we return from this we can't use the surface any more
       mSurfaceHolder = null;
       if (mMediaController != null) mMediaController.hide();
-      release(true);
-    }
-  };
-
-  /*
-   * release the media player in any state
-   */
-  private void release(boolean cleartargetstate) {
-    if (mMediaPlayer != null) {
-      mMediaPlayer.reset();
-      mMediaPlayer.release();
-      mMediaPlayer = null;
-      mCurrentState = STATE_IDLE;
-      if (cleartargetstate) {
-        mTargetState = STATE_IDLE;
+      if (mEngine.isAttached(mEngineCallback)) {
+        mEngine.releaseSync(true);
+        mEngine.setDisplay(mEngineCallback, null);
+      } else {
+        // 引擎已经交给了其他 View，只需要确认播放器不再使用这个 surface.
+        mEngine.detach(mEngineCallback);
       }
-      AudioManager am = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
-      am.abandonAudioFocus(null);
     }
-  }
+  };
 
   @Override
   public boolean onTouchEvent(MotionEvent ev) {
@@ -552,7 +589,7 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
     if (isInPlaybackState() && isKeyCodeSupported && mMediaController != null) {
       if (keyCode == KeyEvent.KEYCODE_HEADSETHOOK ||
           keyCode == KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE) {
-        if (mMediaPlayer.isPlaying()) {
+        if (isPlaying()) {
           pause();
           mMediaController.show();
         } else {
@@ -561,14 +598,14 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
         }
         return true;
       } else if (keyCode == KeyEvent.KEYCODE_MEDIA_PLAY) {
-        if (!mMediaPlayer.isPlaying()) {
+        if (!isPlaying()) {
           start();
           mMediaController.hide();
         }
         return true;
       } else if (keyCode == KeyEvent.KEYCODE_MEDIA_STOP
           || keyCode == KeyEvent.KEYCODE_MEDIA_PAUSE) {
-        if (mMediaPlayer.isPlaying()) {
+        if (isPlaying()) {
           pause();
           mMediaController.show();
         }
@@ -591,77 +628,78 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
 
   @Override
   public void start() {
-    if (isInPlaybackState()) {
-      mMediaPlayer.start();
-      mCurrentState = STATE_PLAYING;
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.start();
     }
-    mTargetState = STATE_PLAYING;
   }
 
   @Override
   public void pause() {
-    if (isInPlaybackState()) {
-      if (mMediaPlayer.isPlaying()) {
-        mMediaPlayer.pause();
-        mCurrentState = STATE_PAUSED;
-      }
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.pause();
     }
-    mTargetState = STATE_PAUSED;
   }
 
   public void suspend() {
-    release(false);
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.release(false);
+    }
   }
 
   public void resume() {
-    openVideo();
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.reopen();
+    }
   }
 
   @Override
   public int getDuration() {
-    if (isInPlaybackState()) {
-      return mMediaPlayer.getDuration();
-    }
-
-    return -1;
+    return mEngine.getDuration();
   }
 
   @Override
   public int getCurrentPosition() {
-    if (isInPlaybackState()) {
-      return mMediaPlayer.getCurrentPosition();
-    }
-    return 0;
+    return mEngine.getCurrentPosition();
   }
 
   @Override
   public void seekTo(int msec) {
-    if (isInPlaybackState()) {
-      mMediaPlayer.seekTo(msec);
-      mSeekWhenPrepared = 0;
-    } else {
-      mSeekWhenPrepared = msec;
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.seekTo(msec);
+    }
+  }
+
+  /**
+   * Seeks to the position, see {@link PlayerEngine#seekTo(int, boolean)}.
+   *
+   * @param scrubbing true while the user is dragging the seek bar, which trades the accuracy
+   *     for the speed; false once released.
+   */
+  public void seekTo(int msec, boolean scrubbing) {
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.seekTo(msec, scrubbing);
     }
   }
 
+  /**
+   * Returns the latency of the last completed seek in milliseconds, or -1 if none.
+   */
+  public long getLastSeekLatencyMs() {
+    return mEngine.getLastSeekLatencyMs();
+  }
+
   @Override
   public boolean isPlaying() {
-    return isInPlaybackState() && mMediaPlayer.isPlaying();
+    return mEngine.isPlaying();
   }
 
   @Override
   public int getBufferPercentage() {
-    if (mMediaPlayer != null) {
-      return mCurrentBufferPercentage;
-    }
-    return 0;
+    return mEngine.getBufferPercentage();
   }
 
   private boolean isInPlaybackState() {
-    return (mMediaPlayer != null &&
-        mCurrentState != STATE_ERROR &&
-        mCurrentState != STATE_IDLE &&
-        mCurrentState != STATE_PREPARING);
+    return mEngine.isInPlaybackState();
   }
 
   @Override
@@ -681,16 +719,7 @@ public class SurfaceVideoView extends SurfaceView implements MediaPlayerControl
 
   @Override
   public int getAudioSessionId() {
-    if (mAudioSession == 0) {
-      MediaPlayer foo = new MediaPlayer();
-      mAudioSession = foo.getAudioSessionId();
-      foo.release();
-    }
-    return mAudioSession;
-  }
-
-  private void logD(String message, Object... objects) {
-    Log.d(TAG, String.format(message, objects));
+    return mEngine.getAudioSessionId();
   }
 
 }
@@ -1,20 +1,23 @@
 package com.qisen.android.easydroid.media;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
-import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnInfoListener;
 import android.net.Uri;
-import android.opengl.GLES20;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.RequiresApi;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
+import android.view.PixelCopy;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
@@ -23,22 +26,28 @@ import android.view.accessibility.AccessibilityNodeInfo;
 import android.widget.MediaController;
 import android.widget.MediaController.MediaPlayerControl;
 
-import java.io.IOException;
-import java.util.Map;
+import com.qisen.android.easydroid.media.cache.VideoCacheProxy;
 
-import javax.microedition.khronos.egl.EGL10;
-import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.egl.EGLContext;
-import javax.microedition.khronos.egl.EGLDisplay;
-import javax.microedition.khronos.egl.EGLSurface;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * 利用 TextureView 实现的系统播放核。
  *
  * ### 生命周期
- * 维持一个 MediaPlayer，这个 MediaPlayer 需要在 {@link #setVideoURI(Uri, Map)} 的时候，新建一个；
- * 同时在 {@link #stopPlayback()} 的时候，进行销毁，释放资源。同时相关的 {@link #mSurface}、
- * {@link #mSurfaceTexture} 也要跟随生命周期进行释放。
+ * MediaPlayer 由 {@link PlayerEngine} 在播放线程上持有，在 {@link #setVideoURI(Uri, Map)} 的时候
+ * 打开一个新的视频；同时在 {@link #stopPlayback()} 的时候，进行销毁，释放资源。同时相关的
+ * {@link #mSurface}、{@link #mSurfaceTexture} 也要跟随生命周期进行释放。
+ *
+ * ### 线程
+ * 播放器的创建、数据源的设置以及所有的 MediaPlayer 回调都在播放线程执行，这个 View 只在主线程
+ * 接收合并之后的状态变化，{@link MediaPlayerControl} 的方法可以在任意线程调用。
+ *
+ * ### 切换 View
+ * 播放状态和 listener 都保存在 {@link PlayerEngine} 中，这个 View 只负责提供 surface 和控制条。
+ * 通过 {@link #setPlayerEngine(PlayerEngine)} 把正在播放的引擎交给另一个 View，播放会在新的
+ * surface 上继续，不需要重新 prepare。
  *
  * ### 相关回调
  * 有些回调，在系统播放核中没有给出。这里做一些扩展，将其他接口也暴露出去。
@@ -48,6 +57,47 @@ import javax.microedition.khronos.egl.EGLSurface;
  * ### 适配调整
  * 移除系统核中，一些自定义的处理，例如错误对话框。
  *
+ * ### 播放核
+ * 默认通过 {@link MediaPlayerCore} 使用系统 MediaPlayer，
+ * {@link #setPlayerCoreFactory(PlayerCore.Factory)} 可以为这个 View 换成 {@link ExoPlayerCore}
+ * 等其他播放核。
+ *
+ * ### 播放器复用
+ * MediaPlayer 从 {@link MediaPlayerPool} 中获取，释放的时候放回池中复用。通过
+ * {@link #preload(Uri, Map)} 可以提前准备下一个视频，之后对相同 Uri 调用
+ * {@link #setVideoURI(Uri, Map)} 时直接使用已经准备好的播放器。
+ *
+ * ### 播放列表
+ * {@link #setVideoPlaylist(List, Map)} 依次播放多个视频，下一个视频在当前视频播放时提前准备，
+ * 切换时只交接 surface，没有黑屏的间隔；{@link #setLooping(boolean)} 无缝循环单个视频。
+ *
+ * ### 缓存
+ * 开启 {@link VideoCacheProxy} 之后，远程视频经由本地代理播放，已经下载过的部分直接从磁盘读取。
+ *
+ * ### 截帧
+ * {@link #captureFrame(int, int, FrameCallback)} 把当前画面复制到 {@link BitmapPool} 中复用的
+ * Bitmap 上，7.0 以上通过 PixelCopy 在播放线程复制，之前的版本在主线程通过
+ * {@link #getBitmap(Bitmap)} 复制。两种方式得到的都是完整的视频画面，不受缩放方式影响，默认使用
+ * 视频的尺寸。
+ *
+ * ### 缩放
+ * 通过 {@link #setScaleMode(int)} 选择画面的缩放方式，缩放由 {@link #setTransform(Matrix)} 完成。
+ * View 的宽高确定时（EXACTLY），视频尺寸变化只会更新矩阵，不会触发 requestLayout；只有宽高依赖
+ * 视频尺寸时才重新测量。
+ *
+ * ### 进度
+ * {@link #setOnPositionChangedListener(PositionTicker.Listener)} 跟随屏幕刷新接收播放进度，多个
+ * View 共用一次帧回调，进度由引擎的快照插值得到，不会调用 MediaPlayer。
+ *
+ * ### 预览
+ * {@link #loadSeekPreview(long, int, int, ThumbnailExtractor.Callback)} 通过
+ * {@link ThumbnailExtractor} 在后台提取当前视频指定位置的缩略图，拖动进度条时不需要 seek 播放器。
+ *
+ * ### 保留 surface
+ * 开启 {@link #setRetainOnDetach(boolean)} 之后，View 从窗口移除时会暂停播放，保留已经准备好的
+ * 播放器以及 SurfaceTexture，重新添加到窗口时通过 {@link #setSurfaceTexture(SurfaceTexture)}
+ * 恢复，不会出现黑帧，也不需要重新 prepare。保留的时长和内存由 {@link SurfaceRetainer} 限制。
+ *
  * @author qisen.tqs@alibaba-inc.com
  */
 @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
@@ -55,57 +105,55 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
   private static final String TAG = "TextureVideoView";
 
-  // all possible internal states
-  private static final int STATE_ERROR = -1;
-  private static final int STATE_IDLE = 0;
-  private static final int STATE_PREPARING = 1;
-  private static final int STATE_PREPARED = 2;
-  private static final int STATE_PLAYING = 3;
-  private static final int STATE_PAUSED = 4;
-  private static final int STATE_PLAYBACK_COMPLETED = 5;
-
-  // settable by the client
-  private Uri mUri;
-  private Map<String, String> mHeaders;
-
-  // mCurrentState is a TextureVideoView object's current state.
-  // mTargetState is the state that a method caller intends to reach.
-  // For instance, regardless the TextureVideoView object's current state,
-  // calling pause() intends to bring the object to a target state
-  // of STATE_PAUSED.
-  private int mCurrentState = STATE_IDLE;
-  private int mTargetState = STATE_IDLE;
+  private static final long CLEAR_TIMEOUT_MS = 500;
+
+  /**
+   * Scales the video to fit inside the view, keeping the aspect ratio.
+   */
+  public static final int SCALE_FIT = 0;
+  /**
+   * Scales the video to fill the view, keeping the aspect ratio and cropping the overflow.
+   */
+  public static final int SCALE_CENTER_CROP = 1;
+  /**
+   * Stretches the video to the size of the view.
+   */
+  public static final int SCALE_FILL = 2;
+  /**
+   * Scales the video to the width of the view, keeping the aspect ratio, centered vertically.
+   */
+  public static final int SCALE_FIXED_WIDTH = 3;
 
   // All the stuff we need for playing and showing a video.
   private Surface mSurface = null;
   // show the data of the mSurface to mSurfaceTexture.
   private SurfaceTexture mSurfaceTexture = null;
-  // real media player to execute.
-  private MediaPlayer mMediaPlayer = null;
-
-  // media player listeners
-  private OnCompletionListener mOnCompletionListener;
-  private MediaPlayer.OnPreparedListener mOnPreparedListener;
-  private OnErrorListener mOnErrorListener;
-  private OnInfoListener mOnInfoListener;
-  private MediaPlayer.OnSeekCompleteListener mOnSeekCompleteListener;
-  private MediaPlayer.OnBufferingUpdateListener mOnBufferingUpdateListener;
-  private MediaPlayer.OnVideoSizeChangedListener mOnVideoSizeChangedListener;
-
-  private int mAudioSession;
+  // real media player to execute, running on the player thread.
+  private PlayerEngine mEngine;
+
   private int mVideoWidth;
   private int mVideoHeight;
 
-  private int mCurrentBufferPercentage;
-  // recording the seek position while preparing
-  private int mSeekWhenPrepared;
+  private int mScaleMode = SCALE_FIT;
+  // whether the measured size does not depend on the video size.
+  private boolean mMeasuredExactly;
+  private final Matrix mTransform = new Matrix();
+
   private boolean mCanPause;
   private boolean mCanSeekBack;
   private boolean mCanSeekForward;
-  private boolean mShouldRequestAudioFocus = true;
+
+  private boolean mClearOnSwitch;
+  private boolean mHoldingClearer;
+  private boolean mRetainOnDetach;
+  // whether the surface and the player are retained by SurfaceRetainer while detached.
+  private boolean mRetained;
 
   // optional
   private MediaController mMediaController;
+  private PositionTicker.Listener mPositionListener;
+
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
   private TextureView.SurfaceTextureListener mSurfaceTextureListener =
       new SurfaceTextureListener() {
@@ -118,29 +166,39 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
         @Override
         public void onSurfaceTextureAvailable(final SurfaceTexture surfaceTexture, final int width,
                                               final int height) {
-          logE("surface available");
+          PlaybackTracer.trace(PlaybackTracer.LEVEL_VERBOSE, PlaybackTracer.EVENT_SURFACE_AVAILABLE,
+              mEngine.getSessionId(), width, height);
           // 当 surface 已经准备好的时候，尝试去检查当前是否有视频需要播放。
-          if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            // 6.0 和以上机型
-            if (mSurfaceTexture == null) {
-              mSurfaceTexture = surfaceTexture;
-            } else {
-              setSurfaceTexture(mSurfaceTexture);
+          if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mSurfaceTexture != null) {
+            // 6.0 和以上机型，沿用之前的 SurfaceTexture
+            setSurfaceTexture(mSurfaceTexture);
+            if (mSurface == null) {
+              mSurface = new Surface(mSurfaceTexture);
             }
-            mSurface = new Surface(mSurfaceTexture);
           } else {
             // 6.0 以下机型，有新的直接更新
             mSurfaceTexture = surfaceTexture;
             mSurface = new Surface(mSurfaceTexture);
-            if (mMediaPlayer != null) {
-              mMediaPlayer.setSurface(mSurface);
-            }
           }
+          // 播放线程拿到 surface 之后，如果有等待打开的视频，会开始准备.
+          mEngine.setSurface(mEngineCallback, mSurface);
         }
 
         @Override
         public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
-          logE("surface destroyed");
+          PlaybackTracer.trace(PlaybackTracer.LEVEL_VERBOSE, PlaybackTracer.EVENT_SURFACE_DESTROYED,
+              mEngine.getSessionId(), 0, 0);
+          if (mRetained && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // 保留 SurfaceTexture，重新添加到窗口的时候继续使用.
+            return false;
+          }
+          if (mRetainOnDetach) {
+            // 6.0 以下机型无法复用 SurfaceTexture，只保留播放器，输出交给下一个 surface.
+            mEngine.setSurface(mEngineCallback, null);
+            mSurfaceTexture = null;
+            releaseSurface();
+            return true;
+          }
           return mSurfaceTexture == null;
         }
 
@@ -161,6 +219,8 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
   public TextureVideoView(Context context, AttributeSet attrs, int defStyle) {
     super(context, attrs, defStyle);
 
+    mEngine = new PlayerEngine(context);
+    mEngine.attach(mEngineCallback);
     mVideoWidth = 0;
     mVideoHeight = 0;
 
@@ -169,35 +229,25 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     setFocusable(true);
     setFocusableInTouchMode(true);
     requestFocus();
-
-    mCurrentState = STATE_IDLE;
-    mTargetState = STATE_IDLE;
   }
 
   @Override
   protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 
+    int widthSpecMode = MeasureSpec.getMode(widthMeasureSpec);
+    int heightSpecMode = MeasureSpec.getMode(heightMeasureSpec);
+    mMeasuredExactly = widthSpecMode == MeasureSpec.EXACTLY
+        && heightSpecMode == MeasureSpec.EXACTLY;
+
     int width = getDefaultSize(mVideoWidth, widthMeasureSpec);
     int height = getDefaultSize(mVideoHeight, heightMeasureSpec);
-    if (mVideoWidth > 0 && mVideoHeight > 0) {
+    // 宽高确定的时候保持测量尺寸，画面比例由矩阵处理.
+    if (mVideoWidth > 0 && mVideoHeight > 0 && !mMeasuredExactly) {
 
-      int widthSpecMode = MeasureSpec.getMode(widthMeasureSpec);
       int widthSpecSize = MeasureSpec.getSize(widthMeasureSpec);
-      int heightSpecMode = MeasureSpec.getMode(heightMeasureSpec);
       int heightSpecSize = MeasureSpec.getSize(heightMeasureSpec);
 
-      if (widthSpecMode == MeasureSpec.EXACTLY && heightSpecMode == MeasureSpec.EXACTLY) {
-        // the size is fixed
-        width = widthSpecSize;
-        height = heightSpecSize;
-
-        // for compatibility, we adjust size based on aspect ratio
-        if (mVideoWidth * height < width * mVideoHeight) {
-          width = height * mVideoWidth / mVideoHeight;
-        } else if (mVideoWidth * height > width * mVideoHeight) {
-          height = width * mVideoHeight / mVideoWidth;
-        }
-      } else if (widthSpecMode == MeasureSpec.EXACTLY) {
+      if (widthSpecMode == MeasureSpec.EXACTLY) {
         // only the width is fixed, adjust the height to match aspect ratio if possible
         width = widthSpecSize;
         height = width * mVideoHeight / mVideoWidth;
@@ -232,6 +282,74 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     setMeasuredDimension(width, height);
   }
 
+  @Override
+  protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+    super.onSizeChanged(w, h, oldw, oldh);
+    updateTransform();
+  }
+
+  /**
+   * Sets how the video is scaled inside the view. Takes effect without a layout pass.
+   *
+   * @param scaleMode one of {@link #SCALE_FIT}, {@link #SCALE_CENTER_CROP},
+   *          {@link #SCALE_FILL} and {@link #SCALE_FIXED_WIDTH}.
+   */
+  public void setScaleMode(int scaleMode) {
+    if (mScaleMode != scaleMode) {
+      mScaleMode = scaleMode;
+      updateTransform();
+    }
+  }
+
+  public int getScaleMode() {
+    return mScaleMode;
+  }
+
+  /*
+   * 视频尺寸变化时调用，View 尺寸不依赖视频尺寸的时候只更新矩阵.
+   */
+  private void onVideoSizeUpdated() {
+    if (!mMeasuredExactly) {
+      requestLayout();
+    }
+    updateTransform();
+  }
+
+  /*
+   * TextureView 默认把画面拉伸到 View 的尺寸，这里按照缩放方式把画面缩放回视频比例.
+   */
+  private void updateTransform() {
+    int viewWidth = getWidth();
+    int viewHeight = getHeight();
+    if (viewWidth == 0 || viewHeight == 0 || mVideoWidth == 0 || mVideoHeight == 0) {
+      return;
+    }
+    float scaleX = (float) viewWidth / mVideoWidth;
+    float scaleY = (float) viewHeight / mVideoHeight;
+    float scale;
+    switch (mScaleMode) {
+      case SCALE_CENTER_CROP:
+        scale = Math.max(scaleX, scaleY);
+        break;
+      case SCALE_FILL:
+        scale = 0;
+        break;
+      case SCALE_FIXED_WIDTH:
+        scale = scaleX;
+        break;
+      case SCALE_FIT:
+      default:
+        scale = Math.min(scaleX, scaleY);
+        break;
+    }
+    if (scale == 0) {
+      mTransform.reset();
+    } else {
+      mTransform.setScale(scale / scaleX, scale / scaleY, viewWidth / 2F, viewHeight / 2F);
+    }
+    setTransform(mTransform);
+  }
+
   @Override
   public void onInitializeAccessibilityEvent(AccessibilityEvent event) {
     super.onInitializeAccessibilityEvent(event);
@@ -277,123 +395,360 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
    *          to disallow or allow cross domain redirection.
    */
   public void setVideoURI(Uri uri, Map<String, String> headers) {
-    mUri = uri;
+    // 开启了缓存代理的时候，远程视频经由本地代理播放.
+    Uri playUri = VideoCacheProxy.proxy(uri);
+
+    if (!mMeasuredExactly) {
+      requestLayout();
+    }
+    invalidate();
+
+    // 重新播放前，重置MediaPlayer，以免遇到错误的播放情况.
+    releasePlayerSource(true, false);
+    if (mClearOnSwitch) {
+      clearSurface();
+    }
+    ownEngine().open(playUri, headers);
+    attachMediaController();
+  }
+
+  /**
+   * Sets the variants of the video at different bitrates. The variant is selected by the
+   * bandwidth measured by {@link com.qisen.android.easydroid.media.cache.BandwidthEstimator},
+   * and selected again when the playback is retried after a network failure.
+   *
+   * @param variants the variants of the video, in any order.
+   * @param headers the headers for the URI request.
+   */
+  public void setVideoVariants(List<VideoVariant> variants, Map<String, String> headers) {
+    if (!mMeasuredExactly) {
+      requestLayout();
+    }
+    invalidate();
 
-    logE("Start to play video %s", mUri.toString());
+    releasePlayerSource(true, false);
+    if (mClearOnSwitch) {
+      clearSurface();
+    }
+    ownEngine().open(variants, headers);
+    attachMediaController();
+  }
 
-    mHeaders = headers;
-    mSeekWhenPrepared = 0;
-    requestLayout();
+  /**
+   * Sets the videos to play one after another without a gap. The next video is prepared while
+   * the current one plays, see {@link PlayerEngine#openPlaylist(List, Map)}.
+   *
+   * @param uris the URIs of the videos in order.
+   * @param headers the headers for all the URI requests.
+   */
+  public void setVideoPlaylist(List<Uri> uris, Map<String, String> headers) {
+    List<Uri> playUris = new ArrayList<>(uris.size());
+    for (Uri uri : uris) {
+      playUris.add(VideoCacheProxy.proxy(uri));
+    }
+
+    if (!mMeasuredExactly) {
+      requestLayout();
+    }
     invalidate();
 
-    if (mMediaPlayer != null) {
-      // 重新播放前，重置MediaPlayer，以免遇到错误的播放情况.
-      releasePlayerSource(true, false);
+    releasePlayerSource(true, false);
+    if (mClearOnSwitch) {
+      clearSurface();
     }
-    prepareMediaPlayer();
+    ownEngine().openPlaylist(playUris, headers);
+    attachMediaController();
   }
 
   public void stopPlayback() {
+    if (mRetained) {
+      SurfaceRetainer.getInstance().remove(this);
+      mRetained = false;
+    }
     releasePlayerSource(true);
   }
 
   /**
-   * Clears the surface texture by attaching a GL context and clearing it.
-   * Code taken from <a href="http://stackoverflow.com/a/31582209">Hugo Gresse's answer on
-   * stackoverflow.com</a>.
+   * Sets whether to retain the prepared player and the surface texture when the view is
+   * detached from the window, e.g. recycled in a RecyclerView. The playback is paused while
+   * detached, and the last frame is shown immediately when attached again.
+   *
+   * @param retainOnDetach whether to retain.
+   * @see SurfaceRetainer
    */
-  private void clearSurface() {
-    if (mSurface == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
-      return;
+  public void setRetainOnDetach(boolean retainOnDetach) {
+    mRetainOnDetach = retainOnDetach;
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    holdSurfaceClearer(mClearOnSwitch);
+    if (mPositionListener != null) {
+      PositionTicker.getInstance().register(mEngine, mPositionListener);
     }
+    if (mRetained) {
+      SurfaceRetainer.getInstance().remove(this);
+      mRetained = false;
+    }
+  }
 
-    EGL10 egl = (EGL10) EGLContext.getEGL();
-    EGLDisplay display = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-    egl.eglInitialize(display, null);
-
-    int[] attribList = {
-        EGL10.EGL_RED_SIZE, 8,
-        EGL10.EGL_GREEN_SIZE, 8,
-        EGL10.EGL_BLUE_SIZE, 8,
-        EGL10.EGL_ALPHA_SIZE, 8,
-        EGL10.EGL_RENDERABLE_TYPE, EGL10.EGL_WINDOW_BIT,
-        EGL10.EGL_NONE, 0, // placeholder for recordable [@-3]
-        EGL10.EGL_NONE
-    };
-    EGLConfig[] configs = new EGLConfig[1];
-    int[] numConfigs = new int[1];
-    egl.eglChooseConfig(display, attribList, configs, configs.length, numConfigs);
-    EGLConfig config = configs[0];
-    EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, new int[] {
-        12440, 2, EGL10.EGL_NONE
-    });
-    EGLSurface eglSurface = egl.eglCreateWindowSurface(display, config, mSurface, new int[] {
-        EGL10.EGL_NONE
-    });
+  @Override
+  protected void onDetachedFromWindow() {
+    // 需要在 TextureView 回调 onSurfaceTextureDestroyed 之前决定是否保留.
+    if (mRetainOnDetach && mEngine.isAttached(mEngineCallback) && mEngine.getUri() != null) {
+      mEngine.pause();
+      int width = mVideoWidth > 0 ? mVideoWidth : getWidth();
+      int height = mVideoHeight > 0 ? mVideoHeight : getHeight();
+      mRetained = SurfaceRetainer.getInstance()
+          .retain(this, SurfaceRetainer.estimateBytes(width, height));
+      if (!mRetained) {
+        releasePlayerSource(true, false);
+      }
+    }
+    super.onDetachedFromWindow();
+    holdSurfaceClearer(false);
+    if (mPositionListener != null) {
+      PositionTicker.getInstance().unregister(mPositionListener);
+    }
+  }
 
-    egl.eglMakeCurrent(display, eglSurface, eglSurface, context);
-    GLES20.glClearColor(0, 0, 0, 1);
-    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-    egl.eglSwapBuffers(display, eglSurface);
-    egl.eglDestroySurface(display, eglSurface);
-    egl.eglMakeCurrent(display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
-    egl.eglDestroyContext(display, context);
-    egl.eglTerminate(display);
+  /*
+   * 保留超时或者内存不足时，由 SurfaceRetainer 调用.
+   */
+  void releaseRetained() {
+    mRetained = false;
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.release(true);
+    }
+    releaseSurface();
+  }
 
+  /**
+   * Returns the engine rendered by this view, which could be passed to another view by
+   * {@link #setPlayerEngine(PlayerEngine)}.
+   */
+  public PlayerEngine getPlayerEngine() {
+    return mEngine;
+  }
+
+  /**
+   * Renders the engine in this view. If the engine is playing in another view, the playback
+   * continues on the surface of this view without preparing again. The listeners travel with
+   * the engine, and the controls of this view affect the playback of the engine afterwards.
+   * The controls of the previous view are ignored from then on. Once it opens a video or sets
+   * a listener again, it plays with a new engine of the same listeners and settings.
+   *
+   * @param engine the engine to render.
+   */
+  public void setPlayerEngine(PlayerEngine engine) {
+    if (engine != mEngine) {
+      mEngine.detach(mEngineCallback);
+      mEngine = engine;
+    }
+    mEngine.attach(mEngineCallback);
     if (mSurface != null) {
-      mSurface.release();
-      mSurface = null;
+      mEngine.setSurface(mEngineCallback, mSurface);
     }
+    if (mPositionListener != null && getWindowToken() != null) {
+      PositionTicker.getInstance().register(mEngine, mPositionListener);
+    }
+    attachMediaController();
+  }
+  /*
+   * 引擎交给其他 View 之后，这个 View 的控制都被忽略；再次设置视频或者 listener 时换一个新的引擎，
+   * 沿用之前的 listener 和设置，不影响对方的播放.
+   */
+  private PlayerEngine ownEngine() {
+    if (mEngine.isAttached(mEngineCallback)) {
+      return mEngine;
+    }
+    mEngine = mEngine.newEngineLike(getContext());
+    mEngine.attach(mEngineCallback);
+    if (mSurface != null) {
+      mEngine.setSurface(mEngineCallback, mSurface);
+    }
+    if (mPositionListener != null && getWindowToken() != null) {
+      PositionTicker.getInstance().register(mEngine, mPositionListener);
+    }
+    return mEngine;
+  }
+
+
+  /**
+   * Selects the core to play the videos of this view, e.g. {@link ExoPlayerCore.Factory}, null
+   * to use {@link PlayerEngine#setDefaultCoreFactory(PlayerCore.Factory)}. Takes effect when the
+   * next video is opened.
+   */
+  public void setPlayerCoreFactory(PlayerCore.Factory factory) {
+    ownEngine().setCoreFactory(factory);
   }
 
-  private void prepareMediaPlayer() {
-    logE("prepare player source");
+  /**
+   * Sets whether to resume the videos from the positions saved by
+   * {@link ResumePositionStore}, e.g. after the process is killed. The position is saved
+   * periodically while playing, on pause and on {@link #stopPlayback()}.
+   *
+   * @param enabled whether to resume.
+   */
+  public void setResumePositionEnabled(boolean enabled) {
+    ownEngine().setResumePositionStore(
+        enabled ? ResumePositionStore.getInstance(getContext()) : null);
+  }
+
+  /**
+   * Receives the playback position on every frame while playing and attached to the window,
+   * instead of polling {@link #getCurrentPosition()}. The positions of all the views are
+   * sampled together by {@link PositionTicker}.
+   *
+   * @param listener the listener, or null to stop.
+   */
+  public void setOnPositionChangedListener(PositionTicker.Listener listener) {
+    if (mPositionListener != null) {
+      PositionTicker.getInstance().unregister(mPositionListener);
+    }
+    mPositionListener = listener;
+    if (listener != null && getWindowToken() != null) {
+      PositionTicker.getInstance().register(mEngine, listener);
+    }
+  }
+
+  /**
+   * Prepares the video off-screen in advance. Calling {@link #setVideoURI(Uri, Map)} with
+   * the same uri and headers later will reuse the prepared player and start rendering
+   * immediately. Ignored unless the view plays with {@link MediaPlayerCore}.
+   *
+   * @param uri the URI of the video.
+   * @param headers the headers for the URI request.
+   * @see MediaPlayerPool
+   */
+  public void preload(Uri uri, Map<String, String> headers) {
+    if (mEngine.getCoreFactory() != MediaPlayerCore.FACTORY) {
+      // 只有 MediaPlayerCore 会使用预加载的播放器.
+      return;
+    }
+    MediaPlayerPool.getInstance().preload(getContext(), VideoCacheProxy.proxy(uri), headers);
+  }
 
-    if (mUri == null || mSurface == null) {
-      // not ready for playback just yet, will try again later
+  /**
+   * Captures the current frame into a bitmap of the size. The whole decoded frame is captured
+   * regardless of {@link #setScaleMode(int)}, stretched if the size has a different aspect
+   * ratio from the video. The bitmap is taken from {@link BitmapPool}, and should be returned
+   * by {@link BitmapPool#put(Bitmap)} after used. Must be called on the main thread.
+   *
+   * @param width the width of the bitmap, or 0 to use the width of the video.
+   * @param height the height of the bitmap, or 0 to use the height of the video.
+   * @param callback invoked on the main thread with the bitmap, or null if failed.
+   */
+  public void captureFrame(int width, int height, final FrameCallback callback) {
+    // 视频尺寸未知时退回到 View 的尺寸.
+    final int bitmapWidth = width > 0 ? width : (mVideoWidth > 0 ? mVideoWidth : getWidth());
+    final int bitmapHeight = height > 0 ? height
+        : (mVideoHeight > 0 ? mVideoHeight : getHeight());
+    if (bitmapWidth <= 0 || bitmapHeight <= 0 || mSurface == null) {
+      callback.onFrameCaptured(null);
       return;
     }
+    final Bitmap bitmap = BitmapPool.getInstance().get(bitmapWidth, bitmapHeight);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && mSurface.isValid()) {
+      // 在播放线程上复制最后一帧，不占用主线程.
+      PixelCopy.request(mSurface, bitmap, new PixelCopy.OnPixelCopyFinishedListener() {
+        @Override
+        public void onPixelCopyFinished(final int copyResult) {
+          mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              if (copyResult == PixelCopy.SUCCESS) {
+                callback.onFrameCaptured(bitmap);
+              } else {
+                copyFrame(bitmap, callback);
+              }
+            }
+          });
+        }
+      }, PlayerThread.getHandler());
+      return;
+    }
+    copyFrame(bitmap, callback);
+  }
 
-    if (mShouldRequestAudioFocus) {
-      AudioManager am = (AudioManager) getContext().getApplicationContext()
-          .getSystemService(Context.AUDIO_SERVICE);
-      am.requestAudioFocus(null, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
+  private void copyFrame(Bitmap bitmap, FrameCallback callback) {
+    if (!isAvailable()) {
+      BitmapPool.getInstance().put(bitmap);
+      callback.onFrameCaptured(null);
+      return;
+    }
+    // 和 PixelCopy 一样复制完整的画面，不带缩放方式的矩阵.
+    boolean transformed = !mTransform.isIdentity();
+    if (transformed) {
+      setTransform(null);
+    }
+    getBitmap(bitmap);
+    if (transformed) {
+      setTransform(mTransform);
     }
+    callback.onFrameCaptured(bitmap);
+  }
+
+  /**
+   * Loads the thumbnail of the current video at the position for a seek preview, e.g. while
+   * dragging the seek bar. The thumbnail is extracted in the background by
+   * {@link ThumbnailExtractor}, the playback is not affected. The pending load of the same
+   * callback is cancelled, so only the latest position is extracted while dragging fast.
+   *
+   * @param positionMs the position to preview.
+   * @param width the max width of the thumbnail.
+   * @param height the max height of the thumbnail.
+   * @param callback receives the thumbnail on the main thread.
+   */
+  public void loadSeekPreview(long positionMs, int width, int height,
+                              ThumbnailExtractor.Callback callback) {
+    ThumbnailExtractor extractor = ThumbnailExtractor.getInstance(getContext());
+    extractor.cancel(callback);
+    extractor.load(mEngine.getUri(), mEngine.getHeaders(), positionMs, width, height, callback);
+  }
 
-    try {
-      mMediaPlayer = new MediaPlayer();
+  /**
+   * Sets whether to clear the last frame of the previous video to black when switching to
+   * another video by {@link #setVideoURI(Uri, Map)}.
+   *
+   * @param clearOnSwitch whether to clear.
+   * @see EglSurfaceClearer
+   */
+  public void setClearOnSwitch(boolean clearOnSwitch) {
+    mClearOnSwitch = clearOnSwitch;
+    holdSurfaceClearer(clearOnSwitch && getWindowToken() != null);
+  }
 
-      if (mAudioSession != 0) {
-        mMediaPlayer.setAudioSessionId(mAudioSession);
-      } else {
-        mAudioSession = mMediaPlayer.getAudioSessionId();
-      }
+  // the shared GL thread is only kept while there are attached views using it.
+  private void holdSurfaceClearer(boolean hold) {
+    if (mHoldingClearer == hold) {
+      return;
+    }
+    mHoldingClearer = hold;
+    if (hold) {
+      EglSurfaceClearer.getInstance().acquire();
+    } else {
+      EglSurfaceClearer.getInstance().release();
+    }
+  }
 
-      mCurrentBufferPercentage = 0;
-
-      mMediaPlayer.setOnPreparedListener(mPreparedListener);
-      mMediaPlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
-      mMediaPlayer.setOnCompletionListener(mCompletionListener);
-      mMediaPlayer.setOnErrorListener(mErrorListener);
-      mMediaPlayer.setOnInfoListener(mInfoListener);
-      mMediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
-      mMediaPlayer.setOnSeekCompleteListener(mSeekCompleteListener);
-      mMediaPlayer.setDataSource(getContext().getApplicationContext(), mUri, mHeaders);
-      mMediaPlayer.setSurface(mSurface);
-      mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-      mMediaPlayer.setScreenOnWhilePlaying(true);
-      mMediaPlayer.prepareAsync();
-
-      // we don't set the target state here either, but preserve the
-      // target state that was there before.
-      mCurrentState = STATE_PREPARING;
-      attachMediaController();
-    } catch (IllegalArgumentException | IOException ex) {
-      Log.w(TAG, "Unable to open content: " + mUri, ex);
-      mCurrentState = STATE_ERROR;
-      mTargetState = STATE_ERROR;
-      mErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+  /**
+   * Clears the surface to black on the shared GL thread, after the player issued before is
+   * released, so the surface is not connected to the player at the same time.
+   */
+  private void clearSurface() {
+    final Surface surface = mSurface;
+    if (surface == null || !mEngine.isAttached(mEngineCallback)) {
+      return;
     }
+    // 播放线程会等待清除完成，之后才会把 surface 交给新的播放器.
+    mEngine.post(new Runnable() {
+      @Override
+      public void run() {
+        EglSurfaceClearer.getInstance().clear(surface, CLEAR_TIMEOUT_MS);
+      }
+    });
   }
 
   public void setMediaController(MediaController controller) {
@@ -405,7 +760,7 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
   }
 
   private void attachMediaController() {
-    if (mMediaPlayer != null && mMediaController != null) {
+    if (mEngine.getUri() != null && mMediaController != null) {
       mMediaController.setMediaPlayer(this);
       View anchorView = this.getParent() instanceof View ? (View) this.getParent() : this;
       mMediaController.setAnchorView(anchorView);
@@ -413,45 +768,47 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     }
   }
 
-  MediaPlayer.OnVideoSizeChangedListener mSizeChangedListener =
-      new MediaPlayer.OnVideoSizeChangedListener() {
-        public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
-          mVideoWidth = mp.getVideoWidth();
-          mVideoHeight = mp.getVideoHeight();
-          if (mVideoWidth != 0 && mVideoHeight != 0 && getSurfaceTexture() != null) {
-            getSurfaceTexture().setDefaultBufferSize(mVideoWidth, mVideoHeight);
-            requestLayout();
-          }
-          if (mOnVideoSizeChangedListener != null) {
-            mOnVideoSizeChangedListener.onVideoSizeChanged(mp, width, height);
-          }
-        }
-      };
+  private final PlayerEngine.Callback mEngineCallback = new PlayerEngine.Callback() {
+    @Override
+    public void onStateChanged(int state) {
+      if (isInPlaybackState()) {
+        mCanPause = mCanSeekBack = mCanSeekForward = true;
+      }
+      if (mMediaController != null) {
+        mMediaController.setEnabled(isInPlaybackState());
+      }
+    }
 
-  MediaPlayer.OnPreparedListener mPreparedListener = new MediaPlayer.OnPreparedListener() {
-    public void onPrepared(MediaPlayer mp) {
-      mCurrentState = STATE_PREPARED;
+    @Override
+    public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+      mVideoWidth = width;
+      mVideoHeight = height;
+      if (mVideoWidth != 0 && mVideoHeight != 0 && getSurfaceTexture() != null) {
+        getSurfaceTexture().setDefaultBufferSize(mVideoWidth, mVideoHeight);
+      }
+      if (mVideoWidth != 0 && mVideoHeight != 0) {
+        onVideoSizeUpdated();
+      }
+    }
 
+    @Override
+    public void onPrepared(MediaPlayer mp) {
       mCanPause = mCanSeekBack = mCanSeekForward = true;
 
-      if (mOnPreparedListener != null) {
-        mOnPreparedListener.onPrepared(mMediaPlayer);
-      }
       if (mMediaController != null) {
         mMediaController.setEnabled(true);
       }
-      mVideoWidth = mp.getVideoWidth();
-      mVideoHeight = mp.getVideoHeight();
+      mVideoWidth = mEngine.getVideoWidth();
+      mVideoHeight = mEngine.getVideoHeight();
 
       if (mVideoWidth != 0 && mVideoHeight != 0) {
+        onVideoSizeUpdated();
         if (getSurfaceTexture() == null) {
           return;
         }
         getSurfaceTexture().setDefaultBufferSize(mVideoWidth, mVideoHeight);
-        // We won't get a "surface changed" callback if the surface is already the right size, so
-        // start the video here instead of in the callback.
-        if (mTargetState == STATE_PLAYING) {
-          mp.start();
+        // 是否开始播放由播放线程根据目标状态决定，这里只处理控制条.
+        if (mEngine.getTargetState() == PlayerEngine.STATE_PLAYING) {
           if (mMediaController != null) {
             mMediaController.show();
           }
@@ -461,102 +818,51 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
             mMediaController.show(0);
           }
         }
-      } else {
-        // We don't know the video size yet, but should start anyway.
-        // The video size might be reported to us later.
-        if (mTargetState == STATE_PLAYING) {
-          mp.start();
-        }
       }
     }
-  };
 
-  private MediaPlayer.OnCompletionListener mCompletionListener =
-      new MediaPlayer.OnCompletionListener() {
-        public void onCompletion(MediaPlayer mp) {
-          mCurrentState = STATE_PLAYBACK_COMPLETED;
-          mTargetState = STATE_PLAYBACK_COMPLETED;
-          if (mMediaController != null) {
-            mMediaController.hide();
-          }
-          // 系统核，有一定概率会出现没有网，继续播放的情况下
-          // 在播放完成缓存部分后，就回调 onCompletion 的错误情况
-          // 因而这里进行了容错处理.
-          // 期待对系统核进行更换，替换上 IJK Player 的时候.
-          if (getCurrentPosition() < mMediaPlayer.getDuration() * 0.95F) {
-            if (mOnErrorListener != null) {
-              if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-                mOnErrorListener.onError(mp, MediaPlayer.MEDIA_ERROR_SERVER_DIED,
-                    MediaPlayer.MEDIA_ERROR_IO);
-              }
-            }
-          } else {
-            if (mOnCompletionListener != null) {
-              mOnCompletionListener.onCompletion(mMediaPlayer);
-            }
-          }
-        }
-      };
-
-  private MediaPlayer.OnInfoListener mInfoListener =
-      new MediaPlayer.OnInfoListener() {
-        public boolean onInfo(MediaPlayer mp, int arg1, int arg2) {
-          if (mOnInfoListener != null) {
-            mOnInfoListener.onInfo(mp, arg1, arg2);
-          }
-          return true;
-        }
-      };
-
-  private MediaPlayer.OnErrorListener mErrorListener =
-      new MediaPlayer.OnErrorListener() {
-        public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
-          logE("Error: " + framework_err + "," + impl_err + ", mUri is %s", mUri.toString());
-          mCurrentState = STATE_ERROR;
-          mTargetState = STATE_ERROR;
-          if (mMediaController != null) {
-            mMediaController.hide();
-          }
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+      if (mMediaController != null) {
+        mMediaController.hide();
+      }
+      // 系统核提前完成的情况由引擎重试恢复，见 PlayerEngine#setMaxRetries.
+    }
 
-          /* If an error handler has been supplied, use it and finish. */
-          if (mOnErrorListener != null) {
-            if (mOnErrorListener.onError(mMediaPlayer, framework_err, impl_err)) {
-              return true;
-            }
-          }
+    @Override
+    public void onInfo(MediaPlayer mp, int what, int extra) {
+      // do nothing.
+    }
 
-          return true;
-        }
-      };
+    @Override
+    public void onError(MediaPlayer mp, int framework_err, int impl_err) {
+      Log.w(TAG, "Error: " + framework_err + "," + impl_err + ", mUri is " + mEngine.getUri());
+      if (mMediaController != null) {
+        mMediaController.hide();
+      }
+    }
 
-  private MediaPlayer.OnBufferingUpdateListener mBufferingUpdateListener =
-      new MediaPlayer.OnBufferingUpdateListener() {
-        public void onBufferingUpdate(MediaPlayer mp, int percent) {
-          mCurrentBufferPercentage = percent;
-          if (mOnBufferingUpdateListener != null) {
-            mOnBufferingUpdateListener.onBufferingUpdate(mp, percent);
-          }
-        }
-      };
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+      // do nothing.
+    }
 
-  private MediaPlayer.OnSeekCompleteListener mSeekCompleteListener =
-      new MediaPlayer.OnSeekCompleteListener() {
-        @Override
-        public void onSeekComplete(MediaPlayer mp) {
-          if (mOnSeekCompleteListener != null) {
-            mOnSeekCompleteListener.onSeekComplete(mp);
-          }
-        }
-      };
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+      // do nothing.
+    }
+  };
 
   /**
    * Register a callback to be invoked when the media file
-   * is loaded and ready to go.
+   * is loaded and ready to go. The MediaPlayer passed to this and the
+   * other MediaPlayer listeners is null unless the engine plays with
+   * {@link MediaPlayerCore}, see {@link PlayerEngine#setOnPreparedListener}.
    *
    * @param l The callback that will be run
    */
   public void setOnPreparedListener(MediaPlayer.OnPreparedListener l) {
-    mOnPreparedListener = l;
+    ownEngine().setOnPreparedListener(l);
   }
 
   /**
@@ -566,7 +872,7 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
    * @param l The callback that will be run
    */
   public void setOnCompletionListener(OnCompletionListener l) {
-    mOnCompletionListener = l;
+    ownEngine().setOnCompletionListener(l);
   }
 
   /**
@@ -578,7 +884,7 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
    * @param l The callback that will be run
    */
   public void setOnErrorListener(OnErrorListener l) {
-    mOnErrorListener = l;
+    ownEngine().setOnErrorListener(l);
   }
 
   /**
@@ -588,19 +894,61 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
    * @param l The callback that will be run
    */
   public void setOnInfoListener(OnInfoListener l) {
-    mOnInfoListener = l;
+    ownEngine().setOnInfoListener(l);
   }
 
   public void setOnSeekCompleteListener(MediaPlayer.OnSeekCompleteListener l) {
-    mOnSeekCompleteListener = l;
+    ownEngine().setOnSeekCompleteListener(l);
   }
 
   public void setOnBufferingUpdateListener(MediaPlayer.OnBufferingUpdateListener l) {
-    mOnBufferingUpdateListener = l;
+    ownEngine().setOnBufferingUpdateListener(l);
   }
 
   public void setOnVideoSizeChangedListener(MediaPlayer.OnVideoSizeChangedListener l) {
-    mOnVideoSizeChangedListener = l;
+    ownEngine().setOnVideoSizeChangedListener(l);
+  }
+
+  /**
+   * Register a callback to receive the startup metrics of each playback session, e.g. the
+   * time from setting the uri to the first rendered frame.
+   *
+   * @param l The callback that will be run
+   */
+  public void setPlaybackMetricsListener(PlaybackMetrics.Listener l) {
+    ownEngine().setPlaybackMetricsListener(l);
+  }
+
+  /**
+   * Register a callback to receive the QoE summary of each playback session, e.g. the stalls
+   * and the watched duration, delivered after {@link #stopPlayback()}.
+   *
+   * @param l The callback that will be run
+   */
+  public void setQoeListener(QoeAggregator.Listener l) {
+    ownEngine().setQoeListener(l);
+  }
+
+  /**
+   * Register a callback to be invoked when the playlist set by
+   * {@link #setVideoPlaylist(List, Map)} moves on to the next video.
+   *
+   * @param l The callback that will be run
+   */
+  public void setPlaylistListener(PlayerEngine.PlaylistListener l) {
+    ownEngine().setPlaylistListener(l);
+  }
+
+  /**
+   * Sets whether to loop the video seamlessly, or to go back to the first video after the last
+   * one of the playlist.
+   */
+  public void setLooping(boolean looping) {
+    ownEngine().setLooping(looping);
+  }
+
+  public boolean isLooping() {
+    return mEngine.isLooping();
   }
 
   @Override
@@ -631,7 +979,7 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     if (isInPlaybackState() && isKeyCodeSupported && mMediaController != null) {
       if (keyCode == KeyEvent.KEYCODE_HEADSETHOOK ||
           keyCode == KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE) {
-        if (mMediaPlayer.isPlaying()) {
+        if (isPlaying()) {
           pause();
           mMediaController.show();
         } else {
@@ -640,14 +988,14 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
         }
         return true;
       } else if (keyCode == KeyEvent.KEYCODE_MEDIA_PLAY) {
-        if (!mMediaPlayer.isPlaying()) {
+        if (!isPlaying()) {
           start();
           mMediaController.hide();
         }
         return true;
       } else if (keyCode == KeyEvent.KEYCODE_MEDIA_STOP
           || keyCode == KeyEvent.KEYCODE_MEDIA_PAUSE) {
-        if (mMediaPlayer.isPlaying()) {
+        if (isPlaying()) {
           pause();
           mMediaController.show();
         }
@@ -670,24 +1018,16 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
   @Override
   public void start() {
-    logE("media player start");
-    if (isInPlaybackState()) {
-      mMediaPlayer.start();
-      mCurrentState = STATE_PLAYING;
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.start();
     }
-    mTargetState = STATE_PLAYING;
   }
 
   @Override
   public void pause() {
-    logE("media player pause");
-    if (isInPlaybackState()) {
-      if (mMediaPlayer.isPlaying()) {
-        mMediaPlayer.pause();
-        mCurrentState = STATE_PAUSED;
-      }
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.pause();
     }
-    mTargetState = STATE_PAUSED;
   }
 
   public void suspend() {
@@ -695,54 +1035,59 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
   }
 
   public void resume() {
-    prepareMediaPlayer();
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.reopen();
+    }
   }
 
   @Override
   public int getDuration() {
-    if (isInPlaybackState()) {
-      return mMediaPlayer.getDuration();
-    }
-
-    return -1;
+    return mEngine.getDuration();
   }
 
   @Override
   public int getCurrentPosition() {
-    if (isInPlaybackState()) {
-      return mMediaPlayer.getCurrentPosition();
-    }
-    return 0;
+    return mEngine.getCurrentPosition();
   }
 
   @Override
   public void seekTo(int msec) {
-    if (isInPlaybackState()) {
-      mMediaPlayer.seekTo(msec);
-      mSeekWhenPrepared = 0;
-    } else {
-      mSeekWhenPrepared = msec;
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.seekTo(msec);
     }
   }
 
+  /**
+   * Seeks to the position, see {@link PlayerEngine#seekTo(int, boolean)}.
+   *
+   * @param scrubbing true while the user is dragging the seek bar, which trades the accuracy
+   *     for the speed; false once released.
+   */
+  public void seekTo(int msec, boolean scrubbing) {
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.seekTo(msec, scrubbing);
+    }
+  }
+
+  /**
+   * Returns the latency of the last completed seek in milliseconds, or -1 if none.
+   */
+  public long getLastSeekLatencyMs() {
+    return mEngine.getLastSeekLatencyMs();
+  }
+
   @Override
   public boolean isPlaying() {
-    return isInPlaybackState() && mMediaPlayer.isPlaying();
+    return mEngine.isPlaying();
   }
 
   @Override
   public int getBufferPercentage() {
-    if (mMediaPlayer != null) {
-      return mCurrentBufferPercentage;
-    }
-    return 0;
+    return mEngine.getBufferPercentage();
   }
 
   private boolean isInPlaybackState() {
-    return (mMediaPlayer != null &&
-        mCurrentState != STATE_ERROR &&
-        mCurrentState != STATE_IDLE &&
-        mCurrentState != STATE_PREPARING);
+    return mEngine.isInPlaybackState();
   }
 
   @Override
@@ -761,17 +1106,12 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
   }
 
   public int getAudioSessionId() {
-    if (mAudioSession == 0) {
-      MediaPlayer foo = new MediaPlayer();
-      mAudioSession = foo.getAudioSessionId();
-      foo.release();
-    }
-    return mAudioSession;
+    return mEngine.getAudioSessionId();
   }
 
   /**
    * Sets the request audio focus flag. If enabled, {@link TextureVideoView} will request
-   * audio focus when opening a video by calling {@link AudioManager}. This flag
+   * audio focus through {@link AudioFocusManager} when starting a video. This flag
    * should be set before calling {@link TextureVideoView#setVideoPath(String)} or
    * {@link TextureVideoView#setVideoURI(Uri)}. By default, {@link TextureVideoView} will
    * request audio focus.
@@ -780,7 +1120,7 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
    *          audio focus before opening a video, else audio focus is not requested
    */
   public void setShouldRequestAudioFocus(boolean shouldRequestAudioFocus) {
-    mShouldRequestAudioFocus = shouldRequestAudioFocus;
+    ownEngine().setShouldRequestAudioFocus(shouldRequestAudioFocus);
   }
 
   /**
@@ -790,7 +1130,7 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
    *         audio focus before opening a video, else {@code false}
    */
   public boolean shouldRequestAudioFocus() {
-    return mShouldRequestAudioFocus;
+    return mEngine.shouldRequestAudioFocus();
   }
 
   /*
@@ -802,35 +1142,46 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
   }
 
   private void releasePlayerSource(boolean clearTargetState, boolean destroySurface) {
-    logE("release player source\n");
-    if (mMediaPlayer != null) {
-      mMediaPlayer.reset();
-      mMediaPlayer.release();
-      mMediaPlayer = null;
-      mCurrentState = STATE_IDLE;
-      if (clearTargetState) {
-        mTargetState = STATE_IDLE;
-      }
-      if (mShouldRequestAudioFocus) {
-        AudioManager am = (AudioManager) getContext().getApplicationContext()
-            .getSystemService(Context.AUDIO_SERVICE);
-        am.abandonAudioFocus(null);
-      }
+    // 引擎已经交给了其他 View 时，不能释放对方正在进行的播放.
+    if (mEngine.isAttached(mEngineCallback)) {
+      mEngine.release(clearTargetState);
     }
     if (destroySurface) {
-      if (mSurface != null) {
-        mSurface.release();
-        mSurface = null;
-      }
-      if (mSurfaceTexture != null) {
-        mSurfaceTexture.release();
-        mSurfaceTexture = null;
-      }
+      releaseSurface();
+    }
+  }
+
+  private void releaseSurface() {
+    // surface 需要在播放器释放之后再销毁，交给播放线程按顺序执行.
+    final Surface surface = mSurface;
+    final SurfaceTexture surfaceTexture = mSurfaceTexture;
+    mSurface = null;
+    mSurfaceTexture = null;
+    if (surface != null || surfaceTexture != null) {
+      mEngine.post(new Runnable() {
+        @Override
+        public void run() {
+          if (surface != null) {
+            surface.release();
+          }
+          if (surfaceTexture != null) {
+            surfaceTexture.release();
+          }
+        }
+      });
     }
   }
 
-  private void logE(String message, Object... objects) {
-    Log.e(TAG, String.format(message, objects));
+  /**
+   * Receives the frame captured by {@link #captureFrame(int, int, FrameCallback)}.
+   */
+  public interface FrameCallback {
+
+    /**
+     * @param bitmap the captured frame, or null if failed. Return it to {@link BitmapPool}
+     *          after used.
+     */
+    void onFrameCaptured(Bitmap bitmap);
   }
 
 }
@@ -0,0 +1,534 @@
+package com.qisen.android.easydroid.media;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.qisen.android.easydroid.media.cache.VideoCacheProxy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在后台线程提取视频指定时间点的缩略图，用于拖动进度条时的预览。
+ *
+ * ### 线程
+ * 提取通过 {@link MediaMetadataRetriever} 在固定数量的低优先级线程上进行，不会占用主线程，也不会
+ * 影响正在播放的 MediaPlayer。同一个视频的 retriever 在提取完成后保留下来，连续拖动时不需要重新
+ * 解析数据源。结果通过 {@link Callback} 在主线程返回。
+ *
+ * ### 缓存
+ * 缩略图以 uri、时间点以及尺寸作为 key，先查内存中的 LRU，再查磁盘上的 JPEG 文件，都没有才会
+ * 提取。时间点按照 {@link #setTimeQuantum(long)} 取整，拖动时相近的位置会命中同一张缩略图。
+ *
+ * ### 合并请求
+ * 相同 key 的请求在提取完成之前只会执行一次，所有的 callback 在完成时一起回调。通过
+ * {@link #cancel(Callback)} 取消的请求，如果没有其他 callback 等待，在开始提取之前直接丢弃，
+ * 快速拖动时只会提取最新的位置。
+ *
+ * ### 缓存代理
+ * 开启 {@link VideoCacheProxy} 之后，远程视频经由本地代理读取，和播放共用磁盘缓存。
+ */
+public class ThumbnailExtractor {
+
+  private static final String TAG = "ThumbnailExtractor";
+
+  private static final String CACHE_DIRECTORY = "video-thumbnails";
+  private static final int DEFAULT_THREADS = 2;
+  private static final int DEFAULT_MEMORY_BYTES = 4 * 1024 * 1024;
+  private static final long DEFAULT_DISK_BYTES = 16 * 1024 * 1024;
+  private static final long DEFAULT_TIME_QUANTUM_MS = 1000;
+  private static final int MAX_IDLE_RETRIEVERS = 2;
+  private static final int JPEG_QUALITY = 80;
+
+  private static ThumbnailExtractor sInstance;
+
+  private final Context mContext;
+  private final File mDirectory;
+  private final ThreadPoolExecutor mExecutor;
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private final LruCache<String, Bitmap> mMemoryCache;
+
+  // guarded by this.
+  private final HashMap<String, Request> mRequests = new HashMap<>();
+  // idle retrievers keyed by the data source, the least recently used first.
+  private final LinkedHashMap<String, MediaMetadataRetriever> mRetrievers =
+      new LinkedHashMap<>(4, 0.75F, true);
+  private long mTimeQuantumMs = DEFAULT_TIME_QUANTUM_MS;
+  private long mMaxDiskBytes = DEFAULT_DISK_BYTES;
+  // -1 until the directory is scanned on the first write.
+  private long mDiskBytes = -1;
+  private final Stats mStats = new Stats();
+
+  private ThumbnailExtractor(Context context) {
+    mContext = context.getApplicationContext();
+    mDirectory = new File(mContext.getCacheDir(), CACHE_DIRECTORY);
+    mMemoryCache = new LruCache<String, Bitmap>(DEFAULT_MEMORY_BYTES) {
+      @Override
+      protected int sizeOf(String key, Bitmap value) {
+        return value.getByteCount();
+      }
+    };
+    mExecutor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ThumbnailExtractor-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          }
+        });
+    mExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  public static synchronized ThumbnailExtractor getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new ThumbnailExtractor(context);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Returns the instance if created, used to trim the memory without creating one.
+   */
+  static synchronized ThumbnailExtractor peekInstance() {
+    return sInstance;
+  }
+
+  /**
+   * Sets the granularity of the timestamps, requests within the same quantum share one
+   * thumbnail. 0 to extract at the exact timestamps.
+   */
+  public synchronized void setTimeQuantum(long quantumMs) {
+    mTimeQuantumMs = Math.max(0, quantumMs);
+  }
+
+  public void setMaxMemoryBytes(int maxBytes) {
+    mMemoryCache.resize(Math.max(1, maxBytes));
+  }
+
+  public synchronized void setMaxDiskBytes(long maxBytes) {
+    mMaxDiskBytes = Math.max(0, maxBytes);
+  }
+
+  /**
+   * Loads the thumbnail of the video at the timestamp, scaled to fit inside the size. Must be
+   * called on the main thread. The callback is invoked immediately if the thumbnail is in
+   * memory, otherwise later on the main thread.
+   *
+   * @param uri the uri of the video, could be a uri proxied by {@link VideoCacheProxy}.
+   * @param headers the headers for the uri request.
+   * @param timeMs the timestamp in milliseconds.
+   * @param width the max width of the thumbnail.
+   * @param height the max height of the thumbnail.
+   * @param callback receives the thumbnail, which is shared by the cache and must not be
+   *          recycled.
+   */
+  public void load(Uri uri, Map<String, String> headers, long timeMs, int width, int height,
+                   Callback callback) {
+    if (uri == null || width <= 0 || height <= 0) {
+      callback.onThumbnail(uri, timeMs, null);
+      return;
+    }
+    // 缓存使用原始 uri，代理的端口每次启动都不同.
+    Uri originalUri = VideoCacheProxy.unproxy(uri);
+    long quantizedMs;
+    synchronized (this) {
+      quantizedMs = mTimeQuantumMs == 0 ? timeMs
+          : (timeMs + mTimeQuantumMs / 2) / mTimeQuantumMs * mTimeQuantumMs;
+    }
+    String key = originalUri + "#" + Math.max(0, quantizedMs) + "@" + width + "x" + height;
+    Bitmap bitmap = mMemoryCache.get(key);
+    if (bitmap != null) {
+      synchronized (this) {
+        mStats.memoryHits++;
+      }
+      callback.onThumbnail(uri, timeMs, bitmap);
+      return;
+    }
+    synchronized (this) {
+      Request request = mRequests.get(key);
+      if (request != null) {
+        mStats.coalesced++;
+      } else {
+        request = new Request(key, VideoCacheProxy.proxy(originalUri), headers,
+            Math.max(0, quantizedMs), width, height);
+        mRequests.put(key, request);
+        mExecutor.execute(request);
+      }
+      request.callbacks.add(new Delivery(callback, uri, timeMs));
+    }
+  }
+
+  /**
+   * Cancels the pending loads of the callback. A request is dropped if no other callback is
+   * waiting for it and the extraction has not started yet.
+   */
+  public synchronized void cancel(Callback callback) {
+    for (Request request : mRequests.values()) {
+      Iterator<Delivery> iterator = request.callbacks.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().callback == callback) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the bytes of the thumbnails in memory.
+   */
+  public int getMemoryBytes() {
+    return mMemoryCache.size();
+  }
+
+  /**
+   * Evicts the thumbnails in memory and releases the idle retrievers. The disk cache is kept.
+   */
+  public void clearMemory() {
+    mMemoryCache.evictAll();
+    synchronized (this) {
+      for (MediaMetadataRetriever retriever : mRetrievers.values()) {
+        releaseQuietly(retriever);
+      }
+      mRetrievers.clear();
+    }
+  }
+
+  /**
+   * Returns a snapshot of the statistics.
+   */
+  public synchronized Stats getStats() {
+    return mStats.copy();
+  }
+
+  private Bitmap loadInBackground(Request request) {
+    File file = new File(mDirectory, md5(request.key) + ".jpg");
+    if (file.exists()) {
+      Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+      if (bitmap != null) {
+        // 更新访问时间，磁盘超出限制时按照访问时间淘汰.
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+          mStats.diskHits++;
+        }
+        return bitmap;
+      }
+    }
+
+    long start = System.nanoTime();
+    Bitmap bitmap = extract(request);
+    if (bitmap == null) {
+      return null;
+    }
+    synchronized (this) {
+      mStats.extractions++;
+      mStats.extractNanos += System.nanoTime() - start;
+    }
+    writeToDisk(file, bitmap);
+    return bitmap;
+  }
+
+  private Bitmap extract(Request request) {
+    String source = request.uri.toString();
+    MediaMetadataRetriever retriever;
+    synchronized (this) {
+      retriever = mRetrievers.remove(source);
+    }
+    Bitmap frame = null;
+    try {
+      if (retriever == null) {
+        retriever = new MediaMetadataRetriever();
+        String scheme = request.uri.getScheme();
+        if ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) {
+          retriever.setDataSource(source, request.headers != null ? request.headers
+              : new HashMap<String, String>());
+        } else {
+          retriever.setDataSource(mContext, request.uri);
+        }
+      }
+      long timeUs = request.timeMs * 1000;
+      frame = scale(retriever.getFrameAtTime(timeUs,
+          MediaMetadataRetriever.OPTION_CLOSEST_SYNC), request.width, request.height);
+    } catch (RuntimeException ex) {
+      Log.w(TAG, "Unable to extract the thumbnail of " + request.uri, ex);
+      releaseQuietly(retriever);
+      return null;
+    }
+    recycleRetriever(source, retriever);
+    return frame;
+  }
+
+  private void recycleRetriever(String source, MediaMetadataRetriever retriever) {
+    MediaMetadataRetriever replaced;
+    synchronized (this) {
+      replaced = mRetrievers.put(source, retriever);
+      Iterator<MediaMetadataRetriever> iterator = mRetrievers.values().iterator();
+      while (mRetrievers.size() > MAX_IDLE_RETRIEVERS && iterator.hasNext()) {
+        releaseQuietly(iterator.next());
+        iterator.remove();
+      }
+    }
+    // 两个线程同时提取同一个视频时，只保留一个.
+    if (replaced != null && replaced != retriever) {
+      releaseQuietly(replaced);
+    }
+  }
+
+  private void writeToDisk(File file, Bitmap bitmap) {
+    synchronized (this) {
+      if (mMaxDiskBytes == 0) {
+        return;
+      }
+      if (mDiskBytes < 0) {
+        mDiskBytes = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+          for (File child : files) {
+            mDiskBytes += child.length();
+          }
+        }
+      }
+    }
+    if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+      Log.w(TAG, "Unable to create " + mDirectory);
+      return;
+    }
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(file);
+      bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+    } catch (IOException ex) {
+      Log.w(TAG, "Unable to write " + file, ex);
+      return;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException ignore) {
+          // ignore.
+        }
+      }
+    }
+    synchronized (this) {
+      mDiskBytes += file.length();
+      if (mDiskBytes > mMaxDiskBytes) {
+        trimDiskLocked();
+      }
+    }
+  }
+
+  private void trimDiskLocked() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        long diff = lhs.lastModified() - rhs.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    // 淘汰到限制的 3/4，避免每次写入都要重新扫描.
+    long target = mMaxDiskBytes * 3 / 4;
+    for (File file : files) {
+      if (mDiskBytes <= target) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        mDiskBytes -= length;
+      }
+    }
+  }
+
+  private void deliver(final Request request, final Bitmap bitmap) {
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        List<Delivery> deliveries;
+        synchronized (ThumbnailExtractor.this) {
+          mRequests.remove(request.key);
+          deliveries = request.callbacks;
+        }
+        for (Delivery delivery : deliveries) {
+          delivery.callback.onThumbnail(delivery.uri, delivery.timeMs, bitmap);
+        }
+      }
+    });
+  }
+
+  private static Bitmap scale(Bitmap frame, int maxWidth, int maxHeight) {
+    if (frame == null) {
+      return null;
+    }
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    if (width <= maxWidth && height <= maxHeight) {
+      return frame;
+    }
+    float scale = Math.min((float) maxWidth / width, (float) maxHeight / height);
+    Bitmap scaled = Bitmap.createScaledBitmap(frame, Math.max(1, Math.round(width * scale)),
+        Math.max(1, Math.round(height * scale)), true);
+    if (scaled != frame) {
+      frame.recycle();
+    }
+    return scaled;
+  }
+
+  private static void releaseQuietly(MediaMetadataRetriever retriever) {
+    if (retriever != null) {
+      try {
+        retriever.release();
+      } catch (RuntimeException ignore) {
+        // ignore.
+      }
+    }
+  }
+
+  private static String md5(String key) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+      StringBuilder builder = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+        builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+        builder.append(Character.forDigit(b & 0xF, 16));
+      }
+      return builder.toString();
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+      return String.valueOf(key.hashCode());
+    }
+  }
+
+  private class Request implements Runnable {
+    final String key;
+    // the uri to read, proxied if the proxy is installed.
+    final Uri uri;
+    final Map<String, String> headers;
+    final long timeMs;
+    final int width;
+    final int height;
+    // guarded by ThumbnailExtractor.this.
+    final List<Delivery> callbacks = new ArrayList<>(1);
+
+    Request(String key, Uri uri, Map<String, String> headers, long timeMs, int width,
+            int height) {
+      this.key = key;
+      this.uri = uri;
+      this.headers = headers;
+      this.timeMs = timeMs;
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public void run() {
+      synchronized (ThumbnailExtractor.this) {
+        // 所有的 callback 都已经取消.
+        if (callbacks.isEmpty()) {
+          mRequests.remove(key);
+          mStats.cancelled++;
+          return;
+        }
+      }
+      Bitmap bitmap = loadInBackground(this);
+      if (bitmap != null) {
+        mMemoryCache.put(key, bitmap);
+      }
+      deliver(this, bitmap);
+    }
+  }
+
+  private static class Delivery {
+    final Callback callback;
+    // the uri and the timestamp requested by the caller.
+    final Uri uri;
+    final long timeMs;
+
+    Delivery(Callback callback, Uri uri, long timeMs) {
+      this.callback = callback;
+      this.uri = uri;
+      this.timeMs = timeMs;
+    }
+  }
+
+  /**
+   * Statistics of the extractor.
+   */
+  public static class Stats {
+    public int memoryHits;
+    public int diskHits;
+    // requests merged into a pending one with the same key.
+    public int coalesced;
+    // requests dropped before extracting because all the callbacks were cancelled.
+    public int cancelled;
+    public int extractions;
+    // total time spent on extracting, excluding the cache hits.
+    public long extractNanos;
+
+    public long getAverageExtractNanos() {
+      return extractions == 0 ? 0 : extractNanos / extractions;
+    }
+
+    Stats copy() {
+      Stats stats = new Stats();
+      stats.memoryHits = memoryHits;
+      stats.diskHits = diskHits;
+      stats.coalesced = coalesced;
+      stats.cancelled = cancelled;
+      stats.extractions = extractions;
+      stats.extractNanos = extractNanos;
+      return stats;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{memoryHits=" + memoryHits + ", diskHits=" + diskHits
+          + ", coalesced=" + coalesced + ", cancelled=" + cancelled
+          + ", extractions=" + extractions
+          + ", averageExtractNanos=" + getAverageExtractNanos() + "}";
+    }
+  }
+
+  /**
+   * Receives the thumbnail on the main thread.
+   */
+  public interface Callback {
+
+    /**
+     * @param uri the uri passed to {@link #load(Uri, Map, long, int, int, Callback)}.
+     * @param timeMs the timestamp passed to {@link #load(Uri, Map, long, int, int, Callback)}.
+     * @param bitmap the thumbnail, or null if failed.
+     */
+    void onThumbnail(Uri uri, long timeMs, Bitmap bitmap);
+  }
+}
@@ -0,0 +1,63 @@
+package com.qisen.android.easydroid.media;
+
+import android.net.Uri;
+
+import com.qisen.android.easydroid.media.cache.BandwidthEstimator;
+
+import java.util.List;
+
+/**
+ * 同一个视频的一种码率版本。
+ *
+ * ### 选择
+ * {@link #select(List, long)} 在估计带宽的 {@link #BANDWIDTH_FRACTION} 以内选择码率最高的版本，
+ * 都超出时选择码率最低的版本。带宽由 {@link BandwidthEstimator} 根据实际的下载速度以及卡顿估计，
+ * {@link PlayerEngine} 在打开、重新打开以及断网重试时重新选择。
+ */
+public class VideoVariant {
+
+  // leaves some headroom for the fluctuation of the bandwidth.
+  static final float BANDWIDTH_FRACTION = 0.75F;
+
+  public final Uri uri;
+  public final int bitrateKbps;
+  public final int width;
+  public final int height;
+
+  public VideoVariant(Uri uri, int bitrateKbps, int width, int height) {
+    this.uri = uri;
+    this.bitrateKbps = bitrateKbps;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Selects the variant with the highest bitrate within the bandwidth.
+   *
+   * @param variants the variants, in any order.
+   * @param bandwidthKbps the estimated bandwidth.
+   * @return the selected variant, or null if there is none.
+   */
+  public static VideoVariant select(List<VideoVariant> variants, long bandwidthKbps) {
+    long budget = (long) (bandwidthKbps * BANDWIDTH_FRACTION);
+    VideoVariant best = null;
+    VideoVariant lowest = null;
+    for (int i = 0, size = variants.size(); i < size; i++) {
+      VideoVariant variant = variants.get(i);
+      if (lowest == null || variant.bitrateKbps < lowest.bitrateKbps) {
+        lowest = variant;
+      }
+      if (variant.bitrateKbps <= budget
+          && (best == null || variant.bitrateKbps > best.bitrateKbps)) {
+        best = variant;
+      }
+    }
+    return best != null ? best : lowest;
+  }
+
+  @Override
+  public String toString() {
+    return "VideoVariant{uri=" + uri + ", bitrateKbps=" + bitrateKbps + ", width=" + width
+        + ", height=" + height + "}";
+  }
+}
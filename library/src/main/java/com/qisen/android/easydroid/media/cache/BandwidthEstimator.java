@@ -0,0 +1,121 @@
+package com.qisen.android.easydroid.media.cache;
+
+/**
+ * 根据实际的下载速度估计当前的带宽。
+ *
+ * ### 采样
+ * {@link VideoCacheProxy} 为播放发起的每次网络请求结束时，把下载的字节数以及阻塞在网络上的时间
+ * 作为一个样本；{@link VideoPrefetcher} 和 {@link VideoDownloader} 的请求不作为样本。估计值是
+ * 样本的指数加权平均，权重按照字节数计算，下载的数据越多的样本影响越大，太小的请求不作为样本。
+ *
+ * ### 卡顿
+ * 播放过程中出现卡顿说明实际可用的带宽低于估计，{@link #onStall()} 会按比例降低估计值。
+ *
+ * 所有方法都可以在任意线程调用。
+ */
+public class BandwidthEstimator {
+
+  private static final long DEFAULT_INITIAL_ESTIMATE_KBPS = 1000;
+  // samples smaller than this are dominated by the latency.
+  static final long MIN_SAMPLE_BYTES = 32 * 1024;
+  // a sample of this size moves the estimate half way.
+  private static final double HALF_WEIGHT_BYTES = 1024 * 1024;
+  private static final double STALL_PENALTY = 0.7;
+
+  private static BandwidthEstimator sInstance;
+
+  private double mEstimateKbps = DEFAULT_INITIAL_ESTIMATE_KBPS;
+  private boolean mHasSample;
+  private final Stats mStats = new Stats();
+
+  private BandwidthEstimator() {
+  }
+
+  public static synchronized BandwidthEstimator getInstance() {
+    if (sInstance == null) {
+      sInstance = new BandwidthEstimator();
+    }
+    return sInstance;
+  }
+
+  /**
+   * Sets the estimate used before any sample, e.g. by the network type.
+   */
+  public synchronized void setInitialEstimateKbps(long estimateKbps) {
+    if (!mHasSample) {
+      mEstimateKbps = Math.max(1, estimateKbps);
+    }
+  }
+
+  public synchronized long getEstimateKbps() {
+    return (long) mEstimateKbps;
+  }
+
+  /**
+   * Adds a sample of the bytes transferred within the time.
+   */
+  public synchronized void onTransfer(long bytes, long elapsedNanos) {
+    if (bytes < MIN_SAMPLE_BYTES || elapsedNanos <= 0) {
+      return;
+    }
+    // bits per millisecond equals kilobits per second.
+    double sampleKbps = bytes * 8 * 1000000.0 / elapsedNanos;
+    if (!mHasSample) {
+      mEstimateKbps = sampleKbps;
+      mHasSample = true;
+    } else {
+      double weight = 1 - Math.pow(0.5, bytes / HALF_WEIGHT_BYTES);
+      mEstimateKbps += (sampleKbps - mEstimateKbps) * weight;
+    }
+    mStats.samples++;
+    mStats.bytes += bytes;
+  }
+
+  /**
+   * Lowers the estimate when the playback stalls.
+   */
+  public synchronized void onStall() {
+    mEstimateKbps = Math.max(1, mEstimateKbps * STALL_PENALTY);
+    mStats.stalls++;
+  }
+
+  /**
+   * Forgets the samples and the stalls, back to the default initial estimate.
+   */
+  synchronized void reset() {
+    mEstimateKbps = DEFAULT_INITIAL_ESTIMATE_KBPS;
+    mHasSample = false;
+    mStats.samples = 0;
+    mStats.bytes = 0;
+    mStats.stalls = 0;
+  }
+
+  /**
+   * Returns a snapshot of the statistics.
+   */
+  public synchronized Stats getStats() {
+    Stats stats = new Stats();
+    stats.samples = mStats.samples;
+    stats.bytes = mStats.bytes;
+    stats.stalls = mStats.stalls;
+    stats.estimateKbps = (long) mEstimateKbps;
+    return stats;
+  }
+
+  /**
+   * Statistics of the estimator.
+   */
+  public static class Stats {
+    public int samples;
+    // bytes of all the samples.
+    public long bytes;
+    public int stalls;
+    public long estimateKbps;
+
+    @Override
+    public String toString() {
+      return "Stats{samples=" + samples + ", bytes=" + bytes + ", stalls=" + stalls
+          + ", estimateKbps=" + estimateKbps + "}";
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package com.qisen.android.easydroid.media.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * 对原始 url 发起的一次 http range 请求。
+ *
+ * 打开之后可以得到文件总长度以及 content type，之后按顺序读取 [position, end) 之间的数据。
+ * 对于不支持 Range 的服务器，会跳过 position 之前的数据。
+ *
+ * 为播放拉取数据的连接在关闭时把读取的字节数以及阻塞在网络上的时间交给 {@link BandwidthEstimator}；
+ * 预取和离线下载的连接和播放争抢带宽，并且多个连接同时进行，它们的速度不代表播放能得到的带宽，
+ * 不作为样本。
+ */
+class HttpSource {
+
+  private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+  private static final int READ_TIMEOUT_MS = 15 * 1000;
+
+  private final String mUrl;
+  private final Map<String, String> mHeaders;
+  private final boolean mSampleBandwidth;
+
+  private HttpURLConnection mConnection;
+  private InputStream mInputStream;
+  private long mTotalLength = -1;
+  private String mContentType;
+  private boolean mPartial;
+  // bytes read and the time blocked on the network, for the bandwidth estimate.
+  private long mTransferBytes;
+  private long mTransferNanos;
+
+  HttpSource(String url, Map<String, String> headers) {
+    this(url, headers, false);
+  }
+
+  /**
+   * @param sampleBandwidth whether the transfer is reported to {@link BandwidthEstimator}, only
+   *     the ones feeding the playback should be.
+   */
+  HttpSource(String url, Map<String, String> headers, boolean sampleBandwidth) {
+    mUrl = url;
+    mHeaders = headers;
+    mSampleBandwidth = sampleBandwidth;
+  }
+
+  /**
+   * Opens the connection from the position.
+   *
+   * @param position the start position, inclusive.
+   * @param end the end position, exclusive, or -1 to read until the end of file.
+   */
+  void open(long position, long end) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    connection.setReadTimeout(READ_TIMEOUT_MS);
+    if (mHeaders != null) {
+      for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+    }
+    // 视频数据不需要压缩，同时保证 Content-Length 和原始文件一致.
+    connection.setRequestProperty("Accept-Encoding", "identity");
+    if (position > 0 || end >= 0) {
+      connection.setRequestProperty("Range",
+          "bytes=" + position + "-" + (end >= 0 ? String.valueOf(end - 1) : ""));
+    }
+    mConnection = connection;
+
+    long start = System.nanoTime();
+    int code = connection.getResponseCode();
+    mTransferNanos += System.nanoTime() - start;
+    long contentLength = parseLong(connection.getHeaderField("Content-Length"));
+    mContentType = connection.getContentType();
+    mPartial = code == HttpURLConnection.HTTP_PARTIAL;
+    if (mPartial) {
+      mTotalLength = parseTotalLength(connection.getHeaderField("Content-Range"));
+      mInputStream = connection.getInputStream();
+    } else if (code == HttpURLConnection.HTTP_OK) {
+      mTotalLength = contentLength;
+      mInputStream = connection.getInputStream();
+      skipFully(mInputStream, position);
+    } else {
+      close();
+      throw new IOException("Unexpected response code " + code + " for " + mUrl);
+    }
+  }
+
+  /**
+   * Returns the total length of the file, or -1 if unknown.
+   */
+  long getTotalLength() {
+    return mTotalLength;
+  }
+
+  /**
+   * Returns whether the server honored the range, otherwise the leading bytes were skipped.
+   */
+  boolean isPartial() {
+    return mPartial;
+  }
+
+  String getContentType() {
+    return mContentType;
+  }
+
+  int read(byte[] buffer, int offset, int length) throws IOException {
+    long start = System.nanoTime();
+    int read = mInputStream.read(buffer, offset, length);
+    mTransferNanos += System.nanoTime() - start;
+    if (read > 0) {
+      mTransferBytes += read;
+    }
+    return read;
+  }
+
+  void close() {
+    if (mSampleBandwidth && mTransferBytes > 0) {
+      BandwidthEstimator.getInstance().onTransfer(mTransferBytes, mTransferNanos);
+      mTransferBytes = 0;
+      mTransferNanos = 0;
+    }
+    VideoCache.closeQuietly(mInputStream);
+    mInputStream = null;
+    if (mConnection != null) {
+      mConnection.disconnect();
+      mConnection = null;
+    }
+  }
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new IOException("Unexpected end of stream");
+        }
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
+  // "bytes 0-99/1000" -> 1000
+  private static long parseTotalLength(String contentRange) {
+    if (contentRange == null) {
+      return -1;
+    }
+    int slash = contentRange.lastIndexOf('/');
+    return slash < 0 ? -1 : parseLong(contentRange.substring(slash + 1));
+  }
+
+  private static long parseLong(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.qisen.android.easydroid.media.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 稀疏的字节区间集合，记录一个视频文件中已经缓存的部分。
+ *
+ * 区间统一使用左闭右开 [start, end) 的形式，相邻或者重叠的区间在添加时自动合并，
+ * 内部用两个有序的 long 数组保存，查询时二分查找。
+ *
+ * 非线程安全，由 {@link VideoCache.Entry} 负责同步。
+ */
+public class RangeSet {
+
+  private long[] mStarts = new long[4];
+  private long[] mEnds = new long[4];
+  private int mSize;
+
+  /**
+   * Adds the range [start, end), merging it with the overlapping or adjacent ranges.
+   */
+  public void add(long start, long end) {
+    if (start >= end) {
+      return;
+    }
+    // first range whose end >= start, it may be merged with the new one.
+    int first = lowerBoundByEnd(start);
+    int last = first;
+    while (last < mSize && mStarts[last] <= end) {
+      start = Math.min(start, mStarts[last]);
+      end = Math.max(end, mEnds[last]);
+      last++;
+    }
+    int removed = last - first;
+    if (removed == 0) {
+      ensureCapacity(mSize + 1);
+      System.arraycopy(mStarts, first, mStarts, first + 1, mSize - first);
+      System.arraycopy(mEnds, first, mEnds, first + 1, mSize - first);
+      mSize++;
+    } else if (removed > 1) {
+      System.arraycopy(mStarts, last, mStarts, first + 1, mSize - last);
+      System.arraycopy(mEnds, last, mEnds, first + 1, mSize - last);
+      mSize -= removed - 1;
+    }
+    mStarts[first] = start;
+    mEnds[first] = end;
+  }
+
+  /**
+   * Returns the end of the cached range which contains the position, or the position itself
+   * if it is not cached.
+   */
+  public long contiguousEnd(long position) {
+    int index = lowerBoundByEnd(position + 1);
+    if (index < mSize && mStarts[index] <= position) {
+      return mEnds[index];
+    }
+    return position;
+  }
+
+  /**
+   * Returns the start of the first cached range after the position, or {@link Long#MAX_VALUE}
+   * if there is none.
+   */
+  public long nextStart(long position) {
+    int index = lowerBoundByEnd(position + 1);
+    if (index < mSize && mStarts[index] <= position) {
+      index++;
+    }
+    return index < mSize ? mStarts[index] : Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns whether the whole range [start, end) is cached.
+   */
+  public boolean contains(long start, long end) {
+    return start >= end || contiguousEnd(start) >= end;
+  }
+
+  /**
+   * Returns the total count of cached bytes.
+   */
+  public long length() {
+    long length = 0;
+    for (int i = 0; i < mSize; i++) {
+      length += mEnds[i] - mStarts[i];
+    }
+    return length;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public void clear() {
+    mSize = 0;
+  }
+
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(mSize);
+    for (int i = 0; i < mSize; i++) {
+      out.writeLong(mStarts[i]);
+      out.writeLong(mEnds[i]);
+    }
+  }
+
+  public void readFrom(DataInput in) throws IOException {
+    clear();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      add(in.readLong(), in.readLong());
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < mSize; i++) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append(mStarts[i]).append('-').append(mEnds[i]);
+    }
+    return builder.append(']').toString();
+  }
+
+  // index of the first range whose end >= position.
+  private int lowerBoundByEnd(long position) {
+    int low = 0;
+    int high = mSize;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (mEnds[mid] < position) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > mStarts.length) {
+      int newCapacity = Math.max(capacity, mStarts.length * 2);
+      mStarts = Arrays.copyOf(mStarts, newCapacity);
+      mEnds = Arrays.copyOf(mEnds, newCapacity);
+    }
+  }
+}
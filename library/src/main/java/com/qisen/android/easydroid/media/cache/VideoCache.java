@@ -0,0 +1,477 @@
+package com.qisen.android.easydroid.media.cache;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 按照 url 组织的视频磁盘缓存。
+ *
+ * ### 存储结构
+ * 每个 url 对应两个文件：`<md5>.data` 是和原始文件同样大小的稀疏文件，按照原始偏移写入；
+ * `<md5>.meta` 记录 url、文件总长度、content type 以及已经缓存的字节区间 {@link RangeSet}，
+ * 因而看了一半的视频，下次可以从缓存的部分继续播放。
+ *
+ * ### 淘汰
+ * 缓存总大小按照实际缓存的字节数计算，超出上限时按照最近访问顺序淘汰整个条目，
+ * 正在被读写的条目不会被淘汰。
+ *
+ * ### 加载
+ * 已有的条目在后台线程扫描目录加载，构造方法不会阻塞调用方；加载完成之前访问缓存的方法会等待加载
+ * 结束。
+ *
+ * 线程安全。
+ */
+public class VideoCache {
+
+  private static final String TAG = "VideoCache";
+
+  private static final int META_MAGIC = 0x45564331; // "EVC1"
+  private static final String DATA_SUFFIX = ".data";
+  private static final String META_SUFFIX = ".meta";
+
+  private final File mDirectory;
+  private final long mMaxBytes;
+  // all entries in access order, the eldest one will be evicted first.
+  private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75F, true);
+  private long mTotalBytes;
+  private boolean mLoaded;
+
+  /**
+   * Creates the cache, the existing entries are loaded on a background thread.
+   *
+   * @param directory the directory to store the cache files.
+   * @param maxBytes the max bytes of all cached data.
+   */
+  public VideoCache(File directory, long maxBytes) {
+    mDirectory = directory;
+    mMaxBytes = maxBytes;
+    Thread loader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        load();
+      }
+    }, "VideoCache-Load");
+    loader.setDaemon(true);
+    loader.start();
+  }
+
+  public File getDirectory() {
+    return mDirectory;
+  }
+
+  public long getMaxBytes() {
+    return mMaxBytes;
+  }
+
+  public synchronized long getTotalBytes() {
+    awaitLoadedLocked();
+    return mTotalBytes;
+  }
+
+  /**
+   * Opens the entry of the url, creating it if absent. The entry must be closed by
+   * {@link Entry#close()} after used.
+   */
+  public synchronized Entry open(String url) {
+    awaitLoadedLocked();
+    String key = keyOf(url);
+    Entry entry = mEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(key, url);
+      mEntries.put(key, entry);
+    }
+    entry.mRefCount++;
+    return entry;
+  }
+
+  /**
+   * Returns the count of bytes cached from the position of the url, without opening the entry.
+   */
+  public synchronized long getCachedLength(String url, long position) {
+    awaitLoadedLocked();
+    Entry entry = mEntries.get(keyOf(url));
+    return entry == null ? 0 : entry.getCachedEnd(position) - position;
+  }
+
+  /**
+   * Returns the content length of the url, or -1 if it is unknown yet.
+   */
+  public synchronized long getContentLength(String url) {
+    awaitLoadedLocked();
+    Entry entry = mEntries.get(keyOf(url));
+    return entry == null ? -1 : entry.getContentLength();
+  }
+
+  /**
+   * Returns whether the whole content of the url has been cached.
+   */
+  public synchronized boolean isFullyCached(String url) {
+    awaitLoadedLocked();
+    Entry entry = mEntries.get(keyOf(url));
+    return entry != null && entry.isComplete();
+  }
+
+  /**
+   * Removes the entry of the url if it is not in use.
+   */
+  public synchronized boolean remove(String url) {
+    awaitLoadedLocked();
+    String key = keyOf(url);
+    Entry entry = mEntries.get(key);
+    if (entry == null || entry.mRefCount > 0) {
+      return false;
+    }
+    mEntries.remove(key);
+    deleteEntry(entry);
+    return true;
+  }
+
+  /**
+   * Removes all the entries which are not in use.
+   */
+  public synchronized void clear() {
+    trimToSize(0);
+  }
+
+  public synchronized void trimToSize(long maxBytes) {
+    awaitLoadedLocked();
+    trimToSizeLocked(maxBytes);
+  }
+
+  private void trimToSizeLocked(long maxBytes) {
+    Iterator<Entry> iterator = mEntries.values().iterator();
+    while (mTotalBytes > maxBytes && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.mRefCount > 0) {
+        continue;
+      }
+      iterator.remove();
+      deleteEntry(entry);
+    }
+  }
+
+  private synchronized void onBytesCached(long bytes) {
+    mTotalBytes += bytes;
+    if (mTotalBytes > mMaxBytes) {
+      trimToSizeLocked(mMaxBytes);
+    }
+  }
+
+  private synchronized void release(Entry entry) {
+    entry.mRefCount--;
+    if (mTotalBytes > mMaxBytes) {
+      trimToSizeLocked(mMaxBytes);
+    }
+  }
+
+  private void deleteEntry(Entry entry) {
+    synchronized (entry) {
+      mTotalBytes -= entry.mRanges.length();
+      entry.mRanges.clear();
+      entry.closeFile();
+      deleteFile(entry.dataFile());
+      deleteFile(entry.metaFile());
+    }
+  }
+
+  /*
+   * 等待后台线程加载完已有的条目.
+   */
+  private void awaitLoadedLocked() {
+    boolean interrupted = false;
+    while (!mLoaded) {
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private synchronized void load() {
+    if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+      Log.w(TAG, "Unable to create cache directory " + mDirectory);
+    }
+    loadEntries();
+    mLoaded = true;
+    notifyAll();
+  }
+
+  private void loadEntries() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    List<Entry> entries = new ArrayList<>();
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.endsWith(META_SUFFIX)) {
+        continue;
+      }
+      String key = name.substring(0, name.length() - META_SUFFIX.length());
+      Entry entry = readMeta(key, file);
+      if (entry == null || !entry.dataFile().exists()) {
+        deleteFile(file);
+        continue;
+      }
+      entries.add(entry);
+    }
+    // restore the access order, the eldest first.
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return a.mLastAccessTime < b.mLastAccessTime ? -1
+            : (a.mLastAccessTime == b.mLastAccessTime ? 0 : 1);
+      }
+    });
+    for (Entry entry : entries) {
+      mEntries.put(entry.mKey, entry);
+      mTotalBytes += entry.mRanges.length();
+    }
+    if (mTotalBytes > mMaxBytes) {
+      trimToSizeLocked(mMaxBytes);
+    }
+  }
+
+  private Entry readMeta(String key, File metaFile) {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new FileInputStream(metaFile));
+      if (in.readInt() != META_MAGIC) {
+        return null;
+      }
+      Entry entry = new Entry(key, in.readUTF());
+      entry.mContentLength = in.readLong();
+      entry.mContentType = in.readUTF();
+      entry.mLastAccessTime = in.readLong();
+      entry.mRanges.readFrom(in);
+      return entry;
+    } catch (IOException ex) {
+      Log.w(TAG, "Unable to read cache meta " + metaFile, ex);
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  static String keyOf(String url) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] bytes = digest.digest(url.getBytes("UTF-8"));
+      StringBuilder builder = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+        builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+        builder.append(Character.forDigit(b & 0xF, 16));
+      }
+      return builder.toString();
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+      return String.valueOf(url.hashCode());
+    }
+  }
+
+  static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ignore) {
+        // ignore.
+      }
+    }
+  }
+
+  private static void deleteFile(File file) {
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Unable to delete " + file);
+    }
+  }
+
+  /**
+   * 单个 url 的缓存条目，读写按照原始文件的偏移进行。
+   */
+  public class Entry {
+
+    private final String mKey;
+    private final String mUrl;
+    private final RangeSet mRanges = new RangeSet();
+    private long mContentLength = -1;
+    private String mContentType = "";
+    private long mLastAccessTime;
+    private int mRefCount;
+    private RandomAccessFile mFile;
+
+    Entry(String key, String url) {
+      mKey = key;
+      mUrl = url;
+      mLastAccessTime = System.currentTimeMillis();
+    }
+
+    public String getUrl() {
+      return mUrl;
+    }
+
+    /**
+     * Returns the total length of the original file, -1 if unknown yet.
+     */
+    public synchronized long getContentLength() {
+      return mContentLength;
+    }
+
+    public synchronized String getContentType() {
+      return mContentType;
+    }
+
+    public synchronized void setContentInfo(long contentLength, String contentType) {
+      if (contentLength >= 0) {
+        mContentLength = contentLength;
+      }
+      if (contentType != null) {
+        mContentType = contentType;
+      }
+    }
+
+    /**
+     * Returns the end of the cached bytes which are contiguous from the position.
+     */
+    public synchronized long getCachedEnd(long position) {
+      return mRanges.contiguousEnd(position);
+    }
+
+    /**
+     * Returns the start of the next cached range after the position.
+     */
+    public synchronized long getNextCachedStart(long position) {
+      return mRanges.nextStart(position);
+    }
+
+    public synchronized long getCachedBytes() {
+      return mRanges.length();
+    }
+
+    public synchronized boolean isComplete() {
+      return mContentLength > 0 && mRanges.contains(0, mContentLength);
+    }
+
+    /**
+     * Reads the cached bytes at the position. The caller must make sure the range is cached.
+     *
+     * @return count of bytes read.
+     */
+    public synchronized int read(long position, byte[] buffer, int offset, int length)
+        throws IOException {
+      int available = (int) Math.min(length, mRanges.contiguousEnd(position) - position);
+      if (available <= 0) {
+        return 0;
+      }
+      RandomAccessFile file = file();
+      file.seek(position);
+      int read = file.read(buffer, offset, available);
+      mLastAccessTime = System.currentTimeMillis();
+      return read;
+    }
+
+    /**
+     * Writes the bytes fetched from the network at the position.
+     */
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+      long added;
+      synchronized (this) {
+        RandomAccessFile file = file();
+        file.seek(position);
+        file.write(buffer, offset, length);
+        long before = mRanges.length();
+        mRanges.add(position, position + length);
+        added = mRanges.length() - before;
+        mLastAccessTime = System.currentTimeMillis();
+      }
+      if (added > 0) {
+        onBytesCached(added);
+      }
+    }
+
+    /**
+     * Persists the meta data, so that the cached ranges survive process death.
+     */
+    public synchronized void flush() {
+      File metaFile = metaFile();
+      File tmpFile = new File(mDirectory, mKey + META_SUFFIX + ".tmp");
+      DataOutputStream out = null;
+      try {
+        out = new DataOutputStream(new FileOutputStream(tmpFile));
+        out.writeInt(META_MAGIC);
+        out.writeUTF(mUrl);
+        out.writeLong(mContentLength);
+        out.writeUTF(mContentType);
+        out.writeLong(mLastAccessTime);
+        mRanges.writeTo(out);
+        out.close();
+        out = null;
+        if (!tmpFile.renameTo(metaFile)) {
+          Log.w(TAG, "Unable to write cache meta " + metaFile);
+        }
+      } catch (IOException ex) {
+        Log.w(TAG, "Unable to write cache meta " + metaFile, ex);
+      } finally {
+        closeQuietly(out);
+      }
+    }
+
+    /**
+     * Flushes the meta data and releases the entry.
+     */
+    public void close() {
+      synchronized (this) {
+        if (mRanges.size() > 0) {
+          flush();
+        }
+      }
+      synchronized (VideoCache.this) {
+        synchronized (this) {
+          if (mRefCount == 1) {
+            closeFile();
+          }
+        }
+        release(this);
+      }
+    }
+
+    private RandomAccessFile file() throws IOException {
+      if (mFile == null) {
+        mFile = new RandomAccessFile(dataFile(), "rw");
+      }
+      return mFile;
+    }
+
+    private void closeFile() {
+      closeQuietly(mFile);
+      mFile = null;
+    }
+
+    private File dataFile() {
+      return new File(mDirectory, mKey + DATA_SUFFIX);
+    }
+
+    private File metaFile() {
+      return new File(mDirectory, mKey + META_SUFFIX);
+    }
+  }
+}
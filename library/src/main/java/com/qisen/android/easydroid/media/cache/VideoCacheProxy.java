@@ -0,0 +1,520 @@
+package com.qisen.android.easydroid.media.cache;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 运行在本地回环地址上的视频缓存代理。
+ *
+ * ### 使用
+ * 通过 {@link #install(Context, long)} 开启之后，{@link com.qisen.android.easydroid.media.TextureVideoView}
+ * 和 {@link com.qisen.android.easydroid.media.SurfaceVideoView} 会把 http(s) 的 Uri 改写成
+ * `http://127.0.0.1:port/<encoded url>`，由代理向原始地址请求数据。
+ *
+ * ### 缓存
+ * 代理把拉取到的字节区间写入 {@link VideoCache}，已经缓存的区间直接从磁盘读取，
+ * 缺失的部分再用 Range 请求补齐，因而重播、循环播放以及返回之后的播放都不需要重新下载。
+ *
+ * ### 统计
+ * {@link Stats} 记录了从磁盘读取的字节数、从网络拉取的字节数以及命中率。
+ *
+ * ### 预取
+ * {@link #getPrefetcher()} 返回写入同一份缓存的 {@link VideoPrefetcher}，可以提前拉取列表中
+ * 即将播放的视频开头部分。
+ *
+ * ### 离线
+ * {@link VideoDownloader} 下载完成的 url 由 {@link #proxy(Uri)} 直接改写成本地文件，不经过代理。
+ */
+public class VideoCacheProxy {
+
+  private static final String TAG = "VideoCacheProxy";
+
+  private static final String PROXY_HOST = "127.0.0.1";
+  private static final String CACHE_DIRECTORY = "video-cache";
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private static final int MAX_REQUEST_HEAD_SIZE = 8 * 1024;
+
+  private static VideoCacheProxy sInstance;
+
+  private final VideoCache mCache;
+  private final ServerSocket mServerSocket;
+  private final int mPort;
+  private final ExecutorService mExecutor;
+  private final Thread mAcceptThread;
+  private VideoPrefetcher mPrefetcher;
+
+  private final AtomicInteger mRequests = new AtomicInteger();
+  private final AtomicLong mBytesFromCache = new AtomicLong();
+  private final AtomicLong mBytesFromNetwork = new AtomicLong();
+
+  /**
+   * Starts the global proxy with a cache in the cache directory of the app. Calling it again
+   * returns the running proxy. The cached entries are loaded in the background, it is fine to
+   * call it on the main thread.
+   *
+   * @param context the context.
+   * @param maxCacheBytes the max bytes of the disk cache.
+   * @return the running proxy, or null if the proxy could not be started.
+   */
+  public static synchronized VideoCacheProxy install(Context context, long maxCacheBytes) {
+    if (sInstance == null) {
+      File directory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY);
+      try {
+        sInstance = new VideoCacheProxy(new VideoCache(directory, maxCacheBytes));
+      } catch (IOException ex) {
+        Log.w(TAG, "Unable to start video cache proxy", ex);
+      }
+    }
+    return sInstance;
+  }
+
+  /**
+   * Stops the global proxy, the views will request the original uri again.
+   */
+  public static synchronized void uninstall() {
+    if (sInstance != null) {
+      sInstance.shutdown();
+      sInstance = null;
+    }
+  }
+
+  /**
+   * Returns the global proxy, or null if it is not installed.
+   */
+  public static synchronized VideoCacheProxy getInstance() {
+    return sInstance;
+  }
+
+  /**
+   * Rewrites the uri through the global proxy. The uri is returned as is if the proxy is not
+   * installed or the uri is not a http(s) uri. A uri downloaded by {@link VideoDownloader} is
+   * rewritten to the local file, whether the proxy is installed or not.
+   */
+  public static Uri proxy(Uri uri) {
+    VideoDownloader downloader = VideoDownloader.getInstance();
+    File file = downloader == null || uri == null ? null
+        : downloader.getDownloadedFile(uri.toString());
+    if (file != null) {
+      return Uri.fromFile(file);
+    }
+    VideoCacheProxy proxy = getInstance();
+    return proxy == null ? uri : proxy.getProxyUri(uri);
+  }
+
+  /**
+   * Restores the uri rewritten by {@link #proxy(Uri)}. The uri is returned as is if the proxy
+   * is not installed or the uri is not proxied.
+   */
+  public static Uri unproxy(Uri uri) {
+    VideoDownloader downloader = VideoDownloader.getInstance();
+    String url = downloader == null ? null : downloader.getOriginalUrl(uri);
+    if (url != null) {
+      return Uri.parse(url);
+    }
+    VideoCacheProxy proxy = getInstance();
+    return proxy == null ? uri : proxy.getOriginalUri(uri);
+  }
+
+  /**
+   * Creates a proxy serving with the cache, listening on a random loopback port.
+   */
+  public VideoCacheProxy(VideoCache cache) throws IOException {
+    mCache = cache;
+    mServerSocket = new ServerSocket(0, 8, InetAddress.getByName(PROXY_HOST));
+    mPort = mServerSocket.getLocalPort();
+    mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "VideoCacheProxy-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    mAcceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptLoop();
+      }
+    }, "VideoCacheProxy-Accept");
+    mAcceptThread.setDaemon(true);
+    mAcceptThread.start();
+  }
+
+  public VideoCache getCache() {
+    return mCache;
+  }
+
+  /**
+   * Returns the prefetcher which writes into the same cache as the proxy.
+   */
+  public synchronized VideoPrefetcher getPrefetcher() {
+    if (mPrefetcher == null) {
+      mPrefetcher = new VideoPrefetcher(mCache);
+    }
+    return mPrefetcher;
+  }
+
+  public int getPort() {
+    return mPort;
+  }
+
+  public Uri getProxyUri(Uri uri) {
+    if (uri == null || !isHttp(uri.getScheme())) {
+      return uri;
+    }
+    return Uri.parse(getProxyUrl(uri.toString()));
+  }
+
+  public String getProxyUrl(String url) {
+    try {
+      return "http://" + PROXY_HOST + ":" + mPort + "/" + URLEncoder.encode(url, "UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      return url;
+    }
+  }
+
+  /**
+   * Returns the content length of the proxied uri known by the cache, or -1 if it is unknown
+   * or the uri is not served by this proxy.
+   */
+  public long getContentLength(Uri proxyUri) {
+    String url = getOriginalUrl(proxyUri);
+    return url == null ? -1 : mCache.getContentLength(url);
+  }
+
+  /**
+   * Returns the count of bytes of the proxied uri cached from the position, or 0 if the uri is
+   * not served by this proxy.
+   */
+  public long getCachedLength(Uri proxyUri, long position) {
+    String url = getOriginalUrl(proxyUri);
+    return url == null ? 0 : mCache.getCachedLength(url, position);
+  }
+
+  /**
+   * Returns the original uri of the proxied one, or the uri as is if it is not served by this
+   * proxy.
+   */
+  public Uri getOriginalUri(Uri proxyUri) {
+    String url = getOriginalUrl(proxyUri);
+    return url == null ? proxyUri : Uri.parse(url);
+  }
+
+  private String getOriginalUrl(Uri proxyUri) {
+    String prefix = "http://" + PROXY_HOST + ":" + mPort + "/";
+    String proxyUrl = proxyUri == null ? null : proxyUri.toString();
+    if (proxyUrl == null || !proxyUrl.startsWith(prefix)) {
+      return null;
+    }
+    try {
+      return URLDecoder.decode(proxyUrl.substring(prefix.length()), "UTF-8");
+    } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns a snapshot of the statistics.
+   */
+  public Stats getStats() {
+    Stats stats = new Stats();
+    stats.requests = mRequests.get();
+    stats.bytesFromCache = mBytesFromCache.get();
+    stats.bytesFromNetwork = mBytesFromNetwork.get();
+    return stats;
+  }
+
+  public void resetStats() {
+    mRequests.set(0);
+    mBytesFromCache.set(0);
+    mBytesFromNetwork.set(0);
+  }
+
+  public void shutdown() {
+    synchronized (this) {
+      if (mPrefetcher != null) {
+        mPrefetcher.shutdown();
+      }
+    }
+    VideoCache.closeQuietly(mServerSocket);
+    mAcceptThread.interrupt();
+    mExecutor.shutdownNow();
+  }
+
+  private void acceptLoop() {
+    while (!mServerSocket.isClosed()) {
+      try {
+        final Socket socket = mServerSocket.accept();
+        mExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        });
+      } catch (IOException ex) {
+        if (!mServerSocket.isClosed()) {
+          Log.w(TAG, "Unable to accept request", ex);
+        }
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    HttpSource source = null;
+    VideoCache.Entry entry = null;
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+      Request request = Request.read(in);
+      if (request == null) {
+        return;
+      }
+      mRequests.incrementAndGet();
+
+      entry = mCache.open(request.url);
+      long total = entry.getContentLength();
+      if (total < 0) {
+        // 第一次请求，先打开原始连接拿到文件的总长度.
+        source = new HttpSource(request.url, request.forwardHeaders, true);
+        source.open(request.rangeStart, -1);
+        total = source.getTotalLength();
+        entry.setContentInfo(total, source.getContentType());
+      }
+      long start = request.rangeStart;
+      long end = total < 0 ? -1 : total;
+      if (end >= 0 && request.rangeEnd >= 0) {
+        end = Math.min(end, request.rangeEnd + 1);
+      }
+      if (total >= 0 && start >= total) {
+        writeHead(out, "416 Requested Range Not Satisfiable", entry.getContentType(), 0, null);
+        out.flush();
+        return;
+      }
+
+      boolean partial = request.hasRange && total >= 0;
+      writeHead(out, partial ? "206 Partial Content" : "200 OK", entry.getContentType(),
+          end < 0 ? -1 : end - start,
+          partial ? "bytes " + start + "-" + (end - 1) + "/" + total : null);
+      if (!request.isHead) {
+        source = pump(request, entry, source, start, end, out);
+      }
+      out.flush();
+    } catch (IOException ex) {
+      // 播放器 seek 或者停止的时候会直接断开连接，这里不需要当作错误处理.
+      Log.d(TAG, "Proxy request finished: " + ex.getMessage());
+    } finally {
+      if (source != null) {
+        source.close();
+      }
+      if (entry != null) {
+        entry.close();
+      }
+      VideoCache.closeQuietly(socket);
+    }
+  }
+
+  /*
+   * 按顺序输出 [start, end) 的数据，已经缓存的部分从磁盘读取，缺失的部分从网络补齐并写入缓存。
+   */
+  private HttpSource pump(Request request, VideoCache.Entry entry, HttpSource source,
+                          long start, long end, OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long position = start;
+    while (end < 0 || position < end) {
+      long remaining = end < 0 ? buffer.length : Math.min(buffer.length, end - position);
+      long cachedEnd = entry.getCachedEnd(position);
+      if (cachedEnd > position) {
+        if (source != null) {
+          // 接下来的数据已经在缓存中，关闭网络连接.
+          source.close();
+          source = null;
+        }
+        int read = entry.read(position, buffer, 0, (int) Math.min(remaining, cachedEnd - position));
+        out.write(buffer, 0, read);
+        position += read;
+        mBytesFromCache.addAndGet(read);
+        continue;
+      }
+
+      if (source == null) {
+        long nextCached = entry.getNextCachedStart(position);
+        long fetchEnd = end < 0 ? -1 : Math.min(end, nextCached);
+        if (fetchEnd < 0 && nextCached != Long.MAX_VALUE) {
+          fetchEnd = nextCached;
+        }
+        source = new HttpSource(request.url, request.forwardHeaders, true);
+        source.open(position, fetchEnd);
+      }
+      int read = source.read(buffer, 0, (int) remaining);
+      if (read < 0) {
+        if (end < 0) {
+          // 长度未知的情况下，读到结尾才知道文件总长度.
+          entry.setContentInfo(position, null);
+          break;
+        }
+        throw new IOException("Unexpected end of " + request.url + " at " + position);
+      }
+      entry.write(position, buffer, 0, read);
+      out.write(buffer, 0, read);
+      position += read;
+      mBytesFromNetwork.addAndGet(read);
+    }
+    return source;
+  }
+
+  private static void writeHead(OutputStream out, String status, String contentType,
+                                long contentLength, String contentRange) throws IOException {
+    StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ").append(status).append("\r\n");
+    if (contentType != null && !contentType.isEmpty()) {
+      head.append("Content-Type: ").append(contentType).append("\r\n");
+    }
+    head.append("Accept-Ranges: bytes\r\n");
+    if (contentLength >= 0) {
+      head.append("Content-Length: ").append(contentLength).append("\r\n");
+    }
+    if (contentRange != null) {
+      head.append("Content-Range: ").append(contentRange).append("\r\n");
+    }
+    head.append("Connection: close\r\n\r\n");
+    out.write(head.toString().getBytes("UTF-8"));
+  }
+
+  private static boolean isHttp(String scheme) {
+    return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+  }
+
+  /*
+   * 播放器发给代理的请求.
+   */
+  private static class Request {
+    String url;
+    boolean isHead;
+    boolean hasRange;
+    long rangeStart;
+    long rangeEnd = -1;
+    final Map<String, String> forwardHeaders = new HashMap<>();
+
+    static Request read(InputStream in) throws IOException {
+      String head = readHead(in);
+      if (head == null) {
+        return null;
+      }
+      String[] lines = head.split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+      if (requestLine.length < 2 || requestLine[1].length() < 2) {
+        return null;
+      }
+      Request request = new Request();
+      request.isHead = "HEAD".equals(requestLine[0]);
+      request.url = URLDecoder.decode(requestLine[1].substring(1), "UTF-8");
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon <= 0) {
+          continue;
+        }
+        String name = lines[i].substring(0, colon).trim();
+        String value = lines[i].substring(colon + 1).trim();
+        String lowerName = name.toLowerCase(Locale.US);
+        if (lowerName.equals("range")) {
+          request.parseRange(value);
+        } else if (!lowerName.equals("host") && !lowerName.equals("connection")
+            && !lowerName.equals("accept-encoding") && !lowerName.startsWith("proxy-")) {
+          // 透传播放器带上的 header，例如 setVideoURI 时设置的 headers.
+          request.forwardHeaders.put(name, value);
+        }
+      }
+      return request;
+    }
+
+    // "bytes=100-", "bytes=100-199"
+    private void parseRange(String value) {
+      if (!value.startsWith("bytes=")) {
+        return;
+      }
+      String range = value.substring("bytes=".length());
+      int dash = range.indexOf('-');
+      if (dash <= 0) {
+        // suffix range is not supported, serve the whole file instead.
+        return;
+      }
+      try {
+        rangeStart = Long.parseLong(range.substring(0, dash).trim());
+        String end = range.substring(dash + 1).trim();
+        rangeEnd = end.isEmpty() ? -1 : Long.parseLong(end);
+        hasRange = true;
+      } catch (NumberFormatException ex) {
+        rangeStart = 0;
+        rangeEnd = -1;
+      }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+      StringBuilder builder = new StringBuilder();
+      int matched = 0;
+      while (builder.length() < MAX_REQUEST_HEAD_SIZE) {
+        int c = in.read();
+        if (c < 0) {
+          return null;
+        }
+        builder.append((char) c);
+        // wait for the "\r\n\r\n".
+        matched = (c == '\r' || c == '\n') ? matched + 1 : 0;
+        if (matched == 4) {
+          return builder.toString().trim();
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Statistics of the proxy.
+   */
+  public static class Stats {
+    // count of requests from the players.
+    public int requests;
+    // bytes served from the disk cache.
+    public long bytesFromCache;
+    // bytes fetched from the network.
+    public long bytesFromNetwork;
+
+    /**
+     * Returns the ratio of bytes served from the disk cache.
+     */
+    public float getHitRatio() {
+      long total = bytesFromCache + bytesFromNetwork;
+      return total == 0 ? 0 : (float) bytesFromCache / total;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{requests=" + requests + ", bytesFromCache=" + bytesFromCache
+          + ", bytesFromNetwork=" + bytesFromNetwork + ", hitRatio=" + getHitRatio() + "}";
+    }
+  }
+}
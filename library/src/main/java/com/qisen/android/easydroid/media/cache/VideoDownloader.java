@@ -0,0 +1,743 @@
+package com.qisen.android.easydroid.media.cache;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下载视频用于离线播放。
+ *
+ * ### 分块
+ * 文件按照 {@link #CHUNK_SIZE} 切成若干块，每块是一个独立的 Range 请求，所有下载共用最多
+ * {@link #setMaxConnections(int)} 个连接，按照下载的先后轮流分配。第一块同时用来获取文件长度，
+ * 服务器不支持 Range 时退化为一个连接顺序下载。
+ *
+ * ### 写入
+ * 每个下载只打开一个 {@link FileChannel}，各个连接按照位置写入，互不影响，不需要加锁。
+ *
+ * ### 续传
+ * 已经完成的块记录在位图中，每完成一块先把数据刷到磁盘再更新位图文件，进程被杀或者暂停之后，
+ * 再次调用 {@link #download(String, Map)} 只下载缺失的块。
+ *
+ * ### 播放
+ * 下载完成的文件保存在应用的 files 目录下，不会被缓存淘汰。{@link VideoCacheProxy#proxy(Uri)}
+ * 会把对应的 url 改写成本地文件，对同一个 url 调用 setVideoURI 直接播放本地文件；
+ * {@link VideoCacheProxy#unproxy(Uri)} 把本地文件还原成原始 url，播放进度等按照原始 url 保存。
+ */
+public class VideoDownloader {
+
+  private static final String TAG = "VideoDownloader";
+
+  public static final int STATE_NONE = 0;
+  public static final int STATE_PAUSED = 1;
+  public static final int STATE_RUNNING = 2;
+  public static final int STATE_COMPLETED = 3;
+  public static final int STATE_FAILED = 4;
+
+  private static final String DIRECTORY = "video-downloads";
+  private static final String DATA_SUFFIX = ".video";
+  private static final String META_SUFFIX = ".meta";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int META_MAGIC = 0x56444c31;
+
+  static final int CHUNK_SIZE = 1024 * 1024;
+  private static final int DEFAULT_MAX_CONNECTIONS = 3;
+  // consecutive chunk failures before the download fails.
+  private static final int MAX_RETRIES = 3;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static VideoDownloader sInstance;
+
+  private final File mDirectory;
+  private final ExecutorService mExecutor;
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+  // keyed by the md5 of the url, see VideoCache.keyOf.
+  private final HashMap<String, Download> mDownloads = new HashMap<>();
+  // removed downloads whose chunks are still running, their files are deleted once idle.
+  private final HashMap<String, Download> mRemoving = new HashMap<>();
+  // running downloads, rotated to share the connections.
+  private final ArrayList<Download> mQueue = new ArrayList<>();
+  private final List<Listener> mListeners = new ArrayList<>();
+  private int mRunningCount;
+  private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+  private final Stats mStats = new Stats();
+
+  /**
+   * Creates the global downloader storing in the files directory of the app, and restores the
+   * downloads of the last run. Calling it again returns the existing one.
+   */
+  public static synchronized VideoDownloader install(Context context) {
+    if (sInstance == null) {
+      File directory = new File(context.getApplicationContext().getFilesDir(), DIRECTORY);
+      sInstance = new VideoDownloader(directory);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Returns the global downloader, or null if it is not installed.
+   */
+  public static synchronized VideoDownloader getInstance() {
+    return sInstance;
+  }
+
+  public VideoDownloader(File directory) {
+    mDirectory = directory;
+    if (!directory.exists() && !directory.mkdirs()) {
+      Log.w(TAG, "Unable to create download directory " + directory);
+    }
+    mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "VideoDownloader-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+    loadDownloads();
+  }
+
+  /**
+   * Sets the max count of connections shared by all the downloads.
+   */
+  public synchronized void setMaxConnections(int maxConnections) {
+    mMaxConnections = Math.max(1, maxConnections);
+    scheduleLocked();
+  }
+
+  public synchronized void addListener(Listener listener) {
+    if (!mListeners.contains(listener)) {
+      mListeners.add(listener);
+    }
+  }
+
+  public synchronized void removeListener(Listener listener) {
+    mListeners.remove(listener);
+  }
+
+  /**
+   * Starts or resumes the download of the video. Chunks downloaded before are kept. If the
+   * video was just removed and its chunks are still running, the download starts after they
+   * stop and the old file is deleted.
+   *
+   * @param url the original url of the video.
+   * @param headers the headers for the requests, may be null.
+   */
+  public synchronized void download(String url, Map<String, String> headers) {
+    String key = VideoCache.keyOf(url);
+    Download removing = mRemoving.get(key);
+    if (removing != null) {
+      // 旧的连接还在写同一个文件，等它们结束并且删除文件之后再开始.
+      removing.restart = true;
+      removing.headers = headers;
+      return;
+    }
+    Download download = mDownloads.get(key);
+    if (download == null) {
+      download = new Download(url, key);
+      mDownloads.put(key, download);
+    }
+    if (download.state == STATE_RUNNING || download.state == STATE_COMPLETED) {
+      return;
+    }
+    download.headers = headers;
+    download.failures = 0;
+    download.state = STATE_RUNNING;
+    mQueue.add(download);
+    scheduleLocked();
+  }
+
+  /**
+   * Pauses the download, the running chunks are abandoned and downloaded again on resume.
+   */
+  public synchronized void pause(String url) {
+    Download download = mDownloads.get(VideoCache.keyOf(url));
+    if (download != null && download.state == STATE_RUNNING) {
+      download.state = STATE_PAUSED;
+      mQueue.remove(download);
+      closeIfIdleLocked(download);
+    }
+  }
+
+  /**
+   * Stops the download and deletes the downloaded file, once the running chunks stop.
+   */
+  public synchronized void remove(String url) {
+    String key = VideoCache.keyOf(url);
+    Download removing = mRemoving.get(key);
+    if (removing != null) {
+      removing.restart = false;
+      return;
+    }
+    Download download = mDownloads.remove(key);
+    if (download != null) {
+      download.state = STATE_NONE;
+      download.removed = true;
+      mQueue.remove(download);
+      mRemoving.put(key, download);
+      closeIfIdleLocked(download);
+    }
+  }
+
+  public synchronized int getState(String url) {
+    Download download = mDownloads.get(VideoCache.keyOf(url));
+    return download == null ? STATE_NONE : download.state;
+  }
+
+  /**
+   * Returns the bytes downloaded, counted by the completed chunks.
+   */
+  public synchronized long getDownloadedBytes(String url) {
+    Download download = mDownloads.get(VideoCache.keyOf(url));
+    return download == null ? 0 : download.downloadedBytesLocked();
+  }
+
+  /**
+   * Returns the length of the video, or -1 if unknown yet.
+   */
+  public synchronized long getContentLength(String url) {
+    Download download = mDownloads.get(VideoCache.keyOf(url));
+    return download == null ? -1 : download.contentLength;
+  }
+
+  /**
+   * Returns the file of the completed download, or null if it is not completed.
+   */
+  public synchronized File getDownloadedFile(String url) {
+    Download download = mDownloads.get(VideoCache.keyOf(url));
+    return download == null || download.state != STATE_COMPLETED ? null : download.dataFile();
+  }
+
+  /**
+   * Returns the original url of the downloaded file, or null if the uri is not a downloaded
+   * file.
+   */
+  public synchronized String getOriginalUrl(Uri fileUri) {
+    if (fileUri == null || !"file".equals(fileUri.getScheme()) || fileUri.getPath() == null) {
+      return null;
+    }
+    File file = new File(fileUri.getPath());
+    String name = file.getName();
+    if (!mDirectory.equals(file.getParentFile()) || !name.endsWith(DATA_SUFFIX)) {
+      return null;
+    }
+    Download download = mDownloads.get(name.substring(0, name.length() - DATA_SUFFIX.length()));
+    return download == null ? null : download.url;
+  }
+
+  /**
+   * Returns the original urls of all the downloads, including the unfinished ones.
+   */
+  public synchronized List<String> getUrls() {
+    List<String> urls = new ArrayList<>(mDownloads.size());
+    for (Download download : mDownloads.values()) {
+      urls.add(download.url);
+    }
+    return urls;
+  }
+
+  /**
+   * Returns a snapshot of the statistics.
+   */
+  public synchronized Stats getStats() {
+    Stats stats = new Stats();
+    stats.bytesDownloaded = mStats.bytesDownloaded;
+    stats.chunks = mStats.chunks;
+    stats.retries = mStats.retries;
+    stats.completed = mStats.completed;
+    stats.failed = mStats.failed;
+    stats.connections = mRunningCount;
+    return stats;
+  }
+
+  /*
+   * 轮流从排队的下载中取出下一个缺失的块，直到连接用完或者一轮下来都没有可以分配的块.
+   */
+  private void scheduleLocked() {
+    int idle = 0;
+    while (mRunningCount < mMaxConnections && idle < mQueue.size()) {
+      Download download = mQueue.remove(0);
+      mQueue.add(download);
+      int chunk = download.nextChunkLocked();
+      if (chunk < 0) {
+        // 剩下的块都在下载中，或者在等待第一块返回文件长度.
+        idle++;
+        continue;
+      }
+      idle = 0;
+      if (download.channel == null) {
+        try {
+          download.channel = new RandomAccessFile(download.dataFile(), "rw").getChannel();
+        } catch (IOException ex) {
+          failLocked(download, ex);
+          continue;
+        }
+      }
+      download.inFlight.set(chunk);
+      download.runningChunks++;
+      mRunningCount++;
+      final Download target = download;
+      final int index = chunk;
+      // 下载线程不加锁，长度在这里取一份快照.
+      final long contentLength = download.contentLength;
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          IOException error = null;
+          try {
+            fetch(target, index, contentLength);
+          } catch (IOException ex) {
+            error = ex;
+          }
+          onChunkFinished(target, index, error);
+        }
+      });
+    }
+  }
+
+  /*
+   * 从 index 开始下载，服务器不支持 Range 时一直读到文件结尾，依次标记经过的块.
+   *
+   * contentLength 是分配这一块时的快照，-1 表示这一块用来获取长度.
+   */
+  private void fetch(Download download, int index, long contentLength) throws IOException {
+    long position = (long) index * CHUNK_SIZE;
+    long end = contentLength >= 0
+        ? Math.min(position + CHUNK_SIZE, contentLength) : position + CHUNK_SIZE;
+    HttpSource source = new HttpSource(download.url, download.headers);
+    try {
+      source.open(position, end);
+      boolean probe = contentLength < 0;
+      if (probe) {
+        contentLength = onContentInfo(download, source);
+        end = Math.min(end, contentLength);
+      }
+      if (!source.isPartial() && contentLength > end) {
+        if (!probe && !markSequential(download)) {
+          // 另一个连接已经在顺序下载.
+          return;
+        }
+        end = contentLength;
+      }
+      byte[] buffer = new byte[BUFFER_SIZE];
+      ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+      long chunkEnd = Math.min((long) (index + 1) * CHUNK_SIZE, end);
+      while (position < end) {
+        if (download.state != STATE_RUNNING) {
+          return;
+        }
+        // 不跨过块的边界，否则顺序下载时经过的块不会被标记.
+        int read = source.read(buffer, 0, (int) Math.min(buffer.length, chunkEnd - position));
+        if (read < 0) {
+          throw new IOException("Unexpected end of stream at " + position + " of " + end);
+        }
+        byteBuffer.clear().limit(read);
+        while (byteBuffer.hasRemaining()) {
+          position += download.channel.write(byteBuffer, position);
+        }
+        onBytesDownloaded(read);
+        if (position == chunkEnd) {
+          // 先把数据刷到磁盘再记录到位图，位图中的块在进程被杀之后也一定是完整的.
+          download.channel.force(false);
+          onChunkDone(download, index);
+          index++;
+          chunkEnd = Math.min(chunkEnd + CHUNK_SIZE, end);
+        }
+      }
+    } finally {
+      source.close();
+    }
+  }
+
+  /*
+   * 第一块返回之后记录文件长度，并返回这个长度.
+   */
+  private synchronized long onContentInfo(Download download, HttpSource source)
+      throws IOException {
+    long length = source.getTotalLength();
+    if (length < 0) {
+      throw new IOException("Unknown content length of " + download.url);
+    }
+    download.contentLength = length;
+    download.contentType = source.getContentType();
+    download.done = new BitSet(download.chunkCount());
+    download.sequential = !source.isPartial();
+    // 长度已知，其余的块可以并行下载.
+    scheduleLocked();
+    return length;
+  }
+
+  /*
+   * 服务器不支持 Range，每个连接都要从头读取，只保留一个连接.
+   */
+  private synchronized boolean markSequential(Download download) {
+    if (download.sequential) {
+      return false;
+    }
+    download.sequential = true;
+    return true;
+  }
+
+  private synchronized void onBytesDownloaded(long bytes) {
+    mStats.bytesDownloaded += bytes;
+  }
+
+  private void onChunkDone(Download download, int index) {
+    boolean completed;
+    synchronized (this) {
+      if (download.removed) {
+        return;
+      }
+      download.done.set(index);
+      download.failures = 0;
+      mStats.chunks++;
+      // 位图很小，每块重写一次.
+      writeMetaLocked(download);
+      // 暂停之后还在写的块也可能是最后一块.
+      completed = download.isCompleteLocked() && download.state != STATE_COMPLETED;
+      if (completed) {
+        download.state = STATE_COMPLETED;
+        mQueue.remove(download);
+        mStats.completed++;
+      }
+    }
+    dispatchProgress(download);
+    if (completed) {
+      dispatchCompleted(download);
+    }
+  }
+
+  private synchronized void onChunkFinished(Download download, int index, IOException error) {
+    download.inFlight.clear(index);
+    download.runningChunks--;
+    mRunningCount--;
+    if (error != null && download.state == STATE_RUNNING) {
+      download.failures++;
+      if (download.failures > MAX_RETRIES) {
+        failLocked(download, error);
+      } else {
+        mStats.retries++;
+        Log.w(TAG, "Retry chunk " + index + " of " + download.url, error);
+      }
+    }
+    closeIfIdleLocked(download);
+    scheduleLocked();
+  }
+
+  private void failLocked(Download download, IOException error) {
+    Log.w(TAG, "Unable to download " + download.url, error);
+    download.state = STATE_FAILED;
+    mQueue.remove(download);
+    mStats.failed++;
+    closeIfIdleLocked(download);
+    dispatchFailed(download, error);
+  }
+
+  private void closeIfIdleLocked(Download download) {
+    if (download.runningChunks > 0 || download.state == STATE_RUNNING) {
+      return;
+    }
+    VideoCache.closeQuietly(download.channel);
+    download.channel = null;
+    if (download.removed && mRemoving.remove(download.key) != null) {
+      deleteFile(download.dataFile());
+      deleteFile(download.metaFile());
+      if (download.restart) {
+        download(download.url, download.headers);
+      }
+    }
+  }
+
+  private void dispatchProgress(final Download download) {
+    final long downloaded;
+    final long total;
+    final Listener[] listeners;
+    synchronized (this) {
+      downloaded = download.downloadedBytesLocked();
+      total = download.contentLength;
+      listeners = mListeners.toArray(new Listener[0]);
+    }
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        for (Listener listener : listeners) {
+          listener.onProgress(download.url, downloaded, total);
+        }
+      }
+    });
+  }
+
+  private void dispatchCompleted(final Download download) {
+    final Listener[] listeners;
+    synchronized (this) {
+      listeners = mListeners.toArray(new Listener[0]);
+    }
+    final File file = download.dataFile();
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        for (Listener listener : listeners) {
+          listener.onCompleted(download.url, file);
+        }
+      }
+    });
+  }
+
+  private void dispatchFailed(final Download download, final IOException error) {
+    final Listener[] listeners = mListeners.toArray(new Listener[0]);
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        for (Listener listener : listeners) {
+          listener.onFailed(download.url, error);
+        }
+      }
+    });
+  }
+
+  /*
+   * 先写临时文件再重命名，写到一半被杀不会破坏已有的位图.
+   */
+  private void writeMetaLocked(Download download) {
+    File temp = new File(mDirectory, download.key + TEMP_SUFFIX);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new FileOutputStream(temp));
+      out.writeInt(META_MAGIC);
+      out.writeUTF(download.url);
+      out.writeLong(download.contentLength);
+      out.writeUTF(download.contentType != null ? download.contentType : "");
+      int count = download.chunkCount();
+      out.writeInt(count);
+      for (int i = 0; i < count; i += 8) {
+        int bits = 0;
+        for (int j = 0; j < 8 && i + j < count; j++) {
+          if (download.done.get(i + j)) {
+            bits |= 1 << j;
+          }
+        }
+        out.writeByte(bits);
+      }
+      out.close();
+      out = null;
+      if (!temp.renameTo(download.metaFile())) {
+        Log.w(TAG, "Unable to save download meta of " + download.url);
+      }
+    } catch (IOException ex) {
+      Log.w(TAG, "Unable to save download meta of " + download.url, ex);
+    } finally {
+      VideoCache.closeQuietly(out);
+    }
+  }
+
+  private Download readMeta(String key, File metaFile) {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new FileInputStream(metaFile));
+      if (in.readInt() != META_MAGIC) {
+        return null;
+      }
+      Download download = new Download(in.readUTF(), key);
+      download.contentLength = in.readLong();
+      download.contentType = in.readUTF();
+      int count = in.readInt();
+      if (count != download.chunkCount()) {
+        return null;
+      }
+      download.done = new BitSet(count);
+      for (int i = 0; i < count; i += 8) {
+        int bits = in.readUnsignedByte();
+        for (int j = 0; j < 8 && i + j < count; j++) {
+          if ((bits & (1 << j)) != 0) {
+            download.done.set(i + j);
+          }
+        }
+      }
+      download.state = download.isCompleteLocked() ? STATE_COMPLETED : STATE_PAUSED;
+      return download;
+    } catch (IOException ex) {
+      Log.w(TAG, "Unable to read download meta " + metaFile, ex);
+      return null;
+    } finally {
+      VideoCache.closeQuietly(in);
+    }
+  }
+
+  private void loadDownloads() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(TEMP_SUFFIX)) {
+        deleteFile(file);
+        continue;
+      }
+      if (!name.endsWith(META_SUFFIX)) {
+        continue;
+      }
+      String key = name.substring(0, name.length() - META_SUFFIX.length());
+      Download download = readMeta(key, file);
+      if (download == null || !download.dataFile().exists()) {
+        deleteFile(file);
+        continue;
+      }
+      mDownloads.put(key, download);
+    }
+  }
+
+  private static void deleteFile(File file) {
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Unable to delete " + file);
+    }
+  }
+
+  /*
+   * 除了 url 和 key，其余字段由 VideoDownloader 的锁保护；state 和 channel 在下载线程中不加锁读取.
+   */
+  private class Download {
+    final String url;
+    final String key;
+    Map<String, String> headers;
+    long contentLength = -1;
+    String contentType;
+    // chunks completed and flushed, null until the content length is known.
+    BitSet done;
+    // chunks being downloaded.
+    final BitSet inFlight = new BitSet();
+    volatile int state = STATE_NONE;
+    volatile FileChannel channel;
+    int runningChunks;
+    int failures;
+    // the server does not support ranges, only one connection is used.
+    boolean sequential;
+    boolean removed;
+    // download() was called again while removing, start over once the files are deleted.
+    boolean restart;
+
+    Download(String url, String key) {
+      this.url = url;
+      this.key = key;
+    }
+
+    File dataFile() {
+      return new File(mDirectory, key + DATA_SUFFIX);
+    }
+
+    File metaFile() {
+      return new File(mDirectory, key + META_SUFFIX);
+    }
+
+    int chunkCount() {
+      return contentLength < 0 ? 0 : (int) ((contentLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /*
+     * 长度未知时只能下载第一块，用它获取长度.
+     */
+    int nextChunkLocked() {
+      if (done == null) {
+        return inFlight.get(0) ? -1 : 0;
+      }
+      if (sequential && runningChunks > 0) {
+        return -1;
+      }
+      int count = chunkCount();
+      for (int i = done.nextClearBit(0); i < count; i = done.nextClearBit(i + 1)) {
+        if (!inFlight.get(i)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    boolean isCompleteLocked() {
+      return done != null && done.cardinality() == chunkCount();
+    }
+
+    long downloadedBytesLocked() {
+      if (done == null) {
+        return 0;
+      }
+      long bytes = (long) done.cardinality() * CHUNK_SIZE;
+      int last = chunkCount() - 1;
+      if (last >= 0 && done.get(last)) {
+        // 最后一块可能不满.
+        bytes -= (long) (last + 1) * CHUNK_SIZE - contentLength;
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * Statistics of the downloader.
+   */
+  public static class Stats {
+    // bytes downloaded from the network, including the abandoned chunks.
+    public long bytesDownloaded;
+    // chunks completed.
+    public int chunks;
+    // chunks downloaded again after a network error.
+    public int retries;
+    // downloads completed.
+    public int completed;
+    // downloads failed after the retries.
+    public int failed;
+    // connections in use.
+    public int connections;
+
+    @Override
+    public String toString() {
+      return "Stats{bytesDownloaded=" + bytesDownloaded + ", chunks=" + chunks
+          + ", retries=" + retries + ", completed=" + completed + ", failed=" + failed
+          + ", connections=" + connections + "}";
+    }
+  }
+
+  /**
+   * Receives the events of all the downloads on the main thread.
+   */
+  public interface Listener {
+
+    /**
+     * Called when a chunk is completed.
+     *
+     * @param totalBytes the length of the video.
+     */
+    void onProgress(String url, long downloadedBytes, long totalBytes);
+
+    void onCompleted(String url, File file);
+
+    /**
+     * Called when the download fails after the retries. Calling
+     * {@link VideoDownloader#download(String, Map)} again resumes it.
+     */
+    void onFailed(String url, IOException error);
+  }
+}
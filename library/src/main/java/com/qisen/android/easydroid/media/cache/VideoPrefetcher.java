@@ -0,0 +1,342 @@
+package com.qisen.android.easydroid.media.cache;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 预取即将播放的视频开头部分。
+ *
+ * ### 使用
+ * 列表把接下来要播放的 url 连同它在列表中的位置通过 {@link #enqueue(String, Map, int)} 加入队列，
+ * 滑动时调用 {@link #updateFocus(int, int)} 告知当前位置和滑动方向，预取器会按照离当前位置的距离
+ * 重新排序，优先拉取滑动方向上最近的视频，反方向上的视频排在后面；反方向上超出
+ * {@link #setBehindWindow(int)} 的视频不再追踪。
+ *
+ * ### 缓存
+ * 预取的数据写入和 {@link VideoCacheProxy} 相同的 {@link VideoCache}，播放的时候代理直接从磁盘读取，
+ * 省去 prepareAsync 中首次网络请求的等待。
+ *
+ * ### 限制
+ * 同时进行的下载数量由 {@link #setMaxConcurrent(int)} 控制；正在下载的视频还需要拉取的字节数之和
+ * 不超过 {@link #setByteBudget(long)}，已经完成的视频不再占用预算。单个视频的预取量超过预算时只拉取
+ * 预算以内的部分。
+ */
+public class VideoPrefetcher {
+
+  private static final String TAG = "VideoPrefetcher";
+
+  public static final int DIRECTION_FORWARD = 1;
+  public static final int DIRECTION_BACKWARD = -1;
+
+  private static final int DEFAULT_MAX_CONCURRENT = 2;
+  private static final long DEFAULT_PREFETCH_BYTES = 512 * 1024;
+  private static final long DEFAULT_BYTE_BUDGET = 8 * 1024 * 1024;
+  private static final int DEFAULT_BEHIND_WINDOW = 2;
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final VideoCache mCache;
+  private final ExecutorService mExecutor;
+
+  // all tracked tasks, including pending, running and finished ones.
+  private final LinkedHashMap<String, Task> mTasks = new LinkedHashMap<>();
+  private int mRunningCount;
+  private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+  private long mPrefetchBytes = DEFAULT_PREFETCH_BYTES;
+  private long mByteBudget = DEFAULT_BYTE_BUDGET;
+  private int mBehindWindow = DEFAULT_BEHIND_WINDOW;
+  private int mFocusPosition;
+  private int mDirection = DIRECTION_FORWARD;
+
+  private long mBytesFetched;
+  private int mCompletedCount;
+  private int mFailedCount;
+
+  public VideoPrefetcher(VideoCache cache) {
+    mCache = cache;
+    mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "VideoPrefetcher-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Sets the max count of concurrent downloads.
+   */
+  public synchronized void setMaxConcurrent(int maxConcurrent) {
+    mMaxConcurrent = Math.max(1, maxConcurrent);
+    scheduleLocked();
+  }
+
+  /**
+   * Sets the count of leading bytes to prefetch for each video.
+   */
+  public synchronized void setPrefetchBytes(long prefetchBytes) {
+    mPrefetchBytes = Math.max(0, prefetchBytes);
+  }
+
+  /**
+   * Sets the leading duration to prefetch for each video, estimated by the bitrate.
+   *
+   * @param seconds the leading duration in seconds.
+   * @param bitrateKbps the estimated bitrate of the videos, in kbps.
+   */
+  public void setPrefetchDuration(int seconds, int bitrateKbps) {
+    setPrefetchBytes((long) seconds * bitrateKbps * 1000 / 8);
+  }
+
+  /**
+   * Sets the max count of bytes being prefetched, the bytes still to fetch by the running
+   * downloads. Completed videos do not count.
+   */
+  public synchronized void setByteBudget(long byteBudget) {
+    mByteBudget = Math.max(0, byteBudget);
+    scheduleLocked();
+  }
+
+  /**
+   * Sets how many positions behind the scroll direction the videos are still tracked, the
+   * farther ones are cancelled on {@link #updateFocus(int, int)}.
+   */
+  public synchronized void setBehindWindow(int count) {
+    mBehindWindow = Math.max(0, count);
+  }
+
+  /**
+   * Enqueues a video to prefetch.
+   *
+   * @param url the original url of the video.
+   * @param headers the headers for the request, may be null.
+   * @param position the position of the video in the feed, used to compute the priority.
+   */
+  public synchronized void enqueue(String url, Map<String, String> headers, int position) {
+    Task task = mTasks.get(url);
+    if (task != null) {
+      task.position = position;
+    } else {
+      mTasks.put(url, new Task(url, headers, position, mPrefetchBytes));
+    }
+    scheduleLocked();
+  }
+
+  /**
+   * Cancels the prefetching of the video and stops tracking it. The fetched bytes are kept
+   * in the cache.
+   */
+  public synchronized void cancel(String url) {
+    Task task = mTasks.remove(url);
+    if (task != null) {
+      task.cancelled = true;
+    }
+    scheduleLocked();
+  }
+
+  public synchronized void cancelAll() {
+    for (Task task : mTasks.values()) {
+      task.cancelled = true;
+    }
+    mTasks.clear();
+  }
+
+  /**
+   * Updates the current position and the scroll direction of the feed. Pending videos are
+   * reprioritized by the distance, the ones behind the direction come after the ones ahead.
+   * Videos more than {@link #setBehindWindow(int)} positions behind are no longer tracked.
+   *
+   * @param position the position of the current video in the feed.
+   * @param direction {@link #DIRECTION_FORWARD} or {@link #DIRECTION_BACKWARD}.
+   */
+  public synchronized void updateFocus(int position, int direction) {
+    mFocusPosition = position;
+    mDirection = direction >= 0 ? DIRECTION_FORWARD : DIRECTION_BACKWARD;
+    Iterator<Task> iterator = mTasks.values().iterator();
+    while (iterator.hasNext()) {
+      Task task = iterator.next();
+      // 划过去太远的视频不太可能再回来，停止拉取；窗口内的只是降低优先级.
+      if ((position - task.position) * mDirection > mBehindWindow) {
+        task.cancelled = true;
+        iterator.remove();
+      }
+    }
+    scheduleLocked();
+  }
+
+  /**
+   * Returns a snapshot of the statistics.
+   */
+  public synchronized Stats getStats() {
+    Stats stats = new Stats();
+    stats.bytesFetched = mBytesFetched;
+    stats.completed = mCompletedCount;
+    stats.failed = mFailedCount;
+    stats.pending = mTasks.size() - mRunningCount;
+    stats.running = mRunningCount;
+    for (Task task : mTasks.values()) {
+      if (task.finished) {
+        stats.pending--;
+      }
+    }
+    return stats;
+  }
+
+  public void shutdown() {
+    cancelAll();
+    mExecutor.shutdownNow();
+  }
+
+  private void scheduleLocked() {
+    while (mRunningCount < mMaxConcurrent) {
+      Task next = null;
+      // bytes still to fetch by the running tasks.
+      long inFlightBytes = 0;
+      for (Task task : mTasks.values()) {
+        if (task.running) {
+          inFlightBytes += Math.max(0, task.targetBytes - task.fetchedBytes);
+          continue;
+        }
+        if (task.finished) {
+          continue;
+        }
+        if (next == null || distanceOf(task) < distanceOf(next)) {
+          next = task;
+        }
+      }
+      if (next == null || mByteBudget == 0) {
+        return;
+      }
+      // 单个视频的预取量超过整个预算时只拉取预算以内的部分，否则永远不会开始.
+      long targetBytes = Math.min(next.targetBytes, mByteBudget);
+      if (inFlightBytes + targetBytes > mByteBudget) {
+        return;
+      }
+      final Task task = next;
+      task.targetBytes = targetBytes;
+      task.running = true;
+      mRunningCount++;
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          boolean success = fetch(task);
+          onTaskFinished(task, success);
+        }
+      });
+    }
+  }
+
+  /*
+   * 距离越小优先级越高，滑动方向反方向上的视频优先级降低.
+   */
+  private int distanceOf(Task task) {
+    int distance = (task.position - mFocusPosition) * mDirection;
+    return distance >= 0 ? distance * 2 : -distance * 2 + 1;
+  }
+
+  private synchronized void onTaskFinished(Task task, boolean success) {
+    task.running = false;
+    task.finished = true;
+    mRunningCount--;
+    if (success) {
+      mCompletedCount++;
+    } else if (!task.cancelled) {
+      mFailedCount++;
+      mTasks.remove(task.url);
+    }
+    scheduleLocked();
+  }
+
+  private synchronized void onBytesFetched(Task task, long bytes) {
+    mBytesFetched += bytes;
+    task.fetchedBytes += bytes;
+  }
+
+  private boolean fetch(Task task) {
+    VideoCache.Entry entry = mCache.open(task.url);
+    HttpSource source = null;
+    try {
+      long contentLength = entry.getContentLength();
+      long end = contentLength >= 0 ? Math.min(task.targetBytes, contentLength) : task.targetBytes;
+      long position = entry.getCachedEnd(0);
+      if (position >= end) {
+        return true;
+      }
+      source = new HttpSource(task.url, task.headers);
+      source.open(position, end);
+      entry.setContentInfo(source.getTotalLength(), source.getContentType());
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (position < end && !task.cancelled) {
+        int read = source.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+        if (read < 0) {
+          break;
+        }
+        entry.write(position, buffer, 0, read);
+        position += read;
+        onBytesFetched(task, read);
+      }
+      return !task.cancelled;
+    } catch (IOException ex) {
+      Log.w(TAG, "Unable to prefetch " + task.url, ex);
+      return false;
+    } finally {
+      if (source != null) {
+        source.close();
+      }
+      entry.close();
+    }
+  }
+
+  private static class Task {
+    final String url;
+    final Map<String, String> headers;
+    // clamped to the byte budget when started.
+    long targetBytes;
+    // bytes fetched from the network so far.
+    long fetchedBytes;
+    int position;
+    boolean running;
+    boolean finished;
+    volatile boolean cancelled;
+
+    Task(String url, Map<String, String> headers, int position, long targetBytes) {
+      this.url = url;
+      this.headers = headers;
+      this.position = position;
+      this.targetBytes = targetBytes;
+    }
+  }
+
+  /**
+   * Statistics of the prefetcher.
+   */
+  public static class Stats {
+    // bytes fetched from the network.
+    public long bytesFetched;
+    // tasks finished successfully.
+    public int completed;
+    // tasks failed because of network errors.
+    public int failed;
+    // tasks waiting for a free slot or budget.
+    public int pending;
+    // tasks downloading.
+    public int running;
+
+    @Override
+    public String toString() {
+      return "Stats{bytesFetched=" + bytesFetched + ", completed=" + completed
+          + ", failed=" + failed + ", pending=" + pending + ", running=" + running + "}";
+    }
+  }
+}
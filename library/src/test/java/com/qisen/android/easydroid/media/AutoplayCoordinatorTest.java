@@ -0,0 +1,208 @@
+package com.qisen.android.easydroid.media;
+
+import android.view.Choreographer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The election of the items to play, with the frames run by hand.
+ */
+public class AutoplayCoordinatorTest {
+
+  // the order of the callbacks across the items.
+  private static int sEventOrder;
+
+  private final Frames mFrames = new Frames();
+  private AutoplayCoordinator mCoordinator;
+
+  @Before
+  public void setUp() {
+    mCoordinator = new AutoplayCoordinator(mFrames);
+  }
+
+  @Test
+  public void playsTheMostVisibleItemAboveTheMinFraction() {
+    FakeItem half = register(0.6F);
+    FakeItem most = register(0.9F);
+    FakeItem little = register(0.3F);
+    mFrames.run();
+
+    assertTrue(mCoordinator.isActive(most));
+    assertFalse(mCoordinator.isActive(half));
+    assertFalse(mCoordinator.isActive(little));
+    assertEquals(1, most.activations);
+
+    most.fraction = 0.2F;
+    half.fraction = 0.4F;
+    little.fraction = 0.3F;
+    mCoordinator.update();
+    // nothing reaches the min fraction, the one scrolled away is paused.
+    assertFalse(mCoordinator.isActive(most));
+    assertEquals(1, most.deactivations);
+    assertEquals(0.2F, most.lastDeactivatedFraction, 0);
+    assertFalse(mCoordinator.isActive(half));
+  }
+
+  @Test
+  public void mergesTheScrollsOfAFrame() {
+    FakeItem item = register(1);
+    mCoordinator.onScrolled();
+    mCoordinator.onScrolled();
+    assertEquals(1, mFrames.pending.size());
+
+    mFrames.run();
+    assertTrue(mCoordinator.isActive(item));
+    assertEquals(1, item.activations);
+
+    // an immediate update cancels the frame.
+    mCoordinator.onScrolled();
+    mCoordinator.update();
+    assertEquals(0, mFrames.pending.size());
+  }
+
+  @Test
+  public void playsAtMostMaxActiveItems() {
+    FakeItem first = register(1);
+    FakeItem second = register(0.8F);
+    FakeItem third = register(0.7F);
+    mCoordinator.setMaxActive(2);
+
+    assertTrue(mCoordinator.isActive(first));
+    assertTrue(mCoordinator.isActive(second));
+    assertFalse(mCoordinator.isActive(third));
+
+    third.fraction = 0.9F;
+    mCoordinator.update();
+    // the least visible one stops before the new one starts.
+    assertFalse(mCoordinator.isActive(second));
+    assertTrue(mCoordinator.isActive(third));
+    assertTrue(second.lastEventOrder < third.lastEventOrder);
+
+    mCoordinator.setMaxActive(0);
+    assertFalse(mCoordinator.isActive(first));
+    assertFalse(mCoordinator.isActive(third));
+  }
+
+  @Test
+  public void keepsThePlayingItemOnATie() {
+    FakeItem playing = register(0.8F);
+    mCoordinator.update();
+    FakeItem other = register(0.8F);
+    mCoordinator.update();
+    assertTrue(mCoordinator.isActive(playing));
+    assertFalse(mCoordinator.isActive(other));
+
+    // registered first or not, the playing one wins the tie.
+    mCoordinator.unregister(playing);
+    assertEquals(1, playing.deactivations);
+    mCoordinator.update();
+    assertTrue(mCoordinator.isActive(other));
+    mCoordinator.register(playing);
+    mCoordinator.update();
+    assertTrue(mCoordinator.isActive(other));
+    assertFalse(mCoordinator.isActive(playing));
+    assertEquals(1, other.activations);
+  }
+
+  @Test
+  public void preloadsTheMostVisibleCandidateOnce() {
+    FakeItem playing = register(1);
+    FakeItem next = register(0.3F);
+    FakeItem hidden = register(0);
+    mCoordinator.update();
+
+    assertEquals(1, next.preloads);
+    assertEquals(0, hidden.preloads);
+    mCoordinator.update();
+    assertEquals(1, next.preloads);
+
+    // the preloaded one is elected, the next candidate is preloaded.
+    playing.fraction = 0.1F;
+    next.fraction = 0.9F;
+    mCoordinator.update();
+    assertTrue(mCoordinator.isActive(next));
+    assertEquals(1, playing.preloads);
+    assertEquals(0, hidden.preloads);
+  }
+
+  @Test
+  public void releaseDeactivatesAll() {
+    FakeItem item = register(1);
+    mCoordinator.update();
+    mCoordinator.onScrolled();
+    mCoordinator.release();
+
+    assertFalse(mCoordinator.isActive(item));
+    assertEquals(1, item.deactivations);
+    assertEquals(0, mFrames.pending.size());
+  }
+
+  private FakeItem register(float fraction) {
+    FakeItem item = new FakeItem();
+    item.fraction = fraction;
+    mCoordinator.register(item);
+    return item;
+  }
+
+  private static class FakeItem implements AutoplayCoordinator.Item {
+    float fraction;
+    int activations;
+    int deactivations;
+    int preloads;
+    float lastDeactivatedFraction = -1;
+    int lastEventOrder;
+
+    @Override
+    public float getVisibleFraction() {
+      return fraction;
+    }
+
+    @Override
+    public void onActivate() {
+      activations++;
+      lastEventOrder = ++sEventOrder;
+    }
+
+    @Override
+    public void onDeactivate(float visibleFraction) {
+      deactivations++;
+      lastDeactivatedFraction = visibleFraction;
+      lastEventOrder = ++sEventOrder;
+    }
+
+    @Override
+    public void onPreload() {
+      preloads++;
+    }
+  }
+
+  private static class Frames implements AutoplayCoordinator.FrameScheduler {
+    final List<Choreographer.FrameCallback> pending = new ArrayList<>();
+
+    @Override
+    public void postFrameCallback(Choreographer.FrameCallback callback) {
+      pending.add(callback);
+    }
+
+    @Override
+    public void removeFrameCallback(Choreographer.FrameCallback callback) {
+      pending.remove(callback);
+    }
+
+    void run() {
+      List<Choreographer.FrameCallback> callbacks = new ArrayList<>(pending);
+      pending.clear();
+      for (Choreographer.FrameCallback callback : callbacks) {
+        callback.doFrame(0);
+      }
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package com.qisen.android.easydroid.media;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_ERROR;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_IDLE;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PAUSED;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PLAYBACK_COMPLETED;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PLAYING;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PREPARED;
+import static com.qisen.android.easydroid.media.PlayerEngine.STATE_PREPARING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The transition table, and the current and target states under concurrent access.
+ */
+public class PlaybackStateMachineTest {
+
+  private static final int[] STATES = {
+      STATE_ERROR, STATE_IDLE, STATE_PREPARING, STATE_PREPARED, STATE_PLAYING, STATE_PAUSED,
+      STATE_PLAYBACK_COMPLETED,
+  };
+  // the states the callers set as the target.
+  private static final int[] CALLER_TARGETS = {STATE_IDLE, STATE_PLAYING, STATE_PAUSED};
+
+  @Test
+  public void allowsTheLifecycleTransitions() {
+    for (int state : STATES) {
+      assertTrue(PlaybackStateMachine.isAllowed(state, state));
+      assertTrue(PlaybackStateMachine.isAllowed(state, STATE_IDLE));
+      assertTrue(PlaybackStateMachine.isAllowed(state, STATE_ERROR));
+    }
+    assertTrue(PlaybackStateMachine.isAllowed(STATE_IDLE, STATE_PREPARING));
+    assertTrue(PlaybackStateMachine.isAllowed(STATE_PREPARED, STATE_PLAYING));
+    assertTrue(PlaybackStateMachine.isAllowed(STATE_PLAYING, STATE_PREPARING));
+    assertTrue(PlaybackStateMachine.isAllowed(STATE_PLAYBACK_COMPLETED, STATE_PLAYING));
+    assertFalse(PlaybackStateMachine.isAllowed(STATE_IDLE, STATE_PLAYING));
+    assertFalse(PlaybackStateMachine.isAllowed(STATE_PREPARING, STATE_PLAYING));
+    assertFalse(PlaybackStateMachine.isAllowed(STATE_ERROR, STATE_PLAYING));
+    assertFalse(PlaybackStateMachine.isAllowed(STATE_IDLE, STATE_PLAYBACK_COMPLETED));
+    assertFalse(PlaybackStateMachine.isAllowed(STATE_PLAYING, 42));
+    assertFalse(PlaybackStateMachine.isAllowed(-2, STATE_IDLE));
+  }
+
+  @Test
+  public void movesOnlyAlongTheTable() {
+    for (int from : STATES) {
+      for (int to : STATES) {
+        PlaybackStateMachine machine = new PlaybackStateMachine();
+        for (int step : pathTo(from)) {
+          assertTrue(machine.moveTo(step));
+        }
+        assertEquals(from, machine.getCurrent());
+        boolean allowed = PlaybackStateMachine.isAllowed(from, to);
+        assertEquals(PlaybackStateMachine.nameOf(from) + " -> " + PlaybackStateMachine.nameOf(to),
+            allowed, machine.moveTo(to));
+        assertEquals(allowed ? to : from, machine.getCurrent());
+      }
+    }
+  }
+
+  /*
+   * One player thread moves the current state, as PlayerEngine does, while other threads
+   * read it and write the target. Every move must agree with the table and no read may see a
+   * state out of the range.
+   */
+  @Test
+  public void keepsTheCurrentStateConsistentUnderContention() throws Throwable {
+    final PlaybackStateMachine machine = new PlaybackStateMachine();
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      final int seed = i;
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          while (!stop.get()) {
+            assertValid(machine.getCurrent());
+            assertValid(machine.getTarget());
+            machine.setTarget(CALLER_TARGETS[random.nextInt(CALLER_TARGETS.length)]);
+          }
+        }
+      }));
+    }
+    startAll(threads, failure);
+
+    Random random = new Random(42);
+    try {
+      for (int i = 0; i < 200000; i++) {
+        int from = machine.getCurrent();
+        int to = STATES[random.nextInt(STATES.length)];
+        boolean moved = machine.moveTo(to);
+        assertEquals(PlaybackStateMachine.isAllowed(from, to), moved);
+        assertEquals(moved ? to : from, machine.getCurrent());
+      }
+    } finally {
+      stop.set(true);
+      joinAll(threads, failure);
+    }
+  }
+
+  @Test
+  public void rejectsThePlayerWriteWhenTheSameStateIsRequestedAgain() {
+    PlaybackStateMachine machine = new PlaybackStateMachine();
+    int handled = machine.setTarget(STATE_PLAYING);
+    // start() again while the completion is being handled.
+    int pending = machine.setTarget(STATE_PLAYING);
+
+    assertFalse(machine.compareAndSetTarget(handled, STATE_PLAYBACK_COMPLETED));
+    assertEquals(STATE_PLAYING, machine.getTarget());
+    assertTrue(machine.compareAndSetTarget(pending, STATE_PLAYBACK_COMPLETED));
+    assertEquals(STATE_PLAYBACK_COMPLETED, machine.getTarget());
+    assertEquals(pending, machine.getTargetVersion());
+  }
+
+  /*
+   * Callers set the target and queue the version to the player thread, which writes the
+   * completion only with the latest version it has taken from the queue. When all is done,
+   * the target is the last request of the callers unless the player wrote after taking it.
+   */
+  @Test
+  public void neverOverridesANewerRequestOfTheCaller() throws Throwable {
+    for (int round = 0; round < 20; round++) {
+      final PlaybackStateMachine machine = new PlaybackStateMachine();
+      final ArrayDeque<Integer> queue = new ArrayDeque<>();
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      final int callers = 3;
+      final int requests = 20000;
+      final CountDownLatch callersDone = new CountDownLatch(callers);
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < callers; i++) {
+        final int seed = round * callers + i;
+        threads.add(new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Random random = new Random(seed);
+            for (int j = 0; j < requests; j++) {
+              // the same state is set again and again, a value compare would not notice.
+              int state = random.nextInt(4) == 0 ? STATE_PAUSED : STATE_PLAYING;
+              synchronized (queue) {
+                // the message is queued in the order of the versions, as by a Handler.
+                queue.add(machine.setTarget(state));
+              }
+            }
+            callersDone.countDown();
+          }
+        }));
+      }
+      startAll(threads, failure);
+
+      int handledVersion = 0;
+      int lastWinningVersion = -1;
+      boolean done = false;
+      while (!done) {
+        done = callersDone.getCount() == 0;
+        Integer version;
+        synchronized (queue) {
+          version = queue.poll();
+        }
+        if (version != null) {
+          assertTrue(version - handledVersion > 0);
+          handledVersion = version;
+          done = false;
+          continue;
+        }
+        if (machine.compareAndSetTarget(handledVersion, STATE_PLAYBACK_COMPLETED)) {
+          lastWinningVersion = handledVersion;
+        }
+      }
+      joinAll(threads, failure);
+
+      assertEquals(callers * requests, machine.getTargetVersion());
+      assertEquals(callers * requests, handledVersion);
+      if (machine.getTarget() == STATE_PLAYBACK_COMPLETED) {
+        assertEquals(handledVersion, lastWinningVersion);
+      } else {
+        assertTrue(machine.getTarget() == STATE_PLAYING || machine.getTarget() == STATE_PAUSED);
+      }
+      // a stale version always loses.
+      assertFalse(machine.compareAndSetTarget(handledVersion - 1, STATE_ERROR));
+    }
+  }
+
+  /*
+   * As PlayerEngine.start() and pause() do, the callers take the version and queue the message
+   * without a lock in between, so the messages may reach the player out of the version order.
+   * The player skips the versions older than the one it has handled, and ends in the target.
+   */
+  @Test
+  public void endsInTheTargetWhenTheRequestsArriveOutOfOrder() throws Throwable {
+    for (int round = 0; round < 10; round++) {
+      final PlaybackStateMachine machine = new PlaybackStateMachine();
+      final ArrayDeque<int[]> queue = new ArrayDeque<>();
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      final int callers = 3;
+      final int requests = 5000;
+      final CountDownLatch callersDone = new CountDownLatch(callers);
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < callers; i++) {
+        final int seed = round * callers + i;
+        threads.add(new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Random random = new Random(seed);
+            for (int j = 0; j < requests; j++) {
+              int state = random.nextBoolean() ? STATE_PAUSED : STATE_PLAYING;
+              int version = machine.setTarget(state);
+              if (random.nextInt(8) == 0) {
+                // the caller is preempted between the two steps.
+                Thread.yield();
+              }
+              synchronized (queue) {
+                queue.add(new int[] {version, state});
+              }
+            }
+            callersDone.countDown();
+          }
+        }));
+      }
+      startAll(threads, failure);
+
+      int handledVersion = 0;
+      int current = STATE_PLAYING;
+      boolean done = false;
+      while (!done) {
+        done = callersDone.getCount() == 0;
+        int[] request;
+        synchronized (queue) {
+          request = queue.poll();
+        }
+        if (request == null) {
+          continue;
+        }
+        done = false;
+        if (request[0] - handledVersion < 0) {
+          continue;
+        }
+        handledVersion = request[0];
+        current = request[1];
+      }
+      joinAll(threads, failure);
+
+      assertEquals(callers * requests, handledVersion);
+      assertEquals(machine.getTarget(), current);
+    }
+  }
+
+  private static void assertValid(int state) {
+    assertTrue("state " + state, state >= STATE_ERROR && state <= STATE_PLAYBACK_COMPLETED);
+  }
+
+  /*
+   * The moves from IDLE to the state.
+   */
+  private static int[] pathTo(int state) {
+    switch (state) {
+      case STATE_ERROR:
+        return new int[] {STATE_ERROR};
+      case STATE_IDLE:
+        return new int[0];
+      case STATE_PREPARING:
+        return new int[] {STATE_PREPARING};
+      case STATE_PREPARED:
+        return new int[] {STATE_PREPARING, STATE_PREPARED};
+      case STATE_PLAYING:
+        return new int[] {STATE_PREPARING, STATE_PREPARED, STATE_PLAYING};
+      case STATE_PAUSED:
+        return new int[] {STATE_PREPARING, STATE_PREPARED, STATE_PLAYING, STATE_PAUSED};
+      case STATE_PLAYBACK_COMPLETED:
+        return new int[] {STATE_PREPARING, STATE_PREPARED, STATE_PLAYING,
+            STATE_PLAYBACK_COMPLETED};
+      default:
+        throw new IllegalArgumentException("state " + state);
+    }
+  }
+
+  private static void startAll(List<Thread> threads, final AtomicReference<Throwable> failure) {
+    for (Thread thread : threads) {
+      thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+        @Override
+        public void uncaughtException(Thread t, Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      thread.start();
+    }
+  }
+
+  private static void joinAll(List<Thread> threads, AtomicReference<Throwable> failure)
+      throws Throwable {
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+}
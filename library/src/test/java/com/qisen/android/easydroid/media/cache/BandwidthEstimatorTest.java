@@ -0,0 +1,96 @@
+package com.qisen.android.easydroid.media.cache;
+
+import com.qisen.android.easydroid.media.VideoVariant;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Samples the playback connections to a throttled local server, the estimate and the selected
+ * variant follow the speed.
+ */
+public class BandwidthEstimatorTest {
+
+  // 32 writes of 8k.
+  private static final int LENGTH = 256 * 1024;
+  // at most 8k per 10ms, about 6500 kbps.
+  private static final int DELAY_PER_WRITE_MS = 10;
+  private static final long THROTTLED_MAX_KBPS = LENGTH * 8L / ((LENGTH / (8 * 1024) - 1)
+      * DELAY_PER_WRITE_MS);
+
+  private static final VideoVariant LOW = new VideoVariant(null, 500, 320, 180);
+  private static final VideoVariant MEDIUM = new VideoVariant(null, 1500, 640, 360);
+  private static final VideoVariant HIGH = new VideoVariant(null, 8000, 1920, 1080);
+  private static final List<VideoVariant> VARIANTS = Arrays.asList(HIGH, LOW, MEDIUM);
+
+  private TestHttpServer mServer;
+  private BandwidthEstimator mEstimator;
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = new TestHttpServer(LENGTH);
+    mEstimator = BandwidthEstimator.getInstance();
+    mEstimator.reset();
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop();
+    mEstimator.reset();
+  }
+
+  @Test
+  public void followsTheThrottledSpeed() throws IOException {
+    mServer.setDelayPerWriteMs(DELAY_PER_WRITE_MS);
+    transfer(true);
+    long throttled = mEstimator.getEstimateKbps();
+    assertEquals(1, mEstimator.getStats().samples);
+    assertTrue("estimate " + throttled, throttled <= THROTTLED_MAX_KBPS);
+    assertEquals(MEDIUM, VideoVariant.select(VARIANTS, throttled));
+
+    // the local server without the throttle is far faster than any variant.
+    mServer.setDelayPerWriteMs(0);
+    transfer(true);
+    long fast = mEstimator.getEstimateKbps();
+    assertTrue("estimate " + fast + " after " + throttled, fast > throttled * 2);
+    assertEquals(HIGH, VideoVariant.select(VARIANTS, fast));
+
+    // a stall lowers the estimate at once.
+    mEstimator.onStall();
+    assertTrue(mEstimator.getEstimateKbps() < fast);
+  }
+
+  @Test
+  public void ignoresTheConnectionsNotFeedingThePlayback() throws IOException {
+    mServer.setDelayPerWriteMs(DELAY_PER_WRITE_MS);
+    transfer(false);
+    assertEquals(0, mEstimator.getStats().samples);
+    // still the initial estimate.
+    assertEquals(LOW, VideoVariant.select(VARIANTS, mEstimator.getEstimateKbps()));
+  }
+
+  private void transfer(boolean sampleBandwidth) throws IOException {
+    HttpSource source = new HttpSource(mServer.url(TestHttpServer.PATH_RANGE), null,
+        sampleBandwidth);
+    byte[] buffer = new byte[16 * 1024];
+    long total = 0;
+    try {
+      source.open(0, -1);
+      int read;
+      while ((read = source.read(buffer, 0, buffer.length)) > 0) {
+        total += read;
+      }
+    } finally {
+      source.close();
+    }
+    assertEquals(LENGTH, total);
+  }
+}
@@ -0,0 +1,99 @@
+package com.qisen.android.easydroid.media.cache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RangeSetTest {
+
+  @Test
+  public void mergesOverlappingAndAdjacentRanges() {
+    RangeSet ranges = new RangeSet();
+    ranges.add(100, 200);
+    ranges.add(300, 400);
+    ranges.add(500, 600);
+    assertEquals(3, ranges.size());
+    assertEquals(300, ranges.length());
+
+    // adjacent to the first one.
+    ranges.add(200, 250);
+    assertEquals("[100-250, 300-400, 500-600]", ranges.toString());
+    // bridges the last two.
+    ranges.add(350, 550);
+    assertEquals("[100-250, 300-600]", ranges.toString());
+    // covers everything.
+    ranges.add(0, 1000);
+    assertEquals("[0-1000]", ranges.toString());
+    // empty ranges are ignored.
+    ranges.add(2000, 2000);
+    assertEquals(1, ranges.size());
+  }
+
+  @Test
+  public void queriesTheCachedRanges() {
+    RangeSet ranges = new RangeSet();
+    ranges.add(100, 200);
+    ranges.add(300, 400);
+
+    assertEquals(50, ranges.contiguousEnd(50));
+    assertEquals(200, ranges.contiguousEnd(100));
+    assertEquals(200, ranges.contiguousEnd(199));
+    assertEquals(200, ranges.contiguousEnd(200));
+    assertEquals(100, ranges.nextStart(0));
+    assertEquals(300, ranges.nextStart(150));
+    assertEquals(300, ranges.nextStart(200));
+    assertEquals(Long.MAX_VALUE, ranges.nextStart(350));
+    assertTrue(ranges.contains(120, 200));
+    assertFalse(ranges.contains(120, 201));
+    assertTrue(ranges.contains(500, 500));
+  }
+
+  @Test
+  public void matchesABitmapForRandomRanges() {
+    Random random = new Random(42);
+    boolean[] bits = new boolean[4096];
+    RangeSet ranges = new RangeSet();
+    for (int i = 0; i < 500; i++) {
+      int start = random.nextInt(bits.length);
+      int end = Math.min(bits.length, start + random.nextInt(64));
+      ranges.add(start, end);
+      for (int j = start; j < end; j++) {
+        bits[j] = true;
+      }
+    }
+    long length = 0;
+    for (int position = 0; position < bits.length; position++) {
+      int end = position;
+      while (end < bits.length && bits[end]) {
+        end++;
+      }
+      assertEquals("contiguousEnd " + position, end, ranges.contiguousEnd(position));
+      length += bits[position] ? 1 : 0;
+    }
+    assertEquals(length, ranges.length());
+  }
+
+  @Test
+  public void survivesSerialization() throws IOException {
+    RangeSet ranges = new RangeSet();
+    ranges.add(0, 10);
+    ranges.add(20, 30);
+    ranges.add(1L << 40, (1L << 40) + 5);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ranges.writeTo(new DataOutputStream(bytes));
+
+    RangeSet restored = new RangeSet();
+    restored.add(5, 25);
+    restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(ranges.toString(), restored.toString());
+  }
+}
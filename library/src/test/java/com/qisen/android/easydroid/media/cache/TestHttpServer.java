@@ -0,0 +1,164 @@
+package com.qisen.android.easydroid.media.cache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in of the video server, serving the same random bytes at two paths:
+ * {@link #PATH_RANGE} honors the Range header, {@link #PATH_PLAIN} always returns the whole
+ * file with 200, in odd sized writes so the reads never line up with the chunks.
+ */
+class TestHttpServer {
+
+  static final String PATH_RANGE = "/range.mp4";
+  static final String PATH_PLAIN = "/plain.mp4";
+
+  private static final int PLAIN_WRITE_SIZE = 1000;
+
+  private final byte[] mData;
+  private final HttpServer mServer;
+  // requests and bytes served, and the max requests served at the same time.
+  private final AtomicInteger mRequests = new AtomicInteger();
+  private final AtomicLong mBytesServed = new AtomicLong();
+  private final AtomicInteger mRunning = new AtomicInteger();
+  private final AtomicInteger mMaxRunning = new AtomicInteger();
+  // the path and the query of the requests, in the order received.
+  private final List<String> mRequestUris = new ArrayList<>();
+  private volatile int mDelayPerWriteMs;
+
+  TestHttpServer(int length) throws IOException {
+    mData = new byte[length];
+    new Random(length).nextBytes(mData);
+    mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    mServer.setExecutor(Executors.newCachedThreadPool());
+    mServer.createContext(PATH_RANGE, new Handler(true));
+    mServer.createContext(PATH_PLAIN, new Handler(false));
+    mServer.start();
+  }
+
+  byte[] getData() {
+    return mData;
+  }
+
+  String url(String path) {
+    return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+  }
+
+  /**
+   * Slows down the responses, each write of at most 8k bytes sleeps for the time.
+   */
+  void setDelayPerWriteMs(int delayMs) {
+    mDelayPerWriteMs = delayMs;
+  }
+
+  int getRequests() {
+    return mRequests.get();
+  }
+
+  long getBytesServed() {
+    return mBytesServed.get();
+  }
+
+  int getMaxConcurrentRequests() {
+    return mMaxRunning.get();
+  }
+
+  List<String> getRequestUris() {
+    synchronized (mRequestUris) {
+      return new ArrayList<>(mRequestUris);
+    }
+  }
+
+  void resetCounters() {
+    synchronized (mRequestUris) {
+      mRequestUris.clear();
+    }
+    mRequests.set(0);
+    mBytesServed.set(0);
+    mMaxRunning.set(0);
+  }
+
+  void stop() {
+    mServer.stop(0);
+  }
+
+  private class Handler implements HttpHandler {
+    private final boolean mRangeSupported;
+
+    Handler(boolean rangeSupported) {
+      mRangeSupported = rangeSupported;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      mRequests.incrementAndGet();
+      synchronized (mRequestUris) {
+        mRequestUris.add(exchange.getRequestURI().toString());
+      }
+      int running = mRunning.incrementAndGet();
+      int max;
+      while (running > (max = mMaxRunning.get()) && !mMaxRunning.compareAndSet(max, running)) {
+        // retry.
+      }
+      try {
+        serve(exchange);
+      } catch (IOException ex) {
+        // the client closed the connection.
+      } finally {
+        mRunning.decrementAndGet();
+        exchange.close();
+      }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+      long start = 0;
+      long end = mData.length - 1;
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      exchange.getResponseHeaders().set("Content-Type", "video/mp4");
+      if (mRangeSupported && range != null && range.startsWith("bytes=")) {
+        String[] parts = range.substring("bytes=".length()).split("-", -1);
+        start = Long.parseLong(parts[0]);
+        if (!parts[1].isEmpty()) {
+          end = Math.min(end, Long.parseLong(parts[1]));
+        }
+        exchange.getResponseHeaders().set("Content-Range",
+            "bytes " + start + "-" + end + "/" + mData.length);
+        exchange.sendResponseHeaders(206, end - start + 1);
+      } else {
+        exchange.sendResponseHeaders(200, mData.length);
+      }
+      int writeSize = mRangeSupported ? 8 * 1024 : PLAIN_WRITE_SIZE;
+      OutputStream out = exchange.getResponseBody();
+      for (long position = start; position <= end; position += writeSize) {
+        int length = (int) Math.min(writeSize, end + 1 - position);
+        out.write(mData, (int) position, length);
+        out.flush();
+        mBytesServed.addAndGet(length);
+        sleep(mDelayPerWriteMs);
+      }
+      out.close();
+    }
+  }
+
+  static void sleep(long ms) {
+    if (ms <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
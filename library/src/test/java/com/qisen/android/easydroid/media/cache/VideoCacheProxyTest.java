@@ -0,0 +1,134 @@
+package com.qisen.android.easydroid.media.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays through the proxy against a local server.
+ */
+public class VideoCacheProxyTest {
+
+  private static final int LENGTH = 300 * 1024 + 7;
+
+  private TestHttpServer mServer;
+  private File mDirectory;
+  private VideoCacheProxy mProxy;
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = new TestHttpServer(LENGTH);
+    mDirectory = File.createTempFile("cache", "");
+    assertTrue(mDirectory.delete());
+    mProxy = new VideoCacheProxy(new VideoCache(mDirectory, 16 * 1024 * 1024));
+  }
+
+  @After
+  public void tearDown() {
+    mProxy.shutdown();
+    mServer.stop();
+    VideoDownloaderTest.deleteRecursively(mDirectory);
+  }
+
+  @Test
+  public void servesFromTheCacheOnReplay() throws IOException {
+    String url = mProxy.getProxyUrl(mServer.url(TestHttpServer.PATH_RANGE));
+
+    Response first = get(url, null);
+    assertEquals(200, first.code);
+    assertEquals(String.valueOf(LENGTH), first.contentLength);
+    assertArrayEquals(mServer.getData(), first.body);
+    assertEquals(LENGTH, mServer.getBytesServed());
+
+    mServer.resetCounters();
+    Response second = get(url, null);
+    assertArrayEquals(mServer.getData(), second.body);
+    assertEquals(0, mServer.getRequests());
+    VideoCacheProxy.Stats stats = mProxy.getStats();
+    assertEquals(2, stats.requests);
+    assertEquals(LENGTH, stats.bytesFromCache);
+    assertEquals(LENGTH, stats.bytesFromNetwork);
+  }
+
+  @Test
+  public void servesRangesAndFillsTheGaps() throws IOException {
+    String url = mProxy.getProxyUrl(mServer.url(TestHttpServer.PATH_RANGE));
+
+    // a seek to the middle caches the tail first.
+    Response tail = get(url, "bytes=200000-");
+    assertEquals(206, tail.code);
+    assertEquals("bytes 200000-" + (LENGTH - 1) + "/" + LENGTH, tail.contentRange);
+    assertArrayEquals(Arrays.copyOfRange(mServer.getData(), 200000, LENGTH), tail.body);
+
+    Response middle = get(url, "bytes=1000-1999");
+    assertEquals(206, middle.code);
+    assertArrayEquals(Arrays.copyOfRange(mServer.getData(), 1000, 2000), middle.body);
+
+    // only the gaps are fetched, the rest comes from the cache.
+    mServer.resetCounters();
+    Response whole = get(url, null);
+    assertArrayEquals(mServer.getData(), whole.body);
+    assertEquals(LENGTH - (LENGTH - 200000) - 1000, mServer.getBytesServed());
+  }
+
+  @Test
+  public void servesServersWithoutRange() throws IOException {
+    String url = mProxy.getProxyUrl(mServer.url(TestHttpServer.PATH_PLAIN));
+
+    Response tail = get(url, "bytes=100000-");
+    assertEquals(206, tail.code);
+    assertArrayEquals(Arrays.copyOfRange(mServer.getData(), 100000, LENGTH), tail.body);
+    Response whole = get(url, null);
+    assertArrayEquals(mServer.getData(), whole.body);
+  }
+
+  @Test
+  public void rejectsRangesBeyondTheEnd() throws IOException {
+    String url = mProxy.getProxyUrl(mServer.url(TestHttpServer.PATH_RANGE));
+    get(url, "bytes=0-0");
+    assertEquals(416, get(url, "bytes=" + LENGTH + "-").code);
+  }
+
+  private static Response get(String url, String range) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    if (range != null) {
+      connection.setRequestProperty("Range", range);
+    }
+    Response response = new Response();
+    response.code = connection.getResponseCode();
+    response.contentLength = connection.getHeaderField("Content-Length");
+    response.contentRange = connection.getHeaderField("Content-Range");
+    if (response.code < 400) {
+      InputStream in = connection.getInputStream();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+      in.close();
+      response.body = out.toByteArray();
+    }
+    connection.disconnect();
+    return response;
+  }
+
+  private static class Response {
+    int code;
+    String contentLength;
+    String contentRange;
+    byte[] body;
+  }
+}
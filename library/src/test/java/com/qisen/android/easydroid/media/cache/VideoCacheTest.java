@@ -0,0 +1,100 @@
+package com.qisen.android.easydroid.media.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VideoCacheTest {
+
+  private static final String URL_A = "http://example.com/a.mp4";
+  private static final String URL_B = "http://example.com/b.mp4";
+
+  private File mDirectory;
+
+  @Before
+  public void setUp() throws IOException {
+    mDirectory = File.createTempFile("cache", "");
+    assertTrue(mDirectory.delete());
+  }
+
+  @After
+  public void tearDown() {
+    VideoDownloaderTest.deleteRecursively(mDirectory);
+  }
+
+  @Test
+  public void readsWhatWasWritten() throws IOException {
+    VideoCache cache = new VideoCache(mDirectory, 1024 * 1024);
+    VideoCache.Entry entry = cache.open(URL_A);
+    entry.setContentInfo(1000, "video/mp4");
+    entry.write(100, fill(50, 1), 0, 50);
+    entry.write(400, fill(100, 2), 0, 100);
+
+    assertEquals(150, entry.getCachedBytes());
+    assertEquals(150, cache.getTotalBytes());
+    assertEquals(30, cache.getCachedLength(URL_A, 120));
+    assertEquals(0, cache.getCachedLength(URL_A, 200));
+    assertFalse(cache.isFullyCached(URL_A));
+
+    byte[] buffer = new byte[80];
+    // stops at the end of the cached range.
+    assertEquals(50, entry.read(100, buffer, 0, buffer.length));
+    assertArrayEquals(fill(50, 1), Arrays.copyOf(buffer, 50));
+    assertEquals(0, entry.read(150, buffer, 0, buffer.length));
+    entry.close();
+  }
+
+  @Test
+  public void restoresTheEntriesOfTheLastRun() throws IOException {
+    VideoCache cache = new VideoCache(mDirectory, 1024 * 1024);
+    VideoCache.Entry entry = cache.open(URL_A);
+    entry.setContentInfo(100, "video/mp4");
+    entry.write(0, fill(100, 3), 0, 100);
+    entry.close();
+
+    VideoCache restored = new VideoCache(mDirectory, 1024 * 1024);
+    assertTrue(restored.isFullyCached(URL_A));
+    assertEquals(100, restored.getContentLength(URL_A));
+    assertEquals(100, restored.getTotalBytes());
+    VideoCache.Entry restoredEntry = restored.open(URL_A);
+    assertEquals("video/mp4", restoredEntry.getContentType());
+    byte[] buffer = new byte[100];
+    assertEquals(100, restoredEntry.read(0, buffer, 0, buffer.length));
+    assertArrayEquals(fill(100, 3), buffer);
+    restoredEntry.close();
+  }
+
+  @Test
+  public void evictsTheEldestEntryNotInUse() throws IOException {
+    VideoCache cache = new VideoCache(mDirectory, 150);
+    VideoCache.Entry a = cache.open(URL_A);
+    a.write(0, fill(100, 1), 0, 100);
+    a.close();
+    VideoCache.Entry b = cache.open(URL_B);
+    b.write(0, fill(100, 2), 0, 100);
+
+    // a is evicted, b is in use and kept.
+    assertEquals(0, cache.getCachedLength(URL_A, 0));
+    assertEquals(100, cache.getCachedLength(URL_B, 0));
+    assertEquals(100, cache.getTotalBytes());
+    assertFalse(cache.remove(URL_B));
+    b.close();
+    assertTrue(cache.remove(URL_B));
+    assertEquals(0, cache.getTotalBytes());
+  }
+
+  private static byte[] fill(int length, int value) {
+    byte[] bytes = new byte[length];
+    Arrays.fill(bytes, (byte) value);
+    return bytes;
+  }
+}
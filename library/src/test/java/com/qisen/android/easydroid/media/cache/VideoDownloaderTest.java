@@ -0,0 +1,195 @@
+package com.qisen.android.easydroid.media.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads from a local server, with and without Range support.
+ */
+public class VideoDownloaderTest {
+
+  private static final int LENGTH = 5 * VideoDownloader.CHUNK_SIZE + 12345;
+  private static final long TIMEOUT_MS = 30 * 1000;
+
+  private TestHttpServer mServer;
+  private File mDirectory;
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = new TestHttpServer(LENGTH);
+    mDirectory = File.createTempFile("downloads", "");
+    assertTrue(mDirectory.delete());
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop();
+    deleteRecursively(mDirectory);
+  }
+
+  @Test
+  public void downloadsChunksInParallel() throws Exception {
+    mServer.setDelayPerWriteMs(1);
+    VideoDownloader downloader = new VideoDownloader(mDirectory);
+    downloader.setMaxConnections(3);
+    String url = mServer.url(TestHttpServer.PATH_RANGE);
+    long parallelMs = downloadTimed(downloader, url);
+
+    assertDownloaded(downloader, url);
+    VideoDownloader.Stats stats = downloader.getStats();
+    assertEquals(6, stats.chunks);
+    assertEquals(0, stats.retries);
+    assertEquals(1, stats.completed);
+    assertTrue("connections " + mServer.getMaxConcurrentRequests(),
+        mServer.getMaxConcurrentRequests() > 1);
+    // every byte is fetched once.
+    assertEquals(LENGTH, mServer.getBytesServed());
+
+    // the same file with the same delay over one connection.
+    VideoDownloader sequential = new VideoDownloader(new File(mDirectory, "sequential"));
+    sequential.setMaxConnections(1);
+    long sequentialMs = downloadTimed(sequential, url);
+    assertDownloaded(sequential, url);
+    assertTrue("parallel " + parallelMs + "ms, sequential " + sequentialMs + "ms",
+        parallelMs < sequentialMs);
+  }
+
+  @Test
+  public void downloadsSequentiallyWithoutRange() throws Exception {
+    VideoDownloader downloader = new VideoDownloader(mDirectory);
+    String url = mServer.url(TestHttpServer.PATH_PLAIN);
+    downloader.download(url, null);
+    waitForState(downloader, url, VideoDownloader.STATE_COMPLETED);
+
+    assertDownloaded(downloader, url);
+    assertEquals(6, downloader.getStats().chunks);
+    // the probe turns into the only connection, reading the whole file once.
+    assertEquals(1, mServer.getRequests());
+  }
+
+  @Test
+  public void resumesMissingChunksAfterRestart() throws Exception {
+    mServer.setDelayPerWriteMs(2);
+    String url = mServer.url(TestHttpServer.PATH_RANGE);
+    VideoDownloader downloader = new VideoDownloader(mDirectory);
+    downloader.setMaxConnections(1);
+    downloader.download(url, null);
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (downloader.getDownloadedBytes(url) < 2 * VideoDownloader.CHUNK_SIZE) {
+      assertTrue("timeout", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    downloader.pause(url);
+    // wait for the running chunk to be abandoned.
+    while (downloader.getStats().connections > 0) {
+      assertTrue("timeout", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    long downloaded = downloader.getDownloadedBytes(url);
+    assertTrue(downloaded < LENGTH);
+
+    // a new downloader restores the progress from the meta file.
+    mServer.setDelayPerWriteMs(0);
+    mServer.resetCounters();
+    VideoDownloader restored = new VideoDownloader(mDirectory);
+    assertEquals(VideoDownloader.STATE_PAUSED, restored.getState(url));
+    assertEquals(downloaded, restored.getDownloadedBytes(url));
+    assertEquals(LENGTH, restored.getContentLength(url));
+    restored.download(url, null);
+    waitForState(restored, url, VideoDownloader.STATE_COMPLETED);
+
+    assertDownloaded(restored, url);
+    // only the missing chunks are fetched, the abandoned one may still be flushing.
+    long served = mServer.getBytesServed();
+    assertTrue("served " + served, served >= LENGTH - downloaded && served < LENGTH);
+  }
+
+  @Test
+  public void downloadsAgainAfterRemove() throws Exception {
+    mServer.setDelayPerWriteMs(2);
+    String url = mServer.url(TestHttpServer.PATH_RANGE);
+    VideoDownloader downloader = new VideoDownloader(mDirectory);
+    downloader.download(url, null);
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (downloader.getDownloadedBytes(url) == 0) {
+      assertTrue("timeout", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    // the old chunks are still running, their files must not be deleted under the new ones.
+    downloader.remove(url);
+    downloader.download(url, null);
+    mServer.setDelayPerWriteMs(0);
+    waitForState(downloader, url, VideoDownloader.STATE_COMPLETED);
+
+    assertDownloaded(downloader, url);
+  }
+
+  @Test
+  public void removeDeletesTheFiles() throws Exception {
+    String url = mServer.url(TestHttpServer.PATH_RANGE);
+    VideoDownloader downloader = new VideoDownloader(mDirectory);
+    downloader.download(url, null);
+    waitForState(downloader, url, VideoDownloader.STATE_COMPLETED);
+    File file = downloader.getDownloadedFile(url);
+    assertNotNull(file);
+
+    downloader.remove(url);
+    assertEquals(VideoDownloader.STATE_NONE, downloader.getState(url));
+    assertFalse(file.exists());
+    assertEquals(0, new VideoDownloader(mDirectory).getUrls().size());
+  }
+
+  private static long downloadTimed(VideoDownloader downloader, String url)
+      throws InterruptedException {
+    long start = System.nanoTime();
+    downloader.download(url, null);
+    waitForState(downloader, url, VideoDownloader.STATE_COMPLETED);
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  private void assertDownloaded(VideoDownloader downloader, String url) throws IOException {
+    File file = downloader.getDownloadedFile(url);
+    assertNotNull("not completed", file);
+    assertEquals(LENGTH, file.length());
+    assertEquals(LENGTH, downloader.getDownloadedBytes(url));
+    byte[] bytes = new byte[LENGTH];
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      raf.readFully(bytes);
+    } finally {
+      raf.close();
+    }
+    assertArrayEquals(mServer.getData(), bytes);
+  }
+
+  private static void waitForState(VideoDownloader downloader, String url, int state)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (downloader.getState(url) != state) {
+      assertTrue("state " + downloader.getState(url) + ", " + downloader.getStats(),
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
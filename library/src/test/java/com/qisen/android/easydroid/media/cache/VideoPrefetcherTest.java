@@ -0,0 +1,144 @@
+package com.qisen.android.easydroid.media.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prefetches the leading bytes of the videos of a feed from a local server.
+ */
+public class VideoPrefetcherTest {
+
+  private static final int LENGTH = 256 * 1024;
+  private static final int PREFETCH_BYTES = 64 * 1024;
+  private static final long TIMEOUT_MS = 30 * 1000;
+
+  private TestHttpServer mServer;
+  private File mDirectory;
+  private VideoCache mCache;
+  private VideoPrefetcher mPrefetcher;
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = new TestHttpServer(LENGTH);
+    mDirectory = File.createTempFile("prefetch", "");
+    assertTrue(mDirectory.delete());
+    mCache = new VideoCache(mDirectory, 16 * 1024 * 1024);
+    mPrefetcher = new VideoPrefetcher(mCache);
+    mPrefetcher.setPrefetchBytes(PREFETCH_BYTES);
+  }
+
+  @After
+  public void tearDown() {
+    mPrefetcher.shutdown();
+    mServer.stop();
+    VideoDownloaderTest.deleteRecursively(mDirectory);
+  }
+
+  @Test
+  public void fetchesTheNearestVideosAheadFirst() throws Exception {
+    mServer.setDelayPerWriteMs(2);
+    mPrefetcher.setMaxConcurrent(1);
+    // nothing starts until all are queued.
+    mPrefetcher.setByteBudget(0);
+    for (int position : new int[] {9, 1, 3, 7, 4, 6}) {
+      mPrefetcher.enqueue(url(position), null, position);
+    }
+    // 1 is more than the behind window of 2 away, the ones behind come after the ones ahead.
+    mPrefetcher.updateFocus(5, VideoPrefetcher.DIRECTION_FORWARD);
+    mPrefetcher.setByteBudget(PREFETCH_BYTES);
+    waitForCompleted(5);
+
+    assertEquals(Arrays.asList(path(6), path(4), path(7), path(3), path(9)),
+        mServer.getRequestUris());
+    assertEquals(5L * PREFETCH_BYTES, mPrefetcher.getStats().bytesFetched);
+    assertEquals(PREFETCH_BYTES, mCache.getCachedLength(url(6), 0));
+    assertEquals(0, mCache.getCachedLength(url(1), 0));
+  }
+
+  @Test
+  public void stopsTheCancelledVideo() throws Exception {
+    mServer.setDelayPerWriteMs(20);
+    mPrefetcher.setPrefetchBytes(LENGTH);
+    String url = url(0);
+    mPrefetcher.enqueue(url, null, 0);
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (mPrefetcher.getStats().bytesFetched == 0) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(5);
+    }
+    mPrefetcher.cancel(url);
+    waitForIdle();
+
+    VideoPrefetcher.Stats stats = mPrefetcher.getStats();
+    assertEquals(0, stats.completed);
+    assertEquals(0, stats.failed);
+    assertEquals(0, stats.pending);
+    assertTrue("fetched " + stats.bytesFetched, stats.bytesFetched < LENGTH);
+    // the bytes fetched stay in the cache.
+    assertEquals(stats.bytesFetched, mCache.getCachedLength(url, 0));
+  }
+
+  @Test
+  public void keepsTheBytesInFlightWithinTheBudget() throws Exception {
+    mServer.setDelayPerWriteMs(5);
+    mPrefetcher.setMaxConcurrent(3);
+    mPrefetcher.setByteBudget(PREFETCH_BYTES * 3 / 2);
+    for (int position = 1; position <= 3; position++) {
+      mPrefetcher.enqueue(url(position), null, position);
+    }
+
+    VideoPrefetcher.Stats stats = mPrefetcher.getStats();
+    assertEquals(1, stats.running);
+    assertEquals(2, stats.pending);
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (stats.completed < 3) {
+      // two videos would exceed the budget.
+      assertTrue(stats.toString(), stats.running <= 1);
+      assertTrue(stats.toString(), System.currentTimeMillis() < deadline);
+      Thread.sleep(5);
+      stats = mPrefetcher.getStats();
+    }
+  }
+
+  @Test
+  public void fetchesWithinTheBudgetWhenAVideoExceedsIt() throws Exception {
+    mPrefetcher.setByteBudget(PREFETCH_BYTES / 2);
+    mPrefetcher.enqueue(url(0), null, 0);
+    waitForCompleted(1);
+
+    assertEquals(PREFETCH_BYTES / 2, mPrefetcher.getStats().bytesFetched);
+    assertEquals(PREFETCH_BYTES / 2, mCache.getCachedLength(url(0), 0));
+  }
+
+  private String url(int position) {
+    return mServer.url(path(position));
+  }
+
+  private static String path(int position) {
+    return TestHttpServer.PATH_RANGE + "?position=" + position;
+  }
+
+  private void waitForCompleted(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (mPrefetcher.getStats().completed < count) {
+      assertTrue(mPrefetcher.getStats().toString(), System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private void waitForIdle() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (mPrefetcher.getStats().running > 0) {
+      assertTrue(mPrefetcher.getStats().toString(), System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+}